@@ -42,6 +42,9 @@ public class Configuration {
     private Http http = new Http();
     @Valid
     @NestedConfigurationProperty
+    private Ingest ingest = new Ingest();
+    @Valid
+    @NestedConfigurationProperty
     private MetaCache metaCache = new MetaCache();
     @Valid
     @NestedConfigurationProperty
@@ -52,6 +55,9 @@ public class Configuration {
     @Valid
     @NestedConfigurationProperty
     private Websocket websocket = new Websocket();
+    @Valid
+    @NestedConfigurationProperty
+    private Query query = new Query();
 
     public String getMetricsTable() {
         return metricsTable;
@@ -116,6 +122,10 @@ public class Configuration {
         return websocket;
     }
 
+    public Ingest getIngest() {
+        return ingest;
+    }
+
     public MetaCache getMetaCache() {
         return metaCache;
     }
@@ -128,6 +138,10 @@ public class Configuration {
         return visibilityCache;
     }
 
+    public Query getQuery() {
+        return query;
+    }
+
     public class Accumulo {
 
         @NotBlank
@@ -195,6 +209,7 @@ public class Configuration {
         private String latency = "5s";
         private int threads;
         private String bufferSize;
+        private Spool spool = new Spool();
 
         public Write() {
             BatchWriterConfig config = new BatchWriterConfig();
@@ -228,11 +243,71 @@ public class Configuration {
             this.bufferSize = bufferSize;
             return Configuration.this;
         }
+
+        public Spool getSpool() {
+            return spool;
+        }
+    }
+
+    public class Spool {
+
+        private boolean enabled = false;
+        private String directory = System.getProperty("java.io.tmpdir") + "/timely-spool";
+        private String segmentSize = "16M";
+        private String maxSize = "1G";
+        private String replayInterval = "1s";
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public Configuration setEnabled(boolean enabled) {
+            this.enabled = enabled;
+            return Configuration.this;
+        }
+
+        public String getDirectory() {
+            return directory;
+        }
+
+        public Configuration setDirectory(String directory) {
+            this.directory = directory;
+            return Configuration.this;
+        }
+
+        public String getSegmentSize() {
+            return segmentSize;
+        }
+
+        public Configuration setSegmentSize(String segmentSize) {
+            this.segmentSize = segmentSize;
+            return Configuration.this;
+        }
+
+        public String getMaxSize() {
+            return maxSize;
+        }
+
+        public Configuration setMaxSize(String maxSize) {
+            this.maxSize = maxSize;
+            return Configuration.this;
+        }
+
+        public String getReplayInterval() {
+            return replayInterval;
+        }
+
+        public Configuration setReplayInterval(String replayInterval) {
+            this.replayInterval = replayInterval;
+            return Configuration.this;
+        }
     }
 
     public class Scan {
 
         private int threads = 4;
+        // scan threads of all queries at once, zero for no limit
+        private int maxThreads = 64;
         private long maxDownsampleMemory = -1;
 
         public int getThreads() {
@@ -244,6 +319,15 @@ public class Configuration {
             return Configuration.this;
         }
 
+        public int getMaxThreads() {
+            return maxThreads;
+        }
+
+        public Configuration setMaxThreads(int maxThreads) {
+            this.maxThreads = maxThreads;
+            return Configuration.this;
+        }
+
         public long getMaxDownsampleMemory() {
             return maxDownsampleMemory;
         }
@@ -632,11 +716,67 @@ public class Configuration {
         }
     }
 
+    public class Ingest {
+
+        private boolean async = true;
+        private int threads = 4;
+        private int queueSize = 100000;
+        private int batchSize = 1000;
+
+        /**
+         * Hand puts to a queue drained by writer threads instead of writing them on the
+         * Netty event loop
+         *
+         * @return
+         */
+        public boolean isAsync() {
+            return async;
+        }
+
+        public Configuration setAsync(boolean async) {
+            this.async = async;
+            return Configuration.this;
+        }
+
+        public int getThreads() {
+            return threads;
+        }
+
+        public Configuration setThreads(int threads) {
+            this.threads = threads;
+            return Configuration.this;
+        }
+
+        /**
+         * Once this many metrics are queued, the channels that put more stop reading
+         * until the queue is drained to half of it
+         */
+        public int getQueueSize() {
+            return queueSize;
+        }
+
+        public Configuration setQueueSize(int queueSize) {
+            this.queueSize = queueSize;
+            return Configuration.this;
+        }
+
+        public int getBatchSize() {
+            return batchSize;
+        }
+
+        public Configuration setBatchSize(int batchSize) {
+            this.batchSize = batchSize;
+            return Configuration.this;
+        }
+    }
+
     public class MetaCache {
 
         private long expirationMinutes = 60;
         private int initialCapacity = 2000;
         private long maxCapacity = 10000;
+        private boolean fingerprint = true;
+        private long maxFingerprints = 2000000;
 
         public long getExpirationMinutes() {
             return expirationMinutes;
@@ -664,6 +804,24 @@ public class Configuration {
             this.maxCapacity = maxCapacity;
             return Configuration.this;
         }
+
+        public boolean isFingerprint() {
+            return fingerprint;
+        }
+
+        public Configuration setFingerprint(boolean fingerprint) {
+            this.fingerprint = fingerprint;
+            return Configuration.this;
+        }
+
+        public long getMaxFingerprints() {
+            return maxFingerprints;
+        }
+
+        public Configuration setMaxFingerprints(long maxFingerprints) {
+            this.maxFingerprints = maxFingerprints;
+            return Configuration.this;
+        }
     }
 
     public class Cache {
@@ -673,6 +831,11 @@ public class Configuration {
         private List<String> nonCachedMetrics = new ArrayList<>();
         private long maxUniqueTagSets = 50000;
         private long flushInterval = 5000;
+        private String maxMemory = "0";
+        private List<String> rollupResolutions = new ArrayList<>();
+        private Snapshot snapshot = new Snapshot();
+        private Backfill backfill = new Backfill();
+        private CacheQuery query = new CacheQuery();
 
         public HashMap<String, Integer> getMetricAgeOffHours() {
             return metricAgeOffHours;
@@ -719,6 +882,284 @@ public class Configuration {
         public void setFlushInterval(long flushInterval) {
             this.flushInterval = flushInterval;
         }
+
+        public String getMaxMemory() {
+            return maxMemory;
+        }
+
+        public Configuration setMaxMemory(String maxMemory) {
+            this.maxMemory = maxMemory;
+            return Configuration.this;
+        }
+
+        public List<String> getRollupResolutions() {
+            return rollupResolutions;
+        }
+
+        public Configuration setRollupResolutions(List<String> rollupResolutions) {
+            this.rollupResolutions = rollupResolutions;
+            return Configuration.this;
+        }
+
+        public Snapshot getSnapshot() {
+            return snapshot;
+        }
+
+        public Backfill getBackfill() {
+            return backfill;
+        }
+
+        public CacheQuery getQuery() {
+            return query;
+        }
+    }
+
+    public class CacheQuery {
+
+        // zero for one thread per core
+        private int threads = 0;
+        private int maxQueued = 1000;
+        private int minSeriesPerPartition = 64;
+
+        public int getThreads() {
+            return threads;
+        }
+
+        public Configuration setThreads(int threads) {
+            this.threads = threads;
+            return Configuration.this;
+        }
+
+        public int getMaxQueued() {
+            return maxQueued;
+        }
+
+        public Configuration setMaxQueued(int maxQueued) {
+            this.maxQueued = maxQueued;
+            return Configuration.this;
+        }
+
+        public int getMinSeriesPerPartition() {
+            return minSeriesPerPartition;
+        }
+
+        public Configuration setMinSeriesPerPartition(int minSeriesPerPartition) {
+            this.minSeriesPerPartition = minSeriesPerPartition;
+            return Configuration.this;
+        }
+    }
+
+    public class Query {
+
+        // subqueries of all requests run at once
+        private int threads = 16;
+        private int maxQueued = 1000;
+        private ResultCache resultCache = new ResultCache();
+        private Governor governor = new Governor();
+
+        public int getThreads() {
+            return threads;
+        }
+
+        public Configuration setThreads(int threads) {
+            this.threads = threads;
+            return Configuration.this;
+        }
+
+        public int getMaxQueued() {
+            return maxQueued;
+        }
+
+        public Configuration setMaxQueued(int maxQueued) {
+            this.maxQueued = maxQueued;
+            return Configuration.this;
+        }
+
+        public ResultCache getResultCache() {
+            return resultCache;
+        }
+
+        public Governor getGovernor() {
+            return governor;
+        }
+    }
+
+    public class Governor {
+
+        // limits of 0 are not enforced
+        private long maxCost = 0;
+        private long maxRunningCost = 0;
+        private String maxWait = "30s";
+        private String timeout = "0s";
+        private long maxPoints = 0;
+
+        public long getMaxCost() {
+            return maxCost;
+        }
+
+        public Configuration setMaxCost(long maxCost) {
+            this.maxCost = maxCost;
+            return Configuration.this;
+        }
+
+        public long getMaxRunningCost() {
+            return maxRunningCost;
+        }
+
+        public Configuration setMaxRunningCost(long maxRunningCost) {
+            this.maxRunningCost = maxRunningCost;
+            return Configuration.this;
+        }
+
+        public String getMaxWait() {
+            return maxWait;
+        }
+
+        public Configuration setMaxWait(String maxWait) {
+            this.maxWait = maxWait;
+            return Configuration.this;
+        }
+
+        public String getTimeout() {
+            return timeout;
+        }
+
+        public Configuration setTimeout(String timeout) {
+            this.timeout = timeout;
+            return Configuration.this;
+        }
+
+        public long getMaxPoints() {
+            return maxPoints;
+        }
+
+        public Configuration setMaxPoints(long maxPoints) {
+            this.maxPoints = maxPoints;
+            return Configuration.this;
+        }
+    }
+
+    public class ResultCache {
+
+        private boolean enabled = false;
+        private String maxMemory = "64M";
+        // buckets that end later than this before now may still get points
+        private String settleTime = "2m";
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public Configuration setEnabled(boolean enabled) {
+            this.enabled = enabled;
+            return Configuration.this;
+        }
+
+        public String getMaxMemory() {
+            return maxMemory;
+        }
+
+        public Configuration setMaxMemory(String maxMemory) {
+            this.maxMemory = maxMemory;
+            return Configuration.this;
+        }
+
+        public String getSettleTime() {
+            return settleTime;
+        }
+
+        public Configuration setSettleTime(String settleTime) {
+            this.settleTime = settleTime;
+            return Configuration.this;
+        }
+    }
+
+    public class Backfill {
+
+        private boolean enabled = false;
+        private int hours = 6;
+        private int threads = 2;
+        private long maxRate = 500000;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public Configuration setEnabled(boolean enabled) {
+            this.enabled = enabled;
+            return Configuration.this;
+        }
+
+        public int getHours() {
+            return hours;
+        }
+
+        public Configuration setHours(int hours) {
+            this.hours = hours;
+            return Configuration.this;
+        }
+
+        public int getThreads() {
+            return threads;
+        }
+
+        public Configuration setThreads(int threads) {
+            this.threads = threads;
+            return Configuration.this;
+        }
+
+        public long getMaxRate() {
+            return maxRate;
+        }
+
+        public Configuration setMaxRate(long maxRate) {
+            this.maxRate = maxRate;
+            return Configuration.this;
+        }
+    }
+
+    public class Snapshot {
+
+        private boolean enabled = false;
+        private String directory = System.getProperty("java.io.tmpdir") + "/timely-cache";
+        private String interval = "1h";
+        private int loadThreads = 4;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public Configuration setEnabled(boolean enabled) {
+            this.enabled = enabled;
+            return Configuration.this;
+        }
+
+        public String getDirectory() {
+            return directory;
+        }
+
+        public Configuration setDirectory(String directory) {
+            this.directory = directory;
+            return Configuration.this;
+        }
+
+        public String getInterval() {
+            return interval;
+        }
+
+        public Configuration setInterval(String interval) {
+            this.interval = interval;
+            return Configuration.this;
+        }
+
+        public int getLoadThreads() {
+            return loadThreads;
+        }
+
+        public Configuration setLoadThreads(int loadThreads) {
+            this.loadThreads = loadThreads;
+            return Configuration.this;
+        }
     }
 
     public class VisibilityCache {
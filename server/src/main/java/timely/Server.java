@@ -52,6 +52,9 @@ import io.netty.handler.ssl.util.SelfSignedCertificate;
 import io.netty.handler.stream.ChunkedWriteHandler;
 import io.netty.handler.timeout.IdleStateHandler;
 import io.netty.util.NettyRuntime;
+import io.netty.util.concurrent.DefaultEventExecutorGroup;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.EventExecutorGroup;
 import io.netty.util.internal.SystemPropertyUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -121,6 +124,9 @@ public class Server {
     private EventLoopGroup wsBossGroup = null;
     private EventLoopGroup udpBossGroup = null;
     private EventLoopGroup udpWorkerGroup = null;
+    // queries run outside of the I/O threads, which see clients go away, the
+    // queries of a channel run one at a time on one executor of the group
+    private EventExecutorGroup queryGroup = null;
     protected Channel tcpChannelHandle = null;
     protected Channel httpChannelHandle = null;
     protected Channel wsChannelHandle = null;
@@ -277,6 +283,11 @@ public class Server {
             groupFutures.add(udpWorkerGroup.shutdownGracefully(quietPeriod, 10, TimeUnit.SECONDS));
         }
 
+        if (queryGroup != null) {
+            LOG.info("Shutting down queryGroup");
+            groupFutures.add(queryGroup.shutdownGracefully(quietPeriod, 10, TimeUnit.SECONDS));
+        }
+
         groupFutures.parallelStream().forEach(f -> {
             try {
                 f.get();
@@ -294,6 +305,11 @@ public class Server {
             LOG.error("Error flushing to server during shutdown", e);
         }
 
+        if (dataStoreCache != null) {
+            LOG.info("Closing datastore cache.");
+            dataStoreCache.close();
+        }
+
         try {
             LOG.info("Closing MetaCacheFactory");
             MetaCacheFactory.close();
@@ -371,6 +387,8 @@ public class Server {
             datagramChannelClass = NioDatagramChannel.class;
         }
         LOG.info("Using channel class {}", channelClass.getSimpleName());
+        queryGroup = new DefaultEventExecutorGroup(config.getQuery().getThreads(),
+                new DefaultThreadFactory("query-request", true));
 
         final ServerBootstrap tcpServer = new ServerBootstrap();
         tcpServer.group(tcpBossGroup, tcpWorkerGroup);
@@ -524,7 +542,7 @@ public class Server {
                 ch.pipeline().addLast("doLogin", new BasicAuthLoginRequestHandler(config));
                 ch.pipeline().addLast("aggregators", new HttpAggregatorsRequestHandler());
                 ch.pipeline().addLast("metrics", new HttpMetricsRequestHandler(config));
-                ch.pipeline().addLast("query", new HttpQueryRequestHandler(dataStore));
+                ch.pipeline().addLast("query", new HttpQueryRequestHandler(dataStore, queryGroup.next()));
                 ch.pipeline().addLast("search", new HttpSearchLookupRequestHandler(dataStore));
                 ch.pipeline().addLast("suggest", new HttpSuggestRequestHandler(dataStore));
                 ch.pipeline().addLast("version", new HttpVersionRequestHandler());
@@ -556,7 +574,6 @@ public class Server {
             @Override
             protected void initChannel(SocketChannel ch) throws Exception {
                 ch.pipeline().addLast("buffer", new MetricsBufferDecoder());
-                ch.pipeline().addLast("frame", new DelimiterBasedFrameDecoder(8192, true, Delimiters.lineDelimiter()));
                 ch.pipeline().addLast("putDecoder", new TcpDecoder());
                 ch.pipeline().addLast("putHandler", new TcpPutHandler(dataStore));
                 ch.pipeline().addLast("versionHandler", new TcpVersionHandler());
@@ -579,7 +596,7 @@ public class Server {
                 ch.pipeline().addLast("wsDecoder", new WebSocketRequestDecoder(config));
                 ch.pipeline().addLast("aggregators", new WSAggregatorsRequestHandler());
                 ch.pipeline().addLast("metrics", new WSMetricsRequestHandler(config));
-                ch.pipeline().addLast("query", new WSQueryRequestHandler(dataStore));
+                ch.pipeline().addLast("query", new WSQueryRequestHandler(dataStore, queryGroup.next()));
                 ch.pipeline().addLast("lookup", new WSSearchLookupRequestHandler(dataStore));
                 ch.pipeline().addLast("suggest", new WSSuggestRequestHandler(dataStore));
                 ch.pipeline().addLast("version", new WSVersionRequestHandler());
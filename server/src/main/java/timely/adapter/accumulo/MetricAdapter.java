@@ -1,19 +1,17 @@
 package timely.adapter.accumulo;
 
 import java.nio.ByteBuffer;
-import java.nio.charset.Charset;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-import java.util.stream.Collectors;
 
 import com.google.common.base.Joiner;
 import org.apache.accumulo.core.client.lexicoder.LongLexicoder;
 import org.apache.accumulo.core.client.lexicoder.PairLexicoder;
 import org.apache.accumulo.core.client.lexicoder.StringLexicoder;
+import org.apache.accumulo.core.data.ByteSequence;
 import org.apache.accumulo.core.data.Key;
 import org.apache.accumulo.core.data.Mutation;
 import org.apache.accumulo.core.data.Value;
@@ -39,6 +37,8 @@ public class MetricAdapter {
 
     private static final TagParser tagParser = new TagParser();
     private static final TagListParser tagListParser = new TagListParser();
+    private static final ThreadLocal<MetricMutationEncoder> mutationEncoder = ThreadLocal
+            .withInitial(MetricMutationEncoder::new);
 
     public static final ColumnVisibility EMPTY_VISIBILITY = new ColumnVisibility();
     public static final String VISIBILITY_TAG = "viz";
@@ -52,22 +52,6 @@ public class MetricAdapter {
         return timestamp - (timestamp % 3600000) + 3600000;
     }
 
-    private static List<Tag> escapeDelimiters(List<Tag> tags) {
-        List<Tag> newTags = new ArrayList<>();
-        for (Tag t : tags) {
-            // escape all commas and equals in the tag key and value since they
-            // are used as a delimiter
-            String k = t.getKey();
-            String v = t.getValue();
-            k = k.replaceAll("=", "\\=");
-            k = k.replaceAll(",", "\\,");
-            v = v.replaceAll("=", "\\=");
-            v = v.replaceAll(",", "\\,");
-            newTags.add(new Tag(k, v));
-        }
-        return newTags;
-    }
-
     private static Map<String, String> escapeDelimiters(Map<String, String> tags) {
         Map<String, String> newTags = new LinkedHashMap<>();
         for (Map.Entry<String, String> t : tags.entrySet()) {
@@ -85,28 +69,7 @@ public class MetricAdapter {
     }
 
     public static Mutation toMutation(Metric metric) {
-
-        final Mutation mutation = new Mutation(encodeRowKey(metric));
-        List<Tag> tags = metric.getTags();
-        tags = escapeDelimiters(tags);
-        Collections.sort(tags);
-
-        for (final Tag entry : tags) {
-            if (entry.getKey().equals(VISIBILITY_TAG))
-                continue;
-
-            final String cf = entry.join();
-            // @formatter:off
-            String cq = tags.stream().filter(inner -> !inner.equals(entry))
-                    .filter(inner -> !inner.getKey().equals(VISIBILITY_TAG))
-                    .map(Tag::join)
-                    .collect(Collectors.joining(","));
-            // @formatter:on
-            byte[] cqBytes = encodeColQual(metric.getValue().getTimestamp(), cq);
-            mutation.put(new Text(cf.getBytes(Charset.forName("UTF-8"))), new Text(cqBytes), extractVisibility(tags),
-                    metric.getValue().getTimestamp(), extractValue(metric));
-        }
-        return mutation;
+        return mutationEncoder.get().encode(metric);
     }
 
     public static Key toKey(String metric, Map<String, String> tags, long timestamp) {
@@ -171,11 +134,9 @@ public class MetricAdapter {
         // @formatter:off
         Metric.Builder builder = Metric.newBuilder()
                 .name(row.getFirst())
-                .value(k.getTimestamp(), ByteBuffer.wrap(v.get()).getDouble())
-                .tag(tagParser.parse(k.getColumnFamily().toString()));
+                .value(k.getTimestamp(), ByteBuffer.wrap(v.get()).getDouble());
         // @formatter:on
-        ComparablePair<Long, String> cq = colQualCoder.decode(k.getColumnQualifier().getBytes());
-        tagListParser.parse(cq.getSecond()).forEach(builder::tag);
+        parseTags(k).forEach(builder::tag);
         if (includeVizTag && k.getColumnVisibility().getLength() > 0) {
             tagListParser.parse("viz=" + k.getColumnVisibility().toString()).forEach(builder::tag);
         }
@@ -186,6 +147,32 @@ public class MetricAdapter {
         return parse(k, v, false);
     }
 
+    /**
+     * @return the tags of the key without the visibility, as in
+     *         {@link #parse(Key, Value)}
+     */
+    public static List<Tag> parseTags(Key k) {
+        List<Tag> tags = new ArrayList<>();
+        tags.add(tagParser.parse(k.getColumnFamily().toString()));
+        ComparablePair<Long, String> cq = colQualCoder.decode(k.getColumnQualifier().getBytes());
+        tags.addAll(tagListParser.parse(cq.getSecond()));
+        return tags;
+    }
+
+    /**
+     * @return offset of the encoded tag list in the column qualifier, which follows
+     *         the escaped timestamp and the 0x00 pair separator
+     */
+    public static int getColQualTagsOffset(ByteSequence cq) {
+        // escaping leaves no 0x00 in the timestamp
+        for (int i = 0; i < cq.length(); i++) {
+            if (cq.byteAt(i) == 0) {
+                return i + 1;
+            }
+        }
+        throw new IllegalArgumentException("Column qualifier has no tag list");
+    }
+
     public static byte[] encodeRowKey(String metricName, Long timestamp) {
         return rowCoder.encode(new ComparablePair<>(metricName, timestamp));
     }
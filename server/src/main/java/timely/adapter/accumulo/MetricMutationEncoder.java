@@ -0,0 +1,199 @@
+package timely.adapter.accumulo;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.accumulo.core.client.lexicoder.LongLexicoder;
+import org.apache.accumulo.core.client.lexicoder.impl.ByteUtils;
+import org.apache.accumulo.core.data.Mutation;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.security.ColumnVisibility;
+import org.apache.hadoop.io.Text;
+import timely.model.Metric;
+import timely.model.Tag;
+
+/**
+ * Builds the Mutation for a {@link Metric}, producing exactly the same keys as
+ * the original tag-by-tag encoding. Tags are sorted and encoded once into a
+ * shared byte buffer and every column qualifier is assembled from that buffer
+ * behind a lexicoded timestamp prefix that is computed once per metric. Row
+ * keys and parsed visibilities are cached across calls.
+ *
+ * Instances are not thread safe, see {@link MetricAdapter#toMutation(Metric)}.
+ */
+class MetricMutationEncoder {
+
+    private static final int MAX_CACHED_ROWS = 4096;
+    private static final int MAX_CACHED_VISIBILITIES = 1024;
+    private static final LongLexicoder longCoder = new LongLexicoder();
+    private static final Comparator<Tag> TAG_ORDER = (t1, t2) -> {
+        int result = t1.getKey().compareTo(t2.getKey());
+        return result != 0 ? result : t1.getValue().compareTo(t2.getValue());
+    };
+
+    private static class CachedRow {
+
+        private final long hour;
+        private final byte[] row;
+
+        private CachedRow(long hour, byte[] row) {
+            this.hour = hour;
+            this.row = row;
+        }
+    }
+
+    private final Map<String, CachedRow> rows = new HashMap<>();
+    private final Map<String, ColumnVisibility> visibilities = new HashMap<>();
+    private final Text cf = new Text();
+    private final Text cq = new Text();
+
+    private Tag[] tags = new Tag[16];
+    // encoded key=value of each tag, back to back
+    private byte[] tagBytes = new byte[1024];
+    private int[] tagOffsets = new int[17];
+    private byte[] qualifier = new byte[1024];
+
+    Mutation encode(Metric metric) {
+        final long timestamp = metric.getValue().getTimestamp();
+        final byte[] row = rowKey(metric.getName(), timestamp);
+
+        List<Tag> metricTags = metric.getTags();
+        int numTags = metricTags.size();
+        if (tags.length < numTags) {
+            tags = new Tag[numTags];
+            tagOffsets = new int[numTags + 1];
+        }
+        metricTags.toArray(tags);
+        Arrays.sort(tags, 0, numTags, TAG_ORDER);
+
+        // first visibility tag in sort order wins, it is not written as a
+        // column
+        ColumnVisibility visibility = MetricAdapter.EMPTY_VISIBILITY;
+        int numColumns = 0;
+        int length = 0;
+        boolean needsEscape = false;
+        for (int i = 0; i < numTags; i++) {
+            Tag tag = tags[i];
+            if (tag.getKey().equals(MetricAdapter.VISIBILITY_TAG)) {
+                if (visibility == MetricAdapter.EMPTY_VISIBILITY) {
+                    visibility = visibility(tag.getValue());
+                }
+                continue;
+            }
+            tags[numColumns] = tag;
+            tagOffsets[numColumns] = length;
+            length = append(tag.getKey(), length);
+            length = ensureTagCapacity(length, 1);
+            tagBytes[length++] = '=';
+            length = append(tag.getValue(), length);
+            numColumns++;
+        }
+        tagOffsets[numColumns] = length;
+        for (int i = 0; i < length && !needsEscape; i++) {
+            needsEscape = tagBytes[i] == 0 || tagBytes[i] == 1;
+        }
+
+        // pair lexicoder layout: escaped timestamp, 0x00, escaped tag list
+        byte[] prefix = ByteUtils.escape(longCoder.encode(timestamp));
+        Value value = new Value(MetricAdapter.encodeValue(metric.getValue().getMeasure()));
+        Mutation mutation = new Mutation(row, 0, row.length,
+                numColumns * (prefix.length + length + visibility.getExpression().length + 32));
+
+        for (int i = 0; i < numColumns; i++) {
+            int cqLength = ensureQualifierCapacity(0, prefix.length + 1 + length + numColumns);
+            System.arraycopy(prefix, 0, qualifier, 0, prefix.length);
+            cqLength += prefix.length;
+            qualifier[cqLength++] = 0;
+            int tagListStart = cqLength;
+            for (int j = 0; j < numColumns; j++) {
+                if (j != i && !sameTag(tags[i], tags[j])) {
+                    if (cqLength > tagListStart) {
+                        qualifier[cqLength++] = ',';
+                    }
+                    int tagLength = tagOffsets[j + 1] - tagOffsets[j];
+                    System.arraycopy(tagBytes, tagOffsets[j], qualifier, cqLength, tagLength);
+                    cqLength += tagLength;
+                }
+            }
+            cf.set(tagBytes, tagOffsets[i], tagOffsets[i + 1] - tagOffsets[i]);
+            if (needsEscape) {
+                byte[] tagList = ByteUtils.escape(Arrays.copyOfRange(qualifier, tagListStart, cqLength));
+                byte[] escaped = Arrays.copyOf(qualifier, tagListStart + tagList.length);
+                System.arraycopy(tagList, 0, escaped, tagListStart, tagList.length);
+                cq.set(escaped);
+            } else {
+                cq.set(qualifier, 0, cqLength);
+            }
+            mutation.put(cf, cq, visibility, timestamp, value);
+        }
+        Arrays.fill(tags, 0, numTags, null);
+        return mutation;
+    }
+
+    private static boolean sameTag(Tag t1, Tag t2) {
+        return t1.getKey().equals(t2.getKey()) && t1.getValue().equals(t2.getValue());
+    }
+
+    private byte[] rowKey(String name, long timestamp) {
+        long hour = MetricAdapter.roundTimestampToLastHour(timestamp);
+        CachedRow cached = rows.get(name);
+        if (cached == null || cached.hour != hour) {
+            if (rows.size() >= MAX_CACHED_ROWS) {
+                rows.clear();
+            }
+            cached = new CachedRow(hour, MetricAdapter.encodeRowKey(name, hour));
+            rows.put(name, cached);
+        }
+        return cached.row;
+    }
+
+    private ColumnVisibility visibility(String expression) {
+        ColumnVisibility cv = visibilities.get(expression);
+        if (cv == null) {
+            if (visibilities.size() >= MAX_CACHED_VISIBILITIES) {
+                visibilities.clear();
+            }
+            cv = new ColumnVisibility(expression);
+            visibilities.put(expression, cv);
+        }
+        return cv;
+    }
+
+    /**
+     * Appends the UTF-8 encoding of s to tagBytes
+     */
+    private int append(String s, int offset) {
+        int len = s.length();
+        offset = ensureTagCapacity(offset, len);
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x80) {
+                byte[] utf8 = s.substring(i).getBytes(UTF_8);
+                offset = ensureTagCapacity(offset, utf8.length);
+                System.arraycopy(utf8, 0, tagBytes, offset, utf8.length);
+                return offset + utf8.length;
+            }
+            tagBytes[offset++] = (byte) c;
+        }
+        return offset;
+    }
+
+    private int ensureTagCapacity(int offset, int needed) {
+        if (offset + needed > tagBytes.length) {
+            tagBytes = Arrays.copyOf(tagBytes, Math.max(tagBytes.length * 2, offset + needed));
+        }
+        return offset;
+    }
+
+    private int ensureQualifierCapacity(int offset, int needed) {
+        if (offset + needed > qualifier.length) {
+            qualifier = new byte[Math.max(qualifier.length * 2, offset + needed)];
+        }
+        return offset;
+    }
+}
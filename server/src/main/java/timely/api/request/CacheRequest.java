@@ -1,15 +1,18 @@
 package timely.api.request;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.QueryStringDecoder;
 import timely.api.annotation.Http;
 import timely.api.annotation.WebSocket;
+import timely.util.JsonUtil;
 
 @Http(path = "/api/cache")
 @WebSocket(operation = "cache")
 public class CacheRequest extends AuthenticatedRequest implements HttpGetRequest, HttpPostRequest, WebSocketRequest {
 
     private FullHttpRequest httpRequest = null;
+    private Integer backfillHours = null;
 
     @Override
     public HttpGetRequest parseQueryParameters(QueryStringDecoder decoder) throws Exception {
@@ -18,7 +21,26 @@ public class CacheRequest extends AuthenticatedRequest implements HttpGetRequest
 
     @Override
     public HttpPostRequest parseBody(String content) throws Exception {
-        return new CacheRequest();
+        CacheRequest request = new CacheRequest();
+        if (null != content && !content.trim().isEmpty()) {
+            JsonNode hours = JsonUtil.getObjectMapper().readValue(content, JsonNode.class).get("backfillHours");
+            if (null != hours && !hours.isNull()) {
+                request.setBackfillHours(hours.asInt());
+            }
+        }
+        return request;
+    }
+
+    /**
+     * @return hours of history to load into the cache from Accumulo, null to only
+     *         get the cache status
+     */
+    public Integer getBackfillHours() {
+        return backfillHours;
+    }
+
+    public void setBackfillHours(Integer backfillHours) {
+        this.backfillHours = backfillHours;
     }
 
     public void setHttpRequest(FullHttpRequest httpRequest) {
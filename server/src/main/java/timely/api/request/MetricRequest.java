@@ -14,6 +14,7 @@ import timely.api.annotation.Tcp;
 import timely.api.annotation.Udp;
 import timely.api.annotation.WebSocket;
 import timely.model.Metric;
+import timely.model.Tag;
 import timely.model.parse.MetricParser;
 import timely.util.JsonUtil;
 
@@ -73,7 +74,21 @@ public class MetricRequest implements TcpRequest, HttpPostRequest, WebSocketRequ
         return metric.toString();
     }
 
+    /**
+     * @return the put line this request was parsed from, or an equivalent put line
+     *         when the request was built from a Metric
+     */
     public String getLine() {
+        if (null == line && null != metric) {
+            StringBuilder buf = new StringBuilder("put ");
+            buf.append(metric.getName()).append(' ');
+            buf.append(metric.getValue().getTimestamp()).append(' ');
+            buf.append(metric.getValue().getMeasure());
+            for (Tag tag : metric.getTags()) {
+                buf.append(' ').append(tag.join());
+            }
+            line = buf.toString();
+        }
         return line;
     }
 
@@ -1,12 +1,21 @@
 package timely.api.request.timeseries;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
+import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonValue;
 import com.fasterxml.jackson.databind.JsonNode;
 import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.QueryStringDecoder;
@@ -123,8 +132,24 @@ public class QueryRequest extends AuthenticatedRequest implements HttpGetRequest
 
     }
 
+    /**
+     * @return the regular expression as a group, so that it can be followed by more
+     *         of a pattern
+     */
+    private static String group(String regex) {
+        return "(?:" + regex + ")";
+    }
+
     public static class Filter {
 
+        public static final String LITERAL_OR = "literal_or";
+        public static final String NOT_LITERAL_OR = "not_literal_or";
+        public static final String WILDCARD = "wildcard";
+        public static final String REGEXP = "regexp";
+        private static final List<String> FILTER_TYPES = Arrays.asList(LITERAL_OR, NOT_LITERAL_OR, WILDCARD, REGEXP);
+        private static final Pattern INLINE_FILTER = Pattern.compile("^(\\w+)\\((.*)\\)$");
+        private static final String REGEX_META_CHARS = "\\^$.|?*+()[]{}";
+
         private String type;
         private String tagk;
         private String filter;
@@ -162,6 +187,78 @@ public class QueryRequest extends AuthenticatedRequest implements HttpGetRequest
             this.groupBy = groupBy;
         }
 
+        /**
+         * @return a regular expression matching the whole of each tag value accepted by
+         *         the filter. Filters without a type, as parsed from the m parameter,
+         *         are regular expressions like tag values, can use the type(filter)
+         *         form, and * matches any value.
+         */
+        @JsonIgnore
+        public String getRegex() {
+            if (null == filter) {
+                throw new IllegalArgumentException("No filter specified for tag " + tagk);
+            }
+            String filterType = type;
+            String value = filter;
+            if (null == filterType) {
+                Matcher m = INLINE_FILTER.matcher(filter);
+                if (m.matches() && FILTER_TYPES.contains(m.group(1).toLowerCase(Locale.ENGLISH))) {
+                    filterType = m.group(1);
+                    value = m.group(2);
+                } else {
+                    return value.equals("*") ? ".*" : value;
+                }
+            }
+            switch (filterType.toLowerCase(Locale.ENGLISH)) {
+                case LITERAL_OR:
+                    return literalOr(value);
+                case NOT_LITERAL_OR:
+                    // any value up to the next tag that is not one of the
+                    // literals
+                    return "(?!" + group(literalOr(value)) + "(?:,|$))[^,]*";
+                case WILDCARD:
+                    return wildcard(value);
+                case REGEXP:
+                    return value;
+                default:
+                    throw new IllegalArgumentException("Unknown filter type " + type + " for tag " + tagk);
+            }
+        }
+
+        private static String literalOr(String value) {
+            String[] literals = value.split("\\|");
+            if (literals.length == 1) {
+                // a plain literal is matched with a column fetch
+                return quote(literals[0]);
+            }
+            StringBuilder regex = new StringBuilder();
+            for (String literal : literals) {
+                regex.append(regex.length() == 0 ? "(?:" : "|").append(quote(literal));
+            }
+            return regex.append(')').toString();
+        }
+
+        private static String wildcard(String value) {
+            StringBuilder regex = new StringBuilder();
+            int start = 0;
+            for (int i = value.indexOf('*'); i >= 0; i = value.indexOf('*', start)) {
+                regex.append(quote(value.substring(start, i))).append("[^,]*");
+                start = i + 1;
+            }
+            return regex.append(quote(value.substring(start))).toString();
+        }
+
+        private static String quote(String literal) {
+            StringBuilder quoted = new StringBuilder(literal.length());
+            for (char c : literal.toCharArray()) {
+                if (REGEX_META_CHARS.indexOf(c) >= 0) {
+                    quoted.append('\\');
+                }
+                quoted.append(c);
+            }
+            return quoted.toString();
+        }
+
         @Override
         public String toString() {
             ToStringBuilder tsb = new ToStringBuilder(this);
@@ -177,7 +274,7 @@ public class QueryRequest extends AuthenticatedRequest implements HttpGetRequest
             HashCodeBuilder hcb = new HashCodeBuilder();
             hcb.append(filter);
             hcb.append(tagk);
-            hcb.append(filter);
+            hcb.append(type);
             hcb.append(groupBy);
             return hcb.toHashCode();
         }
@@ -188,7 +285,7 @@ public class QueryRequest extends AuthenticatedRequest implements HttpGetRequest
                 return false;
             }
             if (this == obj) {
-                return false;
+                return true;
             }
             if (obj instanceof Filter) {
                 Filter other = (Filter) obj;
@@ -301,6 +398,52 @@ public class QueryRequest extends AuthenticatedRequest implements HttpGetRequest
             return (null != this.metric);
         }
 
+        /**
+         * @return the tags of the subquery and the regular expressions of its filters,
+         *         with one regular expression for each tag key that all of its tag
+         *         values and filters must match
+         */
+        @JsonIgnore
+        public Map<String, String> getMatchingTags() {
+            if (filters.isEmpty()) {
+                return tags;
+            }
+            Map<String, String> matching = new LinkedHashMap<>(tags);
+            for (Filter f : filters) {
+                String regex = f.getRegex();
+                String other = matching.get(f.getTagk());
+                // the other expression must match the whole value too
+                matching.put(f.getTagk(), null == other ? regex : "(?=" + group(other) + "(?:,|$))" + group(regex));
+            }
+            return matching;
+        }
+
+        /**
+         * @return the tag keys of the group by filters, an aggregator is applied
+         *         separately to the series with each of their values
+         */
+        @JsonIgnore
+        public Set<String> getGroupByKeys() {
+            Set<String> keys = new LinkedHashSet<>();
+            for (Filter f : filters) {
+                if (f.isGroupBy()) {
+                    keys.add(f.getTagk());
+                }
+            }
+            return keys;
+        }
+
+        /**
+         * @return the tag keys of the series in the results, those of the tags and of
+         *         the group by filters
+         */
+        @JsonIgnore
+        public Set<String> getSeriesKeys() {
+            Set<String> keys = new LinkedHashSet<>(tags.keySet());
+            keys.addAll(getGroupByKeys());
+            return keys;
+        }
+
         @Override
         public String toString() {
             ToStringBuilder tsb = new ToStringBuilder(this);
@@ -355,6 +498,28 @@ public class QueryRequest extends AuthenticatedRequest implements HttpGetRequest
         }
     }
 
+    /**
+     * Forms of the points of the series in a response
+     */
+    public enum Format {
+        // OpenTSDB dps map of timestamps to values
+        JSON,
+        // parallel timestamps and values arrays
+        COLUMNAR,
+        // size prefixed FlatBuffers Series, with delta encoded timestamps
+        FLATBUFFER;
+
+        @JsonCreator
+        public static Format forValue(String value) {
+            return valueOf(value.toUpperCase(Locale.ROOT));
+        }
+
+        @JsonValue
+        public String toValue() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
     private long start = 0;
     private long end = System.currentTimeMillis();
     private Collection<SubQuery> queries = new ArrayList<>();
@@ -364,8 +529,14 @@ public class QueryRequest extends AuthenticatedRequest implements HttpGetRequest
     private boolean showSummary = false;
     private boolean showQuery = false;
     private boolean delete = false;
+    // the Accept header chooses the format when not set
+    private Format format = null;
     @JsonIgnore
     private FullHttpRequest httpRequest = null;
+    @JsonIgnore
+    private boolean cancelled = false;
+    @JsonIgnore
+    private final List<Runnable> cancelListeners = new ArrayList<>();
 
     public boolean isGlobalAnnotations() {
         return globalAnnotations;
@@ -419,12 +590,37 @@ public class QueryRequest extends AuthenticatedRequest implements HttpGetRequest
         this.queries.add(query);
     }
 
+    public Format getFormat() {
+        return format;
+    }
+
+    public void setFormat(Format format) {
+        this.format = format;
+    }
+
+    /**
+     * @return true if the points of the series are returned as arrays rather than
+     *         as dps maps
+     */
+    @JsonIgnore
+    public boolean isColumnar() {
+        return format == Format.COLUMNAR || format == Format.FLATBUFFER;
+    }
+
     @Override
     public void validate() {
         super.validate();
         if (queries.size() == 0) {
             throw new IllegalArgumentException("No query specified.");
         }
+        for (SubQuery query : queries) {
+            for (Filter f : query.getFilters()) {
+                if (null == f.getTagk()) {
+                    throw new IllegalArgumentException("No tag key specified for filter " + f);
+                }
+                Pattern.compile(f.getRegex());
+            }
+        }
     }
 
     @Override
@@ -439,6 +635,7 @@ public class QueryRequest extends AuthenticatedRequest implements HttpGetRequest
         tsb.append("showSummary", showSummary);
         tsb.append("showQuery", showQuery);
         tsb.append("delete", delete);
+        tsb.append("format", format);
         return tsb.toString();
     }
 
@@ -454,6 +651,7 @@ public class QueryRequest extends AuthenticatedRequest implements HttpGetRequest
         hcb.append(showSummary);
         hcb.append(showQuery);
         hcb.append(delete);
+        hcb.append(format);
         return hcb.toHashCode();
     }
 
@@ -477,6 +675,7 @@ public class QueryRequest extends AuthenticatedRequest implements HttpGetRequest
             eq.append(this.showSummary, other.showSummary);
             eq.append(this.showQuery, other.showQuery);
             eq.append(this.delete, other.delete);
+            eq.append(this.format, other.format);
             return eq.isEquals();
         } else {
             return false;
@@ -506,6 +705,9 @@ public class QueryRequest extends AuthenticatedRequest implements HttpGetRequest
         if (decoder.parameters().containsKey("end")) {
             query.setEnd(Long.parseLong(decoder.parameters().get("end").get(0)));
         }
+        if (decoder.parameters().containsKey("format")) {
+            query.setFormat(Format.forValue(decoder.parameters().get("format").get(0)));
+        }
         if (decoder.parameters().containsKey("m")) {
             decoder.parameters().get("m").forEach(m -> {
                 final SubQuery sub = new SubQuery();
@@ -559,8 +761,8 @@ public class QueryRequest extends AuthenticatedRequest implements HttpGetRequest
                     sub.setMetric(metricAndTags);
                 } else {
                     sub.setMetric(metricAndTags.substring(0, idx));
-                    // Only supporting one set of {} as we
-                    // are not supporting filters right now.
+                    // The first set of {} are group by filters,
+                    // the second set are tags.
                     if (!metricAndTags.endsWith("}")) {
                         throw new IllegalArgumentException("Tag section does not end with '}'");
                     }
@@ -618,4 +820,42 @@ public class QueryRequest extends AuthenticatedRequest implements HttpGetRequest
     public FullHttpRequest getHttpRequest() {
         return httpRequest;
     }
+
+    /**
+     * Cancels the query, for example when the client goes away
+     */
+    public void cancel() {
+        List<Runnable> listeners;
+        synchronized (this) {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+            listeners = new ArrayList<>(cancelListeners);
+            cancelListeners.clear();
+        }
+        listeners.forEach(Runnable::run);
+    }
+
+    @JsonIgnore
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Runs the listener when the query is cancelled, at once if it already is
+     */
+    public void addCancelListener(Runnable listener) {
+        synchronized (this) {
+            if (!cancelled) {
+                cancelListeners.add(listener);
+                return;
+            }
+        }
+        listener.run();
+    }
+
+    public synchronized void removeCancelListener(Runnable listener) {
+        cancelListeners.remove(listener);
+    }
 }
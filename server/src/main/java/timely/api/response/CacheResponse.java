@@ -9,6 +9,19 @@ public class CacheResponse {
     private Long oldestTimestamp;
     private Long newestTimestamp;
     private List<String> metrics;
+    private Long offHeapBytes;
+    private List<String> warmMetrics;
+    private Boolean backfillRunning;
+    private Integer backfillMetricsTotal;
+    private Integer backfillMetricsDone;
+    private Long backfillPoints;
+    private Long maxMemoryBytes;
+    private Long usedMemoryBytes;
+    private Long evictedSeries;
+    private Long trimmedSeries;
+    private Long evictedBytes;
+    private Long subqueries;
+    private Long subqueryCpuMillis;
 
     public Long getOldestTimestamp() {
         return oldestTimestamp;
@@ -34,12 +47,129 @@ public class CacheResponse {
         this.metrics = metrics;
     }
 
+    public Long getOffHeapBytes() {
+        return offHeapBytes;
+    }
+
+    public void setOffHeapBytes(Long offHeapBytes) {
+        this.offHeapBytes = offHeapBytes;
+    }
+
+    public List<String> getWarmMetrics() {
+        return warmMetrics;
+    }
+
+    public void setWarmMetrics(List<String> warmMetrics) {
+        this.warmMetrics = warmMetrics;
+    }
+
+    public Boolean getBackfillRunning() {
+        return backfillRunning;
+    }
+
+    public void setBackfillRunning(Boolean backfillRunning) {
+        this.backfillRunning = backfillRunning;
+    }
+
+    public Integer getBackfillMetricsTotal() {
+        return backfillMetricsTotal;
+    }
+
+    public void setBackfillMetricsTotal(Integer backfillMetricsTotal) {
+        this.backfillMetricsTotal = backfillMetricsTotal;
+    }
+
+    public Integer getBackfillMetricsDone() {
+        return backfillMetricsDone;
+    }
+
+    public void setBackfillMetricsDone(Integer backfillMetricsDone) {
+        this.backfillMetricsDone = backfillMetricsDone;
+    }
+
+    public Long getBackfillPoints() {
+        return backfillPoints;
+    }
+
+    public void setBackfillPoints(Long backfillPoints) {
+        this.backfillPoints = backfillPoints;
+    }
+
+    public Long getMaxMemoryBytes() {
+        return maxMemoryBytes;
+    }
+
+    public void setMaxMemoryBytes(Long maxMemoryBytes) {
+        this.maxMemoryBytes = maxMemoryBytes;
+    }
+
+    public Long getUsedMemoryBytes() {
+        return usedMemoryBytes;
+    }
+
+    public void setUsedMemoryBytes(Long usedMemoryBytes) {
+        this.usedMemoryBytes = usedMemoryBytes;
+    }
+
+    public Long getEvictedSeries() {
+        return evictedSeries;
+    }
+
+    public void setEvictedSeries(Long evictedSeries) {
+        this.evictedSeries = evictedSeries;
+    }
+
+    public Long getTrimmedSeries() {
+        return trimmedSeries;
+    }
+
+    public void setTrimmedSeries(Long trimmedSeries) {
+        this.trimmedSeries = trimmedSeries;
+    }
+
+    public Long getEvictedBytes() {
+        return evictedBytes;
+    }
+
+    public void setEvictedBytes(Long evictedBytes) {
+        this.evictedBytes = evictedBytes;
+    }
+
+    public Long getSubqueries() {
+        return subqueries;
+    }
+
+    public void setSubqueries(Long subqueries) {
+        this.subqueries = subqueries;
+    }
+
+    public Long getSubqueryCpuMillis() {
+        return subqueryCpuMillis;
+    }
+
+    public void setSubqueryCpuMillis(Long subqueryCpuMillis) {
+        this.subqueryCpuMillis = subqueryCpuMillis;
+    }
+
     @Override
     public String toString() {
         ToStringBuilder tsb = new ToStringBuilder(this);
         tsb.append("oldestTimestamp", this.oldestTimestamp);
         tsb.append("newestTimestamp", this.newestTimestamp);
         tsb.append("metrics", this.metrics);
+        tsb.append("offHeapBytes", this.offHeapBytes);
+        tsb.append("warmMetrics", this.warmMetrics);
+        tsb.append("backfillRunning", this.backfillRunning);
+        tsb.append("backfillMetricsTotal", this.backfillMetricsTotal);
+        tsb.append("backfillMetricsDone", this.backfillMetricsDone);
+        tsb.append("backfillPoints", this.backfillPoints);
+        tsb.append("maxMemoryBytes", this.maxMemoryBytes);
+        tsb.append("usedMemoryBytes", this.usedMemoryBytes);
+        tsb.append("evictedSeries", this.evictedSeries);
+        tsb.append("trimmedSeries", this.trimmedSeries);
+        tsb.append("evictedBytes", this.evictedBytes);
+        tsb.append("subqueries", this.subqueries);
+        tsb.append("subqueryCpuMillis", this.subqueryCpuMillis);
         return tsb.toString();
     }
 
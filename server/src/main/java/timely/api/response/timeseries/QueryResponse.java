@@ -6,6 +6,7 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import org.apache.commons.lang3.builder.ToStringBuilder;
 
 public class QueryResponse {
@@ -13,7 +14,20 @@ public class QueryResponse {
     private String metric;
     private Map<String, String> tags = new HashMap<>();
     private List<String> aggregatedTags = new ArrayList<>();
+    // absent in the columnar form
+    @JsonInclude(JsonInclude.Include.NON_NULL)
     private Map<String, Object> dps = new LinkedHashMap<>();
+    // columnar form of the points, the value of a timestamp is at the same index
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private long[] timestamps;
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private double[] values;
+    // share of the requested range answered by the cache, absent without a cache
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private Double fractionFromCache;
+    // why the subquery of the series failed, absent when it succeeded
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private String error;
 
     public String getMetric() {
         return metric;
@@ -59,6 +73,38 @@ public class QueryResponse {
         this.dps.put(key, value);
     }
 
+    public long[] getTimestamps() {
+        return timestamps;
+    }
+
+    public void setTimestamps(long[] timestamps) {
+        this.timestamps = timestamps;
+    }
+
+    public double[] getValues() {
+        return values;
+    }
+
+    public void setValues(double[] values) {
+        this.values = values;
+    }
+
+    public Double getFractionFromCache() {
+        return fractionFromCache;
+    }
+
+    public void setFractionFromCache(Double fractionFromCache) {
+        this.fractionFromCache = fractionFromCache;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public void setError(String error) {
+        this.error = error;
+    }
+
     @Override
     public String toString() {
         ToStringBuilder tsb = new ToStringBuilder(this);
@@ -66,6 +112,10 @@ public class QueryResponse {
         tsb.append("tags", this.tags);
         tsb.append("aggregatedTags", this.aggregatedTags);
         tsb.append("dps", this.dps);
+        tsb.append("timestamps", this.timestamps);
+        tsb.append("values", this.values);
+        tsb.append("fractionFromCache", this.fractionFromCache);
+        tsb.append("error", this.error);
         return tsb.toString();
     }
 
@@ -0,0 +1,102 @@
+package timely.api.response.timeseries;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import com.google.flatbuffers.ByteBufferUtil;
+import com.google.flatbuffers.Constants;
+import com.google.flatbuffers.FlatBufferBuilder;
+import timely.api.flatbuffer.Series;
+import timely.api.flatbuffer.Tag;
+
+/**
+ * FlatBuffers form of the columnar query responses, a size prefixed Series
+ * buffer for each series, see fb/query.fbs
+ */
+public class QueryResponseFlatBuffer {
+
+    private QueryResponseFlatBuffer() {
+    }
+
+    /**
+     * Writes the series as a size prefixed buffer, from the position to the limit
+     * of the returned buffer. The builder is cleared first and can be reused for
+     * the next series.
+     */
+    public static ByteBuffer write(FlatBufferBuilder builder, QueryResponse response) {
+        builder.clear();
+        int metric = builder.createString(response.getMetric());
+        int[] tags = new int[response.getTags().size()];
+        int i = 0;
+        for (Map.Entry<String, String> tag : response.getTags().entrySet()) {
+            int key = builder.createString(tag.getKey());
+            tags[i++] = Tag.createTag(builder, key, builder.createString(tag.getValue()));
+        }
+        int[] aggregatedTags = new int[response.getAggregatedTags().size()];
+        i = 0;
+        for (String tag : response.getAggregatedTags()) {
+            aggregatedTags[i++] = builder.createString(tag);
+        }
+        long[] timestamps = response.getTimestamps();
+        long[] deltas = new long[timestamps.length];
+        for (i = 0; i < timestamps.length; i++) {
+            deltas[i] = (i == 0) ? timestamps[i] : timestamps[i] - timestamps[i - 1];
+        }
+        Double fraction = response.getFractionFromCache();
+        int error = response.getError() == null ? 0 : builder.createString(response.getError());
+        int series = Series.createSeries(builder, metric, Series.createTagsVector(builder, tags),
+                Series.createAggregatedTagsVector(builder, aggregatedTags),
+                Series.createTimestampDeltasVector(builder, deltas),
+                Series.createValuesVector(builder, response.getValues()), fraction == null ? -1 : fraction, error);
+        Series.finishSizePrefixedSeriesBuffer(builder, series);
+        return builder.dataBuffer();
+    }
+
+    /**
+     * Reads the size prefixed Series buffers from the position to the limit of the
+     * buffer
+     */
+    public static List<QueryResponse> read(ByteBuffer buf) {
+        ByteBuffer in = buf.slice().order(ByteOrder.LITTLE_ENDIAN);
+        List<QueryResponse> responses = new ArrayList<>();
+        while (in.hasRemaining()) {
+            int size = ByteBufferUtil.getSizePrefix(in);
+            ByteBuffer bb = ByteBufferUtil.removeSizePrefix(in);
+            bb.limit(bb.position() + size);
+            responses.add(read(Series.getRootAsSeries(bb)));
+            in.position(in.position() + Constants.SIZE_PREFIX_LENGTH + size);
+        }
+        return responses;
+    }
+
+    private static QueryResponse read(Series series) {
+        QueryResponse response = new QueryResponse();
+        response.setMetric(series.metric());
+        for (int i = 0; i < series.tagsLength(); i++) {
+            Tag tag = series.tags(i);
+            response.putTag(tag.key(), tag.value());
+        }
+        for (int i = 0; i < series.aggregatedTagsLength(); i++) {
+            response.addAggregatedTag(series.aggregatedTags(i));
+        }
+        long[] timestamps = new long[series.timestampDeltasLength()];
+        for (int i = 0; i < timestamps.length; i++) {
+            timestamps[i] = (i == 0) ? series.timestampDeltas(i) : timestamps[i - 1] + series.timestampDeltas(i);
+        }
+        double[] values = new double[series.valuesLength()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = series.values(i);
+        }
+        response.setDps(null);
+        response.setTimestamps(timestamps);
+        response.setValues(values);
+        if (series.fractionFromCache() >= 0) {
+            response.setFractionFromCache(series.fractionFromCache());
+        }
+        response.setError(series.error());
+        return response;
+    }
+}
@@ -6,6 +6,8 @@ public class Constants {
     public static final String TEXT_TYPE = "text/plain";
     public static final String HTML_TYPE = "text/html";
     public static final String JSON_TYPE = "application/json";
+    public static final String COLUMNAR_JSON_TYPE = "application/vnd.timely.columnar+json";
+    public static final String FLATBUFFER_TYPE = "application/vnd.timely.flatbuffers";
     public static final String LOG_RETURNING_RESPONSE = "Returning response {}";
     public static final String COOKIE_NAME = "TSESSIONID";
 }
@@ -25,6 +25,18 @@ public class HttpCacheRequestHandler extends SimpleChannelInboundHandler<CacheRe
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, CacheRequest v) throws Exception {
         byte[] buf;
+        if (null != v.getBackfillHours()) {
+            if (v.getBackfillHours() <= 0) {
+                this.sendHttpError(ctx, new TimelyException(HttpResponseStatus.BAD_REQUEST.code(),
+                        "backfillHours must be positive", "backfillHours must be positive"));
+                return;
+            }
+            if (!cache.startBackfill(v.getBackfillHours())) {
+                this.sendHttpError(ctx, new TimelyException(HttpResponseStatus.CONFLICT.code(),
+                        "Unable to start cache backfill", "A cache backfill may already be running"));
+                return;
+            }
+        }
         try {
             buf = JsonUtil.getObjectMapper().writeValueAsBytes(cache.getCacheStatus());
         } catch (Exception e) {
@@ -27,7 +27,7 @@ public class HttpMetricPutHandler extends SimpleChannelInboundHandler<MetricRequ
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, MetricRequest m) throws Exception {
         try {
-            this.dataStore.store(m.getMetric());
+            this.dataStore.store(m.getMetric(), ctx.channel());
         } catch (TimelyException e) {
             LOG.error(e.getMessage(), e);
             this.sendHttpError(ctx, e);
@@ -0,0 +1,26 @@
+package timely.netty.http.timeseries;
+
+import java.util.Iterator;
+
+import com.google.flatbuffers.FlatBufferBuilder;
+import io.netty.buffer.ByteBuf;
+import timely.api.response.timeseries.QueryResponse;
+import timely.api.response.timeseries.QueryResponseFlatBuffer;
+
+/**
+ * Writes the series of a columnar query response as size prefixed FlatBuffers,
+ * see {@link QueryResponseFlatBuffer}
+ */
+class FlatBufferQueryResponseInput extends QueryResponseInput {
+
+    private final FlatBufferBuilder builder = new FlatBufferBuilder(CHUNK_SIZE);
+
+    FlatBufferQueryResponseInput(Iterator<QueryResponse> responses) {
+        super(responses);
+    }
+
+    @Override
+    protected void writeSeries(ByteBuf buf, QueryResponse response, boolean first) {
+        buf.writeBytes(QueryResponseFlatBuffer.write(builder, response));
+    }
+}
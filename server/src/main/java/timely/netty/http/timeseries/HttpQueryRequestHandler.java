@@ -1,36 +1,61 @@
 package timely.netty.http.timeseries;
 
-import io.netty.buffer.Unpooled;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
-import io.netty.handler.codec.http.DefaultFullHttpResponse;
-import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.HttpChunkedInput;
+import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpHeaders.Names;
+import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.HttpVersion;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import timely.api.request.timeseries.QueryRequest;
 import timely.api.response.TimelyException;
+import timely.api.response.timeseries.QueryResponse;
 import timely.netty.Constants;
 import timely.netty.http.TimelyHttpHandler;
 import timely.store.DataStore;
-import timely.util.JsonUtil;
 
 public class HttpQueryRequestHandler extends SimpleChannelInboundHandler<QueryRequest> implements TimelyHttpHandler {
 
     private static final Logger LOG = LoggerFactory.getLogger(HttpQueryRequestHandler.class);
     private final DataStore dataStore;
+    private final Executor queryExecutor;
 
-    public HttpQueryRequestHandler(DataStore dataStore) {
+    public HttpQueryRequestHandler(DataStore dataStore, Executor queryExecutor) {
         this.dataStore = dataStore;
+        this.queryExecutor = queryExecutor;
     }
 
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, QueryRequest msg) throws Exception {
-        byte[] buf;
+        // queries run outside of the I/O threads, the responses are written
+        // back through the context
+        queryExecutor.execute(() -> {
+            try {
+                query(ctx, msg);
+            } catch (Exception e) {
+                ctx.fireExceptionCaught(e);
+            }
+        });
+    }
+
+    private void query(ChannelHandlerContext ctx, QueryRequest msg) throws Exception {
+        if (msg.getFormat() == null) {
+            msg.setFormat(getFormat(msg.getRequestHeaders().get(Names.ACCEPT)));
+        }
+        // scans stop if the client goes away before the query is answered
+        ChannelFutureListener cancel = f -> msg.cancel();
+        ctx.channel().closeFuture().addListener(cancel);
+        Iterator<QueryResponse> responses;
         try {
-            buf = JsonUtil.getObjectMapper().writeValueAsBytes(dataStore.query(msg));
+            responses = dataStore.queryIterator(msg);
         } catch (TimelyException e) {
             if (e.getMessage().contains("No matching tags")) {
                 LOG.trace(e.getMessage());
@@ -39,12 +64,44 @@ public class HttpQueryRequestHandler extends SimpleChannelInboundHandler<QueryRe
             }
             this.sendHttpError(ctx, e);
             return;
+        } finally {
+            ctx.channel().closeFuture().removeListener(cancel);
+        }
+        // the series are written as the channel takes them
+        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+        QueryResponseInput input;
+        switch (msg.getFormat()) {
+            case FLATBUFFER:
+                response.headers().set(Names.CONTENT_TYPE, Constants.FLATBUFFER_TYPE);
+                input = new FlatBufferQueryResponseInput(responses);
+                break;
+            case COLUMNAR:
+                response.headers().set(Names.CONTENT_TYPE, Constants.COLUMNAR_JSON_TYPE);
+                input = new JsonQueryResponseInput(responses);
+                break;
+            default:
+                response.headers().set(Names.CONTENT_TYPE, Constants.JSON_TYPE);
+                input = new JsonQueryResponseInput(responses);
+        }
+        HttpHeaders.setTransferEncodingChunked(response);
+        ctx.write(response);
+        ctx.writeAndFlush(new HttpChunkedInput(input)).addListener(f -> {
+            if (!f.isSuccess()) {
+                LOG.error(Constants.ERR_WRITING_RESPONSE, f.cause());
+                ctx.close();
+            }
+        });
+    }
+
+    private static QueryRequest.Format getFormat(String acceptHeader) {
+        if (acceptHeader != null) {
+            if (acceptHeader.contains(Constants.FLATBUFFER_TYPE)) {
+                return QueryRequest.Format.FLATBUFFER;
+            } else if (acceptHeader.contains(Constants.COLUMNAR_JSON_TYPE)) {
+                return QueryRequest.Format.COLUMNAR;
+            }
         }
-        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK,
-                Unpooled.copiedBuffer(buf));
-        response.headers().set(Names.CONTENT_TYPE, Constants.JSON_TYPE);
-        response.headers().set(Names.CONTENT_LENGTH, response.content().readableBytes());
-        sendResponse(ctx, response);
+        return QueryRequest.Format.JSON;
     }
 
 }
@@ -0,0 +1,41 @@
+package timely.netty.http.timeseries;
+
+import java.io.OutputStream;
+import java.util.Iterator;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufOutputStream;
+import timely.api.response.timeseries.QueryResponse;
+import timely.util.JsonUtil;
+
+/**
+ * Writes the series of a query response as a JSON array
+ */
+class JsonQueryResponseInput extends QueryResponseInput {
+
+    JsonQueryResponseInput(Iterator<QueryResponse> responses) {
+        super(responses);
+    }
+
+    @Override
+    protected void writeStart(ByteBuf buf) {
+        buf.writeByte('[');
+    }
+
+    @Override
+    protected void writeSeries(ByteBuf buf, QueryResponse response, boolean first) throws Exception {
+        if (!first) {
+            buf.writeByte(',');
+        }
+        OutputStream out = new ByteBufOutputStream(buf);
+        try (JsonGenerator generator = JsonUtil.getObjectMapper().getFactory().createGenerator(out)) {
+            JsonUtil.getObjectMapper().writeValue(generator, response);
+        }
+    }
+
+    @Override
+    protected void writeEnd(ByteBuf buf) {
+        buf.writeByte(']');
+    }
+}
@@ -0,0 +1,68 @@
+package timely.netty.http.timeseries;
+
+import java.util.Iterator;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.stream.ChunkedInput;
+import timely.api.response.timeseries.QueryResponse;
+
+/**
+ * Writes the series of a query response, the next series when the channel can
+ * take more, so the whole response is never held in memory
+ */
+abstract class QueryResponseInput implements ChunkedInput<ByteBuf> {
+
+    // series are added to a chunk until it is at least this large
+    static final int CHUNK_SIZE = 64 * 1024;
+
+    private final Iterator<QueryResponse> responses;
+    private boolean started = false;
+    private boolean ended = false;
+
+    QueryResponseInput(Iterator<QueryResponse> responses) {
+        this.responses = responses;
+    }
+
+    @Override
+    public boolean isEndOfInput() {
+        return ended;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public ByteBuf readChunk(ChannelHandlerContext ctx) throws Exception {
+        if (ended) {
+            return null;
+        }
+        ByteBuf buf = ctx.alloc().buffer(CHUNK_SIZE);
+        try {
+            if (!started) {
+                writeStart(buf);
+            }
+            while (responses.hasNext() && buf.readableBytes() < CHUNK_SIZE) {
+                writeSeries(buf, responses.next(), !started);
+                started = true;
+            }
+            if (!responses.hasNext()) {
+                writeEnd(buf);
+                ended = true;
+            }
+            return buf;
+        } catch (Exception e) {
+            buf.release();
+            throw e;
+        }
+    }
+
+    protected void writeStart(ByteBuf buf) throws Exception {
+    }
+
+    protected abstract void writeSeries(ByteBuf buf, QueryResponse response, boolean first) throws Exception;
+
+    protected void writeEnd(ByteBuf buf) throws Exception {
+    }
+}
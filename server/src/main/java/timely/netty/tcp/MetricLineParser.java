@@ -0,0 +1,264 @@
+package timely.netty.tcp;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import io.netty.buffer.ByteBuf;
+import timely.model.Metric;
+import timely.model.Tag;
+
+/**
+ * Parses a put line directly out of a {@link ByteBuf} without copying the line
+ * or splitting it into intermediate Strings. The rules are the same as
+ * {@link timely.model.parse.MetricParser}: tokens are separated by spaces,
+ * empty tokens are ignored, and each token is trimmed.
+ *
+ * put &lt;metricName&gt; &lt;timestamp&gt; &lt;value&gt; &lt;tagK=tagV&gt;
+ * &lt;tagK=tagV&gt; ...
+ *
+ * Metric names, tag keys and tag values repeat heavily across puts, so decoded
+ * Strings are kept in a small direct-mapped cache and reused when the same
+ * bytes are seen again. Instances are not thread safe and are meant to be owned
+ * by a single channel.
+ */
+public class MetricLineParser {
+
+    private static final int STRING_CACHE_SIZE = 4096;
+    private static final int MAX_FAST_PATH_DIGITS = 15;
+    private static final double[] POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12,
+            1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+    private final String[] strings = new String[STRING_CACHE_SIZE];
+
+    private int tokenStart;
+    private int tokenEnd;
+
+    /**
+     * @return true if the first token of the line is the put operation
+     */
+    public boolean isPut(ByteBuf buf, int start, int end) {
+        return nextToken(buf, start, end) && tokenEnd - tokenStart == 3 && buf.getByte(tokenStart) == 'p'
+                && buf.getByte(tokenStart + 1) == 'u' && buf.getByte(tokenStart + 2) == 't';
+    }
+
+    /**
+     * Parse the put line between start (inclusive) and end (exclusive)
+     *
+     * @throws IllegalArgumentException
+     *             if the line is not a valid put
+     */
+    public Metric parse(ByteBuf buf, int start, int end) {
+        // index 0 is put
+        if (!nextToken(buf, start, end) || !nextToken(buf, tokenEnd, end)) {
+            throw new IllegalArgumentException("Missing metric name");
+        }
+        String name = toString(buf, tokenStart, tokenEnd);
+        if (!nextToken(buf, tokenEnd, end)) {
+            throw new IllegalArgumentException("Missing timestamp");
+        }
+        long timestamp = parseLong(buf, tokenStart, tokenEnd);
+        if (!nextToken(buf, tokenEnd, end)) {
+            throw new IllegalArgumentException("Missing value");
+        }
+        double measure = parseDouble(buf, tokenStart, tokenEnd);
+
+        Metric metric = new Metric(name, timestamp, measure);
+        while (nextToken(buf, tokenEnd, end)) {
+            int equals = buf.indexOf(tokenStart, tokenEnd, (byte) '=');
+            if (equals < 0) {
+                throw new IllegalArgumentException(
+                        "Invalid tag format: " + buf.toString(tokenStart, tokenEnd - tokenStart, UTF_8));
+            }
+            String key = toString(buf, tokenStart, trimEnd(buf, tokenStart, equals));
+            String value = toString(buf, trimStart(buf, equals + 1, tokenEnd), tokenEnd);
+            metric.getTags().add(new Tag(key, value));
+        }
+        return metric;
+    }
+
+    /**
+     * Finds the next space separated, trimmed, non-empty token at or after from.
+     * The bounds are left in tokenStart and tokenEnd.
+     */
+    private boolean nextToken(ByteBuf buf, int from, int end) {
+        int i = from;
+        while (i < end) {
+            int separator = buf.indexOf(i, end, (byte) ' ');
+            if (separator < 0) {
+                separator = end;
+            }
+            int s = trimStart(buf, i, separator);
+            int e = trimEnd(buf, s, separator);
+            if (s < e) {
+                tokenStart = s;
+                tokenEnd = e;
+                return true;
+            }
+            i = separator + 1;
+        }
+        return false;
+    }
+
+    private static int trimStart(ByteBuf buf, int start, int end) {
+        while (start < end && isWhitespace(buf.getByte(start))) {
+            start++;
+        }
+        return start;
+    }
+
+    private static int trimEnd(ByteBuf buf, int start, int end) {
+        while (end > start && isWhitespace(buf.getByte(end - 1))) {
+            end--;
+        }
+        return end;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || (b >= '\t' && b <= '\r');
+    }
+
+    /**
+     * Returns a String for the bytes between start and end, reusing a previously
+     * decoded instance when the bytes are identical.
+     */
+    String toString(ByteBuf buf, int start, int end) {
+        int hash = 0;
+        boolean ascii = true;
+        for (int i = start; i < end; i++) {
+            byte b = buf.getByte(i);
+            ascii &= b >= 0;
+            hash = 31 * hash + b;
+        }
+        if (!ascii) {
+            return buf.toString(start, end - start, UTF_8);
+        }
+        int slot = (hash ^ (hash >>> 16)) & (STRING_CACHE_SIZE - 1);
+        String cached = strings[slot];
+        if (cached != null && matches(cached, buf, start, end)) {
+            return cached;
+        }
+        String s = buf.toString(start, end - start, UTF_8);
+        strings[slot] = s;
+        return s;
+    }
+
+    private static boolean matches(String s, ByteBuf buf, int start, int end) {
+        if (s.length() != end - start) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            if (s.charAt(i - start) != buf.getByte(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parses a decimal long, falling back to {@link Long#parseLong(String)} for
+     * anything unusual so that errors are reported the same way.
+     */
+    static long parseLong(ByteBuf buf, int start, int end) {
+        int i = start;
+        boolean negative = false;
+        byte first = buf.getByte(i);
+        if (first == '-' || first == '+') {
+            negative = first == '-';
+            i++;
+        }
+        if (i == end || end - i > 18) {
+            return Long.parseLong(buf.toString(start, end - start, UTF_8));
+        }
+        long result = 0;
+        for (; i < end; i++) {
+            int digit = buf.getByte(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return Long.parseLong(buf.toString(start, end - start, UTF_8));
+            }
+            result = result * 10 + digit;
+        }
+        return negative ? -result : result;
+    }
+
+    /**
+     * Parses a decimal double. Values with at most 15 significant digits and a
+     * small exponent are exactly representable as a long mantissa and a power of
+     * ten, so a single multiply or divide gives the correctly rounded result.
+     * Everything else (NaN, Infinity, hex, long mantissas) falls back to
+     * {@link Double#parseDouble(String)}.
+     */
+    static double parseDouble(ByteBuf buf, int start, int end) {
+        int i = start;
+        boolean negative = false;
+        byte b = buf.getByte(i);
+        if (b == '-' || b == '+') {
+            negative = b == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int significantDigits = 0;
+        int fractionDigits = 0;
+        boolean fraction = false;
+        for (; i < end; i++) {
+            b = buf.getByte(i);
+            if (b >= '0' && b <= '9') {
+                digits++;
+                if (mantissa != 0 || b != '0') {
+                    significantDigits++;
+                }
+                mantissa = mantissa * 10 + (b - '0');
+                if (fraction) {
+                    fractionDigits++;
+                }
+                if (significantDigits > MAX_FAST_PATH_DIGITS) {
+                    return Double.parseDouble(buf.toString(start, end - start, UTF_8));
+                }
+            } else if (b == '.' && !fraction) {
+                fraction = true;
+            } else {
+                break;
+            }
+        }
+        if (digits == 0) {
+            return Double.parseDouble(buf.toString(start, end - start, UTF_8));
+        }
+        int exponent = 0;
+        if (i < end) {
+            if (b != 'e' && b != 'E') {
+                return Double.parseDouble(buf.toString(start, end - start, UTF_8));
+            }
+            i++;
+            boolean negativeExponent = false;
+            if (i < end && (buf.getByte(i) == '-' || buf.getByte(i) == '+')) {
+                negativeExponent = buf.getByte(i) == '-';
+                i++;
+            }
+            if (i == end || end - i > 3) {
+                return Double.parseDouble(buf.toString(start, end - start, UTF_8));
+            }
+            for (; i < end; i++) {
+                int digit = buf.getByte(i) - '0';
+                if (digit < 0 || digit > 9) {
+                    return Double.parseDouble(buf.toString(start, end - start, UTF_8));
+                }
+                exponent = exponent * 10 + digit;
+            }
+            if (negativeExponent) {
+                exponent = -exponent;
+            }
+        }
+        exponent -= fractionDigits;
+        double value;
+        if (exponent == 0) {
+            value = mantissa;
+        } else if (exponent > 0 && exponent < POWERS_OF_TEN.length) {
+            value = mantissa * POWERS_OF_TEN[exponent];
+        } else if (exponent < 0 && -exponent < POWERS_OF_TEN.length) {
+            value = mantissa / POWERS_OF_TEN[-exponent];
+        } else {
+            return Double.parseDouble(buf.toString(start, end - start, UTF_8));
+        }
+        return negative ? -value : value;
+    }
+
+}
@@ -31,7 +31,7 @@ public class MetricsBufferDecoder extends ByteToMessageDecoder {
         }
         if (!isFlatBuffer) {
             LOG.debug("Input is not a Flatbuffer");
-            out.add(in.readBytes(in.readableBytes()));
+            out.add(in.readSlice(in.readableBytes()).retain());
         } else {
             LOG.debug("Input is a Flatbuffer");
             ByteBuf copy = in.readBytes(in.readableBytes());
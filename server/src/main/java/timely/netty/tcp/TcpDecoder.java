@@ -5,62 +5,99 @@ import static java.nio.charset.StandardCharsets.UTF_8;
 import java.util.List;
 
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
+import io.netty.buffer.ByteBufProcessor;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.ByteToMessageDecoder;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import timely.api.annotation.AnnotationResolver;
+import timely.api.request.MetricRequest;
 import timely.api.request.TcpRequest;
+import timely.model.Metric;
 
+/**
+ * Splits the inbound stream into lines and decodes each line into a
+ * {@link TcpRequest}. Lines are located and parsed in place in the inbound
+ * buffer; put lines are parsed straight into a {@link MetricRequest} and all
+ * other operations are resolved through the {@link AnnotationResolver}.
+ */
 public class TcpDecoder extends ByteToMessageDecoder {
 
     private static final Logger LOG = LoggerFactory.getLogger(TcpDecoder.class);
+    private static final int DEFAULT_MAX_LINE_LENGTH = 8192;
+
+    private final int maxLineLength;
+    private final MetricLineParser parser = new MetricLineParser();
+    private boolean discarding = false;
+
+    public TcpDecoder() {
+        this(DEFAULT_MAX_LINE_LENGTH);
+    }
+
+    public TcpDecoder(int maxLineLength) {
+        this.maxLineLength = maxLineLength;
+    }
 
     @Override
     protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
-
-        ByteBuf buf = in.readBytes(in.readableBytes());
-        try {
-            if (buf == Unpooled.EMPTY_BUFFER) {
+        while (in.isReadable()) {
+            int start = in.readerIndex();
+            int eol = in.forEachByte(start, in.readableBytes(), ByteBufProcessor.FIND_LF);
+            if (eol < 0) {
+                if (in.readableBytes() > maxLineLength) {
+                    LOG.warn("Discarding line longer than {} bytes", maxLineLength);
+                    in.skipBytes(in.readableBytes());
+                    discarding = true;
+                }
                 return;
             }
-            final String input;
-            if (buf.hasArray()) {
-                input = new String(buf.array(), UTF_8);
-            } else {
-                input = buf.toString(UTF_8);
+            in.readerIndex(eol + 1);
+            if (discarding) {
+                // remainder of a line that was too long
+                discarding = false;
+                continue;
             }
-            if (StringUtils.isEmpty(input)) {
-                LOG.warn("Received no input");
-                return;
+            if (eol - start > maxLineLength) {
+                LOG.warn("Discarding line longer than {} bytes", maxLineLength);
+                continue;
             }
-            LOG.trace("Received input: {}", input);
+            decodeLine(in, start, eol, out);
+        }
+    }
 
-            String[] parts = input.split(" ");
-            String operation;
-            if (parts.length == 0 && !StringUtils.isEmpty(input)) {
-                operation = input;
-            } else {
-                operation = parts[0];
-            }
-            TcpRequest tcp = null;
+    private void decodeLine(ByteBuf in, int start, int end, List<Object> out) {
+        if (parser.isPut(in, start, end)) {
             try {
-                tcp = AnnotationResolver.getClassForTcpOperation(operation);
+                Metric metric = parser.parse(in, start, end);
+                out.add(new MetricRequest(metric));
+                LOG.trace("Converted put to {}", metric);
             } catch (Exception e) {
-                LOG.error("Error getting class for operation: " + operation, e);
-            }
-            if (null == tcp) {
-                LOG.error("Unknown tcp operation: " + parts[0]);
-                return;
+                LOG.error("Error parsing metric: {}", in.toString(start, end - start, UTF_8), e);
             }
-            tcp.parse(input);
-            out.add(tcp);
-            LOG.trace("Converted {} to {}", input, tcp);
-        } finally {
-            buf.release();
+            return;
+        }
+
+        final String input = StringUtils.trim(in.toString(start, end - start, UTF_8));
+        if (StringUtils.isEmpty(input)) {
+            return;
+        }
+        LOG.trace("Received input: {}", input);
+
+        String operation = StringUtils.substringBefore(input, " ");
+        TcpRequest tcp = null;
+        try {
+            tcp = AnnotationResolver.getClassForTcpOperation(operation);
+        } catch (Exception e) {
+            LOG.error("Error getting class for operation: " + operation, e);
+        }
+        if (null == tcp) {
+            LOG.error("Unknown tcp operation: " + operation);
+            return;
         }
+        tcp.parse(input);
+        out.add(tcp);
+        LOG.trace("Converted {} to {}", input, tcp);
     }
 
 }
@@ -27,7 +27,7 @@ public class TcpPutHandler extends SimpleChannelInboundHandler<MetricRequest> {
     protected void channelRead0(ChannelHandlerContext ctx, MetricRequest msg) throws Exception {
         LOG.trace("Received {}", msg);
         try {
-            store.store(msg.getMetric());
+            store.store(msg.getMetric(), ctx.channel());
         } catch (Exception e) {
             LOG.error(LOG_ERR_MSG, msg, e);
             ChannelFuture cf = ctx.writeAndFlush(
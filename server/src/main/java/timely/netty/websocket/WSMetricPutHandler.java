@@ -15,7 +15,7 @@ public class WSMetricPutHandler extends SimpleChannelInboundHandler<MetricReques
 
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, MetricRequest m) throws Exception {
-        this.dataStore.store(m.getMetric());
+        this.dataStore.store(m.getMetric(), ctx.channel());
     }
 
 }
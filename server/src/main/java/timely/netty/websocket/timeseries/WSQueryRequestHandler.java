@@ -1,13 +1,23 @@
 package timely.netty.websocket.timeseries;
 
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import com.google.flatbuffers.FlatBufferBuilder;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
 import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
 import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import timely.api.request.timeseries.QueryRequest;
 import timely.api.response.TimelyException;
+import timely.api.response.timeseries.QueryResponse;
+import timely.api.response.timeseries.QueryResponseFlatBuffer;
 import timely.netty.http.timeseries.HttpQueryRequestHandler;
 import timely.store.DataStore;
 import timely.util.JsonUtil;
@@ -16,16 +26,43 @@ public class WSQueryRequestHandler extends SimpleChannelInboundHandler<QueryRequ
 
     private static final Logger LOG = LoggerFactory.getLogger(HttpQueryRequestHandler.class);
     private final DataStore dataStore;
+    private final Executor queryExecutor;
 
-    public WSQueryRequestHandler(DataStore dataStore) {
+    public WSQueryRequestHandler(DataStore dataStore, Executor queryExecutor) {
         this.dataStore = dataStore;
+        this.queryExecutor = queryExecutor;
     }
 
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, QueryRequest msg) throws Exception {
+        // queries run outside of the I/O threads, the responses are written
+        // back through the context
+        queryExecutor.execute(() -> {
+            try {
+                query(ctx, msg);
+            } catch (Exception e) {
+                ctx.fireExceptionCaught(e);
+            }
+        });
+    }
+
+    private void query(ChannelHandlerContext ctx, QueryRequest msg) throws Exception {
+        // scans stop if the client goes away before the query is answered
+        ChannelFutureListener cancel = f -> msg.cancel();
+        ctx.channel().closeFuture().addListener(cancel);
         try {
-            String response = JsonUtil.getObjectMapper().writeValueAsString(dataStore.query(msg));
-            ctx.writeAndFlush(new TextWebSocketFrame(response));
+            List<QueryResponse> responses = dataStore.query(msg);
+            if (msg.getFormat() == QueryRequest.Format.FLATBUFFER) {
+                FlatBufferBuilder builder = new FlatBufferBuilder();
+                ByteBuf buf = Unpooled.buffer();
+                for (QueryResponse response : responses) {
+                    buf.writeBytes(QueryResponseFlatBuffer.write(builder, response));
+                }
+                ctx.writeAndFlush(new BinaryWebSocketFrame(buf));
+            } else {
+                String response = JsonUtil.getObjectMapper().writeValueAsString(responses);
+                ctx.writeAndFlush(new TextWebSocketFrame(response));
+            }
         } catch (TimelyException e) {
             if (e.getMessage().contains("No matching tags")) {
                 LOG.trace(e.getMessage());
@@ -33,6 +70,8 @@ public class WSQueryRequestHandler extends SimpleChannelInboundHandler<QueryRequ
                 LOG.error(e.getMessage(), e);
             }
             ctx.writeAndFlush(new CloseWebSocketFrame(1008, e.getMessage()));
+        } finally {
+            ctx.channel().closeFuture().removeListener(cancel);
         }
     }
 
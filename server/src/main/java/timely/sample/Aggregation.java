@@ -140,6 +140,25 @@ public class Aggregation implements Iterable<Sample>, Serializable {
         return result;
     }
 
+    /**
+     * @return a copy of the buckets in [from, to), not changed by merges into this
+     *         aggregation and the other way around
+     */
+    public Aggregation copy(long from, long to) {
+        Aggregation copy = newEmpty();
+        for (Map.Entry<Long, AggregatedValue> e : buckets.subMap(from, to).entrySet()) {
+            AggregatedValue value = new AggregatedValue();
+            value.setCount(e.getValue().getCount());
+            value.setValue(e.getValue().getValue());
+            copy.buckets.put(e.getKey(), value);
+        }
+        return copy;
+    }
+
+    protected Aggregation newEmpty() {
+        return new Aggregation(aggregator);
+    }
+
     public void clear() {
         buckets.clear();
     }
@@ -147,4 +166,15 @@ public class Aggregation implements Iterable<Sample>, Serializable {
     public int getNumBuckets() {
         return buckets.size();
     }
+
+    /**
+     * @return the number of raw points aggregated into the buckets
+     */
+    public long getNumPoints() {
+        long numPoints = 0;
+        for (AggregatedValue value : buckets.values()) {
+            numPoints += value.getCount();
+        }
+        return numPoints;
+    }
 }
@@ -0,0 +1,270 @@
+package timely.sample;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import timely.model.Tag;
+
+/**
+ * Binary form of the Map&lt;Set&lt;Tag&gt;, Aggregation&gt; values returned by
+ * the DownsampleIterator and the AggregationIterator, in place of Java
+ * serialization. The tag keys and values and aggregator class names are written
+ * once in a dictionary and referenced by index. Bucket timestamps are delta
+ * encoded, as bucket numbers for a Downsample, and counts are varints.
+ *
+ * <pre>
+ * byte     version
+ * varint   number of strings, then for each: varint length, UTF-8 bytes
+ * varint   number of series, then for each:
+ *   varint   number of tags, then for each: varint key index, varint value index
+ *   varint   aggregator class name index
+ *   byte     kind: aggregation, downsample or downsample with unaligned buckets
+ *   varlong  start and varlong period, for a downsample
+ *   varint   number of buckets, then for each:
+ *     varlong  bucket number or timestamp, as a delta from the previous one
+ *     long     value bits
+ *     varint   count
+ * </pre>
+ *
+ * Values written with Java serialization by an older iterator are still read.
+ */
+public class AggregationCodec {
+
+    public static final byte VERSION = 1;
+
+    private static final byte AGGREGATION = 0;
+    private static final byte DOWNSAMPLE = 1;
+    private static final byte DOWNSAMPLE_UNALIGNED = 2;
+
+    // first bytes of a Java serialization stream
+    private static final byte STREAM_MAGIC_0 = (byte) 0xAC;
+    private static final byte STREAM_MAGIC_1 = (byte) 0xED;
+
+    private AggregationCodec() {
+    }
+
+    public static byte[] encode(Map<Set<Tag>, ? extends Aggregation> series) throws IOException {
+        Map<String, Integer> dictionary = new HashMap<>();
+        List<String> strings = new ArrayList<>();
+        for (Map.Entry<Set<Tag>, ? extends Aggregation> e : series.entrySet()) {
+            for (Tag tag : e.getKey()) {
+                index(tag.getKey(), dictionary, strings);
+                index(tag.getValue(), dictionary, strings);
+            }
+            index(e.getValue().aggregatorClassname, dictionary, strings);
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(estimateSize(series, strings));
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(VERSION);
+        writeVarLong(out, strings.size());
+        for (String s : strings) {
+            byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(out, utf8.length);
+            out.write(utf8);
+        }
+        writeVarLong(out, series.size());
+        for (Map.Entry<Set<Tag>, ? extends Aggregation> e : series.entrySet()) {
+            writeVarLong(out, e.getKey().size());
+            for (Tag tag : e.getKey()) {
+                writeVarLong(out, dictionary.get(tag.getKey()));
+                writeVarLong(out, dictionary.get(tag.getValue()));
+            }
+            Aggregation aggregation = e.getValue();
+            writeVarLong(out, dictionary.get(aggregation.aggregatorClassname));
+            long start = 0;
+            long period = 1;
+            byte kind = AGGREGATION;
+            if (aggregation instanceof Downsample) {
+                Downsample ds = (Downsample) aggregation;
+                start = ds.start;
+                period = ds.period;
+                kind = isAligned(ds) ? DOWNSAMPLE : DOWNSAMPLE_UNALIGNED;
+            }
+            out.writeByte(kind);
+            if (kind != AGGREGATION) {
+                writeVarLong(out, zigZag(start));
+                writeVarLong(out, period);
+            }
+            if (kind != DOWNSAMPLE) {
+                // timestamps are written as they are
+                start = 0;
+                period = 1;
+            }
+            writeVarLong(out, aggregation.buckets.size());
+            long previous = 0;
+            boolean first = true;
+            for (Map.Entry<Long, Aggregation.AggregatedValue> bucket : aggregation.buckets.entrySet()) {
+                long position = (bucket.getKey() - start) / period;
+                // the first may be negative, the rest are increasing
+                writeVarLong(out, first ? zigZag(position) : position - previous);
+                first = false;
+                previous = position;
+                out.writeLong(Double.doubleToRawLongBits(bucket.getValue().getValue()));
+                writeVarLong(out, bucket.getValue().getCount());
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <T extends Aggregation> Map<Set<Tag>, T> decode(byte[] value)
+            throws IOException, ClassNotFoundException {
+        if (value.length >= 2 && value[0] == STREAM_MAGIC_0 && value[1] == STREAM_MAGIC_1) {
+            try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(value))) {
+                return (Map<Set<Tag>, T>) in.readObject();
+            }
+        }
+        try {
+            return decode(ByteBuffer.wrap(value));
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IOException("Truncated or corrupt aggregation value", e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends Aggregation> Map<Set<Tag>, T> decode(ByteBuffer in)
+            throws IOException, ClassNotFoundException {
+        byte version = in.get();
+        if (version != VERSION) {
+            throw new IOException("Unknown aggregation value version " + version);
+        }
+        String[] strings = new String[readVarInt(in)];
+        for (int i = 0; i < strings.length; i++) {
+            int length = readVarInt(in);
+            strings[i] = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+            in.position(in.position() + length);
+        }
+        // aggregators are stateless, one instance per class is shared
+        Aggregator[] aggregators = new Aggregator[strings.length];
+        int numSeries = readVarInt(in);
+        // keeps the order of the series in the iterator, in which they are merged
+        Map<Set<Tag>, T> series = new LinkedHashMap<>((int) (numSeries / 0.75f) + 1);
+        for (int s = 0; s < numSeries; s++) {
+            int numTags = readVarInt(in);
+            Set<Tag> tags = new HashSet<>((int) (numTags / 0.75f) + 1);
+            for (int t = 0; t < numTags; t++) {
+                String key = strings[readVarInt(in)];
+                tags.add(new Tag(key, strings[readVarInt(in)]));
+            }
+            int aggregatorIndex = readVarInt(in);
+            if (aggregators[aggregatorIndex] == null) {
+                aggregators[aggregatorIndex] = newAggregator(strings[aggregatorIndex]);
+            }
+            byte kind = in.get();
+            Aggregation aggregation;
+            long start = 0;
+            long period = 1;
+            if (kind == AGGREGATION) {
+                aggregation = new Aggregation(aggregators[aggregatorIndex]);
+            } else if (kind == DOWNSAMPLE || kind == DOWNSAMPLE_UNALIGNED) {
+                long dsStart = unZigZag(readVarLong(in));
+                long dsPeriod = readVarLong(in);
+                // the end is only checked against the start
+                aggregation = new Downsample(dsStart, Long.MAX_VALUE, dsPeriod, aggregators[aggregatorIndex]);
+                if (kind == DOWNSAMPLE) {
+                    start = dsStart;
+                    period = dsPeriod;
+                }
+            } else {
+                throw new IOException("Unknown aggregation kind " + kind);
+            }
+            int numBuckets = readVarInt(in);
+            long position = 0;
+            for (int b = 0; b < numBuckets; b++) {
+                position = b == 0 ? unZigZag(readVarLong(in)) : position + readVarLong(in);
+                Aggregation.AggregatedValue value = new Aggregation.AggregatedValue();
+                value.setValue(Double.longBitsToDouble(in.getLong()));
+                value.setCount(readVarInt(in));
+                aggregation.buckets.put(start + position * period, value);
+            }
+            series.put(tags, (T) aggregation);
+        }
+        return series;
+    }
+
+    private static void index(String s, Map<String, Integer> dictionary, List<String> strings) {
+        if (!dictionary.containsKey(s)) {
+            dictionary.put(s, strings.size());
+            strings.add(s);
+        }
+    }
+
+    private static int estimateSize(Map<Set<Tag>, ? extends Aggregation> series, List<String> strings) {
+        long size = 16;
+        for (String s : strings) {
+            size += s.length() + 2;
+        }
+        for (Aggregation aggregation : series.values()) {
+            size += 16 + 11L * aggregation.buckets.size();
+        }
+        return (int) Math.min(size, Integer.MAX_VALUE - 8);
+    }
+
+    private static boolean isAligned(Downsample ds) {
+        for (Long ts : ds.buckets.keySet()) {
+            if ((ts - ds.start) % ds.period != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Aggregator newAggregator(String classname) throws ClassNotFoundException {
+        try {
+            return (Aggregator) AggregationCodec.class.getClassLoader().loadClass(classname).newInstance();
+        } catch (InstantiationException | IllegalAccessException e) {
+            throw new RuntimeException("Error creating aggregator class: " + classname, e);
+        }
+    }
+
+    private static long zigZag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    private static long unZigZag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    private static void writeVarLong(DataOutputStream out, long v) throws IOException {
+        while ((v & ~0x7FL) != 0) {
+            out.writeByte((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.writeByte((int) v);
+    }
+
+    private static long readVarLong(ByteBuffer in) throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static int readVarInt(ByteBuffer in) throws IOException {
+        long v = readVarLong(in);
+        if (v < 0 || v > Integer.MAX_VALUE) {
+            throw new IOException("Malformed length " + v);
+        }
+        return (int) v;
+    }
+}
@@ -16,6 +16,9 @@ public class Downsample extends Aggregation implements Iterable<Sample>, Seriali
 
     protected final long start;
     protected final long period;
+    // points of a series arrive in time order, most of them go to the last bucket
+    private transient AggregatedValue lastBucket = null;
+    private transient long lastBucketStart;
 
     public Downsample(long start, long end, long period, Aggregator agg) {
         super(agg);
@@ -25,21 +28,53 @@ public class Downsample extends Aggregation implements Iterable<Sample>, Seriali
         this.period = period;
     }
 
-    @Override
-    public void add(long ts, double value) {
+    private AggregatedValue getBucket(long ts) {
         if (ts < start) {
             throw new IllegalArgumentException("timestamp is out of range");
         }
         // find the start time of the bucket
         long sampleStart = ts - ((ts - start) % period);
+        if (null != lastBucket && lastBucketStart == sampleStart) {
+            return lastBucket;
+        }
         AggregatedValue val = buckets.get(sampleStart);
         if (null == val) {
             buckets.put(sampleStart, val = new AggregatedValue());
         }
+        lastBucket = val;
+        lastBucketStart = sampleStart;
+        return val;
+    }
+
+    @Override
+    public void add(long ts, double value) {
+        AggregatedValue val = getBucket(ts);
         val.setValue(aggregator.aggregate(val.getValue(), val.getCount(), value));
         val.incrementCount();
     }
 
+    /**
+     * Adds a value that already aggregates count points, such as the sum or the
+     * maximum of a shorter period
+     */
+    public void add(long ts, double value, int count) {
+        AggregatedValue val = getBucket(ts);
+        val.setValue(aggregator.aggregate(val.getValue(), val.getCount(), value));
+        val.setCount(val.getCount() + count);
+    }
+
+    @Override
+    protected Aggregation newEmpty() {
+        // the end is only checked against the start
+        return new Downsample(start, Long.MAX_VALUE, period, aggregator);
+    }
+
+    @Override
+    public void clear() {
+        super.clear();
+        lastBucket = null;
+    }
+
     @Override
     public String toString() {
         ToStringBuilder tsb = new ToStringBuilder(this);
@@ -1,6 +1,9 @@
 package timely.sample.iterators;
 
-import java.io.*;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -15,26 +18,32 @@ import org.apache.accumulo.core.iterators.WrappingIterator;
 import timely.model.Tag;
 import timely.model.parse.TagListParser;
 import timely.sample.Aggregation;
+import timely.sample.AggregationCodec;
 import timely.sample.Aggregator;
 import timely.sample.Downsample;
 import timely.sample.Sample;
 
 /**
  * This iterator will aggregate across series as output from the
- * DownsampleIterator. The same set of aggregator functions are supported as in
- * the DownsampleIterator.
+ * DownsampleIterator, separately for each value of the group by tags if any.
+ * The same set of aggregator functions are supported as in the
+ * DownsampleIterator.
  */
 public class AggregationIterator extends WrappingIterator {
 
     // To keep the output of the aggregation iterator consistent with that of
     // the downsample iterator, we
     // supply a static set of tags to be returned with the Aggregation (subclass
-    // of Downsample)
+    // of Downsample), along with the group by tags of its series
     private static final String TAGS = "aggregation.tags";
+    private static final String GROUP_BY = "aggregation.groupby";
     private static final String AGGCLASS = "aggregation.aggclass";
 
-    private Aggregation aggregation;
+    private Class<? extends Aggregator> aggClass;
+    private final Map<Set<Tag>, Aggregation> aggregations = new HashMap<>();
+    private final Map<Set<Tag>, Set<Tag>> groups = new HashMap<>();
     private Set<Tag> tags;
+    private Set<String> groupBy;
     private Key last;
 
     @SuppressWarnings("unchecked")
@@ -43,16 +52,42 @@ public class AggregationIterator extends WrappingIterator {
             throws IOException {
         super.init(source, options, env);
         String aggClassname = options.get(AGGCLASS);
-        Class<? extends Aggregator> aggClass = null;
         try {
             aggClass = (Class<? extends Aggregator>) this.getClass().getClassLoader().loadClass(aggClassname);
-            tags = new HashSet<>(new TagListParser().parse(options.get(TAGS)));
-            aggregation = new Aggregation(aggClass.newInstance());
         } catch (ClassNotFoundException e) {
             throw new RuntimeException(e);
-        } catch (InstantiationException | IllegalAccessException e) {
-            throw new RuntimeException("Error creating aggregator class: " + aggClass, e);
         }
+        tags = new HashSet<>(new TagListParser().parse(options.get(TAGS)));
+        String keys = options.getOrDefault(GROUP_BY, "");
+        groupBy = keys.isEmpty() ? Collections.emptySet() : new HashSet<>(Arrays.asList(keys.split(",")));
+    }
+
+    /**
+     * @return the tags of the series with one of the keys
+     */
+    public static Set<Tag> getGroup(Set<Tag> seriesTags, Set<String> keys) {
+        Set<Tag> group = new HashSet<>();
+        for (Tag tag : seriesTags) {
+            if (keys.contains(tag.getKey())) {
+                group.add(tag);
+            }
+        }
+        return group;
+    }
+
+    /**
+     * @return the tags of the aggregation that a series is added to, the static
+     *         tags with the group by tags of the series in place of those with the
+     *         same keys
+     */
+    public static Set<Tag> getAggregationTags(Set<Tag> seriesTags, Set<Tag> tags, Set<String> groupBy) {
+        Set<Tag> group = getGroup(seriesTags, groupBy);
+        for (Tag tag : tags) {
+            if (!groupBy.contains(tag.getKey())) {
+                group.add(tag);
+            }
+        }
+        return group;
     }
 
     @Override
@@ -71,8 +106,19 @@ public class AggregationIterator extends WrappingIterator {
                 throw new RuntimeException("Unable to find class for value (expected to be a Downsample)", e);
             }
 
-            // add the downsampled values to the aggregation
+            // add the downsampled values to the aggregation of their group
             for (Map.Entry<Set<Tag>, Downsample> entry : samples.entrySet()) {
+                Set<Tag> group = groups.computeIfAbsent(entry.getKey(),
+                        seriesTags -> getAggregationTags(seriesTags, tags, groupBy));
+                Aggregation aggregation = aggregations.get(group);
+                if (aggregation == null) {
+                    try {
+                        aggregation = new Aggregation(aggClass.newInstance());
+                    } catch (InstantiationException | IllegalAccessException e) {
+                        throw new RuntimeException("Error creating aggregator class: " + aggClass, e);
+                    }
+                    aggregations.put(group, aggregation);
+                }
                 for (Sample sample : entry.getValue()) {
                     aggregation.add(sample.timestamp, sample.value);
                 }
@@ -95,17 +141,12 @@ public class AggregationIterator extends WrappingIterator {
     @Override
     public Value getTopValue() {
         // return a value which is consistent with Map<Set<Tag>, Downsample>
-        try (ByteArrayOutputStream bos = new ByteArrayOutputStream();
-                ObjectOutputStream out = new ObjectOutputStream(bos)) {
-            Map<Set<Tag>, Aggregation> aggregationMap = new HashMap<>();
-            aggregationMap.put(tags, aggregation);
-            out.writeObject(aggregationMap);
-            out.flush();
-            return new Value(bos.toByteArray());
+        try {
+            return new Value(AggregationCodec.encode(aggregations));
         } catch (IOException e) {
             throw new RuntimeException(e);
         } finally {
-            aggregation.clear();
+            aggregations.clear();
         }
     }
 
@@ -115,14 +156,17 @@ public class AggregationIterator extends WrappingIterator {
     }
 
     public static void setAggregationOptions(IteratorSetting is, Map<String, String> tags, String classname) {
+        setAggregationOptions(is, tags, Collections.emptySet(), classname);
+    }
+
+    public static void setAggregationOptions(IteratorSetting is, Map<String, String> tags, Collection<String> groupBy,
+            String classname) {
         is.addOption(TAGS, new TagListParser().combine(tags));
+        is.addOption(GROUP_BY, String.join(",", groupBy));
         is.addOption(AGGCLASS, classname);
     }
 
-    @SuppressWarnings("unchecked")
     public static Map<Set<Tag>, Aggregation> decodeValue(Value value) throws IOException, ClassNotFoundException {
-        ByteArrayInputStream bis = new ByteArrayInputStream(value.get());
-        ObjectInputStream ois = new ObjectInputStream(bis);
-        return (Map<Set<Tag>, Aggregation>) ois.readObject();
+        return AggregationCodec.decode(value.get());
     }
 }
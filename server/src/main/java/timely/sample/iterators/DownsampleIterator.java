@@ -2,17 +2,16 @@ package timely.sample.iterators;
 
 import static org.apache.accumulo.core.conf.AccumuloConfiguration.getTimeInMillis;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 
+import com.google.common.primitives.Longs;
 import org.apache.accumulo.core.client.IteratorSetting;
+import org.apache.accumulo.core.data.ByteSequence;
 import org.apache.accumulo.core.data.Key;
 import org.apache.accumulo.core.data.Value;
 import org.apache.accumulo.core.iterators.IteratorEnvironment;
@@ -23,8 +22,8 @@ import org.slf4j.LoggerFactory;
 import timely.adapter.accumulo.MetricAdapter;
 import timely.api.request.timeseries.QueryRequest;
 import timely.api.response.TimelyException;
-import timely.model.Metric;
 import timely.model.Tag;
+import timely.sample.AggregationCodec;
 import timely.sample.Aggregator;
 import timely.sample.Downsample;
 import timely.sample.DownsampleFactory;
@@ -44,6 +43,8 @@ public class DownsampleIterator extends WrappingIterator {
 
     private DownsampleFactory factory;
     private final Map<Set<Tag>, Downsample> value = new HashMap<>();
+    private final Map<SeriesKey, Downsample> series = new HashMap<>();
+    private final SeriesKey lookup = new SeriesKey();
     private long start;
     private long end;
     private long period;
@@ -84,25 +85,16 @@ public class DownsampleIterator extends WrappingIterator {
                 Key topKey = super.getTopKey();
                 Value topValue = super.getTopValue();
                 try {
-                    Metric metric = MetricAdapter.parse(topKey, topValue);
-                    long timestamp = metric.getValue().getTimestamp();
+                    long timestamp = topKey.getTimestamp();
                     if (memoryEstimator.shouldReturnBasedOnMemoryUsage(timestamp, value)) {
                         LOG.trace("returning current values - memory usage > " + memoryEstimator.maxDownsampleMemory
-                                + " for metric=" + metric.toString());
+                                + " for key=" + topKey.toString());
                         break;
                     }
+                    double measure = Double.longBitsToDouble(Longs.fromByteArray(topValue.get()));
+                    Downsample sample = getDownsample(topKey);
                     last = topKey;
-
-                    Set<Tag> tags = new HashSet<Tag>(metric.getTags());
-                    Downsample sample = value.get(tags);
-                    if (sample == null) {
-                        try {
-                            value.put(tags, sample = factory.create());
-                        } catch (TimelyException e) {
-                            throw new RuntimeException(e);
-                        }
-                    }
-                    sample.add(metric.getValue().getTimestamp(), metric.getValue().getMeasure());
+                    sample.add(timestamp, measure);
                 } catch (Exception e) {
                     LOG.error("Error: {} parsing metric at key: {}", e.getMessage(), topKey.toString());
                 }
@@ -118,6 +110,31 @@ public class DownsampleIterator extends WrappingIterator {
         }
     }
 
+    /**
+     * Finds the downsample of the series of the key by its column family and tag
+     * list bytes, the tags are only parsed for the first key of a series
+     */
+    private Downsample getDownsample(Key key) {
+        ByteSequence cf = key.getColumnFamilyData();
+        ByteSequence cq = key.getColumnQualifierData();
+        lookup.set(cf, cq, MetricAdapter.getColQualTagsOffset(cq));
+        Downsample sample = series.get(lookup);
+        if (sample == null) {
+            Set<Tag> tags = new HashSet<>(MetricAdapter.parseTags(key));
+            sample = value.get(tags);
+            if (sample == null) {
+                try {
+                    value.put(tags, sample = factory.create());
+                } catch (TimelyException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            // the same tags may be written under different column families
+            series.put(lookup.copy(), sample);
+        }
+        return sample;
+    }
+
     @Override
     public Key getTopKey() {
         return last;
@@ -125,14 +142,13 @@ public class DownsampleIterator extends WrappingIterator {
 
     @Override
     public Value getTopValue() {
-        try (ByteArrayOutputStream bos = new ByteArrayOutputStream();
-                ObjectOutputStream out = new ObjectOutputStream(bos)) {
-            out.writeObject(value);
-            out.flush();
+        try {
+            Value encoded = new Value(AggregationCodec.encode(value));
             // empty for next batch of downsamples
             value.clear();
+            series.clear();
             memoryEstimator.reset();
-            return new Value(bos.toByteArray());
+            return encoded;
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -154,11 +170,8 @@ public class DownsampleIterator extends WrappingIterator {
         is.addOption(AGGCLASS, classname);
     }
 
-    @SuppressWarnings("unchecked")
     public static Map<Set<Tag>, Downsample> decodeValue(Value value) throws IOException, ClassNotFoundException {
-        ByteArrayInputStream bis = new ByteArrayInputStream(value.get());
-        ObjectInputStream ois = new ObjectInputStream(bis);
-        return (Map<Set<Tag>, Downsample>) ois.readObject();
+        return AggregationCodec.decode(value.get());
     }
 
     public static long getDownsamplePeriod(QueryRequest.SubQuery query) {
@@ -186,4 +199,70 @@ public class DownsampleIterator extends WrappingIterator {
         }
         return Aggregator.getAggregator(aggregatorName);
     }
+
+    /**
+     * Column family and tag list bytes of the keys of a series
+     */
+    private static final class SeriesKey {
+
+        private byte[] cf;
+        private int cfOffset;
+        private int cfLength;
+        private byte[] tags;
+        private int tagsOffset;
+        private int tagsLength;
+        private int hash;
+
+        private void set(ByteSequence cf, ByteSequence cq, int tagsOffset) {
+            this.cf = cf.getBackingArray();
+            this.cfOffset = cf.offset();
+            this.cfLength = cf.length();
+            this.tags = cq.getBackingArray();
+            this.tagsOffset = cq.offset() + tagsOffset;
+            this.tagsLength = cq.length() - tagsOffset;
+            int h = 1;
+            for (int i = 0; i < cfLength; i++) {
+                h = 31 * h + this.cf[cfOffset + i];
+            }
+            for (int i = 0; i < tagsLength; i++) {
+                h = 31 * h + this.tags[this.tagsOffset + i];
+            }
+            hash = h;
+        }
+
+        private SeriesKey copy() {
+            SeriesKey copy = new SeriesKey();
+            copy.cf = Arrays.copyOfRange(cf, cfOffset, cfOffset + cfLength);
+            copy.cfLength = cfLength;
+            copy.tags = Arrays.copyOfRange(tags, tagsOffset, tagsOffset + tagsLength);
+            copy.tagsLength = tagsLength;
+            copy.hash = hash;
+            return copy;
+        }
+
+        private static boolean equals(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+            for (int i = 0; i < length; i++) {
+                if (a[aOffset + i] != b[bOffset + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof SeriesKey)) {
+                return false;
+            }
+            SeriesKey other = (SeriesKey) o;
+            return hash == other.hash && cfLength == other.cfLength && tagsLength == other.tagsLength
+                    && equals(cf, cfOffset, other.cf, other.cfOffset, cfLength)
+                    && equals(tags, tagsOffset, other.tags, other.tagsOffset, tagsLength);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
 }
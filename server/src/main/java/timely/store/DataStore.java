@@ -1,9 +1,11 @@
 package timely.store;
 
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import io.netty.channel.Channel;
 import org.apache.accumulo.core.client.Scanner;
 import org.apache.accumulo.core.client.TableNotFoundException;
 import org.apache.accumulo.core.data.Range;
@@ -22,12 +24,24 @@ public interface DataStore {
 
     void store(Metric metric) throws TimelyException;
 
+    /**
+     * Stores the metric, reads from the channel it came from are paused while the
+     * writes fall behind
+     */
+    void store(Metric metric, Channel channel) throws TimelyException;
+
     SuggestResponse suggest(SuggestRequest query) throws TimelyException;
 
     SearchLookupResponse lookup(SearchLookupRequest msg) throws TimelyException;
 
     List<QueryResponse> query(QueryRequest msg) throws TimelyException;
 
+    /**
+     * Runs the query and returns the series of the response in order, each one
+     * converted to a QueryResponse only when it is reached
+     */
+    Iterator<QueryResponse> queryIterator(QueryRequest msg) throws TimelyException;
+
     void flush() throws TimelyException;
 
     long getAgeOffForMetric(String metricName);
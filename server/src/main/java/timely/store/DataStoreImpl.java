@@ -15,21 +15,31 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.netty.channel.Channel;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import org.apache.accumulo.core.client.BatchScanner;
 import org.apache.accumulo.core.client.BatchWriter;
@@ -79,6 +89,7 @@ import timely.sample.Aggregator;
 import timely.sample.Sample;
 import timely.sample.iterators.AggregationIterator;
 import timely.sample.iterators.DownsampleIterator;
+import timely.store.cache.CacheBackfill;
 import timely.store.cache.DataStoreCache;
 import timely.store.iterators.RateIterator;
 import timely.util.MetaKeySet;
@@ -119,15 +130,24 @@ public class DataStoreImpl implements DataStore {
     private final InternalMetrics internalMetrics;
     private final Timer internalMetricsTimer = new Timer("InternalMatricsTimer", true);
     private final int scannerThreads;
+    // scan threads left for query scanners, null if not limited
+    private final Semaphore scanThreads;
+    private final int scanThreadPermits;
+    private final ThreadPoolExecutor queryExecutor;
+    private final QueryResultCache resultCache;
+    private final QueryGovernor governor;
     private final long maxDownsampleMemory;
     private final BatchWriterConfig bwConfig;
-    private final List<BatchWriter> writers = new ArrayList<>();
+    private final List<BatchWriter> writers = Collections.synchronizedList(new ArrayList<>());
     private final ThreadLocal<BatchWriter> metaWriter = new ThreadLocal<>();
     private final ThreadLocal<BatchWriter> batchWriter = new ThreadLocal<>();
     private boolean anonAccessAllowed = false;
     private final Map<String, String> ageOff;
     private final long defaultAgeOffMilliSec;
     private DataStoreCache cache = null;
+    private final Configuration.Backfill backfillConf;
+    private IngestPipeline ingest = null;
+    private MutationSpool spool = null;
 
     public DataStoreImpl(Configuration conf, int numWriteThreads) throws TimelyException {
 
@@ -142,11 +162,31 @@ public class DataStoreImpl implements DataStore {
                     new PasswordToken(accumuloConf.getPassword()));
             bwConfig = new BatchWriterConfig();
             bwConfig.setMaxLatency(getTimeInMillis(accumuloConf.getWrite().getLatency()), TimeUnit.MILLISECONDS);
+            if (conf.getIngest().isAsync()) {
+                // ingest writer threads plus the internal metrics timer
+                numWriteThreads = conf.getIngest().getThreads() + 1;
+            }
             bwConfig.setMaxMemory(getMemoryInBytes(accumuloConf.getWrite().getBufferSize()) / numWriteThreads);
             bwConfig.setMaxWriteThreads(accumuloConf.getWrite().getThreads());
             scannerThreads = accumuloConf.getScan().getThreads();
+            int maxScanThreads = accumuloConf.getScan().getMaxThreads();
+            scanThreads = maxScanThreads > 0 ? new Semaphore(maxScanThreads, true) : null;
+            scanThreadPermits = Math.min(scannerThreads, Math.max(maxScanThreads, 1));
+            // once the queue is full subqueries run on the requesting thread
+            Configuration.Query queryConf = conf.getQuery();
+            queryExecutor = new ThreadPoolExecutor(queryConf.getThreads(), queryConf.getThreads(), 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(Math.max(1, queryConf.getMaxQueued())),
+                    new ThreadFactoryBuilder().setNameFormat("query-%d").setDaemon(true).build(),
+                    new ThreadPoolExecutor.CallerRunsPolicy());
+            queryExecutor.allowCoreThreadTimeOut(true);
+            Configuration.ResultCache resultCacheConf = queryConf.getResultCache();
+            resultCache = resultCacheConf.isEnabled()
+                    ? new QueryResultCache(getMemoryInBytes(resultCacheConf.getMaxMemory()),
+                            getTimeInMillis(resultCacheConf.getSettleTime()))
+                    : null;
             maxDownsampleMemory = accumuloConf.getScan().getMaxDownsampleMemory();
             anonAccessAllowed = conf.getSecurity().isAllowAnonymousAccess();
+            backfillConf = conf.getCache().getBackfill();
 
             metricsTable = conf.getMetricsTable();
             if (metricsTable.contains(".")) {
@@ -207,16 +247,35 @@ public class DataStoreImpl implements DataStore {
             }
 
             internalMetrics = new InternalMetrics(conf);
+            Configuration.Governor governorConf = conf.getQuery().getGovernor();
+            governor = new QueryGovernor(governorConf.getMaxCost(), governorConf.getMaxRunningCost(),
+                    getTimeInMillis(governorConf.getMaxWait()), getTimeInMillis(governorConf.getTimeout()),
+                    governorConf.getMaxPoints(), internalMetrics);
+            if (accumuloConf.getWrite().getSpool().isEnabled()) {
+                spool = new MutationSpool(accumuloConf.getWrite().getSpool(), this::replay, internalMetrics);
+            }
             internalMetricsTimer.schedule(new TimerTask() {
 
                 @Override
                 public void run() {
-                    internalMetrics.getMetricsAndReset().forEach(m -> store(m, false));
+                    if (null != ingest) {
+                        internalMetrics.setIngestQueueDepth(ingest.getQueueDepth());
+                    }
+                    if (null != spool) {
+                        internalMetrics.setSpoolStatus(spool.getSize(), spool.getReplayLag());
+                    }
+                    if (null != resultCache) {
+                        internalMetrics.setResultCacheSize(resultCache.getSize());
+                    }
+                    store(internalMetrics.getMetricsAndReset(), false);
                 }
 
             }, METRICS_PERIOD, METRICS_PERIOD);
 
             this.metaCache = MetaCacheFactory.getCache(conf);
+            if (conf.getIngest().isAsync()) {
+                ingest = new IngestPipeline(conf.getIngest(), batch -> store(batch, true), internalMetrics);
+            }
         } catch (Exception e2) {
             throw new TimelyException(HttpResponseStatus.INTERNAL_SERVER_ERROR.code(), "Error creating DataStoreImpl",
                     e2.getMessage(), e2);
@@ -226,6 +285,15 @@ public class DataStoreImpl implements DataStore {
     @Override
     public void setCache(DataStoreCache cache) {
         this.cache = cache;
+        if (cache != null) {
+            CacheBackfill backfill = new CacheBackfill(connector, metricsTable, metaTable, scannerThreads, cache,
+                    backfillConf);
+            cache.setBackfill(backfill);
+            cache.fillSnapshotGaps();
+            if (backfillConf.isEnabled()) {
+                backfill.start(backfillConf.getHours());
+            }
+        }
     }
 
     @Override
@@ -265,15 +333,39 @@ public class DataStoreImpl implements DataStore {
     }
 
     @Override
-    public void store(Metric metric) {
-        store(metric, true);
+    public void store(Metric metric) throws TimelyException {
+        store(metric, (Channel) null);
+    }
+
+    @Override
+    public void store(Metric metric, Channel channel) throws TimelyException {
+        if (null == ingest) {
+            store(metric, true);
+            return;
+        }
+        boolean queued;
+        try {
+            queued = ingest.put(metric);
+        } catch (IllegalStateException e) {
+            throw new TimelyException(HttpResponseStatus.SERVICE_UNAVAILABLE.code(), "Error queueing metric",
+                    e.getMessage(), e);
+        }
+        if (!queued && channel != null && channel.config().isAutoRead()) {
+            // the event loop keeps serving the other channels
+            channel.config().setAutoRead(false);
+            ingest.resumeWhenDrained(() -> channel.config().setAutoRead(true));
+        }
     }
 
     public void store(Metric metric, boolean cacheEnabled) {
-        LOG.trace("Received Store Request for: {}", metric);
+        store(Collections.singletonList(metric), cacheEnabled);
+    }
+
+    public void store(List<Metric> metrics, boolean cacheEnabled) {
+        LOG.trace("Received Store Request for: {}", metrics);
 
         if (cache != null && cacheEnabled) {
-            cache.store(metric);
+            metrics.forEach(cache::store);
         }
 
         if (null == metaWriter.get()) {
@@ -297,14 +389,23 @@ public class DataStoreImpl implements DataStore {
             }
         }
 
-        internalMetrics.incrementMetricsReceived(1);
-        List<Meta> toCache = new ArrayList<>(metric.getTags().size());
-        for (final Tag tag : metric.getTags()) {
-            Meta key = new Meta(metric.getName(), tag.getKey(), tag.getValue());
-            if (!metaCache.contains(key)) {
-                toCache.add(key);
+        internalMetrics.incrementMetricsReceived(metrics.size());
+        Set<Meta> toCache = new LinkedHashSet<>();
+        List<Mutation> metricMutations = new ArrayList<>(metrics.size());
+        long metricKeys = 0;
+        long metaHits = 0;
+        for (Metric metric : metrics) {
+            for (final Tag tag : metric.getTags()) {
+                if (metaCache.contains(metric.getName(), tag.getKey(), tag.getValue())) {
+                    metaHits++;
+                } else {
+                    toCache.add(new Meta(metric.getName(), tag.getKey(), tag.getValue()));
+                }
             }
+            metricMutations.add(MetricAdapter.toMutation(metric));
+            metricKeys += metric.getTags().size();
         }
+        internalMetrics.addMetaCacheLookups(metaHits, metricKeys - metaHits);
         if (!toCache.isEmpty()) {
             final Set<Mutation> muts = new TreeSet<>(new Comparator<Mutation>() {
 
@@ -325,31 +426,42 @@ public class DataStoreImpl implements DataStore {
             toCache.forEach(m -> mks.addAll(m.toKeys()));
             internalMetrics.incrementMetaKeysInserted(mks.size());
             muts.addAll(mks.toMutations());
-            try {
-                metaWriter.get().addMutations(muts);
-            } catch (MutationsRejectedException e) {
-                LOG.error("Unable to write to meta table", e);
+            if (null != spool && spool.isBacklogged()) {
+                spool.append(metaTable, muts);
+            } else {
                 try {
+                    metaWriter.get().addMutations(muts);
+                } catch (MutationsRejectedException e) {
+                    LOG.error("Unable to write to meta table", e);
                     try {
-                        final BatchWriter w = metaWriter.get();
-                        metaWriter.remove();
-                        writers.remove(w);
-                        w.close();
-                    } catch (MutationsRejectedException e1) {
-                        LOG.error("Error closing meta writer", e1);
+                        try {
+                            final BatchWriter w = metaWriter.get();
+                            metaWriter.remove();
+                            writers.remove(w);
+                            w.close();
+                        } catch (MutationsRejectedException e1) {
+                            LOG.error("Error closing meta writer", e1);
+                        }
+                        final BatchWriter w = connector.createBatchWriter(metaTable, bwConfig);
+                        metaWriter.set(w);
+                        writers.add(w);
+                    } catch (TableNotFoundException e1) {
+                        Server.fatal("Unexpected error recreating meta batch writer, shutting down Timely server", e1);
+                    }
+                    if (null != spool) {
+                        spool.append(metaTable, muts);
                     }
-                    final BatchWriter w = connector.createBatchWriter(metaTable, bwConfig);
-                    metaWriter.set(w);
-                    writers.add(w);
-                } catch (TableNotFoundException e1) {
-                    Server.fatal("Unexpected error recreating meta batch writer, shutting down Timely server", e1);
                 }
             }
             metaCache.addAll(toCache);
         }
+        if (null != spool && spool.isBacklogged()) {
+            spool.append(metricsTable, metricMutations);
+            return;
+        }
         try {
-            batchWriter.get().addMutation(MetricAdapter.toMutation(metric));
-            internalMetrics.incrementMetricKeysInserted(metric.getTags().size());
+            batchWriter.get().addMutations(metricMutations);
+            internalMetrics.incrementMetricKeysInserted(metricKeys);
         } catch (MutationsRejectedException e) {
             LOG.error("Unable to write to metrics table", e);
             try {
@@ -367,6 +479,25 @@ public class DataStoreImpl implements DataStore {
             } catch (TableNotFoundException e1) {
                 Server.fatal("Unexpected error recreating metrics batch writer, shutting down Timely server", e1);
             }
+            if (null != spool) {
+                spool.append(metricsTable, metricMutations);
+            }
+        }
+    }
+
+    private void replay(String table, List<Mutation> mutations)
+            throws TableNotFoundException, MutationsRejectedException {
+        final BatchWriter w = connector.createBatchWriter(table, bwConfig);
+        try {
+            w.addMutations(mutations);
+        } finally {
+            w.close();
+        }
+        long keys = mutations.stream().mapToLong(Mutation::size).sum();
+        if (table.equals(metricsTable)) {
+            internalMetrics.incrementMetricKeysInserted(keys);
+        } else {
+            internalMetrics.incrementMetaKeysInserted(keys);
         }
     }
 
@@ -430,6 +561,14 @@ public class DataStoreImpl implements DataStore {
     @Override
     public void flush() {
         internalMetricsTimer.cancel();
+        queryExecutor.shutdownNow();
+        governor.shutdown();
+        if (null != ingest) {
+            ingest.close();
+        }
+        if (null != spool) {
+            spool.close();
+        }
         writers.forEach(w -> {
             try {
                 w.close();
@@ -499,167 +638,410 @@ public class DataStoreImpl implements DataStore {
     @Override
     public List<QueryResponse> query(QueryRequest msg) throws TimelyException {
         List<QueryResponse> result = new ArrayList<>();
+        queryIterator(msg).forEachRemaining(result::add);
+        return result;
+    }
 
+    @Override
+    public Iterator<QueryResponse> queryIterator(QueryRequest msg) throws TimelyException {
         LOG.debug("Query request {}", msg);
+        long now = System.currentTimeMillis();
+        List<SubQuery> queries = new ArrayList<>(msg.getQueries());
+        List<Future<SubQueryResult>> futures = new ArrayList<>();
+        List<SubQueryResult> results = new ArrayList<>();
+        AtomicLong numResults = new AtomicLong();
+        try (QueryGovernor.Ticket ticket = governor.start(msg)) {
+            // subqueries run at once, the calling thread runs the first one
+            for (int i = 1; i < queries.size(); i++) {
+                SubQuery query = queries.get(i);
+                futures.add(queryExecutor.submit(() -> subquery(msg, query, ticket, numResults)));
+            }
+            if (!queries.isEmpty()) {
+                try {
+                    results.add(subquery(msg, queries.get(0), ticket, numResults));
+                } catch (TimelyException | RuntimeException e) {
+                    results.add(failedSubquery(queries.get(0), ticket, e));
+                }
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    results.add(futures.get(i).get());
+                } catch (ExecutionException e) {
+                    results.add(failedSubquery(queries.get(i + 1), ticket, e.getCause()));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw subqueryError(queries.get(i + 1), e);
+                }
+            }
+        } finally {
+            // stops the rest once the query fails
+            futures.forEach(f -> f.cancel(true));
+        }
+        // the request fails only when none of its subqueries succeeded
+        if (!results.isEmpty() && results.stream().allMatch(r -> r.error != null)) {
+            throw results.get(0).error;
+        }
+
+        long numSeries = results.stream().mapToLong(r -> r.series.size()).sum();
+        LOG.debug("Query time:{} duration:{} metrics:{} results:{}", (System.currentTimeMillis() - now),
+                ((msg.getEnd() - msg.getStart()) / (1000 * 60)),
+                queries.stream().map(SubQuery::getMetric).collect(Collectors.joining(",")), numResults.get());
+        internalMetrics.addQueryResponse(numSeries, (System.currentTimeMillis() - now));
+        return new QueryResponseIterator(results, msg.isMsResolution() ? 1 : 1000, msg.isColumnar());
+    }
+
+    /**
+     * Series of a subquery, not yet converted to responses
+     */
+    private static class SubQueryResult {
+
+        private final SubQuery query;
+        private final Map<Set<Tag>, List<Aggregation>> series;
+        private final double fractionFromCache;
+        private final TimelyException error;
+
+        private SubQueryResult(SubQuery query, Map<Set<Tag>, List<Aggregation>> series, double fractionFromCache) {
+            this.query = query;
+            this.series = series;
+            this.fractionFromCache = fractionFromCache;
+            this.error = null;
+        }
+
+        private SubQueryResult(SubQuery query, TimelyException error) {
+            this.query = query;
+            this.series = Collections.emptyMap();
+            this.fractionFromCache = 0;
+            this.error = error;
+        }
+    }
+
+    /**
+     * Converts the series of the subqueries to responses one at a time, as they are
+     * written out, and drops each series once converted
+     */
+    private class QueryResponseIterator implements Iterator<QueryResponse> {
+
+        private final Iterator<SubQueryResult> results;
+        private final long tsDivisor;
+        private final boolean columnar;
+        private SubQueryResult current = null;
+        private Iterator<Entry<Set<Tag>, List<Aggregation>>> series = Collections.emptyIterator();
+        // a failed subquery not yet reported
+        private SubQueryResult failed = null;
+
+        private QueryResponseIterator(List<SubQueryResult> results, long tsDivisor, boolean columnar) {
+            this.results = results.iterator();
+            this.tsDivisor = tsDivisor;
+            this.columnar = columnar;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!series.hasNext() && failed == null && results.hasNext()) {
+                current = results.next();
+                if (current.error != null) {
+                    failed = current;
+                }
+                series = current.series.entrySet().iterator();
+            }
+            return series.hasNext() || failed != null;
+        }
+
+        @Override
+        public QueryResponse next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            if (failed != null) {
+                // reported as a series without points
+                QueryResponse response = new QueryResponse();
+                response.setMetric(failed.query.getMetric());
+                if (columnar) {
+                    response.setDps(null);
+                    response.setTimestamps(new long[0]);
+                    response.setValues(new double[0]);
+                }
+                response.setError(failed.error.getMessage());
+                failed = null;
+                return response;
+            }
+            Entry<Set<Tag>, List<Aggregation>> entry = series.next();
+            series.remove();
+            QueryResponse response = convertToQueryResponse(current.query, entry.getKey(), entry.getValue(), tsDivisor,
+                    columnar);
+            if (cache != null) {
+                response.setFractionFromCache(current.fractionFromCache);
+            }
+            return response;
+        }
+    }
+
+    /**
+     * Keeps the failure of a subquery from failing the others, unless the query was
+     * aborted
+     */
+    private SubQueryResult failedSubquery(SubQuery query, QueryGovernor.Ticket ticket, Throwable cause)
+            throws TimelyException {
+        ticket.check();
+        if (cause instanceof TimelyException) {
+            LOG.warn("Error during query of {}: {}", query.getMetric(), cause.getMessage());
+        }
+        return new SubQueryResult(query, subqueryError(query, cause));
+    }
+
+    private TimelyException subqueryError(SubQuery query, Throwable cause) {
+        if (cause instanceof TimelyException) {
+            return (TimelyException) cause;
+        }
+        LOG.error("Error during query of " + query.getMetric() + ": " + cause.getMessage(), cause);
+        return new TimelyException(HttpResponseStatus.INTERNAL_SERVER_ERROR.code(),
+                "Error during query: " + cause.getMessage(), cause.getMessage(), cause);
+    }
+
+    private SubQueryResult subquery(QueryRequest msg, SubQuery query, QueryGovernor.Ticket ticket,
+            AtomicLong numResults) throws TimelyException {
         long requestedStartTs = msg.getStart();
         long requestedEndTs = msg.getEnd();
-        StringBuilder metricList = new StringBuilder();
-
+        Map<Set<Tag>, List<Aggregation>> allSeries = new HashMap<>();
+        String metric = query.getMetric();
+
+        // Reset the start timestamp for the query to the
+        // beginning of the downsample period based on the epoch
+        long downsample = DownsampleIterator.getDownsamplePeriod(query);
+        LOG.trace("Downsample period {}", downsample);
+        long startOfFirstPeriod = requestedStartTs - (requestedStartTs % downsample);
+        long endDistanceFromDownSample = requestedEndTs % downsample;
+        long endOfLastPeriod = (endDistanceFromDownSample > 0 ? requestedEndTs + downsample - endDistanceFromDownSample
+                : requestedEndTs);
+        LOG.debug("startOfFirstPeriod:{} endOfLastPeriod:{}", startOfFirstPeriod, endOfLastPeriod);
+
+        // the cache answers from the split time on and Accumulo before
+        // it, the split time is on a period boundary so each bucket
+        // comes from one of them
+        long splitTime = (cache == null) ? Long.MAX_VALUE : cache.getSplitTime(metric, downsample);
+        boolean fromCache = splitTime <= endOfLastPeriod;
+        boolean fromAccumulo = startOfFirstPeriod < splitTime && endOfLastPeriod > startOfFirstPeriod;
+        long accumuloEnd = fromCache ? splitTime - 1 : endOfLastPeriod;
+
+        // completed buckets read for an earlier request are not read again
+        String resultKey = null;
+        QueryResultCache.Entry cachedResult = null;
+        long scanStart = startOfFirstPeriod;
+        if (fromAccumulo && resultCache != null) {
+            resultKey = QueryResultCache.key(query, getSessionAuthorizations(msg));
+            cachedResult = resultCache.get(resultKey, startOfFirstPeriod, accumuloEnd + 1);
+            if (cachedResult != null) {
+                internalMetrics.addResultCacheLookups(1, 0);
+                scanStart = cachedResult.getEnd();
+                if (query.isRate()) {
+                    // the rate of the first new point needs the point before it
+                    scanStart = Math.max(startOfFirstPeriod, scanStart - resultCache.getRateOverlap(downsample));
+                }
+            } else {
+                internalMetrics.addResultCacheLookups(0, 1);
+            }
+        }
+        BatchScanner scanner = null;
         try {
-            long numResults = 0;
-            long now = System.currentTimeMillis();
-            for (SubQuery query : msg.getQueries()) {
-                Map<Set<Tag>, List<Aggregation>> allSeries = new HashMap<>();
-                String metric = query.getMetric();
-                if (metricList.length() > 0) {
-                    metricList.append(",");
-                }
-                metricList.append(metric);
-                Map<Set<Tag>, List<Aggregation>> cachedMetrics = new HashMap<>();
-                long oldestTimestampFromCache = Long.MAX_VALUE;
-
-                if (cache != null) {
-                    long oldestCacheTimestamp = cache.getOldestTimestamp(query.getMetric());
-                    if (requestedEndTs >= oldestCacheTimestamp) {
-                        cachedMetrics = cache.subquery(msg, query);
-
-                        int z = 0;
-                        for (Collection<Aggregation> c : cachedMetrics.values()) {
-                            z += c.size();
-                        }
-                        long totalRequestedTime = requestedEndTs - requestedStartTs;
-                        long percentServedFromCache = 0;
-                        if (!cachedMetrics.isEmpty() && oldestCacheTimestamp != Long.MAX_VALUE) {
-                            if (requestedStartTs < oldestCacheTimestamp && requestedEndTs < oldestCacheTimestamp) {
-                                percentServedFromCache = 0;
-                            } else if (requestedStartTs >= oldestCacheTimestamp
-                                    && requestedEndTs >= oldestCacheTimestamp) {
-                                percentServedFromCache = 100;
-                            } else {
-                                long timeAnsweredFromCache = requestedEndTs - oldestCacheTimestamp;
-                                percentServedFromCache = Math
-                                        .round((double) timeAnsweredFromCache / (double) totalRequestedTime * 100);
-                            }
-                            if (percentServedFromCache > 100) {
-                                percentServedFromCache = 100;
-                            }
-                            LOG.debug("Cache query time:{} duration (min):{} metrics:{} results:{} percentFromCache:{}",
-                                    (System.currentTimeMillis() - now),
-                                    ((requestedEndTs - requestedStartTs) / (1000 * 60)), metricList.toString(), z,
-                                    percentServedFromCache);
-                            allSeries.putAll(cachedMetrics);
-                        }
-                    }
-                    oldestTimestampFromCache = Math.max(oldestCacheTimestamp,
-                            System.currentTimeMillis() - cache.getAgeOffForMetric(query.getMetric()) + 1);
-                }
-
-                if (cachedMetrics.isEmpty() || requestedStartTs < oldestTimestampFromCache) {
-                    // we have already searched from oldestTimestampFromCache to
-                    // requestedEndTs
-                    long endTs = (oldestTimestampFromCache == Long.MAX_VALUE) ? requestedEndTs
-                            : oldestTimestampFromCache - 1;
-
-                    // Reset the start timestamp for the query to the
-                    // beginning of the downsample period based on the epoch
-                    long downsample = DownsampleIterator.getDownsamplePeriod(query);
-                    LOG.trace("Downsample period {}", downsample);
-                    long startOfFirstPeriod = requestedStartTs - (requestedStartTs % downsample);
-                    long endDistanceFromDownSample = endTs % downsample;
-                    long endOfLastPeriod = (endDistanceFromDownSample > 0
-                            ? endTs + downsample - endDistanceFromDownSample
-                            : endTs);
-
-                    LOG.debug("startOfFirstPeriod:{} endOfLastPeriod:{}", startOfFirstPeriod, endOfLastPeriod);
-
-                    if (endOfLastPeriod > startOfFirstPeriod) {
-                        BatchScanner scanner = null;
-                        try {
-                            scanner = connector.createBatchScanner(metricsTable, getSessionAuthorizations(msg),
-                                    scannerThreads);
-                            List<String> tagOrder = prioritizeTags(query.getMetric(), query.getTags());
-                            Map<String, String> orderedTags = orderTags(tagOrder, query.getTags());
-                            Set<Tag> colFamValues = getColumnFamilies(metric, orderedTags);
-                            List<Range> ranges = getQueryRanges(metric, startOfFirstPeriod, endOfLastPeriod,
-                                    colFamValues);
-                            scanner.setRanges(ranges);
-                            setQueryColumns(scanner, metric, orderedTags, colFamValues);
-
-                            if (query.isRate()) {
-                                LOG.trace("Adding rate iterator");
-                                IteratorSetting rate = new IteratorSetting(499, RateIterator.class);
-                                RateIterator.setRateOptions(rate, query.getRateOptions());
-                                scanner.addScanIterator(rate);
-                            }
-
-                            Class<? extends Aggregator> daggClass = DownsampleIterator.getDownsampleAggregator(query);
-                            if (daggClass == null) {
-                                // we should always have a downsample iterator
-                                // in the stack.
-                                throw new TimelyException(HttpResponseStatus.INTERNAL_SERVER_ERROR.code(),
-                                        "Error during query: programming error", "daggClass == null");
-                            } else {
-                                LOG.trace("Downsample Aggregator type {}", daggClass.getSimpleName());
-                                IteratorSetting is = new IteratorSetting(500, DownsampleIterator.class);
-                                DownsampleIterator.setDownsampleOptions(is, startOfFirstPeriod, endOfLastPeriod,
-                                        downsample, maxDownsampleMemory, daggClass.getName());
-                                scanner.addScanIterator(is);
-                            }
-
-                            Class<? extends Aggregator> aggClass = getAggregator(query);
-                            // the aggregation iterator is optional
-                            if (aggClass != null) {
-                                LOG.trace("Aggregator type {}", aggClass.getSimpleName());
-                                IteratorSetting is = new IteratorSetting(501, AggregationIterator.class);
-                                AggregationIterator.setAggregationOptions(is, query.getTags(), aggClass.getName());
-                                scanner.addScanIterator(is);
-                            }
-
-                            // tag -> array of results by period starting at
-                            // start
-                            for (Entry<Key, Value> encoded : scanner) {
-                                // we can decode the value as a Map<Set<Tag>,
-                                // Aggregation> even if an AggregationIterator
-                                // is not used because Downsample is a subclass
-                                // of Aggregation
-                                Map<Set<Tag>, Aggregation> samples = AggregationIterator
-                                        .decodeValue(encoded.getValue());
-                                for (Entry<Set<Tag>, Aggregation> entry : samples.entrySet()) {
-                                    Set<Tag> key = new HashSet<>();
-                                    for (Tag tag : entry.getKey()) {
-                                        if (query.getTags().keySet().contains(tag.getKey())) {
-                                            key.add(tag);
-                                        }
-                                    }
-                                    List<Aggregation> aggregations = allSeries.getOrDefault(key, new ArrayList<>());
-                                    aggregations.add(entry.getValue());
-                                    allSeries.put(key, aggregations);
-                                }
-                            }
-                            LOG.trace("allSeries: {}", allSeries);
-                        } finally {
-                            if (scanner != null) {
-                                scanner.close();
-                            }
+            if (fromAccumulo && scanStart <= accumuloEnd) {
+                // the batch scanner starts reading in its own threads
+                // while the cache is queried
+                scanner = createQueryScanner(msg, query, ticket, scanStart, accumuloEnd);
+            }
+            Iterator<Entry<Key, Value>> scanned = (scanner == null) ? null : scanner.iterator();
+
+            Map<Set<Tag>, List<Aggregation>> cachedMetrics = Collections.emptyMap();
+            double fractionFromCache = 0;
+            if (fromCache) {
+                long cacheStart = System.currentTimeMillis();
+                cachedMetrics = cache.subquery(msg, query, splitTime);
+                allSeries.putAll(cachedMetrics);
+                if (!cachedMetrics.isEmpty() && endOfLastPeriod > startOfFirstPeriod) {
+                    fractionFromCache = (double) (endOfLastPeriod - Math.max(splitTime, startOfFirstPeriod))
+                            / (endOfLastPeriod - startOfFirstPeriod);
+                }
+                LOG.debug("Cache query time:{} metric:{} splitTime:{} results:{} fractionFromCache:{}",
+                        (System.currentTimeMillis() - cacheStart), metric, splitTime, cachedMetrics.size(),
+                        fractionFromCache);
+            }
+            if (resultKey != null) {
+                Map<Set<Tag>, List<Aggregation>> accumuloSeries = new HashMap<>();
+                if (cachedResult != null) {
+                    accumuloSeries.putAll(cachedResult.getSeries());
+                }
+                if (scanned != null) {
+                    Map<Set<Tag>, List<Aggregation>> scannedSeries = new HashMap<>();
+                    addScannedSeries(query, ticket, scanned, scannedSeries);
+                    long newStart = (cachedResult == null) ? startOfFirstPeriod : cachedResult.getEnd();
+                    for (Entry<Set<Tag>, List<Aggregation>> entry : scannedSeries.entrySet()) {
+                        List<Aggregation> aggregations = accumuloSeries.computeIfAbsent(entry.getKey(),
+                                k -> new ArrayList<>());
+                        for (Aggregation aggregation : entry.getValue()) {
+                            // drops the buckets read again for a rate
+                            aggregations.add(
+                                    newStart > scanStart ? aggregation.copy(newStart, Long.MAX_VALUE) : aggregation);
                         }
                     }
                 }
-
-                // TODO groupby here?
-                long tsDivisor = msg.isMsResolution() ? 1 : 1000;
-                for (Entry<Set<Tag>, List<Aggregation>> entry : allSeries.entrySet()) {
-                    numResults += entry.getValue().size();
-                    result.add(convertToQueryResponse(query, entry.getKey(), entry.getValue(), tsDivisor));
+                resultCache.put(resultKey, startOfFirstPeriod, accumuloEnd + 1, downsample, accumuloSeries,
+                        System.currentTimeMillis());
+                for (Entry<Set<Tag>, List<Aggregation>> entry : accumuloSeries.entrySet()) {
+                    allSeries.computeIfAbsent(entry.getKey(), k -> new ArrayList<>()).addAll(entry.getValue());
+                }
+            } else if (scanned != null) {
+                addScannedSeries(query, ticket, scanned, allSeries);
+            }
+            if (fromCache && cachedMetrics.isEmpty() && Math.max(splitTime, startOfFirstPeriod) < endOfLastPeriod) {
+                // nothing cached for the series of the query, read the
+                // rest of the range from Accumulo
+                if (scanner != null) {
+                    closeQueryScanner(ticket, scanner);
+                    scanner = null;
                 }
+                scanner = createQueryScanner(msg, query, ticket, Math.max(splitTime, startOfFirstPeriod),
+                        endOfLastPeriod);
+                addScannedSeries(query, ticket, scanner.iterator(), allSeries);
+            }
+            LOG.trace("allSeries: {}", allSeries);
+
+            // series are grouped by the group by tags as they are scanned
+            for (List<Aggregation> aggregations : allSeries.values()) {
+                numResults.addAndGet(aggregations.size());
             }
-            LOG.debug("Query time:{} duration:{} metrics:{} results:{}", (System.currentTimeMillis() - now),
-                    ((requestedEndTs - requestedStartTs) / (1000 * 60)), metricList.toString(), numResults);
-            internalMetrics.addQueryResponse(result.size(), (System.currentTimeMillis() - now));
-            return result;
+            return new SubQueryResult(query, allSeries, fractionFromCache);
         } catch (ClassNotFoundException | IOException | TableNotFoundException ex) {
             LOG.error("Error during query: " + ex.getMessage(), ex);
             throw new TimelyException(HttpResponseStatus.INTERNAL_SERVER_ERROR.code(),
                     "Error during query: " + ex.getMessage(), ex.getMessage(), ex);
+        } catch (RuntimeException ex) {
+            // the scanners of an aborted query fail once closed
+            ticket.check();
+            throw ex;
+        } finally {
+            if (scanner != null) {
+                closeQueryScanner(ticket, scanner);
+            }
+        }
+    }
+
+    private BatchScanner createQueryScanner(QueryRequest msg, SubQuery query, QueryGovernor.Ticket ticket,
+            long startOfFirstPeriod, long endOfLastPeriod) throws TimelyException, TableNotFoundException {
+        String metric = query.getMetric();
+        Map<String, String> tags = query.getMatchingTags();
+        List<String> tagOrder = prioritizeTags(metric, tags);
+        Map<String, String> orderedTags = orderTags(tagOrder, tags);
+        Set<Tag> colFamValues = getColumnFamilies(metric, orderedTags);
+        List<Range> ranges = getQueryRanges(metric, startOfFirstPeriod, endOfLastPeriod, colFamValues);
+        long cost = ranges.size();
+        ticket.admit(cost);
+        BatchScanner scanner;
+        try {
+            acquireScanThreads(ticket);
+            try {
+                scanner = connector.createBatchScanner(metricsTable, getSessionAuthorizations(msg), scannerThreads);
+            } catch (TableNotFoundException | RuntimeException e) {
+                releaseScanThreads();
+                throw e;
+            }
+        } catch (TimelyException | TableNotFoundException | RuntimeException e) {
+            ticket.release(cost);
+            throw e;
+        }
+        try {
+            ticket.register(scanner, cost);
+            scanner.setRanges(ranges);
+            setQueryColumns(scanner, metric, orderedTags, colFamValues);
+
+            if (query.isRate()) {
+                LOG.trace("Adding rate iterator");
+                IteratorSetting rate = new IteratorSetting(499, RateIterator.class);
+                RateIterator.setRateOptions(rate, query.getRateOptions());
+                scanner.addScanIterator(rate);
+            }
+
+            Class<? extends Aggregator> daggClass = DownsampleIterator.getDownsampleAggregator(query);
+            if (daggClass == null) {
+                // we should always have a downsample iterator
+                // in the stack.
+                throw new TimelyException(HttpResponseStatus.INTERNAL_SERVER_ERROR.code(),
+                        "Error during query: programming error", "daggClass == null");
+            } else {
+                LOG.trace("Downsample Aggregator type {}", daggClass.getSimpleName());
+                IteratorSetting is = new IteratorSetting(500, DownsampleIterator.class);
+                DownsampleIterator.setDownsampleOptions(is, startOfFirstPeriod, endOfLastPeriod,
+                        DownsampleIterator.getDownsamplePeriod(query), maxDownsampleMemory, daggClass.getName());
+                scanner.addScanIterator(is);
+            }
+
+            Class<? extends Aggregator> aggClass = getAggregator(query);
+            // the aggregation iterator is optional
+            if (aggClass != null) {
+                LOG.trace("Aggregator type {}", aggClass.getSimpleName());
+                IteratorSetting is = new IteratorSetting(501, AggregationIterator.class);
+                AggregationIterator.setAggregationOptions(is, query.getTags(), query.getGroupByKeys(),
+                        aggClass.getName());
+                scanner.addScanIterator(is);
+            }
+            return scanner;
+        } catch (TimelyException | RuntimeException e) {
+            closeQueryScanner(ticket, scanner);
+            throw e;
+        }
+    }
+
+    private void closeQueryScanner(QueryGovernor.Ticket ticket, BatchScanner scanner) {
+        try {
+            ticket.unregister(scanner);
+            scanner.close();
+        } finally {
+            releaseScanThreads();
+        }
+    }
+
+    /**
+     * Waits until the scan threads of a query scanner fit within the limit on the
+     * scan threads of all queries
+     */
+    private void acquireScanThreads(QueryGovernor.Ticket ticket) throws TimelyException {
+        if (scanThreads != null) {
+            try {
+                // an aborted query stops waiting
+                while (!scanThreads.tryAcquire(scanThreadPermits, 100, TimeUnit.MILLISECONDS)) {
+                    ticket.check();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new TimelyException(HttpResponseStatus.SERVICE_UNAVAILABLE.code(),
+                        "Interrupted waiting for scan threads", e.getMessage(), e);
+            }
+        }
+    }
+
+    private void releaseScanThreads() {
+        if (scanThreads != null) {
+            scanThreads.release(scanThreadPermits);
+        }
+    }
+
+    private void addScannedSeries(SubQuery query, QueryGovernor.Ticket ticket, Iterator<Entry<Key, Value>> scanned,
+            Map<Set<Tag>, List<Aggregation>> allSeries) throws IOException, ClassNotFoundException, TimelyException {
+        // tag -> array of results by period starting at
+        // start
+        Set<String> seriesKeys = query.getSeriesKeys();
+        while (scanned.hasNext()) {
+            Entry<Key, Value> encoded = scanned.next();
+            // we can decode the value as a Map<Set<Tag>,
+            // Aggregation> even if an AggregationIterator
+            // is not used because Downsample is a subclass
+            // of Aggregation
+            Map<Set<Tag>, Aggregation> samples = AggregationIterator.decodeValue(encoded.getValue());
+            for (Entry<Set<Tag>, Aggregation> entry : samples.entrySet()) {
+                Set<Tag> key = AggregationIterator.getGroup(entry.getKey(), seriesKeys);
+                List<Aggregation> aggregations = allSeries.getOrDefault(key, new ArrayList<>());
+                aggregations.add(entry.getValue());
+                allSeries.put(key, aggregations);
+                ticket.addPoints(entry.getValue().getNumPoints());
+            }
         }
     }
 
@@ -725,7 +1107,7 @@ public class DataStoreImpl implements DataStore {
     }
 
     private QueryResponse convertToQueryResponse(SubQuery query, Set<Tag> tags, Collection<Aggregation> values,
-            long tsDivisor) {
+            long tsDivisor, boolean columnar) {
         QueryResponse response = new QueryResponse();
         response.setMetric(query.getMetric());
         for (Tag tag : tags) {
@@ -733,9 +1115,22 @@ public class DataStoreImpl implements DataStore {
         }
         RateOption rateOptions = query.getRateOptions();
         Aggregation combined = Aggregation.combineAggregation(values, rateOptions);
-        for (Sample entry : combined) {
-            long ts = entry.timestamp / tsDivisor;
-            response.putDps(Long.toString(ts), entry.value);
+        if (columnar) {
+            long[] timestamps = new long[combined.getNumBuckets()];
+            double[] points = new double[timestamps.length];
+            int i = 0;
+            for (Sample entry : combined) {
+                timestamps[i] = entry.timestamp / tsDivisor;
+                points[i++] = entry.value;
+            }
+            response.setDps(null);
+            response.setTimestamps(timestamps);
+            response.setValues(points);
+        } else {
+            for (Sample entry : combined) {
+                long ts = entry.timestamp / tsDivisor;
+                response.putDps(Long.toString(ts), entry.value);
+            }
         }
         LOG.trace("Created query response {}", response);
         return response;
@@ -840,9 +1235,9 @@ public class DataStoreImpl implements DataStore {
             StringBuffer pattern = new StringBuffer();
             pattern.append("(^.*\\x00|.*,)");
             pattern.append(tag.getKey());
-            pattern.append("=");
+            pattern.append("=(?:");
             pattern.append(tag.getValue());
-            pattern.append("(,.*|$)");
+            pattern.append(")(,.*|$)");
 
             IteratorSetting setting = new IteratorSetting(priority++, tag.getKey() + " tag filter", RegExFilter.class);
             LOG.trace("Using {} additional filter on tag: {}", pattern, tag.getKey());
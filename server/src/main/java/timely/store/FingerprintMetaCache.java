@@ -0,0 +1,261 @@
+package timely.store;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.LongSupplier;
+
+import timely.Configuration;
+import timely.api.model.Meta;
+
+/**
+ * MetaCache that answers {@link #contains(String, String, String)} from 64-bit
+ * fingerprints of (metric, tagk, tagv) held in striped open-addressing long
+ * sets, so a lookup on the ingest path allocates nothing. Each stripe is
+ * cleared every half of the configured expiration, the stripes are staggered so
+ * that the resulting meta rewrites are spread out over time. A stripe that
+ * reaches its share of max-fingerprints is cleared early.
+ *
+ * The fingerprints cannot be iterated, entries that are added are also kept in
+ * a {@link MetaCacheImpl} which backs {@link #iterator()}. Since every live
+ * entry is re-added at least once per rotation that cache stays populated
+ * without being consulted for each put.
+ *
+ * Two distinct entries with the same fingerprint will cause the second to be
+ * reported as present until the stripe is next cleared.
+ */
+public class FingerprintMetaCache implements MetaCache {
+
+    private static final int STRIPES = 64;
+    private static final int STRIPE_SHIFT = Long.SIZE - Integer.numberOfTrailingZeros(STRIPES);
+    private static final int MIN_TABLE_SIZE = 16;
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final LongSupplier clock;
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final MetaCacheImpl catalog = new MetaCacheImpl();
+    private volatile boolean closed = false;
+
+    public FingerprintMetaCache() {
+        this(System::currentTimeMillis);
+    }
+
+    FingerprintMetaCache(LongSupplier clock) {
+        this.clock = clock;
+    }
+
+    @Override
+    public void init(Configuration config) {
+        Configuration.MetaCache conf = config.getMetaCache();
+        long rotationPeriod = Math.max(1, TimeUnit.MINUTES.toMillis(conf.getExpirationMinutes()) / 2);
+        int maxStripeSize = (int) Math.max(1, Math.min(1 << 29, conf.getMaxFingerprints() / STRIPES));
+        int initialTableSize = tableSizeFor(Math.min(maxStripeSize, conf.getInitialCapacity() / STRIPES));
+        long now = clock.getAsLong();
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(initialTableSize, maxStripeSize, rotationPeriod,
+                    now + rotationPeriod * (i + 1) / STRIPES);
+        }
+        catalog.init(config);
+    }
+
+    @Override
+    public void add(Meta meta) {
+        long fp = fingerprint(meta.getMetric(), meta.getTagKey(), meta.getTagValue());
+        stripe(fp).add(fp, clock.getAsLong());
+        catalog.add(meta);
+    }
+
+    @Override
+    public boolean contains(Meta meta) {
+        return contains(meta.getMetric(), meta.getTagKey(), meta.getTagValue());
+    }
+
+    @Override
+    public boolean contains(String metric, String tagKey, String tagValue) {
+        long fp = fingerprint(metric, tagKey, tagValue);
+        return stripe(fp).contains(fp, clock.getAsLong());
+    }
+
+    @Override
+    public void addAll(Collection<Meta> c) {
+        c.forEach(this::add);
+    }
+
+    @Override
+    public Iterator<Meta> iterator() {
+        return catalog.iterator();
+    }
+
+    @Override
+    public void close() {
+        this.closed = true;
+        catalog.close();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * @return number of fingerprints currently held
+     */
+    public long size() {
+        long size = 0;
+        for (Stripe stripe : stripes) {
+            size += stripe.size();
+        }
+        return size;
+    }
+
+    private Stripe stripe(long fp) {
+        return stripes[(int) (fp >>> STRIPE_SHIFT)];
+    }
+
+    static long fingerprint(String metric, String tagKey, String tagValue) {
+        long h = FNV_OFFSET;
+        h = mix(h, metric);
+        h = mix(h, tagKey);
+        h = mix(h, tagValue);
+        // murmur3 finalizer, spreads the bits used for stripe and slot
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        // zero marks an empty slot
+        return h == 0 ? 1 : h;
+    }
+
+    private static long mix(long h, String s) {
+        // length prefix keeps ("ab", "c") and ("a", "bc") apart, -1 for null
+        int length = s == null ? -1 : s.length();
+        h = (h ^ length) * FNV_PRIME;
+        for (int i = 0; i < length; i++) {
+            h = (h ^ s.charAt(i)) * FNV_PRIME;
+        }
+        return h;
+    }
+
+    private static int tableSizeFor(int entries) {
+        // keep the load factor at or below one half
+        int size = Integer.highestOneBit(Math.max(MIN_TABLE_SIZE / 2, entries) * 2 - 1) << 1;
+        return Math.max(MIN_TABLE_SIZE, size);
+    }
+
+    private static final class Stripe {
+
+        private final StampedLock lock = new StampedLock();
+        private final int initialTableSize;
+        private final int maxSize;
+        private final long rotationPeriod;
+        private volatile long nextRotation;
+        private long[] table;
+        private int size = 0;
+
+        private Stripe(int initialTableSize, int maxSize, long rotationPeriod, long firstRotation) {
+            this.initialTableSize = initialTableSize;
+            this.maxSize = maxSize;
+            this.rotationPeriod = rotationPeriod;
+            this.nextRotation = firstRotation;
+            this.table = new long[initialTableSize];
+        }
+
+        private boolean contains(long fp, long now) {
+            if (now >= nextRotation) {
+                long stamp = lock.writeLock();
+                try {
+                    rotateIfExpired(now);
+                } finally {
+                    lock.unlockWrite(stamp);
+                }
+            }
+            long stamp = lock.tryOptimisticRead();
+            boolean found = find(table, fp);
+            if (!lock.validate(stamp)) {
+                stamp = lock.readLock();
+                try {
+                    found = find(table, fp);
+                } finally {
+                    lock.unlockRead(stamp);
+                }
+            }
+            return found;
+        }
+
+        private void add(long fp, long now) {
+            long stamp = lock.writeLock();
+            try {
+                rotateIfExpired(now);
+                if (find(table, fp)) {
+                    return;
+                }
+                if (size >= maxSize) {
+                    clear();
+                }
+                if ((size + 1) * 2 > table.length) {
+                    long[] old = table;
+                    table = new long[old.length * 2];
+                    for (long v : old) {
+                        if (v != 0) {
+                            insert(table, v);
+                        }
+                    }
+                }
+                insert(table, fp);
+                size++;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        private int size() {
+            long stamp = lock.readLock();
+            try {
+                return size;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        private void rotateIfExpired(long now) {
+            if (now >= nextRotation) {
+                clear();
+                long next = nextRotation;
+                while (next <= now) {
+                    next += rotationPeriod;
+                }
+                nextRotation = next;
+            }
+        }
+
+        private void clear() {
+            // readers may still be probing the old table
+            table = new long[initialTableSize];
+            size = 0;
+        }
+
+        private static boolean find(long[] table, long fp) {
+            int mask = table.length - 1;
+            for (int i = (int) fp & mask;; i = (i + 1) & mask) {
+                long v = table[i];
+                if (v == fp) {
+                    return true;
+                } else if (v == 0) {
+                    return false;
+                }
+            }
+        }
+
+        private static void insert(long[] table, long fp) {
+            int mask = table.length - 1;
+            int i = (int) fp & mask;
+            while (table[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            table[i] = fp;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package timely.store;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import timely.Configuration;
+import timely.model.Metric;
+
+/**
+ * Decouples the Netty event loops from the writes to Accumulo and the cache.
+ * Producers place metrics on a queue and a pool of writer threads drains the
+ * queue in batches into a {@link Sink}. Producers never block. Once the queue
+ * holds queue-size metrics a producer is told to pause, and is resumed when the
+ * writers have drained the queue to half of that. The time paused is reported
+ * as the ingest stall time.
+ */
+public class IngestPipeline implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(IngestPipeline.class);
+    private static final long POLL_INTERVAL_MS = 100;
+
+    @FunctionalInterface
+    public interface Sink {
+
+        /**
+         * Called on a writer thread with the next batch of metrics
+         */
+        void store(List<Metric> batch) throws Exception;
+    }
+
+    private final BlockingQueue<Metric> queue = new LinkedBlockingQueue<>();
+    private final int highWatermark;
+    private final int lowWatermark;
+    // producers paused until the queue drains
+    private final Queue<Runnable> paused = new ConcurrentLinkedQueue<>();
+    private final int batchSize;
+    private final ExecutorService writers;
+    private final Sink sink;
+    private final InternalMetrics internalMetrics;
+    private volatile boolean closed = false;
+
+    public IngestPipeline(Configuration.Ingest conf, Sink sink, InternalMetrics internalMetrics) {
+        this.highWatermark = conf.getQueueSize();
+        this.lowWatermark = conf.getQueueSize() / 2;
+        this.batchSize = conf.getBatchSize();
+        this.sink = sink;
+        this.internalMetrics = internalMetrics;
+        this.writers = Executors.newFixedThreadPool(conf.getThreads(),
+                new ThreadFactoryBuilder().setNameFormat("ingest-writer-%d").setDaemon(true).build());
+        for (int i = 0; i < conf.getThreads(); i++) {
+            writers.submit(this::drain);
+        }
+    }
+
+    /**
+     * Queues the metric without blocking
+     *
+     * @return false if the queue is full, the producer should pause until the
+     *         callback given to {@link #resumeWhenDrained} runs
+     * @throws IllegalStateException
+     *             if the pipeline is closed
+     */
+    public boolean put(Metric metric) {
+        if (closed) {
+            throw new IllegalStateException("Ingest pipeline is closed");
+        }
+        queue.add(metric);
+        return queue.size() < highWatermark;
+    }
+
+    /**
+     * Runs the callback of a paused producer once the queue is drained to the low
+     * watermark, or the pipeline is closed
+     */
+    public void resumeWhenDrained(Runnable resume) {
+        long start = System.nanoTime();
+        paused.add(() -> {
+            internalMetrics.addIngestStallTime(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            resume.run();
+        });
+        // the writers may have drained the queue already
+        resumePaused();
+    }
+
+    private void resumePaused() {
+        if (closed || queue.size() <= lowWatermark) {
+            Runnable resume;
+            while ((resume = paused.poll()) != null) {
+                try {
+                    resume.run();
+                } catch (RuntimeException e) {
+                    LOG.error("Error resuming ingest producer", e);
+                }
+            }
+        }
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    private void drain() {
+        List<Metric> batch = new ArrayList<>(batchSize);
+        while (!closed || !queue.isEmpty()) {
+            resumePaused();
+            try {
+                Metric first = queue.poll(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                if (null == first) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, batchSize - 1);
+                internalMetrics.addIngestBatch(batch.size());
+                sink.store(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                LOG.error("Error storing batch of " + batch.size() + " metrics", e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Stops accepting new metrics and waits for the writer threads to drain the
+     * queue
+     */
+    @Override
+    public void close() {
+        closed = true;
+        resumePaused();
+        writers.shutdown();
+        try {
+            if (!writers.awaitTermination(30, TimeUnit.SECONDS)) {
+                LOG.warn("Timed out waiting for ingest writers, {} metrics not written", queue.size());
+                writers.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            writers.shutdownNow();
+        }
+    }
+}
@@ -23,6 +23,24 @@ public class InternalMetrics {
     private static final String QUERY_RETURN_TIME = "timely.query.return.time";
     private static final String METRICS_RETURNED = "timely.query.metrics.returned";
     private static final String METRIC_RETURN_RATE = "timely.query.metrics.returned.rate";
+    private static final String INGEST_QUEUE_DEPTH = "timely.ingest.queue.depth";
+    private static final String INGEST_BATCH_SIZE = "timely.ingest.batch.size";
+    private static final String INGEST_STALL_TIME = "timely.ingest.stall.time";
+    private static final String META_CACHE_HITS = "timely.meta.cache.hits";
+    private static final String META_CACHE_MISSES = "timely.meta.cache.misses";
+    private static final String SPOOL_SIZE = "timely.spool.size";
+    private static final String SPOOL_REPLAY_LAG = "timely.spool.replay.lag";
+    private static final String SPOOL_DROPPED = "timely.spool.dropped";
+    private static final String RESULT_CACHE_HITS = "timely.query.result.cache.hits";
+    private static final String RESULT_CACHE_MISSES = "timely.query.result.cache.misses";
+    private static final String RESULT_CACHE_SIZE = "timely.query.result.cache.size";
+    private static final String GOVERNOR_ADMITTED = "timely.query.governor.admitted";
+    private static final String GOVERNOR_QUEUED = "timely.query.governor.queued";
+    private static final String GOVERNOR_REJECTED = "timely.query.governor.rejected";
+    private static final String GOVERNOR_TIMED_OUT = "timely.query.governor.timed.out";
+    private static final String GOVERNOR_OVER_POINTS = "timely.query.governor.over.points";
+    private static final String GOVERNOR_CANCELLED = "timely.query.governor.cancelled";
+    private static final String GOVERNOR_RUNNING_COST = "timely.query.governor.running.cost";
 
     private static final String HOSTNAME_TAG = "host";
 
@@ -33,6 +51,25 @@ public class InternalMetrics {
     private AtomicDouble numQueriesCompleted = new AtomicDouble(0);
     private AtomicDouble numMetricsReturned = new AtomicDouble(0);
     private AtomicDouble elapsedQueryTime = new AtomicDouble(0);
+    private AtomicDouble ingestQueueDepth = new AtomicDouble(0);
+    private AtomicDouble numIngestBatches = new AtomicDouble(0);
+    private AtomicDouble numIngestBatchMetrics = new AtomicDouble(0);
+    private AtomicDouble ingestStallTime = new AtomicDouble(0);
+    private AtomicDouble numMetaCacheHits = new AtomicDouble(0);
+    private AtomicDouble numMetaCacheMisses = new AtomicDouble(0);
+    private AtomicDouble spoolSize = new AtomicDouble(0);
+    private AtomicDouble spoolReplayLag = new AtomicDouble(0);
+    private AtomicDouble numSpoolDropped = new AtomicDouble(0);
+    private AtomicDouble numResultCacheHits = new AtomicDouble(0);
+    private AtomicDouble numResultCacheMisses = new AtomicDouble(0);
+    private AtomicDouble resultCacheSize = new AtomicDouble(0);
+    private AtomicDouble numGovernorAdmitted = new AtomicDouble(0);
+    private AtomicDouble numGovernorQueued = new AtomicDouble(0);
+    private AtomicDouble numGovernorRejected = new AtomicDouble(0);
+    private AtomicDouble numGovernorTimedOut = new AtomicDouble(0);
+    private AtomicDouble numGovernorOverPoints = new AtomicDouble(0);
+    private AtomicDouble numGovernorCancelled = new AtomicDouble(0);
+    private AtomicDouble governorRunningCost = new AtomicDouble(0);
 
     private List<Tag> tags = new ArrayList<Tag>();
 
@@ -69,6 +106,58 @@ public class InternalMetrics {
         elapsedQueryTime.addAndGet(elapsedTime);
     }
 
+    public void setIngestQueueDepth(long depth) {
+        ingestQueueDepth.set(depth);
+    }
+
+    public void addIngestBatch(long numMetrics) {
+        numIngestBatches.addAndGet(1);
+        numIngestBatchMetrics.addAndGet(numMetrics);
+    }
+
+    public void addIngestStallTime(long elapsedTime) {
+        ingestStallTime.addAndGet(elapsedTime);
+    }
+
+    public void addMetaCacheLookups(long hits, long misses) {
+        numMetaCacheHits.addAndGet(hits);
+        numMetaCacheMisses.addAndGet(misses);
+    }
+
+    public void setSpoolStatus(long size, long replayLag) {
+        spoolSize.set(size);
+        spoolReplayLag.set(replayLag);
+    }
+
+    public void addSpoolDropped(long num) {
+        numSpoolDropped.addAndGet(num);
+    }
+
+    public void addResultCacheLookups(long hits, long misses) {
+        numResultCacheHits.addAndGet(hits);
+        numResultCacheMisses.addAndGet(misses);
+    }
+
+    public void setResultCacheSize(long size) {
+        resultCacheSize.set(size);
+    }
+
+    public void addGovernorAdmissions(long admitted, long queued, long rejected) {
+        numGovernorAdmitted.addAndGet(admitted);
+        numGovernorQueued.addAndGet(queued);
+        numGovernorRejected.addAndGet(rejected);
+    }
+
+    public void addGovernorAborts(long timedOut, long overPoints, long cancelled) {
+        numGovernorTimedOut.addAndGet(timedOut);
+        numGovernorOverPoints.addAndGet(overPoints);
+        numGovernorCancelled.addAndGet(cancelled);
+    }
+
+    public void setGovernorRunningCost(long cost) {
+        governorRunningCost.set(cost);
+    }
+
     public List<Metric> getMetricsAndReset() {
         List<Metric> metrics = new ArrayList<Metric>();
         long ts = System.currentTimeMillis();
@@ -97,6 +186,45 @@ public class InternalMetrics {
         numQueriesCompleted.set(0);
         numMetricsReturned.set(0);
         elapsedQueryTime.set(0);
+
+        metrics.add(new Metric(INGEST_QUEUE_DEPTH, ts, ingestQueueDepth.get(), tags));
+        // average number of metrics written per batch
+        double batchSize = numIngestBatches.get() > 0 ? numIngestBatchMetrics.get() / numIngestBatches.get() : 0;
+        metrics.add(new Metric(INGEST_BATCH_SIZE, ts, batchSize, tags));
+        metrics.add(new Metric(INGEST_STALL_TIME, ts, ingestStallTime.get(), tags));
+        numIngestBatches.set(0);
+        numIngestBatchMetrics.set(0);
+        ingestStallTime.set(0);
+
+        metrics.add(new Metric(META_CACHE_HITS, ts, numMetaCacheHits.get(), tags));
+        metrics.add(new Metric(META_CACHE_MISSES, ts, numMetaCacheMisses.get(), tags));
+        numMetaCacheHits.set(0);
+        numMetaCacheMisses.set(0);
+
+        metrics.add(new Metric(SPOOL_SIZE, ts, spoolSize.get(), tags));
+        metrics.add(new Metric(SPOOL_REPLAY_LAG, ts, spoolReplayLag.get(), tags));
+        metrics.add(new Metric(SPOOL_DROPPED, ts, numSpoolDropped.get(), tags));
+        numSpoolDropped.set(0);
+
+        metrics.add(new Metric(RESULT_CACHE_HITS, ts, numResultCacheHits.get(), tags));
+        metrics.add(new Metric(RESULT_CACHE_MISSES, ts, numResultCacheMisses.get(), tags));
+        metrics.add(new Metric(RESULT_CACHE_SIZE, ts, resultCacheSize.get(), tags));
+        numResultCacheHits.set(0);
+        numResultCacheMisses.set(0);
+
+        metrics.add(new Metric(GOVERNOR_ADMITTED, ts, numGovernorAdmitted.get(), tags));
+        metrics.add(new Metric(GOVERNOR_QUEUED, ts, numGovernorQueued.get(), tags));
+        metrics.add(new Metric(GOVERNOR_REJECTED, ts, numGovernorRejected.get(), tags));
+        metrics.add(new Metric(GOVERNOR_TIMED_OUT, ts, numGovernorTimedOut.get(), tags));
+        metrics.add(new Metric(GOVERNOR_OVER_POINTS, ts, numGovernorOverPoints.get(), tags));
+        metrics.add(new Metric(GOVERNOR_CANCELLED, ts, numGovernorCancelled.get(), tags));
+        metrics.add(new Metric(GOVERNOR_RUNNING_COST, ts, governorRunningCost.get(), tags));
+        numGovernorAdmitted.set(0);
+        numGovernorQueued.set(0);
+        numGovernorRejected.set(0);
+        numGovernorTimedOut.set(0);
+        numGovernorOverPoints.set(0);
+        numGovernorCancelled.set(0);
         return metrics;
     }
 
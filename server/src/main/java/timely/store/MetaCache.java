@@ -14,6 +14,14 @@ public interface MetaCache extends Iterable<Meta> {
 
     boolean contains(Meta meta);
 
+    /**
+     * Same as {@link #contains(Meta)}, implementations may override this to avoid
+     * creating a Meta for every lookup
+     */
+    default boolean contains(String metric, String tagKey, String tagValue) {
+        return contains(new Meta(metric, tagKey, tagValue));
+    }
+
     void addAll(Collection<Meta> c);
 
     Iterator<Meta> iterator();
@@ -19,7 +19,7 @@ public class MetaCacheFactory {
             if (null == conf) {
                 throw new RuntimeException("Configuration cannot be null");
             }
-            cache = new MetaCacheImpl();
+            cache = conf.getMetaCache().isFingerprint() ? new FingerprintMetaCache() : new MetaCacheImpl();
             cache.init(conf);
         }
         return cache;
@@ -0,0 +1,425 @@
+package timely.store;
+
+import static org.apache.accumulo.core.conf.AccumuloConfiguration.getMemoryInBytes;
+import static org.apache.accumulo.core.conf.AccumuloConfiguration.getTimeInMillis;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.accumulo.core.data.Mutation;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import timely.Configuration;
+
+/**
+ * Local write-ahead spool for mutations that could not be written to Accumulo.
+ * Each writer thread appends to its own memory-mapped segment file, full or
+ * idle segments are sealed and replayed in the background through a
+ * {@link Replayer}. A segment is deleted once all of its mutations have been
+ * replayed, a failed replay is retried on the next interval. While replay is
+ * failing the spool reports itself as backlogged so that callers can append
+ * directly instead of waiting on Accumulo.
+ *
+ * Segments left on disk by a previous process are replayed on startup. The
+ * total size of the segment files is bounded, mutations that do not fit are
+ * dropped and counted.
+ *
+ * Each record in a segment is a 4 byte length followed by the table name and
+ * the serialized mutation. The length is written last so a zero length marks
+ * the end of the segment.
+ */
+public class MutationSpool implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MutationSpool.class);
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".spool";
+    private static final int LENGTH_BYTES = 4;
+
+    @FunctionalInterface
+    public interface Replayer {
+
+        /**
+         * Write the mutations to the table, throwing if they may not have been written
+         */
+        void replay(String table, List<Mutation> mutations) throws Exception;
+    }
+
+    private final File directory;
+    private final long segmentSize;
+    private final long maxSize;
+    private final long replayInterval;
+    private final Replayer replayer;
+    private final InternalMetrics internalMetrics;
+    private final AtomicLong sequence = new AtomicLong(0);
+    private final AtomicLong size = new AtomicLong(0);
+    private final Set<Segment> active = ConcurrentHashMap.newKeySet();
+    private final ConcurrentLinkedQueue<Segment> sealed = new ConcurrentLinkedQueue<>();
+    private final ThreadLocal<Segment> current = new ThreadLocal<>();
+    private final ThreadLocal<DataOutputBuffer> buffers = ThreadLocal.withInitial(DataOutputBuffer::new);
+    private final ScheduledExecutorService replayExecutor;
+    private volatile boolean healthy = true;
+    private volatile boolean closed = false;
+
+    public MutationSpool(Configuration.Spool conf, Replayer replayer, InternalMetrics internalMetrics)
+            throws IOException {
+        this.directory = new File(conf.getDirectory());
+        this.segmentSize = getMemoryInBytes(conf.getSegmentSize());
+        this.maxSize = getMemoryInBytes(conf.getMaxSize());
+        this.replayInterval = getTimeInMillis(conf.getReplayInterval());
+        this.replayer = replayer;
+        this.internalMetrics = internalMetrics;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create spool directory " + directory);
+        }
+        recover();
+        this.replayExecutor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("spool-replay-%d").setDaemon(true).build());
+        replayExecutor.scheduleWithFixedDelay(this::replay, replayInterval, replayInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return true if the last replay attempt failed, Accumulo should be assumed to
+     *         be unavailable
+     */
+    public boolean isBacklogged() {
+        return !healthy;
+    }
+
+    /**
+     * @return bytes used by segment files on disk
+     */
+    public long getSize() {
+        return size.get();
+    }
+
+    /**
+     * @return age in milliseconds of the oldest segment that has not been replayed
+     */
+    public long getReplayLag() {
+        long oldest = Long.MAX_VALUE;
+        Segment next = sealed.peek();
+        if (null != next) {
+            oldest = next.created;
+        }
+        for (Segment s : active) {
+            if (s.hasData()) {
+                oldest = Math.min(oldest, s.created);
+            }
+        }
+        return oldest == Long.MAX_VALUE ? 0 : Math.max(0, System.currentTimeMillis() - oldest);
+    }
+
+    /**
+     * Appends the mutations to the calling thread's segment
+     *
+     * @return number of mutations that were dropped because the spool is full or
+     *         closed
+     */
+    public int append(String table, Collection<Mutation> mutations) {
+        int dropped = 0;
+        DataOutputBuffer buffer = buffers.get();
+        for (Mutation m : mutations) {
+            try {
+                buffer.reset();
+                buffer.writeUTF(table);
+                m.write(buffer);
+            } catch (IOException e) {
+                // writing to memory
+                throw new IllegalStateException(e);
+            }
+            if (!append(buffer.getData(), buffer.getLength())) {
+                dropped++;
+            }
+        }
+        if (dropped > 0) {
+            internalMetrics.addSpoolDropped(dropped);
+            LOG.error("Spool full or closed, dropped {} mutations for {}", dropped, table);
+        }
+        return dropped;
+    }
+
+    private boolean append(byte[] record, int length) {
+        if (closed) {
+            return false;
+        }
+        Segment segment = current.get();
+        if (null != segment && segment.append(record, length)) {
+            return true;
+        }
+        if (null != segment) {
+            seal(segment);
+        }
+        segment = newSegment(length);
+        current.set(segment);
+        return null != segment && segment.append(record, length);
+    }
+
+    private Segment newSegment(int recordLength) {
+        long capacity = Math.max(segmentSize, recordLength + LENGTH_BYTES);
+        if (size.addAndGet(capacity) > maxSize) {
+            size.addAndGet(-capacity);
+            return null;
+        }
+        File file = new File(directory,
+                String.format("%s%019d%s", SEGMENT_PREFIX, sequence.incrementAndGet(), SEGMENT_SUFFIX));
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            Segment segment = new Segment(file, buffer, System.currentTimeMillis(), capacity, false);
+            active.add(segment);
+            return segment;
+        } catch (IOException e) {
+            LOG.error("Unable to create spool segment " + file, e);
+            size.addAndGet(-capacity);
+            try {
+                Files.deleteIfExists(file.toPath());
+            } catch (IOException | RuntimeException de) {
+                LOG.warn("Unable to delete spool segment " + file, de);
+            }
+            return null;
+        }
+    }
+
+    private void seal(Segment segment) {
+        if (segment.seal()) {
+            active.remove(segment);
+            if (segment.hasData()) {
+                sealed.add(segment);
+            } else {
+                delete(segment);
+            }
+        }
+    }
+
+    private void recover() throws IOException {
+        File[] files = directory
+                .listFiles((dir, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        if (null == files || files.length == 0) {
+            return;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            String name = file.getName();
+            long seq = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+            sequence.set(Math.max(sequence.get(), seq));
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+                size.addAndGet(raf.length());
+                sealed.add(new Segment(file, buffer, file.lastModified(), raf.length(), true));
+            }
+        }
+        LOG.info("Recovered {} spool segments, {} bytes, from {}", files.length, size.get(), directory);
+    }
+
+    private void replay() {
+        try {
+            long now = System.currentTimeMillis();
+            for (Segment s : active) {
+                if (now - s.created >= replayInterval) {
+                    seal(s);
+                }
+            }
+            Segment next;
+            while (null != (next = sealed.peek())) {
+                Map<String, List<Mutation>> mutations = next.read();
+                for (Map.Entry<String, List<Mutation>> e : mutations.entrySet()) {
+                    replayer.replay(e.getKey(), e.getValue());
+                }
+                sealed.poll();
+                delete(next);
+                if (!healthy) {
+                    LOG.info("Spool replay succeeded, resuming writes to Accumulo");
+                }
+                healthy = true;
+            }
+        } catch (Exception e) {
+            if (healthy) {
+                LOG.error("Error replaying spool, will retry in " + replayInterval + "ms", e);
+            }
+            healthy = false;
+        }
+    }
+
+    private void delete(Segment segment) {
+        segment.release();
+        try {
+            Files.deleteIfExists(segment.file.toPath());
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Unable to delete spool segment " + segment.file, e);
+        }
+        size.addAndGet(-segment.capacity);
+    }
+
+    /**
+     * Unmaps the buffer now instead of when it is garbage collected, so that the
+     * disk and address space of a deleted segment are freed. The buffer must not be
+     * used afterwards.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner;
+            try {
+                invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            } catch (NoSuchMethodException e) {
+                invokeCleaner = null;
+            }
+            if (null != invokeCleaner) {
+                // Java 9 and later
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            } else {
+                Method cleaner = buffer.getClass().getMethod("cleaner");
+                cleaner.setAccessible(true);
+                Object c = cleaner.invoke(buffer);
+                if (null != c) {
+                    c.getClass().getMethod("clean").invoke(c);
+                }
+            }
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOG.debug("Unable to unmap spool segment, it is unmapped once collected", e);
+        }
+    }
+
+    /**
+     * Stops the replay thread and makes one last attempt to replay. Anything left
+     * is kept on disk and replayed on the next start.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        replayExecutor.shutdown();
+        try {
+            replayExecutor.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        active.forEach(this::seal);
+        replay();
+        sealed.forEach(Segment::force);
+        if (!sealed.isEmpty()) {
+            LOG.warn("{} spool segments in {} not replayed", sealed.size(), directory);
+        }
+    }
+
+    private static final class Segment {
+
+        private final File file;
+        private final MappedByteBuffer buffer;
+        private final long created;
+        private final long capacity;
+        private int position = 0;
+        private boolean sealed;
+        private boolean released = false;
+
+        private Segment(File file, MappedByteBuffer buffer, long created, long capacity, boolean sealed) {
+            this.file = file;
+            this.buffer = buffer;
+            this.created = created;
+            this.capacity = capacity;
+            this.sealed = sealed;
+            if (sealed) {
+                // recovered from disk, find the end of the records
+                while (position + LENGTH_BYTES <= buffer.limit()) {
+                    int length = buffer.getInt(position);
+                    if (length <= 0 || position + LENGTH_BYTES + length > buffer.limit()) {
+                        break;
+                    }
+                    position += LENGTH_BYTES + length;
+                }
+            }
+        }
+
+        private synchronized boolean append(byte[] record, int length) {
+            if (sealed || position + LENGTH_BYTES + length > buffer.limit()) {
+                return false;
+            }
+            buffer.position(position + LENGTH_BYTES);
+            buffer.put(record, 0, length);
+            buffer.putInt(position, length);
+            position += LENGTH_BYTES + length;
+            return true;
+        }
+
+        private synchronized boolean hasData() {
+            return position > 0;
+        }
+
+        /**
+         * @return true if this call sealed the segment
+         */
+        private synchronized boolean seal() {
+            if (sealed) {
+                return false;
+            }
+            sealed = true;
+            force();
+            return true;
+        }
+
+        private synchronized void force() {
+            if (!released && !buffer.isReadOnly()) {
+                buffer.force();
+            }
+        }
+
+        /**
+         * Unmaps the sealed segment, it is not read or written afterwards
+         */
+        private synchronized void release() {
+            if (!released) {
+                sealed = true;
+                released = true;
+                unmap(buffer);
+            }
+        }
+
+        private synchronized Map<String, List<Mutation>> read() throws IOException {
+            if (released) {
+                throw new IOException("Spool segment " + file + " was released");
+            }
+            Map<String, List<Mutation>> mutations = new LinkedHashMap<>();
+            DataInputBuffer in = new DataInputBuffer();
+            byte[] record = new byte[0];
+            int offset = 0;
+            while (offset < position) {
+                int length = buffer.getInt(offset);
+                if (record.length < length) {
+                    record = new byte[length];
+                }
+                buffer.position(offset + LENGTH_BYTES);
+                buffer.get(record, 0, length);
+                in.reset(record, length);
+                String table = in.readUTF();
+                Mutation m = new Mutation();
+                m.readFields(in);
+                mutations.computeIfAbsent(table, k -> new ArrayList<>()).add(m);
+                offset += LENGTH_BYTES + length;
+            }
+            return mutations;
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package timely.store;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import org.apache.accumulo.core.client.BatchScanner;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import timely.api.request.timeseries.QueryRequest;
+import timely.api.response.TimelyException;
+
+/**
+ * Admission control for the scans of queries. The cost of a scan is the number
+ * of ranges it reads, one for each matching column family in each hour of the
+ * query, so it grows with both the tags and the time span. A query over the
+ * maximum cost is rejected, a scan that does not fit in the cost left for
+ * running scans waits for it. Queries are aborted, and their scanners closed,
+ * at the deadline, once they read more than the maximum points, counted before
+ * downsampling, or when they are cancelled.
+ */
+class QueryGovernor {
+
+    private static final Logger LOG = LoggerFactory.getLogger(QueryGovernor.class);
+
+    private enum Abort {
+        TIMED_OUT, OVER_POINTS, CANCELLED
+    }
+
+    // limits of 0 are not enforced
+    private final long maxCost;
+    private final long maxRunningCost;
+    private final long maxWait;
+    private final long timeout;
+    private final long maxPoints;
+    private final InternalMetrics internalMetrics;
+    private final ScheduledExecutorService deadlines;
+    private long runningCost = 0;
+
+    QueryGovernor(long maxCost, long maxRunningCost, long maxWait, long timeout, long maxPoints,
+            InternalMetrics internalMetrics) {
+        this.maxCost = maxCost;
+        this.maxRunningCost = maxRunningCost;
+        this.maxWait = maxWait;
+        this.timeout = timeout;
+        this.maxPoints = maxPoints;
+        this.internalMetrics = internalMetrics;
+        this.deadlines = timeout > 0 ? Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("query-deadline-%d").setDaemon(true).build()) : null;
+    }
+
+    /**
+     * @return the ticket of the query, to be closed once its scans are done
+     */
+    Ticket start(QueryRequest msg) {
+        Ticket ticket = new Ticket(msg);
+        msg.addCancelListener(ticket.cancelListener);
+        return ticket;
+    }
+
+    void shutdown() {
+        if (deadlines != null) {
+            deadlines.shutdownNow();
+        }
+    }
+
+    synchronized long getRunningCost() {
+        return runningCost;
+    }
+
+    private synchronized void release(long cost) {
+        runningCost -= cost;
+        internalMetrics.setGovernorRunningCost(runningCost);
+        notifyAll();
+    }
+
+    class Ticket implements AutoCloseable {
+
+        private final QueryRequest msg;
+        private final Runnable cancelListener = () -> abort(Abort.CANCELLED);
+        private final long deadline;
+        private final ScheduledFuture<?> deadlineTask;
+        private final AtomicLong cost = new AtomicLong();
+        private final AtomicLong points = new AtomicLong();
+        // open scanners and their cost
+        private final Map<BatchScanner, Long> scanners = new IdentityHashMap<>();
+        private volatile Abort abort = null;
+
+        private Ticket(QueryRequest msg) {
+            this.msg = msg;
+            if (deadlines != null) {
+                deadline = System.currentTimeMillis() + timeout;
+                deadlineTask = deadlines.schedule(() -> abort(Abort.TIMED_OUT), timeout, TimeUnit.MILLISECONDS);
+            } else {
+                deadline = Long.MAX_VALUE;
+                deadlineTask = null;
+            }
+        }
+
+        /**
+         * Waits until the scan fits within the cost left for running scans
+         *
+         * @throws TimelyException
+         *             if the query is over the maximum cost, the wait is too long or
+         *             the query is aborted
+         */
+        void admit(long scanCost) throws TimelyException {
+            long queryCost = cost.addAndGet(scanCost);
+            if (maxCost > 0 && queryCost > maxCost) {
+                internalMetrics.addGovernorAdmissions(0, 0, 1);
+                throw new TimelyException(HttpResponseStatus.BAD_REQUEST.code(),
+                        "Query cost " + queryCost + " is over the limit of " + maxCost,
+                        "Narrow the time range or the tags of the query");
+            }
+            long waitEnd = Math.min(deadline, maxWait > 0 ? System.currentTimeMillis() + maxWait : Long.MAX_VALUE);
+            boolean queued = false;
+            synchronized (QueryGovernor.this) {
+                // a scan costing more than the running cost limit runs alone
+                while (maxRunningCost > 0 && runningCost > 0 && runningCost + scanCost > maxRunningCost) {
+                    check();
+                    queued = true;
+                    long wait = waitEnd - System.currentTimeMillis();
+                    if (wait <= 0) {
+                        internalMetrics.addGovernorAdmissions(0, 1, 1);
+                        throw new TimelyException(HttpResponseStatus.SERVICE_UNAVAILABLE.code(),
+                                "Timed out waiting to run query", "Running queries use the query cost budget");
+                    }
+                    try {
+                        QueryGovernor.this.wait(wait);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        internalMetrics.addGovernorAdmissions(0, 1, 1);
+                        throw new TimelyException(HttpResponseStatus.SERVICE_UNAVAILABLE.code(),
+                                "Interrupted waiting to run query", e.getMessage(), e);
+                    }
+                }
+                runningCost += scanCost;
+                internalMetrics.setGovernorRunningCost(runningCost);
+            }
+            internalMetrics.addGovernorAdmissions(1, queued ? 1 : 0, 0);
+        }
+
+        /**
+         * Returns the cost of an admitted scan that was not started
+         */
+        void release(long scanCost) {
+            QueryGovernor.this.release(scanCost);
+        }
+
+        /**
+         * Tracks the scanner of an admitted scan, it is closed if the query is aborted
+         */
+        void register(BatchScanner scanner, long scanCost) throws TimelyException {
+            synchronized (scanners) {
+                scanners.put(scanner, scanCost);
+            }
+            check();
+        }
+
+        /**
+         * Stops tracking the scanner and returns its cost
+         */
+        void unregister(BatchScanner scanner) {
+            Long scanCost;
+            synchronized (scanners) {
+                scanCost = scanners.remove(scanner);
+            }
+            if (scanCost != null) {
+                QueryGovernor.this.release(scanCost);
+            }
+        }
+
+        void addPoints(long numPoints) throws TimelyException {
+            if (maxPoints > 0 && points.addAndGet(numPoints) > maxPoints) {
+                abort(Abort.OVER_POINTS);
+            }
+            check();
+        }
+
+        /**
+         * @throws TimelyException
+         *             if the query was aborted
+         */
+        void check() throws TimelyException {
+            Abort reason = abort;
+            if (reason == null) {
+                return;
+            }
+            switch (reason) {
+                case TIMED_OUT:
+                    throw new TimelyException(HttpResponseStatus.SERVICE_UNAVAILABLE.code(),
+                            "Query timed out after " + timeout + "ms",
+                            "Narrow the time range or the tags of the query");
+                case OVER_POINTS:
+                    throw new TimelyException(HttpResponseStatus.BAD_REQUEST.code(),
+                            "Query read more than " + maxPoints + " points",
+                            "Narrow the time range or the tags of the query or use a longer downsample period");
+                default:
+                    throw new TimelyException(HttpResponseStatus.SERVICE_UNAVAILABLE.code(), "Query cancelled",
+                            "The query was cancelled");
+            }
+        }
+
+        private void abort(Abort reason) {
+            synchronized (QueryGovernor.this) {
+                if (abort != null) {
+                    return;
+                }
+                abort = reason;
+                // the scans of the query waiting to be admitted see the abort
+                QueryGovernor.this.notifyAll();
+            }
+            // a scanner registered after the copy sees the abort when it
+            // checks the ticket
+            List<BatchScanner> open;
+            synchronized (scanners) {
+                open = new ArrayList<>(scanners.keySet());
+            }
+            LOG.debug("Aborting query {}: {}", msg, reason);
+            internalMetrics.addGovernorAborts(reason == Abort.TIMED_OUT ? 1 : 0, reason == Abort.OVER_POINTS ? 1 : 0,
+                    reason == Abort.CANCELLED ? 1 : 0);
+            // the iterators of the scanners fail once closed, their
+            // owners release them
+            open.forEach(BatchScanner::close);
+        }
+
+        @Override
+        public void close() {
+            if (deadlineTask != null) {
+                deadlineTask.cancel(false);
+            }
+            msg.removeCancelListener(cancelListener);
+        }
+    }
+}
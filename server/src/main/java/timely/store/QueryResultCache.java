@@ -0,0 +1,187 @@
+package timely.store;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.apache.accumulo.core.security.Authorizations;
+import timely.api.request.timeseries.QueryRequest.RateOption;
+import timely.api.request.timeseries.QueryRequest.SubQuery;
+import timely.model.Tag;
+import timely.sample.Aggregation;
+import timely.sample.Aggregator;
+import timely.sample.iterators.DownsampleIterator;
+
+/**
+ * Completed downsample buckets of recent subqueries, as read from Accumulo.
+ * Dashboards run the same subqueries every few seconds with the window moved
+ * forward a little, a repeat only reads the buckets after the cached ones. A
+ * bucket is complete once it ends the settle time before now, later buckets may
+ * still get points. Entries are kept per normalized subquery and session
+ * authorizations and are evicted least recently used first once their estimated
+ * size is over the maximum.
+ */
+class QueryResultCache {
+
+    // estimated heap use of a cached bucket and of a series
+    private static final long BUCKET_SIZE = 100;
+    private static final long SERIES_SIZE = 200;
+
+    static class Entry {
+
+        private final long start;
+        private final long end;
+        private final Map<Set<Tag>, List<Aggregation>> series;
+        private final long size;
+
+        private Entry(long start, long end, Map<Set<Tag>, List<Aggregation>> series, long size) {
+            this.start = start;
+            this.end = end;
+            this.series = series;
+            this.size = size;
+        }
+
+        long getStart() {
+            return start;
+        }
+
+        /**
+         * @return the end of the cached buckets, exclusive
+         */
+        long getEnd() {
+            return end;
+        }
+
+        Map<Set<Tag>, List<Aggregation>> getSeries() {
+            return series;
+        }
+    }
+
+    private final long maxSize;
+    private final long settleTime;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long size = 0;
+
+    QueryResultCache(long maxSize, long settleTime) {
+        this.maxSize = maxSize;
+        this.settleTime = settleTime;
+    }
+
+    static String key(SubQuery query, Authorizations auths) {
+        StringBuilder key = new StringBuilder(query.getMetric());
+        key.append(new TreeMap<>(query.getMatchingTags()));
+        key.append(new TreeSet<>(query.getGroupByKeys()));
+        key.append(',').append(DownsampleIterator.getDownsamplePeriod(query));
+        key.append(',').append(DownsampleIterator.getDownsampleAggregator(query));
+        key.append(',').append(Aggregator.getAggregator(query.getAggregator()));
+        if (query.isRate()) {
+            RateOption options = query.getRateOptions();
+            key.append(",rate");
+            if (options != null) {
+                key.append(',').append(options.isCounter());
+                key.append(',').append(options.getCounterMax());
+                key.append(',').append(options.getResetValue());
+            }
+        }
+        Set<String> sortedAuths = new TreeSet<>();
+        for (byte[] auth : auths.getAuthorizations()) {
+            sortedAuths.add(new String(auth, StandardCharsets.UTF_8));
+        }
+        key.append(sortedAuths);
+        return key.toString();
+    }
+
+    /**
+     * @return copies of the cached buckets in [start, end), or null if no cached
+     *         buckets begin at or before start
+     */
+    Entry get(String key, long start, long end) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+        }
+        // entries are not changed once cached
+        if (entry == null || entry.start > start || entry.end <= start || start >= end) {
+            return null;
+        }
+        long copyEnd = Math.min(entry.end, end);
+        return new Entry(start, copyEnd, copy(entry.series, start, copyEnd), 0);
+    }
+
+    /**
+     * Caches the completed buckets in [start, end) of the series read for a
+     * subquery, in place of those cached before
+     */
+    void put(String key, long start, long end, long period, Map<Set<Tag>, List<Aggregation>> series, long now) {
+        long settled = now - settleTime;
+        long completeEnd = Math.min(end, settled - (settled % period));
+        Entry entry = null;
+        if (completeEnd > start) {
+            Map<Set<Tag>, List<Aggregation>> copies = copy(series, start, completeEnd);
+            long entrySize = 0;
+            for (List<Aggregation> aggregations : copies.values()) {
+                entrySize += SERIES_SIZE;
+                for (Aggregation aggregation : aggregations) {
+                    entrySize += BUCKET_SIZE * aggregation.getNumBuckets();
+                }
+            }
+            if (entrySize <= maxSize) {
+                entry = new Entry(start, completeEnd, copies, entrySize);
+            }
+        }
+        synchronized (this) {
+            Entry previous = (entry == null) ? entries.remove(key) : entries.put(key, entry);
+            if (previous != null) {
+                size -= previous.size;
+            }
+            if (entry != null) {
+                size += entry.size;
+            }
+            Iterator<Entry> eldest = entries.values().iterator();
+            while (size > maxSize && eldest.hasNext()) {
+                size -= eldest.next().size;
+                eldest.remove();
+            }
+        }
+    }
+
+    /**
+     * @return the time before the cached buckets that a rate query reads again, in
+     *         whole periods
+     */
+    long getRateOverlap(long period) {
+        return Math.max(1, (settleTime + period - 1) / period) * period;
+    }
+
+    /**
+     * @return the estimated size of the cached buckets in bytes
+     */
+    synchronized long getSize() {
+        return size;
+    }
+
+    private static Map<Set<Tag>, List<Aggregation>> copy(Map<Set<Tag>, List<Aggregation>> series, long start,
+            long end) {
+        // keeps the order of the series, in which they are merged
+        Map<Set<Tag>, List<Aggregation>> copies = new LinkedHashMap<>();
+        for (Map.Entry<Set<Tag>, List<Aggregation>> e : series.entrySet()) {
+            List<Aggregation> aggregations = new ArrayList<>(e.getValue().size());
+            for (Aggregation aggregation : e.getValue()) {
+                Aggregation copy = aggregation.copy(start, end);
+                if (copy.getNumBuckets() > 0) {
+                    aggregations.add(copy);
+                }
+            }
+            if (!aggregations.isEmpty()) {
+                copies.put(e.getKey(), aggregations);
+            }
+        }
+        return copies;
+    }
+}
@@ -0,0 +1,80 @@
+package timely.store.cache;
+
+import timely.sample.Aggregator;
+import timely.sample.aggregators.Max;
+import timely.sample.aggregators.Min;
+
+/**
+ * Count, minimum, maximum, sum and first and last values of the points of a
+ * closed Gorilla block. A downsample bucket that covers the whole block can be
+ * answered from the summary without decompressing the block.
+ */
+final class BlockSummary {
+
+    private final long count;
+    private final long oldestTimestamp;
+    private final long newestTimestamp;
+    private final double min;
+    private final double max;
+    private final double sum;
+    private final double first;
+    private final double last;
+
+    BlockSummary(long count, long oldestTimestamp, long newestTimestamp, double min, double max, double sum,
+            double first, double last) {
+        this.count = count;
+        this.oldestTimestamp = oldestTimestamp;
+        this.newestTimestamp = newestTimestamp;
+        this.min = min;
+        this.max = max;
+        this.sum = sum;
+        this.first = first;
+        this.last = last;
+    }
+
+    long getCount() {
+        return count;
+    }
+
+    long getOldestTimestamp() {
+        return oldestTimestamp;
+    }
+
+    long getNewestTimestamp() {
+        return newestTimestamp;
+    }
+
+    double getMin() {
+        return min;
+    }
+
+    double getMax() {
+        return max;
+    }
+
+    double getSum() {
+        return sum;
+    }
+
+    double getFirst() {
+        return first;
+    }
+
+    double getLast() {
+        return last;
+    }
+
+    /**
+     * @return the value to add to a downsample bucket together with the count, for
+     *         the aggregators supported by {@link RollupTier#supports(Class)}
+     */
+    double getValue(Class<? extends Aggregator> aggClass) {
+        if (aggClass == Min.class) {
+            return min;
+        } else if (aggClass == Max.class) {
+            return max;
+        } else {
+            return sum;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package timely.store.cache;
+
+import fi.iki.yak.ts.compression.gorilla.BitInput;
+import fi.iki.yak.ts.compression.gorilla.LongArrayOutput;
+import io.netty.buffer.ByteBuf;
+
+/**
+ * {@link BitInput} over longs stored in a {@link ByteBuf}, the same reads as
+ * {@link fi.iki.yak.ts.compression.gorilla.LongArrayInput} without copying the
+ * block onto the heap. Reads past the end of the buffer return zero bits.
+ */
+class ByteBufInput implements BitInput {
+
+    private final ByteBuf buf;
+    private final int numLongs;
+    private long lB;
+    private int position = 0;
+    private int bitsLeft = 0;
+
+    ByteBufInput(ByteBuf buf) {
+        this.buf = buf;
+        this.numLongs = buf.readableBytes() / Long.BYTES;
+        flipWord();
+    }
+
+    @Override
+    public boolean readBit() {
+        boolean bit = (lB & LongArrayOutput.BIT_SET_MASK[bitsLeft - 1]) != 0;
+        bitsLeft--;
+        checkAndFlipWord();
+        return bit;
+    }
+
+    @Override
+    public long getLong(int bits) {
+        long value;
+        if (bits <= bitsLeft) {
+            // we can read from this word only
+            value = (lB >>> (bitsLeft - bits)) & LongArrayOutput.MASK_ARRAY[bits - 1];
+            bitsLeft -= bits;
+            checkAndFlipWord();
+        } else {
+            // read the rest of this word and the start of the next one
+            value = lB & LongArrayOutput.MASK_ARRAY[bitsLeft - 1];
+            bits -= bitsLeft;
+            flipWord();
+            value <<= bits;
+            value |= (lB >>> (bitsLeft - bits));
+            bitsLeft -= bits;
+        }
+        return value;
+    }
+
+    @Override
+    public int nextClearBit(int maxBits) {
+        int value = 0x00;
+        for (int i = 0; i < maxBits; i++) {
+            value <<= 1;
+            if (readBit()) {
+                value |= 0x01;
+            } else {
+                break;
+            }
+        }
+        return value;
+    }
+
+    private void flipWord() {
+        lB = position < numLongs ? buf.getLong(buf.readerIndex() + position * Long.BYTES) : 0;
+        position++;
+        bitsLeft = Long.SIZE;
+    }
+
+    private void checkAndFlipWord() {
+        if (bitsLeft == 0) {
+            flipWord();
+        }
+    }
+}
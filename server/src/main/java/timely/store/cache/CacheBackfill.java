@@ -0,0 +1,279 @@
+package timely.store.cache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.accumulo.core.client.BatchScanner;
+import org.apache.accumulo.core.client.Connector;
+import org.apache.accumulo.core.client.Scanner;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Range;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.security.Authorizations;
+import org.apache.hadoop.io.Text;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import timely.Configuration;
+import timely.adapter.accumulo.MetricAdapter;
+import timely.api.model.Meta;
+import timely.model.Metric;
+
+/**
+ * Fills the cache from the metrics table. Each cacheable metric listed in the
+ * meta table is read with a {@link BatchScanner} over one range per hour, the
+ * points are sorted per series and added to the {@link GorillaStore}s as
+ * archived blocks in front of whatever live ingest has already cached. Metrics
+ * are loaded in parallel and the total rate is limited so that the tablet
+ * servers keep up with live ingest. A metric is marked warm in the cache once
+ * all of its series are loaded, queries only use its history from then on.
+ */
+public class CacheBackfill {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CacheBackfill.class);
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+    private static final int PERMITS_PER_ACQUIRE = 1000;
+
+    private final Connector connector;
+    private final String metricsTable;
+    private final String metaTable;
+    private final int scannerThreads;
+    private final DataStoreCache cache;
+    private final Configuration.Backfill conf;
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    private final AtomicInteger metricsTotal = new AtomicInteger(0);
+    private final AtomicInteger metricsDone = new AtomicInteger(0);
+    private final AtomicLong pointsLoaded = new AtomicLong(0);
+
+    public CacheBackfill(Connector connector, String metricsTable, String metaTable, int scannerThreads,
+            DataStoreCache cache, Configuration.Backfill conf) {
+        this.connector = connector;
+        this.metricsTable = metricsTable;
+        this.metaTable = metaTable;
+        this.scannerThreads = scannerThreads;
+        this.cache = cache;
+        this.conf = conf;
+    }
+
+    public boolean isRunning() {
+        return running.get();
+    }
+
+    public int getMetricsTotal() {
+        return metricsTotal.get();
+    }
+
+    public int getMetricsDone() {
+        return metricsDone.get();
+    }
+
+    public long getPointsLoaded() {
+        return pointsLoaded.get();
+    }
+
+    /**
+     * Starts loading the last hours of data in the background
+     *
+     * @return false if a backfill is already running
+     */
+    public boolean start(int hours) {
+        if (!running.compareAndSet(false, true)) {
+            return false;
+        }
+        Thread t = new Thread(() -> {
+            try {
+                run(hours);
+            } catch (Exception e) {
+                LOG.error("Error during cache backfill", e);
+            } finally {
+                running.set(false);
+            }
+        }, "cache-backfill");
+        t.setDaemon(true);
+        t.start();
+        return true;
+    }
+
+    private void run(int hours) throws Exception {
+        long start = System.currentTimeMillis();
+        long end = start;
+        Authorizations auths = connector.securityOperations().getUserAuthorizations(connector.whoami());
+        List<String> metrics = new ArrayList<>();
+        for (String metric : listMetrics()) {
+            if (cache.isCacheable(metric)) {
+                metrics.add(metric);
+            }
+        }
+        metricsTotal.set(metrics.size());
+        metricsDone.set(0);
+        pointsLoaded.set(0);
+        LOG.info("Backfilling {} hours of {} metrics into the cache", hours, metrics.size());
+
+        RateLimiter limiter = conf.getMaxRate() > 0 ? RateLimiter.create(conf.getMaxRate()) : null;
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, conf.getThreads()),
+                new ThreadFactoryBuilder().setNameFormat("cache-backfill-%d").setDaemon(true).build());
+        try {
+            for (String metric : metrics) {
+                long metricStart = Math.max(end - hours * HOUR, end - cache.getAgeOffForMetric(metric) + 1);
+                executor.submit(() -> {
+                    try {
+                        cache.beginBackfill(metric);
+                        backfill(metric, metricStart, end, auths, limiter);
+                        cache.setWarm(metric);
+                    } catch (Exception e) {
+                        LOG.error("Error backfilling " + metric, e);
+                        cache.abortBackfill(metric);
+                    } finally {
+                        metricsDone.incrementAndGet();
+                    }
+                });
+            }
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+        LOG.info("Backfilled {} points of {} metrics into the cache in {}ms", pointsLoaded.get(), metrics.size(),
+                System.currentTimeMillis() - start);
+    }
+
+    private List<String> listMetrics() throws Exception {
+        Text start = new Text(Meta.METRIC_PREFIX);
+        Text end = new Text(Meta.METRIC_PREFIX);
+        byte[] lastBytes = new byte[100];
+        Arrays.fill(lastBytes, (byte) 0xff);
+        end.append(lastBytes, 0, lastBytes.length);
+        List<String> metrics = new ArrayList<>();
+        Scanner scanner = connector.createScanner(metaTable, Authorizations.EMPTY);
+        scanner.setRange(new Range(start, end));
+        for (Map.Entry<Key, Value> e : scanner) {
+            metrics.add(e.getKey().getRow().toString().substring(Meta.METRIC_PREFIX.length()));
+        }
+        return metrics;
+    }
+
+    private void backfill(String metric, long start, long end, Authorizations auths, RateLimiter limiter)
+            throws Exception {
+        long added = 0;
+        for (Map.Entry<TaggedMetric, Series> e : scan(metric, start, end, auths, limiter).entrySet()) {
+            Series s = e.getValue();
+            added += cache.getGorillaStore(metric, e.getKey()).backfill(s.timestamps, s.values, s.size);
+        }
+        pointsLoaded.addAndGet(added);
+    }
+
+    /**
+     * Appends the points in [start, end] that are newer than the newest point of
+     * their series, unlike a backfill which prepends older points
+     *
+     * @return number of points added
+     */
+    long fillGap(String metric, long start, long end) throws Exception {
+        Authorizations auths = connector.securityOperations().getUserAuthorizations(connector.whoami());
+        RateLimiter limiter = conf.getMaxRate() > 0 ? RateLimiter.create(conf.getMaxRate()) : null;
+        long added = 0;
+        for (Map.Entry<TaggedMetric, Series> e : scan(metric, start, end, auths, limiter).entrySet()) {
+            Series s = e.getValue();
+            GorillaStore store = cache.getGorillaStore(metric, e.getKey());
+            long newest = store.getNewestTimestamp();
+            for (int i = 0; i < s.size; i++) {
+                if (s.timestamps[i] > newest) {
+                    newest = s.timestamps[i];
+                    store.addValue(newest, s.values[i]);
+                    added++;
+                }
+            }
+        }
+        LOG.debug("Filled {} points of {} from {} to {}", added, metric, start, end);
+        return added;
+    }
+
+    /**
+     * @return the points of each series of the metric in [start, end], in timestamp
+     *         order
+     */
+    private Map<TaggedMetric, Series> scan(String metric, long start, long end, Authorizations auths,
+            RateLimiter limiter) throws Exception {
+        List<Range> ranges = new ArrayList<>();
+        for (long hour = MetricAdapter.roundTimestampToLastHour(start); hour <= end; hour += HOUR) {
+            ranges.add(Range.exact(new Text(MetricAdapter.encodeRowKey(metric, hour))));
+        }
+        Map<TaggedMetric, Series> series = new HashMap<>();
+        BatchScanner scanner = connector.createBatchScanner(metricsTable, auths, scannerThreads);
+        try {
+            scanner.setRanges(ranges);
+            int permits = 0;
+            for (Map.Entry<Key, Value> e : scanner) {
+                long ts = e.getKey().getTimestamp();
+                if (ts < start || ts > end) {
+                    continue;
+                }
+                Metric m = MetricAdapter.parse(e.getKey(), e.getValue(), true);
+                series.computeIfAbsent(new TaggedMetric(metric, m.getTags()), k -> new Series()).add(ts,
+                        m.getValue().getMeasure());
+                if (limiter != null && ++permits == PERMITS_PER_ACQUIRE) {
+                    limiter.acquire(permits);
+                    permits = 0;
+                }
+            }
+        } finally {
+            scanner.close();
+        }
+        series.values().forEach(Series::sort);
+        return series;
+    }
+
+    /**
+     * Points of one series, the ranges are returned in no particular order but each
+     * hour is in timestamp order
+     */
+    private static final class Series {
+
+        private long[] timestamps = new long[64];
+        private double[] values = new double[64];
+        private int size = 0;
+        private boolean sorted = true;
+
+        private void add(long timestamp, double value) {
+            if (size == timestamps.length) {
+                timestamps = Arrays.copyOf(timestamps, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            if (size > 0 && timestamp < timestamps[size - 1]) {
+                sorted = false;
+            }
+            timestamps[size] = timestamp;
+            values[size] = value;
+            size++;
+        }
+
+        private void sort() {
+            if (sorted) {
+                return;
+            }
+            Integer[] order = new Integer[size];
+            for (int i = 0; i < size; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> Long.compare(timestamps[a], timestamps[b]));
+            long[] sortedTimestamps = new long[size];
+            double[] sortedValues = new double[size];
+            for (int i = 0; i < size; i++) {
+                sortedTimestamps[i] = timestamps[order[i]];
+                sortedValues[i] = values[order[i]];
+            }
+            timestamps = sortedTimestamps;
+            values = sortedValues;
+            sorted = true;
+        }
+    }
+}
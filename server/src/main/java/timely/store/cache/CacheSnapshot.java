@@ -0,0 +1,205 @@
+package timely.store.cache;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+
+import com.google.common.io.CountingOutputStream;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import timely.model.Tag;
+
+/**
+ * Local snapshot of the cache that is reloaded on startup. The file starts with
+ * a header, followed by one section per metric holding every tag set of the
+ * metric and its {@link GorillaStore}. An index of section offsets and a
+ * trailer pointing to the index end the file, so that sections can be memory
+ * mapped and decoded in parallel. A snapshot is written to a temporary file and
+ * renamed into place once complete.
+ */
+class CacheSnapshot {
+
+    static final String FILE_NAME = "cache.snapshot";
+    private static final int MAGIC = 0x544d4353;
+    private static final int VERSION = 1;
+    // index offset and magic
+    private static final int TRAILER_BYTES = Long.BYTES + Integer.BYTES;
+
+    private CacheSnapshot() {
+    }
+
+    /**
+     * @return size of the snapshot in bytes
+     */
+    static long write(File directory, Map<String, ? extends Map<TaggedMetric, GorillaStore>> stores)
+            throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create snapshot directory " + directory);
+        }
+        File tmp = new File(directory, FILE_NAME + ".tmp");
+        List<long[]> sections = new ArrayList<>();
+        try (FileOutputStream fos = new FileOutputStream(tmp)) {
+            CountingOutputStream counter = new CountingOutputStream(new BufferedOutputStream(fos, 1 << 16));
+            DataOutputStream out = new DataOutputStream(counter);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(System.currentTimeMillis());
+            for (Map.Entry<String, ? extends Map<TaggedMetric, GorillaStore>> e : stores.entrySet()) {
+                // copy, the map may change while we write
+                Map<TaggedMetric, GorillaStore> series = new HashMap<>(e.getValue());
+                if (series.isEmpty()) {
+                    continue;
+                }
+                long offset = counter.getCount();
+                writeString(out, e.getKey());
+                out.writeInt(series.size());
+                for (Map.Entry<TaggedMetric, GorillaStore> s : series.entrySet()) {
+                    Map<String, String> tags = s.getKey().getTags();
+                    out.writeInt(tags.size());
+                    for (Map.Entry<String, String> t : tags.entrySet()) {
+                        writeString(out, t.getKey());
+                        writeString(out, t.getValue());
+                    }
+                    s.getValue().writeSnapshot(out);
+                }
+                out.flush();
+                sections.add(new long[] { offset, counter.getCount() - offset });
+            }
+            long indexOffset = counter.getCount();
+            out.writeInt(sections.size());
+            for (long[] section : sections) {
+                out.writeLong(section[0]);
+                out.writeLong(section[1]);
+            }
+            out.writeLong(indexOffset);
+            out.writeInt(MAGIC);
+            out.flush();
+            fos.getFD().sync();
+        } catch (IOException | RuntimeException e) {
+            try {
+                Files.deleteIfExists(tmp.toPath());
+            } catch (IOException | RuntimeException de) {
+                e.addSuppressed(de);
+            }
+            throw e;
+        }
+        File snapshot = new File(directory, FILE_NAME);
+        Files.move(tmp.toPath(), snapshot.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        return snapshot.length();
+    }
+
+    /**
+     * Decodes the sections of the snapshot with the given number of threads and
+     * passes the stores of each metric to the consumer, which must be thread safe.
+     * The stores are created with the given rollup tiers, rebuilt from their
+     * blocks.
+     *
+     * @return time the snapshot was written, or -1 if there is no snapshot
+     */
+    static long load(File directory, int threads, long[] rollupPeriods,
+            BiConsumer<String, Map<TaggedMetric, GorillaStore>> consumer) throws IOException {
+        File snapshot = new File(directory, FILE_NAME);
+        if (!snapshot.isFile()) {
+            return -1;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(snapshot, "r")) {
+            FileChannel channel = raf.getChannel();
+            long length = channel.size();
+            if (length < 16 + TRAILER_BYTES) {
+                throw new IOException("Snapshot " + snapshot + " is truncated");
+            }
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, 16);
+            ByteBuffer trailer = channel.map(FileChannel.MapMode.READ_ONLY, length - TRAILER_BYTES, TRAILER_BYTES);
+            long indexOffset = trailer.getLong();
+            if (header.getInt() != MAGIC || trailer.getInt() != MAGIC || indexOffset < 16
+                    || indexOffset > length - TRAILER_BYTES) {
+                throw new IOException("Snapshot " + snapshot + " is corrupt");
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported snapshot version " + version);
+            }
+            long written = header.getLong();
+            ByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, indexOffset,
+                    length - TRAILER_BYTES - indexOffset);
+            int numSections = index.getInt();
+            List<MappedByteBuffer> sections = new ArrayList<>(numSections);
+            for (int i = 0; i < numSections; i++) {
+                long offset = index.getLong();
+                long size = index.getLong();
+                if (offset < 16 || size > Integer.MAX_VALUE || offset + size > indexOffset) {
+                    throw new IOException("Snapshot " + snapshot + " is corrupt");
+                }
+                sections.add(channel.map(FileChannel.MapMode.READ_ONLY, offset, size));
+            }
+            ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads),
+                    new ThreadFactoryBuilder().setNameFormat("cache-snapshot-load-%d").setDaemon(true).build());
+            try {
+                List<Future<Void>> futures = new ArrayList<>(numSections);
+                for (MappedByteBuffer section : sections) {
+                    futures.add(executor.submit(() -> {
+                        readSection(section, rollupPeriods, consumer);
+                        return null;
+                    }));
+                }
+                for (Future<Void> f : futures) {
+                    f.get();
+                }
+                return written;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted loading snapshot " + snapshot, e);
+            } catch (ExecutionException e) {
+                throw new IOException("Error loading snapshot " + snapshot, e.getCause());
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    private static void readSection(ByteBuffer in, long[] rollupPeriods,
+            BiConsumer<String, Map<TaggedMetric, GorillaStore>> consumer) {
+        String metric = readString(in);
+        int numSeries = in.getInt();
+        Map<TaggedMetric, GorillaStore> stores = new HashMap<>(numSeries * 2);
+        for (int i = 0; i < numSeries; i++) {
+            int numTags = in.getInt();
+            List<Tag> tags = new ArrayList<>(numTags);
+            for (int t = 0; t < numTags; t++) {
+                tags.add(new Tag(readString(in), readString(in)));
+            }
+            stores.put(new TaggedMetric(metric, tags), GorillaStore.readSnapshot(in, rollupPeriods));
+        }
+        consumer.accept(metric, stores);
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -1,19 +1,36 @@
 package timely.store.cache;
 
+import static org.apache.accumulo.core.conf.AccumuloConfiguration.getMemoryInBytes;
+import static org.apache.accumulo.core.conf.AccumuloConfiguration.getTimeInMillis;
+
+import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
-import java.util.concurrent.locks.StampedLock;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import fi.iki.yak.ts.compression.gorilla.Pair;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import org.apache.accumulo.core.client.IteratorSetting;
 import org.apache.accumulo.core.data.Key;
@@ -33,8 +50,10 @@ import timely.api.response.timeseries.QueryResponse;
 import timely.auth.AuthCache;
 import timely.model.Metric;
 import timely.model.Tag;
+import timely.model.parse.TagListParser;
 import timely.sample.Aggregation;
 import timely.sample.Aggregator;
+import timely.sample.Downsample;
 import timely.sample.Sample;
 import timely.sample.iterators.AggregationIterator;
 import timely.sample.iterators.DownsampleIterator;
@@ -45,9 +64,14 @@ public class DataStoreCache {
 
     private static final Logger LOG = LoggerFactory.getLogger(DataStoreCache.class);
     public static final String DEFAULT_AGEOFF_KEY = "default";
+    private static final long EVICTION_INTERVAL = 10 * 1000;
+    private static final double EVICTION_LOW_WATERMARK = 0.9;
 
-    private Map<String, Map<TaggedMetric, GorillaStore>> gorillaMap = new HashMap<>();
-    private StampedLock gorillaMapLock = new StampedLock();
+    // ingest never blocks on other ingest threads or on the maintenance tasks,
+    // which iterate weakly consistent views of the maps
+    private ConcurrentMap<String, ConcurrentMap<TaggedMetric, GorillaStore>> gorillaMap = new ConcurrentHashMap<>();
+    // series of each metric by tag, updated under the lock of the series entry
+    private ConcurrentMap<String, TagIndex> tagIndexes = new ConcurrentHashMap<>();
 
     private Set<String> nonCachedMetrics = Collections.synchronizedSet(new HashSet<>());
     private long maxUniqueTagSets;
@@ -57,6 +81,36 @@ public class DataStoreCache {
     private int flushBatch = 0;
     private int numBatches = 5;
 
+    // periods of the rollup tiers kept by each store, ascending
+    private long[] rollupPeriods;
+
+    private Configuration.Snapshot snapshot;
+    // per metric restored from a snapshot, the time the snapshot was written
+    // and the time it was loaded, points written in between are not cached
+    private ConcurrentMap<String, long[]> snapshotGaps = new ConcurrentHashMap<>();
+    // metrics whose history has been loaded by a backfill
+    private Set<String> warmMetrics = ConcurrentHashMap.newKeySet();
+    // per metric being backfilled, its oldest point before the backfill, the
+    // history is not used until all series of the metric are loaded
+    private ConcurrentMap<String, Long> backfillHorizon = new ConcurrentHashMap<>();
+    private CacheBackfill backfill = null;
+
+    // memory budget, series are evicted down to the low watermark once exceeded
+    private long maxMemory;
+    private volatile long usedMemory = 0;
+    // per metric, the cache may be missing data older than this
+    private ConcurrentMap<String, Long> evictionHorizon = new ConcurrentHashMap<>();
+    private AtomicLong evictedSeries = new AtomicLong(0);
+    private AtomicLong trimmedSeries = new AtomicLong(0);
+    private AtomicLong evictedBytes = new AtomicLong(0);
+
+    // reads partitions of the series of large subqueries in parallel
+    private ThreadPoolExecutor queryExecutor;
+    private int queryThreads;
+    private int minSeriesPerPartition;
+    private AtomicLong subqueries = new AtomicLong(0);
+    private AtomicLong subqueryCpuTime = new AtomicLong(0);
+
     private Timer maintenanceTimer = new Timer("DataStoreCacheTimer");
     private Timer statsTimer = new Timer();
 
@@ -75,6 +129,58 @@ public class DataStoreCache {
 
         minimumAgeOffForIterator = getAgeOffForIterator(minimumAgeOff);
 
+        rollupPeriods = conf.getCache().getRollupResolutions().stream().mapToLong(r -> getTimeInMillis(r))
+                .filter(p -> p > 0).distinct().sorted().toArray();
+        if (rollupPeriods.length > 0) {
+            LOG.info("Cache rollup tiers {}", conf.getCache().getRollupResolutions());
+        }
+
+        Configuration.CacheQuery queryConf = conf.getCache().getQuery();
+        queryThreads = queryConf.getThreads() > 0 ? queryConf.getThreads() : Runtime.getRuntime().availableProcessors();
+        minSeriesPerPartition = Math.max(1, queryConf.getMinSeriesPerPartition());
+        // once the queue is full partitions run on the querying thread, which
+        // slows down the queries rather than failing them
+        queryExecutor = new ThreadPoolExecutor(queryThreads, queryThreads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queryConf.getMaxQueued())),
+                new ThreadFactoryBuilder().setNameFormat("cache-query-%d").setDaemon(true).build(),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        queryExecutor.allowCoreThreadTimeOut(true);
+
+        maxMemory = parseMaxMemory(conf.getCache().getMaxMemory());
+        if (maxMemory > 0) {
+            LOG.info("Cache memory budget is {} bytes", maxMemory);
+            maintenanceTimer.schedule(new TimerTask() {
+
+                @Override
+                public void run() {
+                    try {
+                        enforceMemoryBudget();
+                    } catch (Exception e) {
+                        LOG.error(e.getMessage(), e);
+                    }
+                }
+            }, EVICTION_INTERVAL, EVICTION_INTERVAL);
+        }
+
+        snapshot = conf.getCache().getSnapshot();
+        if (snapshot.isEnabled()) {
+            loadSnapshot();
+            long snapshotInterval = getTimeInMillis(snapshot.getInterval());
+            if (snapshotInterval > 0) {
+                maintenanceTimer.schedule(new TimerTask() {
+
+                    @Override
+                    public void run() {
+                        try {
+                            writeSnapshot();
+                        } catch (Exception e) {
+                            LOG.error(e.getMessage(), e);
+                        }
+                    }
+                }, snapshotInterval, snapshotInterval);
+            }
+        }
+
         maintenanceTimer.schedule(new TimerTask() {
 
             @Override
@@ -129,78 +235,245 @@ public class DataStoreCache {
         }, (600 * 1000), (600 * 1000));
     }
 
-    private void pruneStats() {
-        long stamp = gorillaMapLock.writeLock();
+    private void loadSnapshot() {
+        long start = System.currentTimeMillis();
+        AtomicLong numSeries = new AtomicLong(0);
         try {
-            Iterator<Map.Entry<String, Map<TaggedMetric, GorillaStore>>> metricItr = gorillaMap.entrySet().iterator();
-
-            while (metricItr.hasNext()) {
-                Map.Entry<String, Map<TaggedMetric, GorillaStore>> entry1 = metricItr.next();
-                int numberTagVariations = entry1.getValue().size();
-                if (numberTagVariations > maxUniqueTagSets) {
-                    LOG.info("Cache of metric {} has {] tag variations.  Discontinuing cache.", entry1.getKey(),
-                            numberTagVariations);
-                    metricItr.remove();
-                    nonCachedMetrics.add(entry1.getKey());
+            long written = CacheSnapshot.load(new File(snapshot.getDirectory()), snapshot.getLoadThreads(),
+                    rollupPeriods, (metric, stores) -> {
+                        ConcurrentMap<TaggedMetric, GorillaStore> metricMap = gorillaMap.computeIfAbsent(metric,
+                                k -> new ConcurrentHashMap<>());
+                        TagIndex index = getTagIndex(metric);
+                        stores.forEach((tm, store) -> metricMap.compute(tm, (k, v) -> {
+                            index.add(k);
+                            return store;
+                        }));
+                        numSeries.addAndGet(stores.size());
+                    });
+            if (written >= 0) {
+                // until the gap is filled queries before the restart are left
+                // to Accumulo
+                for (String metric : gorillaMap.keySet()) {
+                    snapshotGaps.put(metric, new long[] { written, start });
+                    raiseEvictionHorizon(metric, start);
                 }
+                LOG.info("Loaded {} series of {} metrics from cache snapshot written at {} in {}ms", numSeries.get(),
+                        gorillaMap.size(), written, System.currentTimeMillis() - start);
             }
-        } finally {
-            gorillaMapLock.unlockWrite(stamp);
+        } catch (IOException e) {
+            LOG.error("Unable to load cache snapshot, starting with an empty cache", e);
+            gorillaMap.values().forEach(stores -> stores.values().forEach(GorillaStore::freeArchivedCompressors));
+            gorillaMap.clear();
+            tagIndexes.clear();
+            snapshotGaps.clear();
+            evictionHorizon.clear();
         }
     }
 
-    private void ageOffGorillaStores() {
-        long stamp = gorillaMapLock.readLock();
-        try {
-            long numRemoved = 0;
-            for (Map.Entry<String, Map<TaggedMetric, GorillaStore>> entry1 : gorillaMap.entrySet()) {
-                long maxAge = getAgeOffForMetric(entry1.getKey());
-                if (LOG.isTraceEnabled()) {
-                    LOG.trace("ageOffGorillaStores metric:{} maxAge:{}", entry1.getKey(), maxAge);
-                }
-                for (GorillaStore store : entry1.getValue().values()) {
-                    numRemoved += store.ageOffArchivedCompressors(maxAge);
+    /**
+     * Loads the points written to Accumulo between the snapshot and the restart of
+     * each restored metric, the cache then answers queries from before the restart
+     * again. Must be called before live ingest starts so that the points of the gap
+     * precede those ingested.
+     */
+    public void fillSnapshotGaps() {
+        if (backfill == null || snapshotGaps.isEmpty()) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        for (Map.Entry<String, long[]> gap : snapshotGaps.entrySet()) {
+            String metric = gap.getKey();
+            try {
+                backfill.fillGap(metric, gap.getValue()[0], start);
+                // unless points have been evicted since
+                evictionHorizon.remove(metric, gap.getValue()[1]);
+            } catch (Exception e) {
+                LOG.error("Unable to fill the snapshot gap of " + metric + ", it is read from Accumulo", e);
+            }
+        }
+        LOG.info("Filled the snapshot gaps of {} metrics in {}ms", snapshotGaps.size(),
+                System.currentTimeMillis() - start);
+        snapshotGaps.clear();
+    }
+
+    /**
+     * Flushes staged points and writes the cache to the snapshot directory
+     */
+    public void writeSnapshot() throws IOException {
+        long start = System.currentTimeMillis();
+        flushCaches(-1);
+        long size = CacheSnapshot.write(new File(snapshot.getDirectory()), gorillaMap);
+        LOG.info("Wrote {} byte cache snapshot in {}ms", size, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Stops the maintenance tasks and writes a final snapshot if enabled
+     */
+    public void close() {
+        maintenanceTimer.cancel();
+        statsTimer.cancel();
+        queryExecutor.shutdownNow();
+        if (snapshot.isEnabled()) {
+            try {
+                writeSnapshot();
+            } catch (IOException e) {
+                LOG.error("Unable to write cache snapshot", e);
+            }
+        }
+    }
+
+    /**
+     * @return bytes for a size such as 4G or a percentage of the maximum heap such
+     *         as 50%, zero for no limit
+     */
+    static long parseMaxMemory(String maxMemory) {
+        if (StringUtils.isBlank(maxMemory)) {
+            return 0;
+        }
+        String value = maxMemory.trim();
+        if (value.endsWith("%")) {
+            double percent = Double.parseDouble(value.substring(0, value.length() - 1));
+            return (long) (Runtime.getRuntime().maxMemory() * percent / 100);
+        }
+        return getMemoryInBytes(value);
+    }
+
+    /**
+     * Evicts series in order of last query access until the cache is below the low
+     * watermark of its budget. The coldest series first lose their archived blocks,
+     * then if that is not enough whole series are removed. The cache then no longer
+     * has complete data for the metric before the newest evicted timestamp, queries
+     * are answered from Accumulo before that.
+     */
+    protected void enforceMemoryBudget() {
+        List<Evictable> series = new ArrayList<>();
+        long used = 0;
+        for (Map.Entry<String, ConcurrentMap<TaggedMetric, GorillaStore>> entry : gorillaMap.entrySet()) {
+            for (Map.Entry<TaggedMetric, GorillaStore> e : entry.getValue().entrySet()) {
+                Evictable ev = new Evictable(entry.getKey(), e.getKey(), e.getValue());
+                used += ev.size;
+                series.add(ev);
+            }
+        }
+        usedMemory = used;
+        if (used <= maxMemory) {
+            return;
+        }
+        long target = (long) (maxMemory * EVICTION_LOW_WATERMARK);
+        series.sort(Comparator.comparingLong(ev -> ev.lastAccess));
+        long numTrimmed = 0;
+        long numSeries = 0;
+        long freed = 0;
+        for (Evictable ev : series) {
+            if (used - freed <= target) {
+                break;
+            }
+            long newestRemoved = ev.store.freeArchivedCompressors();
+            if (newestRemoved >= 0) {
+                long size = ev.store.getSizeInBytes();
+                freed += ev.size - size;
+                ev.size = size;
+                numTrimmed++;
+                raiseEvictionHorizon(ev.metric, newestRemoved + 1);
+            }
+        }
+        for (Evictable ev : series) {
+            if (used - freed <= target) {
+                break;
+            }
+            ConcurrentMap<TaggedMetric, GorillaStore> stores = gorillaMap.get(ev.metric);
+            if (stores != null && removeGorillaStore(ev.metric, stores, ev.taggedMetric, ev.store)) {
+                // points staged by a concurrent store() may be lost with the series
+                raiseEvictionHorizon(ev.metric,
+                        Math.max(ev.store.getNewestTimestamp(), System.currentTimeMillis()) + 1);
+                ev.store.freeArchivedCompressors();
+                freed += ev.size;
+                numSeries++;
+            }
+        }
+        usedMemory = used - freed;
+        trimmedSeries.addAndGet(numTrimmed);
+        evictedSeries.addAndGet(numSeries);
+        evictedBytes.addAndGet(freed);
+        LOG.info("Cache used {} of {} bytes, evicted {} bytes: archived blocks of {} series and {} whole series", used,
+                maxMemory, freed, numTrimmed, numSeries);
+    }
+
+    private void raiseEvictionHorizon(String metric, long timestamp) {
+        evictionHorizon.merge(metric, timestamp, Math::max);
+        warmMetrics.remove(metric);
+    }
+
+    private static final class Evictable {
+
+        private final String metric;
+        private final TaggedMetric taggedMetric;
+        private final GorillaStore store;
+        private final long lastAccess;
+        private long size;
+
+        private Evictable(String metric, TaggedMetric taggedMetric, GorillaStore store) {
+            this.metric = metric;
+            this.taggedMetric = taggedMetric;
+            this.store = store;
+            this.lastAccess = store.getLastAccess();
+            this.size = store.getSizeInBytes();
+        }
+    }
+
+    private void pruneStats() {
+        for (Map.Entry<String, ConcurrentMap<TaggedMetric, GorillaStore>> entry : gorillaMap.entrySet()) {
+            int numberTagVariations = entry.getValue().size();
+            if (numberTagVariations > maxUniqueTagSets) {
+                LOG.info("Cache of metric {} has {} tag variations.  Discontinuing cache.", entry.getKey(),
+                        numberTagVariations);
+                // stop new series from being created before removing the metric
+                nonCachedMetrics.add(entry.getKey());
+                if (gorillaMap.remove(entry.getKey(), entry.getValue())) {
+                    tagIndexes.remove(entry.getKey());
+                    entry.getValue().values().forEach(GorillaStore::freeArchivedCompressors);
                 }
             }
-            if (numRemoved > 0) {
-                LOG.debug("ageOffGorillaStores - Aged off {} archived Gorilla compressors", numRemoved);
+        }
+    }
+
+    private void ageOffGorillaStores() {
+        long numRemoved = 0;
+        for (Map.Entry<String, ConcurrentMap<TaggedMetric, GorillaStore>> entry : gorillaMap.entrySet()) {
+            long maxAge = getAgeOffForMetric(entry.getKey());
+            if (LOG.isTraceEnabled()) {
+                LOG.trace("ageOffGorillaStores metric:{} maxAge:{}", entry.getKey(), maxAge);
             }
-        } finally {
-            gorillaMapLock.unlockRead(stamp);
+            for (GorillaStore store : entry.getValue().values()) {
+                numRemoved += store.ageOffArchivedCompressors(maxAge);
+            }
+        }
+        if (numRemoved > 0) {
+            LOG.debug("ageOffGorillaStores - Aged off {} archived Gorilla compressors", numRemoved);
         }
     }
 
     protected void flushCaches(int flushBatch) {
-        long stamp = gorillaMapLock.readLock();
-        try {
-            int x = 0;
-            for (Map.Entry<String, Map<TaggedMetric, GorillaStore>> entry : gorillaMap.entrySet()) {
-                if (flushBatch == -1 || x % numBatches == flushBatch) {
-                    for (GorillaStore store : entry.getValue().values()) {
-                        try {
-                            store.flush();
-                        } catch (Exception e) {
-                            LOG.error(e.getMessage(), e);
-                        }
+        for (Map.Entry<String, ConcurrentMap<TaggedMetric, GorillaStore>> entry : gorillaMap.entrySet()) {
+            // batch by metric name rather than position so that a metric stays in
+            // the same batch while other metrics are added and removed
+            if (flushBatch == -1 || Math.floorMod(entry.getKey().hashCode(), numBatches) == flushBatch) {
+                for (GorillaStore store : entry.getValue().values()) {
+                    try {
+                        store.flush();
+                    } catch (Exception e) {
+                        LOG.error(e.getMessage(), e);
                     }
                 }
-                x++;
             }
-        } finally {
-            gorillaMapLock.unlockRead(stamp);
         }
     }
 
     private void archiveGorillaStoreCurrentCompressors() {
-        long stamp = gorillaMapLock.readLock();
-        try {
-            for (Map.Entry<String, Map<TaggedMetric, GorillaStore>> entry : gorillaMap.entrySet()) {
-                for (GorillaStore store : entry.getValue().values()) {
-                    store.archiveCurrentCompressor();
-                }
+        for (Map<TaggedMetric, GorillaStore> stores : gorillaMap.values()) {
+            for (GorillaStore store : stores.values()) {
+                store.archiveCurrentCompressor();
             }
-        } finally {
-            gorillaMapLock.unlockRead(stamp);
         }
     }
 
@@ -247,74 +520,75 @@ public class DataStoreCache {
     }
 
     public Map<TaggedMetric, GorillaStore> getGorillaStores(String metric) {
-        Map<TaggedMetric, GorillaStore> returnedMap = new HashMap<>();
-        Map<TaggedMetric, GorillaStore> metricMap;
-        long stamp = gorillaMapLock.readLock();
-        try {
-            metricMap = gorillaMap.get(metric);
-            if (metricMap == null) {
-                metricMap = new HashMap<>();
-                long writeStamp = gorillaMapLock.tryConvertToWriteLock(stamp);
-                if (writeStamp == 0) {
-                    gorillaMapLock.unlockRead(stamp);
-                    stamp = gorillaMapLock.writeLock();
-                } else {
-                    stamp = writeStamp;
-                }
-                gorillaMap.put(metric, metricMap);
+        Map<TaggedMetric, GorillaStore> metricMap = gorillaMap.get(metric);
+        return metricMap == null ? new HashMap<>() : new HashMap<>(metricMap);
+    }
+
+    /**
+     * @return the series of the metric whose tags match the requested tags, found
+     *         through the tag index of the metric
+     */
+    public Map<TaggedMetric, GorillaStore> getGorillaStores(String metric, Map<String, String> tags) {
+        Map<TaggedMetric, GorillaStore> stores = new HashMap<>();
+        Map<TaggedMetric, GorillaStore> metricMap = gorillaMap.get(metric);
+        TagIndex index = tagIndexes.get(metric);
+        if (metricMap == null || index == null) {
+            return stores;
+        }
+        for (TaggedMetric tm : index.lookup(tags)) {
+            GorillaStore store = metricMap.get(tm);
+            if (store != null) {
+                stores.put(tm, store);
             }
-        } finally {
-            gorillaMapLock.unlock(stamp);
         }
-        returnedMap.putAll(metricMap);
-        return returnedMap;
+        return stores;
     }
 
-    public GorillaStore getGorillaStore(String metric, TaggedMetric taggedMetric) {
+    private TagIndex getTagIndex(String metric) {
+        TagIndex index = tagIndexes.get(metric);
+        return index == null ? tagIndexes.computeIfAbsent(metric, k -> new TagIndex()) : index;
+    }
 
-        Map<TaggedMetric, GorillaStore> metricMap;
-        GorillaStore gStore;
-        boolean needWrite = false;
-        long stamp = gorillaMapLock.readLock();
-        try {
-            metricMap = gorillaMap.get(metric);
-            if (metricMap == null) {
-                metricMap = new HashMap<>();
-                needWrite = true;
-            }
-            gStore = metricMap.get(taggedMetric);
-            if (gStore == null) {
-                gStore = new GorillaStore();
-                needWrite = true;
-            }
-            if (needWrite) {
-                long writeStamp = gorillaMapLock.tryConvertToWriteLock(stamp);
-                if (writeStamp == 0) {
-                    gorillaMapLock.unlockRead(stamp);
-                    stamp = gorillaMapLock.writeLock();
-                } else {
-                    stamp = writeStamp;
-                }
-                metricMap.put(taggedMetric, gStore);
-                gorillaMap.put(metric, metricMap);
+    private boolean removeGorillaStore(String metric, ConcurrentMap<TaggedMetric, GorillaStore> stores,
+            TaggedMetric taggedMetric, GorillaStore store) {
+        boolean[] removed = new boolean[1];
+        stores.computeIfPresent(taggedMetric, (k, v) -> {
+            if (v != store) {
+                return v;
             }
-        } finally {
-            gorillaMapLock.unlock(stamp);
+            getTagIndex(metric).remove(k);
+            removed[0] = true;
+            return null;
+        });
+        return removed[0];
+    }
+
+    public GorillaStore getGorillaStore(String metric, TaggedMetric taggedMetric) {
+        // computeIfAbsent locks the bin even when the key is present, so try a
+        // plain get first
+        ConcurrentMap<TaggedMetric, GorillaStore> metricMap = gorillaMap.get(metric);
+        if (metricMap == null) {
+            metricMap = gorillaMap.computeIfAbsent(metric, k -> new ConcurrentHashMap<>());
+        }
+        GorillaStore gStore = metricMap.get(taggedMetric);
+        if (gStore == null) {
+            gStore = metricMap.computeIfAbsent(taggedMetric, k -> {
+                getTagIndex(metric).add(k);
+                return new GorillaStore(rollupPeriods);
+            });
         }
         return gStore;
     }
 
     private boolean shouldCache(Metric metric) {
         String metricName = metric.getName();
-        long stamp = gorillaMapLock.readLock();
-        try {
-            if (gorillaMap.containsKey(metricName)) {
-                return true;
-            }
-        } finally {
-            gorillaMapLock.unlockRead(stamp);
+        if (gorillaMap.containsKey(metricName)) {
+            return true;
         }
+        return isCacheable(metricName);
+    }
 
+    public boolean isCacheable(String metricName) {
         if (nonCachedMetrics.contains(metricName)) {
             return false;
         }
@@ -361,32 +635,24 @@ public class DataStoreCache {
 
     public Map<Set<Tag>, List<Aggregation>> subquery(QueryRequest msg, QueryRequest.SubQuery query)
             throws TimelyException {
+        return subquery(msg, query, Long.MIN_VALUE);
+    }
+
+    /**
+     * Answers the part of the subquery at or after the split time, which should
+     * come from {@link #getSplitTime} so that the buckets before it can be read
+     * from Accumulo without overlapping those of the cache
+     */
+    public Map<Set<Tag>, List<Aggregation>> subquery(QueryRequest msg, QueryRequest.SubQuery query, long splitTime)
+            throws TimelyException {
 
         Map<Set<Tag>, List<Aggregation>> aggregationList = new HashMap<>();
         long start = System.currentTimeMillis();
         try {
-            SortedKeyValueIterator<org.apache.accumulo.core.data.Key, org.apache.accumulo.core.data.Value> itr = null;
-            itr = setupIterator(msg, query, getSessionAuthorizations(msg), getAgeOffForMetric(query.getMetric()));
-            Map<Set<Tag>, Set<Tag>> matchingTagCache = new HashMap<>();
-            while (itr.hasTop()) {
-                Map<Set<Tag>, Aggregation> samples = AggregationIterator.decodeValue(itr.getTopValue());
-                for (Map.Entry<Set<Tag>, Aggregation> entry : samples.entrySet()) {
-                    Set<Tag> allMatchingTags = (Set<Tag>) matchingTagCache.get(entry.getKey());
-                    if (allMatchingTags == null) {
-                        allMatchingTags = new HashSet<>();
-                        for (Tag tag : entry.getKey()) {
-                            if (query.getTags().keySet().contains(tag.getKey())) {
-                                allMatchingTags.add(tag);
-                            }
-                        }
-                        matchingTagCache.put(entry.getKey(), allMatchingTags);
-                    }
-                    List<Aggregation> aggregations = aggregationList.getOrDefault(allMatchingTags, new ArrayList<>());
-                    aggregations.add(entry.getValue());
-                    aggregationList.put(allMatchingTags, aggregations);
-                }
-                itr.next();
-            }
+            Authorizations auths = getSessionAuthorizations(msg);
+            long startTs = Math.max(getQueryStart(msg, query, getAgeOffForMetric(query.getMetric())), splitTime);
+            Map<Set<Tag>, Aggregation> samples = downsampleAndAggregate(msg, query, startTs, auths);
+            addAggregations(query, samples, aggregationList, new HashMap<>());
             return aggregationList;
         } catch (Exception e) {
             LOG.error("Error during query: " + e.getMessage(), e);
@@ -397,18 +663,300 @@ public class DataStoreCache {
         }
     }
 
-    protected SortedKeyValueIterator<Key, Value> setupIterator(QueryRequest query, QueryRequest.SubQuery subQuery,
-            Authorizations authorizations, long ageOffForMetric) throws TimelyException {
+    private void addAggregations(QueryRequest.SubQuery query, Map<Set<Tag>, Aggregation> samples,
+            Map<Set<Tag>, List<Aggregation>> aggregationList, Map<Set<Tag>, Set<Tag>> matchingTagCache) {
+        Set<String> seriesKeys = query.getSeriesKeys();
+        for (Map.Entry<Set<Tag>, Aggregation> entry : samples.entrySet()) {
+            Set<Tag> allMatchingTags = (Set<Tag>) matchingTagCache.get(entry.getKey());
+            if (allMatchingTags == null) {
+                allMatchingTags = AggregationIterator.getGroup(entry.getKey(), seriesKeys);
+                matchingTagCache.put(entry.getKey(), allMatchingTags);
+            }
+            List<Aggregation> aggregations = aggregationList.getOrDefault(allMatchingTags, new ArrayList<>());
+            aggregations.add(entry.getValue());
+            aggregationList.put(allMatchingTags, aggregations);
+        }
+    }
 
-        SortedKeyValueIterator<org.apache.accumulo.core.data.Key, org.apache.accumulo.core.data.Value> itr = null;
+    /**
+     * Computes the same result as the iterator stack built by
+     * {@link #setupIterator}, without creating keys for the points. Each matching
+     * series is read from the coarsest rollup tier that can answer the downsample,
+     * otherwise its points are decoded straight into the downsample buckets with
+     * the rate applied in place.
+     *
+     * @return samples in the form returned by the iterator stack
+     */
+    private Map<Set<Tag>, Aggregation> downsampleAndAggregate(QueryRequest msg, QueryRequest.SubQuery query,
+            long startTs, Authorizations authorizations) throws Exception {
+        Class<? extends Aggregator> daggClass = DownsampleIterator.getDownsampleAggregator(query);
+        long downsamplePeriod = DownsampleIterator.getDownsamplePeriod(query);
+        long endTs = msg.getEnd();
+        long startOfFirstPeriod = startTs - (startTs % downsamplePeriod);
+        long endDistanceFromDownSample = endTs % downsamplePeriod;
+        long endOfLastPeriod = (endDistanceFromDownSample > 0 ? endTs + downsamplePeriod - endDistanceFromDownSample
+                : endTs);
+        if (startOfFirstPeriod >= endOfLastPeriod) {
+            return new HashMap<>();
+        }
 
-        long downsamplePeriod = DownsampleIterator.getDownsamplePeriod(subQuery);
+        VisibilityFilter visFilter = new VisibilityFilter(authorizations);
+        // in tag order like the keys of the iterator stack, series with the same
+        // tags in the query are then combined in the same order
+        Map<TaggedMetric, GorillaStore> stores = new TreeMap<>(
+                getGorillaStores(query.getMetric(), query.getMatchingTags()));
+        stores.keySet().removeIf(tm -> !tm.isVisible(visFilter));
+        List<Map.Entry<TaggedMetric, GorillaStore>> series = new ArrayList<>(stores.entrySet());
+        long elapsed = System.nanoTime();
+        AtomicLong cpuTime = new AtomicLong(0);
+        Downsample[] seriesDownsamples = null;
+        if (!query.isRate() && query.getDownsample().isPresent() && !query.getDownsample().get().endsWith("-none")
+                && RollupTier.supports(daggClass)) {
+            for (int i = rollupPeriods.length - 1; i >= 0 && seriesDownsamples == null; i--) {
+                if (downsamplePeriod % rollupPeriods[i] == 0) {
+                    long rollupPeriod = rollupPeriods[i];
+                    seriesDownsamples = downsampleSeries(series, cpuTime, (tm, store) -> {
+                        Downsample ds = new Downsample(startOfFirstPeriod, endOfLastPeriod, downsamplePeriod,
+                                daggClass.newInstance());
+                        if (!store.addRollup(rollupPeriod, startOfFirstPeriod, endOfLastPeriod, ds, daggClass)) {
+                            LOG.trace("Rollup tier {} incomplete for {}", rollupPeriod, tm);
+                            return null;
+                        }
+                        return ds;
+                    });
+                }
+            }
+        }
+        if (seriesDownsamples == null) {
+            seriesDownsamples = downsampleSeries(series, cpuTime, (tm, store) -> {
+                Downsample ds = new Downsample(startOfFirstPeriod, endOfLastPeriod, downsamplePeriod,
+                        daggClass.newInstance());
+                decode(store, startOfFirstPeriod, endOfLastPeriod, downsamplePeriod, daggClass, query, ds);
+                return ds;
+            });
+        }
+        subqueries.incrementAndGet();
+        subqueryCpuTime.addAndGet(cpuTime.get());
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Cache subquery {} read {} series in {}ms using {}ms of cpu", query, series.size(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - elapsed),
+                    TimeUnit.NANOSECONDS.toMillis(cpuTime.get()));
+        }
+        // merged in series order, as the iterator stack does
+        Map<Set<Tag>, Downsample> downsamples = new HashMap<>();
+        for (int i = 0; i < seriesDownsamples.length; i++) {
+            addDownsample(downsamples, series.get(i).getKey(), seriesDownsamples[i]);
+        }
+
+        Class<? extends Aggregator> aggClass = Aggregator.getAggregator(query.getAggregator());
+        if (aggClass == null || downsamples.isEmpty()) {
+            // put one by one, a copy of the map would be sized differently and
+            // iterate in another order, which decides the order series with the
+            // same query tags are combined in
+            Map<Set<Tag>, Aggregation> samples = new HashMap<>();
+            downsamples.forEach(samples::put);
+            return samples;
+        }
+        // same as the AggregationIterator, one aggregation across all series
+        // with the same group by tags
+        TagListParser parser = new TagListParser();
+        Set<Tag> tags = new HashSet<>(parser.parse(parser.combine(query.getTags())));
+        Set<String> groupBy = query.getGroupByKeys();
+        Map<Set<Tag>, Aggregation> samples = new HashMap<>();
+        for (Map.Entry<Set<Tag>, Downsample> entry : downsamples.entrySet()) {
+            Set<Tag> group = AggregationIterator.getAggregationTags(entry.getKey(), tags, groupBy);
+            Aggregation aggregation = samples.get(group);
+            if (aggregation == null) {
+                aggregation = new Aggregation(aggClass.newInstance());
+                samples.put(group, aggregation);
+            }
+            for (Sample sample : entry.getValue()) {
+                aggregation.add(sample.timestamp, sample.value);
+            }
+        }
+        return samples;
+    }
+
+    private interface SeriesDownsampler {
+
+        /**
+         * @return the downsample of the series, null if it can not be computed
+         */
+        Downsample apply(TaggedMetric taggedMetric, GorillaStore store) throws Exception;
+    }
+
+    /**
+     * Computes the downsample of each series. The series are split into at most one
+     * partition per query thread with at least minSeriesPerPartition series each,
+     * all but the first partition run on the query executor while the calling
+     * thread handles the first.
+     *
+     * @return downsamples in the order of the series, null if the downsample of any
+     *         series could not be computed
+     */
+    private Downsample[] downsampleSeries(List<Map.Entry<TaggedMetric, GorillaStore>> series, AtomicLong cpuTime,
+            SeriesDownsampler downsampler) throws Exception {
+        Downsample[] downsamples = new Downsample[series.size()];
+        int numPartitions = Math.min(queryThreads, (series.size() + minSeriesPerPartition - 1) / minSeriesPerPartition);
+        AtomicBoolean incomplete = new AtomicBoolean(false);
+        List<Future<Void>> futures = new ArrayList<>();
+        try {
+            for (int p = 1; p < numPartitions; p++) {
+                int from = (int) ((long) series.size() * p / numPartitions);
+                int to = (int) ((long) series.size() * (p + 1) / numPartitions);
+                futures.add(queryExecutor.submit(() -> {
+                    downsamplePartition(series, from, to, downsamples, incomplete, cpuTime, downsampler);
+                    return null;
+                }));
+            }
+            int to = numPartitions > 1 ? series.size() / numPartitions : series.size();
+            downsamplePartition(series, 0, to, downsamples, incomplete, cpuTime, downsampler);
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+            }
+        } finally {
+            futures.forEach(f -> f.cancel(true));
+        }
+        return incomplete.get() ? null : downsamples;
+    }
+
+    private static void downsamplePartition(List<Map.Entry<TaggedMetric, GorillaStore>> series, int from, int to,
+            Downsample[] downsamples, AtomicBoolean incomplete, AtomicLong cpuTime, SeriesDownsampler downsampler)
+            throws Exception {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        boolean measureCpu = threadMXBean.isCurrentThreadCpuTimeSupported();
+        long start = measureCpu ? threadMXBean.getCurrentThreadCpuTime() : 0;
+        try {
+            for (int i = from; i < to && !incomplete.get(); i++) {
+                Map.Entry<TaggedMetric, GorillaStore> e = series.get(i);
+                downsamples[i] = downsampler.apply(e.getKey(), e.getValue());
+                if (downsamples[i] == null) {
+                    incomplete.set(true);
+                }
+            }
+        } finally {
+            if (measureCpu) {
+                cpuTime.addAndGet(threadMXBean.getCurrentThreadCpuTime() - start);
+            }
+        }
+    }
+
+    private static void addDownsample(Map<Set<Tag>, Downsample> downsamples, TaggedMetric taggedMetric, Downsample ds) {
+        if (ds.getNumBuckets() == 0) {
+            return;
+        }
+        // like the keys read by the DownsampleIterator, without the visibility
+        Set<Tag> tags = new HashSet<>();
+        taggedMetric.getTags().forEach((k, v) -> {
+            if (!k.equals(TaggedMetric.VISIBILITY_TAG)) {
+                tags.add(new Tag(k, v));
+            }
+        });
+        downsamples.merge(tags, ds, (a, b) -> {
+            a.merge(b);
+            return a;
+        });
+    }
+
+    /**
+     * Adds the points of the store in [begin, end] to the downsample, or their rate
+     * if the query is a rate query. Of points with the same timestamp only the last
+     * is used, as with keys. A closed block that falls within one downsample period
+     * is added from its summary without being decompressed.
+     */
+    private static void decode(GorillaStore store, long begin, long end, long period,
+            Class<? extends Aggregator> daggClass, QueryRequest.SubQuery query, Downsample ds) {
+        boolean isRate = query.isRate();
+        boolean useSummaries = !isRate && RollupTier.supports(daggClass);
+        QueryRequest.RateOption rateOptions = query.getRateOptions();
+        boolean isCounter = rateOptions != null && rateOptions.isCounter();
+        long maxCounter = isCounter ? rateOptions.getCounterMax() : 0;
+        long resetValue = isCounter ? rateOptions.getResetValue() : 0;
+
+        long pendingTs = Long.MIN_VALUE;
+        double pendingValue = 0;
+        long previousTs = Long.MIN_VALUE;
+        double previousValue = 0;
+        List<WrappedGorillaDecompressor> decompressors = store.getDecompressors(begin, end);
+        for (int i = 0; i < decompressors.size(); i++) {
+            try (WrappedGorillaDecompressor decompressor = decompressors.get(i)) {
+                BlockSummary summary = useSummaries ? decompressor.getSummary() : null;
+                // the points of the block must not share a timestamp with those
+                // of the blocks around it, which would replace them
+                if (summary != null && summary.getOldestTimestamp() >= begin && summary.getNewestTimestamp() <= end
+                        && (summary.getOldestTimestamp() - begin) / period == (summary.getNewestTimestamp() - begin)
+                                / period
+                        && summary.getOldestTimestamp() > pendingTs && (i + 1 == decompressors.size()
+                                || decompressors.get(i + 1).getOldestTimestamp() > summary.getNewestTimestamp())) {
+                    if (pendingTs != Long.MIN_VALUE) {
+                        ds.add(pendingTs, pendingValue);
+                        pendingTs = Long.MIN_VALUE;
+                    }
+                    ds.add(summary.getOldestTimestamp(), summary.getValue(daggClass), (int) summary.getCount());
+                    continue;
+                }
+                Pair p;
+                while ((p = decompressor.readPair()) != null) {
+                    long ts = p.getTimestamp();
+                    if (ts < begin) {
+                        continue;
+                    } else if (ts > end) {
+                        break;
+                    }
+                    if (ts != pendingTs && pendingTs != Long.MIN_VALUE) {
+                        if (!isRate) {
+                            ds.add(pendingTs, pendingValue);
+                        } else if (previousTs != Long.MIN_VALUE) {
+                            ds.add(pendingTs, RateIterator.rate(previousTs, previousValue, pendingTs, pendingValue,
+                                    isCounter, maxCounter, resetValue));
+                        }
+                        previousTs = pendingTs;
+                        previousValue = pendingValue;
+                    }
+                    pendingTs = ts;
+                    pendingValue = p.getDoubleValue();
+                }
+            }
+        }
+        if (pendingTs != Long.MIN_VALUE) {
+            if (!isRate) {
+                ds.add(pendingTs, pendingValue);
+            } else if (previousTs != Long.MIN_VALUE) {
+                ds.add(pendingTs, RateIterator.rate(previousTs, previousValue, pendingTs, pendingValue, isCounter,
+                        maxCounter, resetValue));
+            }
+        }
+    }
+
+    /**
+     * @return start of the query moved forward past data that has been aged off or
+     *         evicted from the cache
+     */
+    private long getQueryStart(QueryRequest query, QueryRequest.SubQuery subQuery, long ageOffForMetric) {
         long startTs = query.getStart();
-        long endTs = query.getEnd();
         long ageOffTs = System.currentTimeMillis() - ageOffForMetric;
         if (startTs <= ageOffTs) {
             startTs = ageOffTs + 1;
         }
+        long horizon = getHorizon(subQuery.getMetric());
+        if (startTs < horizon) {
+            startTs = horizon;
+        }
+        return startTs;
+    }
+
+    protected SortedKeyValueIterator<Key, Value> setupIterator(QueryRequest query, QueryRequest.SubQuery subQuery,
+            Authorizations authorizations, long ageOffForMetric) throws TimelyException {
+
+        SortedKeyValueIterator<org.apache.accumulo.core.data.Key, org.apache.accumulo.core.data.Value> itr = null;
+
+        long downsamplePeriod = DownsampleIterator.getDownsamplePeriod(subQuery);
+        long startTs = getQueryStart(query, subQuery, ageOffForMetric);
+        long endTs = query.getEnd();
 
         long startOfFirstPeriod = startTs - (startTs % downsamplePeriod);
         long endDistanceFromDownSample = endTs % downsamplePeriod;
@@ -462,7 +1010,8 @@ public class DataStoreCache {
             if (aggClass != null) {
                 LOG.trace("Aggregator type {}", aggClass.getSimpleName());
                 IteratorSetting aggregation = new IteratorSetting(501, AggregationIterator.class);
-                AggregationIterator.setAggregationOptions(aggregation, subQuery.getTags(), aggClass.getName());
+                AggregationIterator.setAggregationOptions(aggregation, subQuery.getTags(), subQuery.getGroupByKeys(),
+                        aggClass.getName());
                 AggregationIterator aggregationIterator = new AggregationIterator();
                 aggregationIterator.init(itr, aggregation.getOptions(), null);
                 itr = aggregationIterator;
@@ -522,82 +1071,156 @@ public class DataStoreCache {
     }
 
     public long getNewestTimestamp(String metric) {
-
         long newest = 0;
-        long stamp = gorillaMapLock.readLock();
-        try {
-            Map<TaggedMetric, GorillaStore> gorillaStoreMap = gorillaMap.get(metric);
-            for (Map.Entry<TaggedMetric, GorillaStore> entry : gorillaStoreMap.entrySet()) {
-                if (entry.getValue().getNewestTimestamp() > newest) {
-                    newest = entry.getValue().getNewestTimestamp();
+        Map<TaggedMetric, GorillaStore> gorillaStoreMap = gorillaMap.get(metric);
+        if (gorillaStoreMap != null) {
+            for (GorillaStore store : gorillaStoreMap.values()) {
+                if (store.getNewestTimestamp() > newest) {
+                    newest = store.getNewestTimestamp();
                 }
             }
-        } finally {
-            gorillaMapLock.unlockRead(stamp);
         }
         return newest;
     }
 
     public long getOldestTimestamp(String metric) {
         long oldest = Long.MAX_VALUE;
-        long stamp = gorillaMapLock.readLock();
-        try {
-            Map<TaggedMetric, GorillaStore> gorillaStoreMap = gorillaMap.get(metric);
-            if (gorillaStoreMap != null) {
-                for (Map.Entry<TaggedMetric, GorillaStore> entry : gorillaStoreMap.entrySet()) {
-                    if (entry.getValue().getOldestTimestamp() < oldest) {
-                        oldest = entry.getValue().getOldestTimestamp();
-                    }
+        Map<TaggedMetric, GorillaStore> gorillaStoreMap = gorillaMap.get(metric);
+        if (gorillaStoreMap != null) {
+            for (GorillaStore store : gorillaStoreMap.values()) {
+                if (store.getOldestTimestamp() < oldest) {
+                    oldest = store.getOldestTimestamp();
                 }
             }
-        } finally {
-            gorillaMapLock.unlockRead(stamp);
+        }
+        long horizon = getHorizon(metric);
+        if (oldest < horizon) {
+            oldest = horizon;
         }
         return oldest;
     }
 
-    public long getNewestTimestamp() {
+    /**
+     * @return the time before which the cache may be missing points of the metric,
+     *         because they were evicted or are still being backfilled
+     */
+    private long getHorizon(String metric) {
+        long horizon = evictionHorizon.getOrDefault(metric, Long.MIN_VALUE);
+        return Math.max(horizon, backfillHorizon.getOrDefault(metric, Long.MIN_VALUE));
+    }
 
+    /**
+     * The time from which the cache holds every point of the metric that Accumulo
+     * holds: the oldest cached point, but no earlier than the age-off of the cache,
+     * the newest point evicted or the restart after a snapshot with an unfilled
+     * gap, rounded up to a downsample period boundary so that no bucket is split
+     * between the cache and Accumulo
+     *
+     * @return the split time, Long.MAX_VALUE if the metric is not cached
+     */
+    public long getSplitTime(String metric, long downsamplePeriod) {
+        long oldest = getOldestTimestamp(metric);
+        if (oldest == Long.MAX_VALUE) {
+            return Long.MAX_VALUE;
+        }
+        long completeFrom = Math.max(oldest, System.currentTimeMillis() - getAgeOffForMetric(metric) + 1);
+        long offset = Math.floorMod(completeFrom, downsamplePeriod);
+        return offset == 0 ? completeFrom : completeFrom + downsamplePeriod - offset;
+    }
+
+    public long getNewestTimestamp() {
         long newest = 0;
-        long stamp = gorillaMapLock.readLock();
-        try {
-            for (String metric : gorillaMap.keySet()) {
-                Long newestForMetric = getNewestTimestamp(metric);
-                if (newestForMetric > newest) {
-                    newest = newestForMetric;
-                }
+        for (String metric : gorillaMap.keySet()) {
+            long newestForMetric = getNewestTimestamp(metric);
+            if (newestForMetric > newest) {
+                newest = newestForMetric;
             }
-        } finally {
-            gorillaMapLock.unlockRead(stamp);
         }
         return newest;
     }
 
     public long getOldestTimestamp() {
         long oldest = Long.MAX_VALUE;
-        long stamp = gorillaMapLock.readLock();
-        try {
-            for (String metric : gorillaMap.keySet()) {
-                Long oldestForMetric = getOldestTimestamp(metric);
-                if (oldestForMetric < oldest) {
-                    oldest = oldestForMetric;
-                }
+        for (String metric : gorillaMap.keySet()) {
+            long oldestForMetric = getOldestTimestamp(metric);
+            if (oldestForMetric < oldest) {
+                oldest = oldestForMetric;
             }
-        } finally {
-            gorillaMapLock.unlockRead(stamp);
         }
         return oldest;
     }
 
+    public void setBackfill(CacheBackfill backfill) {
+        this.backfill = backfill;
+    }
+
+    /**
+     * Starts loading the last hours of the cacheable metrics from Accumulo
+     *
+     * @return false if there is nothing to load from or a backfill is running
+     */
+    public boolean startBackfill(int hours) {
+        return backfill != null && backfill.start(hours);
+    }
+
+    /**
+     * Hides the history added to the metric until {@link #setWarm} is called, so
+     * that queries do not see the series that are loaded before the others
+     */
+    public void beginBackfill(String metric) {
+        backfillHorizon.put(metric, getOldestTimestamp(metric));
+    }
+
+    public void setWarm(String metric) {
+        warmMetrics.add(metric);
+        backfillHorizon.remove(metric);
+    }
+
+    /**
+     * Drops the history added to the metric since {@link #beginBackfill}, so that a
+     * failed backfill leaves the metric as it was and can be run again
+     */
+    public void abortBackfill(String metric) {
+        Long horizon = backfillHorizon.get(metric);
+        if (horizon == null) {
+            return;
+        }
+        Map<TaggedMetric, GorillaStore> metricMap = gorillaMap.get(metric);
+        if (metricMap != null) {
+            for (GorillaStore store : metricMap.values()) {
+                store.removeArchivedCompressorsBefore(horizon);
+            }
+        }
+        backfillHorizon.remove(metric, horizon);
+    }
+
+    /**
+     * @return true if the history of the metric has been loaded, the cache then
+     *         holds all data of the metric within its age-off
+     */
+    public boolean isWarm(String metric) {
+        return warmMetrics.contains(metric);
+    }
+
     public CacheResponse getCacheStatus() {
         CacheResponse response = new CacheResponse();
         response.setOldestTimestamp(getOldestTimestamp());
         response.setNewestTimestamp(getNewestTimestamp());
-        long stamp = gorillaMapLock.readLock();
-        try {
-            response.setMetrics(new ArrayList<>(gorillaMap.keySet()));
-        } finally {
-            gorillaMapLock.unlockRead(stamp);
+        response.setMetrics(new ArrayList<>(gorillaMap.keySet()));
+        response.setOffHeapBytes(WrappedGorillaCompressor.getOffHeapBytes());
+        response.setWarmMetrics(new ArrayList<>(warmMetrics));
+        response.setMaxMemoryBytes(maxMemory);
+        response.setUsedMemoryBytes(usedMemory);
+        response.setEvictedSeries(evictedSeries.get());
+        response.setTrimmedSeries(trimmedSeries.get());
+        response.setEvictedBytes(evictedBytes.get());
+        response.setSubqueries(subqueries.get());
+        response.setSubqueryCpuMillis(TimeUnit.NANOSECONDS.toMillis(subqueryCpuTime.get()));
+        if (backfill != null) {
+            response.setBackfillRunning(backfill.isRunning());
+            response.setBackfillMetricsTotal(backfill.getMetricsTotal());
+            response.setBackfillMetricsDone(backfill.getMetricsDone());
+            response.setBackfillPoints(backfill.getPointsLoaded());
         }
         return response;
     }
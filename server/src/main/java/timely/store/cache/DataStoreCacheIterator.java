@@ -2,13 +2,11 @@ package timely.store.cache;
 
 import java.io.IOException;
 import java.util.Collection;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
-import java.util.Set;
 import java.util.TreeMap;
 
 import org.apache.accumulo.core.data.ByteSequence;
@@ -36,7 +34,6 @@ public class DataStoreCacheIterator implements SortedKeyValueIterator<Key, Value
     private WrappedGorillaDecompressorIterator decompressors = null;
     private KeyValue currentKeyValue = null;
     private Queue<KeyValue> kvQueue = new LinkedList<>();
-    private Set<TaggedMetric> matchingTaggedMetrics = new HashSet<>();
 
     public DataStoreCacheIterator(DataStoreCache store, VisibilityFilter visibilityFilter, QueryRequest.SubQuery query,
             long startTs, long endTs) {
@@ -46,7 +43,8 @@ public class DataStoreCacheIterator implements SortedKeyValueIterator<Key, Value
         this.query = query;
         this.startTs = startTs;
         this.endTs = endTs;
-        Map<TaggedMetric, GorillaStore> storeMap = this.store.getGorillaStores(query.getMetric());
+        Map<TaggedMetric, GorillaStore> storeMap = this.store.getGorillaStores(query.getMetric(),
+                query.getMatchingTags());
         this.storeItr = storeMap.entrySet().iterator();
         this.decompressors = getNextDecompressorIterable();
 
@@ -61,24 +59,13 @@ public class DataStoreCacheIterator implements SortedKeyValueIterator<Key, Value
     }
 
     private WrappedGorillaDecompressorIterator getNextDecompressorIterable() {
-        Map<String, String> requestedTags = query.getTags();
         WrappedGorillaDecompressorIterator nextPair = null;
         while (nextPair == null && storeItr.hasNext()) {
             Map.Entry<TaggedMetric, GorillaStore> entry = storeItr.next();
             TaggedMetric currentTaggedMetric = entry.getKey();
 
-            // keep a cache of tagged metrics that match
-            boolean addCurrent = false;
-            if (matchingTaggedMetrics.contains(currentTaggedMetric)) {
-                addCurrent = true;
-            } else {
-                if (currentTaggedMetric.matches(requestedTags) && entry.getKey().isVisible(visibilityFilter)) {
-                    addCurrent = true;
-                    matchingTaggedMetrics.add(currentTaggedMetric);
-                }
-            }
-
-            if (addCurrent) {
+            // the stores already match the requested tags
+            if (currentTaggedMetric.isVisible(visibilityFilter)) {
                 List<WrappedGorillaDecompressor> listDecompressors = entry.getValue().getDecompressors(startTs, endTs);
                 if (listDecompressors.size() > 0) {
                     nextPair = new WrappedGorillaDecompressorIterator(currentTaggedMetric, listDecompressors);
@@ -1,46 +1,51 @@
 package timely.store.cache;
 
-import java.io.*;
-import java.net.URI;
-import java.net.URISyntaxException;
-import java.text.SimpleDateFormat;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.locks.StampedLock;
 
-import fi.iki.yak.ts.compression.gorilla.GorillaDecompressor;
-import fi.iki.yak.ts.compression.gorilla.LongArrayInput;
-import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.fs.FSDataInputStream;
-import org.apache.hadoop.fs.FileStatus;
-import org.apache.hadoop.fs.FileSystem;
-import org.apache.hadoop.fs.Path;
+import fi.iki.yak.ts.compression.gorilla.Pair;
 import timely.model.Metric;
+import timely.sample.Aggregator;
+import timely.sample.Downsample;
 
 public class GorillaStore {
 
-    private Queue<WrappedGorillaCompressor> archivedCompressors = new LinkedList<WrappedGorillaCompressor>();
+    private Deque<WrappedGorillaCompressor> archivedCompressors = new LinkedList<WrappedGorillaCompressor>();
     private StampedLock archivedCompressorLock = new StampedLock();
     private StampedLock currentCompressorLock = new StampedLock();
+    private StampedLock rollupLock = new StampedLock();
 
     transient private WrappedGorillaCompressor current = null;
-    transient private List<Metric> metricCache = new ArrayList<>();
+    transient private StagingBuffer staged = new StagingBuffer();
+
+    private static final long BACKFILL_BLOCK_MILLIS = 3600 * 1000;
+    // the store, its locks, staging buffer and the index entry
+    private static final long SIZE_OVERHEAD = 512;
+    private static final long[] NO_ROLLUPS = new long[0];
+
+    // ordered from the finest to the coarsest period
+    private final RollupTier[] rollups;
 
     private long oldestTimestamp = Long.MAX_VALUE;
     private long newestTimestamp = -1;
+    private volatile long lastAccess = System.currentTimeMillis();
 
     public GorillaStore() {
-
+        this(NO_ROLLUPS);
     }
 
-    public GorillaStore(FileSystem fs, String metric, timely.Configuration conf) throws IOException {
-        String baseDir = "/timely/cache";
-        Path directory = new Path(baseDir + "/" + metric);
-        List<WrappedGorillaCompressor> compressors = readCompressors(fs, directory);
-        long stamp = archivedCompressorLock.writeLock();
-        try {
-            archivedCompressors.addAll(compressors);
-        } finally {
-            archivedCompressorLock.unlockWrite(stamp);
+    /**
+     * @param rollupPeriods
+     *            periods in milliseconds of the rollup tiers to keep, in ascending
+     *            order
+     */
+    public GorillaStore(long[] rollupPeriods) {
+        rollups = new RollupTier[rollupPeriods.length];
+        for (int i = 0; i < rollupPeriods.length; i++) {
+            rollups[i] = new RollupTier(rollupPeriods[i]);
         }
     }
 
@@ -64,6 +69,7 @@ public class GorillaStore {
 
     public long ageOffArchivedCompressors(long maxAge) {
         long numRemoved = 0;
+        long newestRemoved = -1;
         long oldestRemainingTimestamp = Long.MAX_VALUE;
         long stamp = archivedCompressorLock.writeLock();
         try {
@@ -75,6 +81,8 @@ public class GorillaStore {
                     long timeSinceNewestTimestamp = now - c.getNewestTimestamp();
                     if (timeSinceNewestTimestamp >= maxAge) {
                         itr.remove();
+                        newestRemoved = Math.max(newestRemoved, c.getNewestTimestamp());
+                        c.free();
                         numRemoved++;
                     } else {
                         if (c.getOldestTimestamp() < oldestRemainingTimestamp) {
@@ -86,61 +94,311 @@ public class GorillaStore {
                     oldestTimestamp = oldestRemainingTimestamp;
                 }
             }
+            if (newestRemoved >= 0) {
+                removeRollupsThrough(newestRemoved);
+            }
         } finally {
             archivedCompressorLock.unlockWrite(stamp);
         }
         return numRemoved;
     }
 
-    protected void writeCompressor(String metric, WrappedGorillaCompressor wrappedGorillaCompressor)
-            throws IOException {
+    /**
+     * Removes the archived compressors holding points before the timestamp and
+     * releases their off-heap memory
+     *
+     * @return number of compressors removed
+     */
+    public long removeArchivedCompressorsBefore(long timestamp) {
+        long numRemoved = 0;
+        long newestRemoved = -1;
+        long archiveStamp = archivedCompressorLock.writeLock();
+        long currentStamp = currentCompressorLock.readLock();
+        try {
+            long oldestRemaining = current == null ? Long.MAX_VALUE : current.getOldestTimestamp();
+            Iterator<WrappedGorillaCompressor> itr = archivedCompressors.iterator();
+            while (itr.hasNext()) {
+                WrappedGorillaCompressor c = itr.next();
+                if (c.getOldestTimestamp() < timestamp) {
+                    itr.remove();
+                    newestRemoved = Math.max(newestRemoved, c.getNewestTimestamp());
+                    c.free();
+                    numRemoved++;
+                } else {
+                    oldestRemaining = Math.min(oldestRemaining, c.getOldestTimestamp());
+                }
+            }
+            if (numRemoved > 0) {
+                oldestTimestamp = oldestRemaining;
+            }
+            if (newestRemoved >= 0) {
+                removeRollupsThrough(newestRemoved);
+            }
+        } finally {
+            currentCompressorLock.unlockRead(currentStamp);
+            archivedCompressorLock.unlockWrite(archiveStamp);
+        }
+        return numRemoved;
+    }
 
+    /**
+     * Removes all archived compressors and releases their off-heap memory, the
+     * current compressor is kept
+     *
+     * @return newest timestamp of the removed compressors, -1 if there were none
+     */
+    public long freeArchivedCompressors() {
+        long archiveStamp = archivedCompressorLock.writeLock();
+        long currentStamp = currentCompressorLock.readLock();
         try {
-            Configuration configuration = new Configuration();
-            FileSystem fs = FileSystem.get(new URI("hdfs://localhost:8020"), configuration);
-            SimpleDateFormat sdf = new SimpleDateFormat("yyyyMMdd-HHmmss.SSS");
-            sdf.setTimeZone(TimeZone.getTimeZone("GMT"));
-            String baseDir = "/timely/cache";
-            Path directory = new Path(baseDir + "/" + metric);
-            String fileName = metric + "-" + sdf.format(new Date(wrappedGorillaCompressor.getOldestTimestamp()));
-            Path outputPath = new Path(directory, fileName);
-            if (!fs.exists(directory)) {
-                fs.mkdirs(directory);
+            long newestRemoved = -1;
+            for (WrappedGorillaCompressor c : archivedCompressors) {
+                newestRemoved = Math.max(newestRemoved, c.getNewestTimestamp());
+                c.free();
             }
-            if (fs.exists(outputPath)) {
-                throw new IOException("output path exists");
+            archivedCompressors.clear();
+            oldestTimestamp = current == null ? Long.MAX_VALUE : current.getOldestTimestamp();
+            if (newestRemoved >= 0) {
+                removeRollupsThrough(newestRemoved);
             }
-            OutputStream os = fs.create(outputPath);
-            // write object to hdfs file
-            ObjectOutputStream oos = new ObjectOutputStream(os);
-            oos.writeObject(wrappedGorillaCompressor);
-            oos.close();
-        } catch (URISyntaxException e) {
-            throw new IOException(e);
+            return newestRemoved;
+        } finally {
+            currentCompressorLock.unlockRead(currentStamp);
+            archivedCompressorLock.unlockWrite(archiveStamp);
+        }
+    }
+
+    /**
+     * @return estimate of the memory held by this store, on and off-heap
+     */
+    public long getSizeInBytes() {
+        long size = SIZE_OVERHEAD;
+        long stamp = archivedCompressorLock.readLock();
+        try {
+            for (WrappedGorillaCompressor c : archivedCompressors) {
+                size += c.getSizeInBytes();
+            }
+        } finally {
+            archivedCompressorLock.unlockRead(stamp);
+        }
+        stamp = currentCompressorLock.readLock();
+        try {
+            if (current != null) {
+                size += current.getSizeInBytes();
+            }
+        } finally {
+            currentCompressorLock.unlockRead(stamp);
+        }
+        stamp = rollupLock.readLock();
+        try {
+            for (RollupTier tier : rollups) {
+                size += tier.getSizeInBytes();
+            }
+        } finally {
+            rollupLock.unlockRead(stamp);
+        }
+        return size;
+    }
+
+    private void removeRollupsThrough(long timestamp) {
+        long stamp = rollupLock.writeLock();
+        try {
+            for (RollupTier tier : rollups) {
+                tier.removeThrough(timestamp);
+            }
+        } finally {
+            rollupLock.unlockWrite(stamp);
+        }
+    }
+
+    // callers hold the rollup write lock
+    private void addToRollups(long timestamp, double value) {
+        for (RollupTier tier : rollups) {
+            tier.add(timestamp, value);
         }
     }
 
-    protected List<WrappedGorillaCompressor> readCompressors(FileSystem fs, Path directory) throws IOException {
+    /**
+     * Adds the points in [begin, end] to the downsample from the rollup tier with
+     * the given period. The downsample must start at begin, end must be at a period
+     * boundary and the downsample period a multiple of the tier period. Points at
+     * end start a new downsample period and are read from the raw blocks.
+     *
+     * @return false if the store has no such tier or the tier is missing points
+     *         after begin, the downsample is unchanged
+     */
+    public boolean addRollup(long period, long begin, long end, Downsample downsample,
+            Class<? extends Aggregator> aggClass) {
+        lastAccess = System.currentTimeMillis();
+        long stamp = rollupLock.readLock();
+        try {
+            RollupTier rollup = null;
+            for (RollupTier tier : rollups) {
+                if (tier.getPeriod() == period) {
+                    rollup = tier;
+                }
+            }
+            if (rollup == null || !rollup.isComplete(begin)) {
+                return false;
+            }
+            rollup.addTo(downsample, begin, end, aggClass);
+        } finally {
+            rollupLock.unlockRead(stamp);
+        }
+        if (newestTimestamp >= end) {
+            for (WrappedGorillaDecompressor d : getDecompressors(end, end)) {
+                try (WrappedGorillaDecompressor decompressor = d) {
+                    Pair p;
+                    while ((p = decompressor.readPair()) != null && p.getTimestamp() <= end) {
+                        if (p.getTimestamp() == end) {
+                            downsample.add(end, p.getDoubleValue());
+                        }
+                    }
+                }
+            }
+        }
+        return true;
+    }
 
-        List<WrappedGorillaCompressor> compressors = new ArrayList<>();
+    /**
+     * @return time of the last query of this store, or of its creation if it has
+     *         not been queried
+     */
+    public long getLastAccess() {
+        return lastAccess;
+    }
 
-        ObjectInputStream ois = null;
+    /**
+     * Writes the archived blocks and the points of the current block, callers
+     * should {@link #flush()} first so that staged points are included
+     */
+    void writeSnapshot(DataOutputStream out) throws IOException {
+        long archiveStamp = archivedCompressorLock.readLock();
+        long currentStamp = currentCompressorLock.readLock();
         try {
-            FileStatus fileStatus[] = fs.listStatus(directory);
-            for (FileStatus status : fileStatus) {
-                FSDataInputStream inputStream = fs.open(status.getPath());
-                ois = new ObjectInputStream(inputStream);
-                WrappedGorillaCompressor copyCompressor = (WrappedGorillaCompressor) ois.readObject();
-                compressors.add(copyCompressor);
+            out.writeLong(oldestTimestamp);
+            out.writeLong(newestTimestamp);
+            out.writeInt(archivedCompressors.size());
+            for (WrappedGorillaCompressor c : archivedCompressors) {
+                c.writeArchived(out);
+            }
+            // the current block is still open, write its points so that it can
+            // be rebuilt and appended to after a restart
+            if (current == null) {
+                out.writeInt(0);
+            } else {
+                out.writeInt((int) current.getNumEntries());
+                WrappedGorillaDecompressor d = current.getDecompressor();
+                Pair p;
+                while ((p = d.readPair()) != null) {
+                    out.writeLong(p.getTimestamp());
+                    out.writeLong(p.getLongValue());
+                }
             }
-        } catch (ClassNotFoundException e) {
-            throw new IOException(e);
         } finally {
-            if (ois != null) {
-                ois.close();
+            currentCompressorLock.unlockRead(currentStamp);
+            archivedCompressorLock.unlockRead(archiveStamp);
+        }
+    }
+
+    static GorillaStore readSnapshot(ByteBuffer in, long[] rollupPeriods) {
+        GorillaStore store = new GorillaStore(rollupPeriods);
+        long oldest = in.getLong();
+        long newest = in.getLong();
+        int numArchived = in.getInt();
+        for (int i = 0; i < numArchived; i++) {
+            long numEntries = in.getLong();
+            long blockOldest = in.getLong();
+            long blockNewest = in.getLong();
+            int length = in.getInt();
+            ByteBuffer block = in.slice();
+            block.limit(length);
+            store.archivedCompressors
+                    .add(WrappedGorillaCompressor.archived(numEntries, blockOldest, blockNewest, block));
+            in.position(in.position() + length);
+        }
+        // rollups are not part of the snapshot, so that the tiers may change
+        // between restarts
+        if (rollupPeriods.length > 0) {
+            for (WrappedGorillaCompressor c : store.archivedCompressors) {
+                try (WrappedGorillaDecompressor d = c.getDecompressor()) {
+                    Pair p;
+                    while ((p = d.readPair()) != null) {
+                        store.addToRollups(p.getTimestamp(), p.getDoubleValue());
+                    }
+                }
             }
         }
-        return compressors;
+        int numPoints = in.getInt();
+        for (int i = 0; i < numPoints; i++) {
+            long timestamp = in.getLong();
+            store.addValue(timestamp, Double.longBitsToDouble(in.getLong()));
+        }
+        store.oldestTimestamp = oldest;
+        store.newestTimestamp = newest;
+        return store;
+    }
+
+    /**
+     * Adds points that are older than anything in this store as archived blocks
+     * ahead of the existing blocks, one block per hour. Points must be in timestamp
+     * order, points at or after the oldest timestamp in the store are skipped.
+     *
+     * @return number of points added
+     */
+    public long backfill(long[] timestamps, double[] values, int length) {
+        long archiveStamp = archivedCompressorLock.writeLock();
+        long currentStamp = currentCompressorLock.writeLock();
+        try {
+            long cutoff = oldestTimestamp;
+            Deque<WrappedGorillaCompressor> blocks = new LinkedList<>();
+            RollupTier[] olderRollups = new RollupTier[rollups.length];
+            for (int i = 0; i < rollups.length; i++) {
+                olderRollups[i] = new RollupTier(rollups[i].getPeriod());
+            }
+            WrappedGorillaCompressor block = null;
+            long last = Long.MIN_VALUE;
+            long added = 0;
+            for (int i = 0; i < length && timestamps[i] < cutoff; i++) {
+                long ts = timestamps[i];
+                if (ts <= last) {
+                    continue;
+                }
+                if (block == null || ts - block.getOldestTimestamp() >= BACKFILL_BLOCK_MILLIS) {
+                    if (block != null) {
+                        block.close();
+                    }
+                    block = new WrappedGorillaCompressor(ts);
+                    blocks.addFirst(block);
+                }
+                block.addValue(ts, values[i]);
+                for (RollupTier tier : olderRollups) {
+                    tier.add(ts, values[i]);
+                }
+                last = ts;
+                added++;
+            }
+            if (block != null) {
+                block.close();
+                blocks.forEach(archivedCompressors::addFirst);
+                oldestTimestamp = blocks.getLast().getOldestTimestamp();
+                if (newestTimestamp < last) {
+                    newestTimestamp = last;
+                }
+                long rollupStamp = rollupLock.writeLock();
+                try {
+                    for (int i = 0; i < rollups.length; i++) {
+                        rollups[i].prepend(olderRollups[i], cutoff);
+                    }
+                } finally {
+                    rollupLock.unlockWrite(rollupStamp);
+                }
+            }
+            return added;
+        } finally {
+            currentCompressorLock.unlockWrite(currentStamp);
+            archivedCompressorLock.unlockWrite(archiveStamp);
+        }
     }
 
     public void archiveCurrentCompressor() {
@@ -162,14 +420,13 @@ public class GorillaStore {
     public List<WrappedGorillaDecompressor> getDecompressors(long begin, long end) {
 
         List<WrappedGorillaDecompressor> decompressors = new ArrayList<>();
+        lastAccess = System.currentTimeMillis();
 
         long stamp = archivedCompressorLock.readLock();
         try {
             for (WrappedGorillaCompressor r : archivedCompressors) {
                 if (r.inRange(begin, end)) {
-                    GorillaDecompressor d = new GorillaDecompressor(new LongArrayInput(r.getCompressorOutput()));
-                    // use -1 length since this compressor is closed
-                    decompressors.add(new WrappedGorillaDecompressor(d, -1));
+                    decompressors.add(r.getDecompressor());
                 }
             }
         } finally {
@@ -181,11 +438,7 @@ public class GorillaStore {
         stamp = currentCompressorLock.readLock();
         try {
             if (current != null && current.inRange(begin, end)) {
-                LongArrayInput decompressorByteBufferInput = new LongArrayInput(current.getCompressorOutput());
-                GorillaDecompressor d = new GorillaDecompressor(decompressorByteBufferInput);
-
-                WrappedGorillaDecompressor wd = new WrappedGorillaDecompressor(d, current.getNumEntries());
-                decompressors.add(wd);
+                decompressors.add(current.getDecompressor());
             }
         } finally {
             currentCompressorLock.unlockRead(stamp);
@@ -194,36 +447,28 @@ public class GorillaStore {
     }
 
     public void flush() {
-
-        List<Metric> tempCache = new ArrayList<>();
-        synchronized (metricCache) {
-            tempCache.addAll(metricCache);
-            metricCache.clear();
+        if (staged.isEmpty()) {
+            return;
         }
-
         long stamp = currentCompressorLock.writeLock();
+        long rollupStamp = rollupLock.writeLock();
         try {
-            WrappedGorillaCompressor c = null;
-            for (Metric m : tempCache) {
-                long ts = m.getValue().getTimestamp();
-                double v = m.getValue().getMeasure();
+            // the write lock also makes this the only thread draining
+            staged.drain((ts, v) -> {
                 if (ts > newestTimestamp) {
                     newestTimestamp = ts;
-                    if (c == null) {
-                        c = getCompressor(ts, stamp);
-                    }
-                    c.addValue(ts, v);
+                    getCompressor(ts, stamp).addValue(ts, v);
+                    addToRollups(ts, v);
                 }
-            }
+            });
         } finally {
+            rollupLock.unlockWrite(rollupStamp);
             currentCompressorLock.unlockWrite(stamp);
         }
     }
 
     public void addValue(Metric metric) {
-        synchronized (metricCache) {
-            metricCache.add(metric);
-        }
+        staged.add(metric.getValue().getTimestamp(), metric.getValue().getMeasure());
     }
 
     public void addValue(long timestamp, double value) {
@@ -232,9 +477,12 @@ public class GorillaStore {
         if (timestamp >= newestTimestamp) {
             newestTimestamp = timestamp;
             long stamp = currentCompressorLock.writeLock();
+            long rollupStamp = rollupLock.writeLock();
             try {
                 getCompressor(timestamp, stamp).addValue(timestamp, value);
+                addToRollups(timestamp, value);
             } finally {
+                rollupLock.unlockWrite(rollupStamp);
                 currentCompressorLock.unlockWrite(stamp);
             }
         }
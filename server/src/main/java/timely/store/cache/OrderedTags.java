@@ -9,15 +9,21 @@ import java.util.regex.Pattern;
 
 import org.apache.commons.lang3.tuple.Pair;
 
-public class OrderedTags {
+public class OrderedTags implements Comparable<OrderedTags> {
 
     private Set<Pair<String, String>> tagSet = new TreeSet<>();
     private static final Pattern REGEX_TEST = Pattern.compile("^\\w+$");
+    private final int hashCode;
 
     public OrderedTags(Map<String, String> tags) {
         for (Map.Entry<String, String> entry : tags.entrySet()) {
             tagSet.add(Pair.of(entry.getKey(), entry.getValue()));
         }
+        int h = 1;
+        for (Pair<String, String> p : tagSet) {
+            h = 31 * (31 * h + p.getLeft().hashCode()) + p.getRight().hashCode();
+        }
+        hashCode = h;
     }
 
     @Override
@@ -27,7 +33,7 @@ public class OrderedTags {
 
     @Override
     public int hashCode() {
-        return this.toString().hashCode();
+        return hashCode;
     }
 
     @Override
@@ -40,6 +46,23 @@ public class OrderedTags {
         return this.tagSet.equals(other.tagSet);
     }
 
+    /**
+     * Compares the tags in key order, the order in which they are written to the
+     * column family and qualifier
+     */
+    @Override
+    public int compareTo(OrderedTags o) {
+        Iterator<Pair<String, String>> itr = tagSet.iterator();
+        Iterator<Pair<String, String>> otherItr = o.tagSet.iterator();
+        while (itr.hasNext() && otherItr.hasNext()) {
+            int c = itr.next().compareTo(otherItr.next());
+            if (c != 0) {
+                return c;
+            }
+        }
+        return Boolean.compare(itr.hasNext(), otherItr.hasNext());
+    }
+
     public Map<String, String> getTags() {
         Map<String, String> t = new LinkedHashMap();
         for (Pair<String, String> p : tagSet) {
@@ -85,7 +108,7 @@ public class OrderedTags {
         }
     }
 
-    private boolean isTagValueRegex(String value) {
+    static boolean isTagValueRegex(String value) {
         return !REGEX_TEST.matcher(value).matches();
     }
 }
@@ -0,0 +1,236 @@
+package timely.store.cache;
+
+import java.util.Arrays;
+
+import timely.sample.Aggregator;
+import timely.sample.Downsample;
+import timely.sample.aggregators.Avg;
+import timely.sample.aggregators.Count;
+import timely.sample.aggregators.Max;
+import timely.sample.aggregators.Min;
+import timely.sample.aggregators.Sum;
+
+/**
+ * Min, max, sum and count of the points of a {@link GorillaStore} per fixed
+ * period, periods are aligned to the epoch. Buckets are kept in parallel
+ * primitive arrays in timestamp order, points are appended in order as they are
+ * flushed and older points are prepended by a backfill. Buckets are dropped
+ * from the front when the raw blocks holding their points are removed, the tier
+ * is only complete from the first bucket that has not lost any points.
+ */
+class RollupTier {
+
+    // start, count, min, max and sum
+    private static final int BYTES_PER_BUCKET = Long.BYTES + Integer.BYTES + 3 * Double.BYTES;
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final long period;
+    private long[] starts;
+    private int[] counts;
+    private double[] mins;
+    private double[] maxs;
+    private double[] sums;
+    // buckets are at [head, head + size)
+    private int head = 0;
+    private int size = 0;
+    private long completeFrom = Long.MIN_VALUE;
+
+    RollupTier(long period) {
+        this(period, INITIAL_CAPACITY);
+    }
+
+    private RollupTier(long period, int capacity) {
+        this.period = period;
+        this.starts = new long[capacity];
+        this.counts = new int[capacity];
+        this.mins = new double[capacity];
+        this.maxs = new double[capacity];
+        this.sums = new double[capacity];
+    }
+
+    /**
+     * @return true if the downsample aggregator can be answered from the tier
+     */
+    static boolean supports(Class<? extends Aggregator> aggClass) {
+        return aggClass == Min.class || aggClass == Max.class || aggClass == Sum.class || aggClass == Avg.class
+                || aggClass == Count.class;
+    }
+
+    long getPeriod() {
+        return period;
+    }
+
+    int getNumBuckets() {
+        return size;
+    }
+
+    long getSizeInBytes() {
+        return (long) starts.length * BYTES_PER_BUCKET;
+    }
+
+    private long bucketStart(long timestamp) {
+        return timestamp - Math.floorMod(timestamp, period);
+    }
+
+    /**
+     * Adds a point, points must be added in timestamp order
+     */
+    void add(long timestamp, double value) {
+        long start = bucketStart(timestamp);
+        int last = head + size - 1;
+        if (size > 0 && starts[last] == start) {
+            counts[last]++;
+            mins[last] = Math.min(mins[last], value);
+            maxs[last] = Math.max(maxs[last], value);
+            sums[last] += value;
+        } else if (size == 0 || starts[last] < start) {
+            append(start, 1, value, value, value);
+        }
+    }
+
+    private void append(long start, int count, double min, double max, double sum) {
+        if (head + size == starts.length) {
+            ensureCapacity(size + 1);
+        }
+        int i = head + size;
+        starts[i] = start;
+        counts[i] = count;
+        mins[i] = min;
+        maxs[i] = max;
+        sums[i] = sum;
+        size++;
+    }
+
+    /**
+     * Moves the buckets to the front of the arrays, growing them if they can not
+     * hold the given number of buckets
+     */
+    private void ensureCapacity(int capacity) {
+        int newCapacity = starts.length;
+        while (newCapacity < capacity) {
+            newCapacity *= 2;
+        }
+        if (head + capacity <= starts.length) {
+            return;
+        }
+        starts = move(starts, newCapacity);
+        counts = move(counts, newCapacity);
+        mins = move(mins, newCapacity);
+        maxs = move(maxs, newCapacity);
+        sums = move(sums, newCapacity);
+        head = 0;
+    }
+
+    private long[] move(long[] a, int capacity) {
+        long[] moved = capacity == a.length ? a : new long[capacity];
+        System.arraycopy(a, head, moved, 0, size);
+        return moved;
+    }
+
+    private int[] move(int[] a, int capacity) {
+        int[] moved = capacity == a.length ? a : new int[capacity];
+        System.arraycopy(a, head, moved, 0, size);
+        return moved;
+    }
+
+    private double[] move(double[] a, int capacity) {
+        double[] moved = capacity == a.length ? a : new double[capacity];
+        System.arraycopy(a, head, moved, 0, size);
+        return moved;
+    }
+
+    /**
+     * Puts the buckets of a tier holding only points older than the oldest point of
+     * this tier in front of the buckets of this tier
+     *
+     * @param oldest
+     *            timestamp of the oldest point of the store before the older points
+     *            were added
+     */
+    void prepend(RollupTier older, long oldest) {
+        if (older.size == 0) {
+            return;
+        }
+        // buckets dropped after the oldest point can not be rebuilt from older
+        // points
+        if (completeFrom <= bucketStart(oldest)) {
+            completeFrom = Long.MIN_VALUE;
+        }
+        RollupTier merged = new RollupTier(period, Math.max(INITIAL_CAPACITY, older.size + size));
+        for (int i = older.head; i < older.head + older.size; i++) {
+            merged.append(older.starts[i], older.counts[i], older.mins[i], older.maxs[i], older.sums[i]);
+        }
+        for (int i = head; i < head + size; i++) {
+            int last = merged.head + merged.size - 1;
+            if (merged.starts[last] == starts[i]) {
+                merged.counts[last] += counts[i];
+                merged.mins[last] = Math.min(merged.mins[last], mins[i]);
+                merged.maxs[last] = Math.max(merged.maxs[last], maxs[i]);
+                merged.sums[last] += sums[i];
+            } else {
+                merged.append(starts[i], counts[i], mins[i], maxs[i], sums[i]);
+            }
+        }
+        starts = merged.starts;
+        counts = merged.counts;
+        mins = merged.mins;
+        maxs = merged.maxs;
+        sums = merged.sums;
+        head = 0;
+        size = merged.size;
+    }
+
+    /**
+     * Drops every bucket that holds points at or before the timestamp, the points
+     * having been removed from the store
+     */
+    void removeThrough(long timestamp) {
+        while (size > 0 && starts[head] <= timestamp) {
+            head++;
+            size--;
+        }
+        if (size == 0) {
+            head = 0;
+        }
+        completeFrom = Math.max(completeFrom, bucketStart(timestamp) + period);
+        // release the space of dropped buckets once most of the arrays are unused
+        if (starts.length > INITIAL_CAPACITY && size < starts.length / 4) {
+            int capacity = Math.max(INITIAL_CAPACITY, Integer.highestOneBit(Math.max(1, size)) * 2);
+            starts = Arrays.copyOfRange(starts, head, head + capacity);
+            counts = Arrays.copyOfRange(counts, head, head + capacity);
+            mins = Arrays.copyOfRange(mins, head, head + capacity);
+            maxs = Arrays.copyOfRange(maxs, head, head + capacity);
+            sums = Arrays.copyOfRange(sums, head, head + capacity);
+            head = 0;
+        }
+    }
+
+    /**
+     * @return true if no bucket at or after begin has lost points
+     */
+    boolean isComplete(long begin) {
+        return completeFrom <= begin;
+    }
+
+    /**
+     * Adds the buckets that start in [begin, end) to the downsample, the downsample
+     * period must be a multiple of the period of this tier
+     */
+    void addTo(Downsample downsample, long begin, long end, Class<? extends Aggregator> aggClass) {
+        int from = Arrays.binarySearch(starts, head, head + size, begin);
+        if (from < 0) {
+            from = -from - 1;
+        }
+        for (int i = from; i < head + size && starts[i] < end; i++) {
+            double value;
+            if (aggClass == Min.class) {
+                value = mins[i];
+            } else if (aggClass == Max.class) {
+                value = maxs[i];
+            } else {
+                value = sums[i];
+            }
+            downsample.add(starts[i], value, counts[i]);
+        }
+    }
+}
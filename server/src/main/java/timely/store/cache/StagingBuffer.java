@@ -0,0 +1,105 @@
+package timely.store.cache;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Holds (timestamp, value) pairs for a {@link GorillaStore} until the next
+ * flush, at 16 bytes per point. Points are written into chunks of primitive
+ * longs. Writers claim a slot with an atomic increment and publish it once
+ * written, so appends from any number of threads never block each other. The
+ * writer that claims the first slot past the end of a full chunk links a new,
+ * larger chunk in front of it.
+ *
+ * {@link #drain(PointConsumer)} swaps in an empty chunk, seals the chunks it
+ * took so late writers move on to the new one, waits for claimed slots to be
+ * published and hands the points to the consumer, oldest chunk first.
+ */
+class StagingBuffer {
+
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int MAX_CAPACITY = 1024;
+    // added to the claim counter when draining, larger than any capacity
+    private static final int SEALED = 1 << 30;
+
+    @FunctionalInterface
+    interface PointConsumer {
+
+        void accept(long timestamp, double value);
+    }
+
+    private static final class Chunk {
+
+        private final long[] points;
+        private final int capacity;
+        private final Chunk previous;
+        private final AtomicInteger claimed = new AtomicInteger(0);
+        private final AtomicInteger published = new AtomicInteger(0);
+
+        private Chunk(int capacity, Chunk previous) {
+            this.capacity = capacity;
+            this.points = new long[capacity * 2];
+            this.previous = previous;
+        }
+    }
+
+    private final AtomicReference<Chunk> current = new AtomicReference<>(new Chunk(INITIAL_CAPACITY, null));
+
+    public void add(long timestamp, double value) {
+        for (;;) {
+            Chunk c = current.get();
+            int slot = c.claimed.getAndIncrement();
+            if (slot < c.capacity) {
+                c.points[slot * 2] = timestamp;
+                c.points[slot * 2 + 1] = Double.doubleToRawLongBits(value);
+                c.published.incrementAndGet();
+                return;
+            } else if (slot == c.capacity) {
+                // fails only if a drain has already replaced the chunk
+                current.compareAndSet(c, new Chunk(Math.min(c.capacity * 2, MAX_CAPACITY), c));
+            } else {
+                Thread.yield();
+            }
+        }
+    }
+
+    public boolean isEmpty() {
+        Chunk c = current.get();
+        return c.previous == null && c.claimed.get() == 0;
+    }
+
+    /**
+     * Passes every staged point to the consumer and removes it from the buffer.
+     * Only one thread may drain at a time.
+     *
+     * @return number of points drained
+     */
+    public int drain(PointConsumer consumer) {
+        if (isEmpty()) {
+            return 0;
+        }
+        Chunk newest = current.getAndSet(new Chunk(INITIAL_CAPACITY, null));
+        return drain(newest, consumer);
+    }
+
+    private static int drain(Chunk newest, PointConsumer consumer) {
+        Deque<Chunk> chunks = new ArrayDeque<>();
+        for (Chunk c = newest; c != null; c = c.previous) {
+            chunks.push(c);
+        }
+        int drained = 0;
+        for (Chunk c : chunks) {
+            int count = Math.min(c.claimed.getAndAdd(SEALED), c.capacity);
+            while (c.published.get() < count) {
+                Thread.yield();
+            }
+            for (int i = 0; i < count; i++) {
+                consumer.accept(c.points[i * 2], Double.longBitsToDouble(c.points[i * 2 + 1]));
+            }
+            drained += count;
+        }
+        return drained;
+    }
+}
@@ -0,0 +1,205 @@
+package timely.store.cache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.StampedLock;
+import java.util.regex.Pattern;
+
+/**
+ * Inverted index from the tags of the series of a metric to the series. Each
+ * series gets a small integer id, ids of removed series are reused, and every
+ * key=value is mapped to the sorted ids of the series that have it. A query
+ * intersects the ids of its literal tags and checks a regex once per distinct
+ * value of its key rather than once per series.
+ */
+class TagIndex {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final StampedLock lock = new StampedLock();
+    private final Map<TaggedMetric, Integer> ids = new HashMap<>();
+    private final Map<String, Map<String, Postings>> postings = new HashMap<>();
+    private final BitSet used = new BitSet();
+    private TaggedMetric[] series = new TaggedMetric[INITIAL_CAPACITY];
+
+    void add(TaggedMetric taggedMetric) {
+        long stamp = lock.writeLock();
+        try {
+            if (ids.containsKey(taggedMetric)) {
+                return;
+            }
+            int id = used.nextClearBit(0);
+            used.set(id);
+            if (id == series.length) {
+                series = Arrays.copyOf(series, series.length * 2);
+            }
+            series[id] = taggedMetric;
+            ids.put(taggedMetric, id);
+            for (Map.Entry<String, String> tag : taggedMetric.getTags().entrySet()) {
+                postings.computeIfAbsent(tag.getKey(), k -> new HashMap<>())
+                        .computeIfAbsent(tag.getValue(), k -> new Postings()).add(id);
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    void remove(TaggedMetric taggedMetric) {
+        long stamp = lock.writeLock();
+        try {
+            Integer id = ids.remove(taggedMetric);
+            if (id == null) {
+                return;
+            }
+            used.clear(id);
+            series[id] = null;
+            for (Map.Entry<String, String> tag : taggedMetric.getTags().entrySet()) {
+                Map<String, Postings> values = postings.get(tag.getKey());
+                Postings p = values.get(tag.getValue());
+                p.remove(id);
+                if (p.size == 0) {
+                    values.remove(tag.getValue());
+                    if (values.isEmpty()) {
+                        postings.remove(tag.getKey());
+                    }
+                }
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    int size() {
+        long stamp = lock.readLock();
+        try {
+            return ids.size();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * @return the series whose tags match the requested tags, with the same
+     *         semantics as {@link OrderedTags#matches(Map)}
+     */
+    List<TaggedMetric> lookup(Map<String, String> tags) {
+        long stamp = lock.readLock();
+        try {
+            BitSet matches;
+            if (tags.isEmpty()) {
+                matches = used;
+            } else {
+                // the series of each requested tag, intersected starting with the
+                // most selective
+                List<List<Postings>> filters = new ArrayList<>(tags.size());
+                for (Map.Entry<String, String> tag : tags.entrySet()) {
+                    List<Postings> filter = getPostings(tag.getKey(), tag.getValue());
+                    if (filter.isEmpty()) {
+                        return new ArrayList<>();
+                    }
+                    filters.add(filter);
+                }
+                filters.sort((a, b) -> Integer.compare(count(a), count(b)));
+                matches = null;
+                for (List<Postings> filter : filters) {
+                    BitSet ids = new BitSet();
+                    for (Postings p : filter) {
+                        p.addTo(ids, matches);
+                    }
+                    matches = ids;
+                    if (matches.isEmpty()) {
+                        return new ArrayList<>();
+                    }
+                }
+            }
+            List<TaggedMetric> result = new ArrayList<>(matches.cardinality());
+            for (int id = matches.nextSetBit(0); id >= 0; id = matches.nextSetBit(id + 1)) {
+                result.add(series[id]);
+            }
+            return result;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private List<Postings> getPostings(String key, String value) {
+        Map<String, Postings> values = postings.get(key);
+        List<Postings> result = new ArrayList<>();
+        if (values == null) {
+            return result;
+        }
+        if (OrderedTags.isTagValueRegex(value)) {
+            Pattern pattern = Pattern.compile(value);
+            for (Map.Entry<String, Postings> e : values.entrySet()) {
+                if (pattern.matcher(e.getKey()).matches()) {
+                    result.add(e.getValue());
+                }
+            }
+        } else {
+            Postings p = values.get(value);
+            if (p != null) {
+                result.add(p);
+            }
+        }
+        return result;
+    }
+
+    private static int count(List<Postings> filter) {
+        int count = 0;
+        for (Postings p : filter) {
+            count += p.size;
+        }
+        return count;
+    }
+
+    /**
+     * Ids of the series with a tag key=value in ascending order
+     */
+    private static final class Postings {
+
+        private int[] ids = new int[1];
+        private int size = 0;
+
+        private void add(int id) {
+            int i = Arrays.binarySearch(ids, 0, size, id);
+            if (i >= 0) {
+                return;
+            }
+            i = -i - 1;
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            System.arraycopy(ids, i, ids, i + 1, size - i);
+            ids[i] = id;
+            size++;
+        }
+
+        private void remove(int id) {
+            int i = Arrays.binarySearch(ids, 0, size, id);
+            if (i < 0) {
+                return;
+            }
+            System.arraycopy(ids, i + 1, ids, i, size - i - 1);
+            size--;
+            if (ids.length > 4 && size < ids.length / 4) {
+                ids = Arrays.copyOf(ids, ids.length / 2);
+            }
+        }
+
+        /**
+         * Sets the ids in the bit set that are also in the candidates, or all of them
+         * if there are no candidates
+         */
+        private void addTo(BitSet bits, BitSet candidates) {
+            for (int i = 0; i < size; i++) {
+                if (candidates == null || candidates.get(ids[i])) {
+                    bits.set(ids[i]);
+                }
+            }
+        }
+    }
+}
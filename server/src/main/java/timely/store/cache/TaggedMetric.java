@@ -16,6 +16,7 @@ public class TaggedMetric implements Comparable<TaggedMetric> {
     public static final String VISIBILITY_TAG = "viz";
     private ColumnVisibility columnVisibility = null;
     private OrderedTags orderedTags = null;
+    private int hashCode;
 
     public TaggedMetric(String metric, List<Tag> tags) {
         Map<String, String> tagMap = new LinkedHashMap<>();
@@ -24,6 +25,10 @@ public class TaggedMetric implements Comparable<TaggedMetric> {
         }
         this.columnVisibility = extractVisibility(tagMap);
         this.orderedTags = new OrderedTags(tagMap);
+        HashCodeBuilder hcb = new HashCodeBuilder();
+        hcb.append(columnVisibility);
+        hcb.append(orderedTags);
+        this.hashCode = hcb.toHashCode();
     }
 
     public Map<String, String> getTags() {
@@ -37,24 +42,22 @@ public class TaggedMetric implements Comparable<TaggedMetric> {
         }
         TaggedMetric o = (TaggedMetric) obj;
         EqualsBuilder eb = new EqualsBuilder();
-        eb.append(this.columnVisibility.toString(), o.columnVisibility.toString());
+        eb.append(this.hashCode, o.hashCode);
+        eb.append(this.columnVisibility.getExpression(), o.columnVisibility.getExpression());
         eb.append(this.orderedTags, o.orderedTags);
         return eb.isEquals();
     }
 
     @Override
     public int hashCode() {
-        HashCodeBuilder hcb = new HashCodeBuilder();
-        hcb.append(columnVisibility);
-        hcb.append(orderedTags);
-        return hcb.toHashCode();
+        return hashCode;
     }
 
     @Override
     public int compareTo(TaggedMetric o) {
         CompareToBuilder ctb = new CompareToBuilder();
-        ctb.append(this.columnVisibility, o.columnVisibility);
         ctb.append(this.orderedTags, o.orderedTags);
+        ctb.append(this.columnVisibility.getExpression(), o.columnVisibility.getExpression());
         return ctb.toComparison();
     }
 
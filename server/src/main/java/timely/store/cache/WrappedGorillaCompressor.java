@@ -1,43 +1,184 @@
 package timely.store.cache;
 
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
 
 import fi.iki.yak.ts.compression.gorilla.GorillaCompressor;
+import fi.iki.yak.ts.compression.gorilla.GorillaDecompressor;
+import fi.iki.yak.ts.compression.gorilla.LongArrayInput;
 import fi.iki.yak.ts.compression.gorilla.LongArrayOutput;
+import fi.iki.yak.ts.compression.gorilla.Pair;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
 import org.apache.commons.lang3.Range;
 
+/**
+ * Gorilla compressed block of a series. While open the block is written to a
+ * heap array. Once closed it is moved to off-heap memory from a pooled
+ * allocator, where it stays until {@link #free()} is called when it ages off.
+ * Decompressors over a closed block hold a reference to the off-heap memory
+ * until they are read to the end or closed. A closed block without duplicate
+ * timestamps carries a {@link BlockSummary} of its points.
+ */
 public class WrappedGorillaCompressor implements Serializable {
 
+    private static final long serialVersionUID = 1L;
+
+    // arenas of large direct buffers that archived blocks are carved out of
+    private static final PooledByteBufAllocator OFF_HEAP_ALLOCATOR = new PooledByteBufAllocator(true);
+    private static final AtomicLong OFF_HEAP_BYTES = new AtomicLong(0);
+
     private boolean closed = false;
     private long numEntries = 0;
     private long oldestTimestamp;
     private long newestTimestamp;
     private LongArrayOutput compressorOutput = null;
-    private long[] backingArray = null;
+    transient private ByteBuf archived = null;
     private GorillaCompressor compressor;
+    // summary of the points added so far
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+    private double sum = 0;
+    private double first = 0;
+    private double last = 0;
+    private boolean duplicates = false;
+    transient private BlockSummary summary = null;
 
     private WrappedGorillaCompressor() {
 
     }
 
     public WrappedGorillaCompressor(long timestamp) {
-        this.compressorOutput = new LongArrayOutput(16);
+        this.compressorOutput = new SizedLongArrayOutput(16);
         this.compressor = new GorillaCompressor(timestamp, this.compressorOutput);
         this.oldestTimestamp = timestamp;
         this.newestTimestamp = timestamp;
     }
 
+    /**
+     * Creates a closed block from the bytes of an archived block
+     */
+    static WrappedGorillaCompressor archived(long numEntries, long oldestTimestamp, long newestTimestamp,
+            ByteBuffer block) {
+        WrappedGorillaCompressor c = new WrappedGorillaCompressor();
+        c.numEntries = numEntries;
+        c.oldestTimestamp = oldestTimestamp;
+        c.newestTimestamp = newestTimestamp;
+        c.archived = OFF_HEAP_ALLOCATOR.directBuffer(block.remaining(), block.remaining());
+        c.archived.writeBytes(block);
+        OFF_HEAP_BYTES.addAndGet(c.archived.capacity());
+        c.closed = true;
+        c.summarize();
+        return c;
+    }
+
+    /**
+     * Builds the summary of a closed block from its points
+     */
+    private void summarize() {
+        // fields are not initialized when deserialized
+        min = Double.POSITIVE_INFINITY;
+        max = Double.NEGATIVE_INFINITY;
+        sum = 0;
+        duplicates = false;
+        long count = 0;
+        long previousTimestamp = 0;
+        try (WrappedGorillaDecompressor d = getDecompressor()) {
+            Pair p;
+            while ((p = d.readPair()) != null) {
+                updateSummary(count++, previousTimestamp, p.getTimestamp(), p.getDoubleValue());
+                previousTimestamp = p.getTimestamp();
+            }
+        }
+        summary = createSummary();
+    }
+
+    private void updateSummary(long count, long previousTimestamp, long timestamp, double value) {
+        if (count == 0) {
+            first = value;
+        } else if (timestamp == previousTimestamp) {
+            duplicates = true;
+        }
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+        sum += value;
+        last = value;
+    }
+
+    private BlockSummary createSummary() {
+        if (numEntries == 0 || duplicates) {
+            return null;
+        }
+        return new BlockSummary(numEntries, oldestTimestamp, newestTimestamp, min, max, sum, first, last);
+    }
+
+    /**
+     * Writes a closed block in the form read by
+     * {@link #archived(long, long, long, ByteBuffer)}
+     */
+    void writeArchived(DataOutputStream out) throws IOException {
+        if (!closed) {
+            throw new IllegalStateException("Compressor is not closed");
+        }
+        out.writeLong(numEntries);
+        out.writeLong(oldestTimestamp);
+        out.writeLong(newestTimestamp);
+        out.writeInt(archived.readableBytes());
+        archived.getBytes(archived.readerIndex(), out, archived.readableBytes());
+    }
+
+    /**
+     * @return bytes held by this block, on-heap while open and off-heap once closed
+     */
+    public long getSizeInBytes() {
+        if (closed) {
+            return archived == null ? 0 : archived.capacity();
+        } else {
+            return ((SizedLongArrayOutput) compressorOutput).capacity * (long) Long.BYTES;
+        }
+    }
+
+    /**
+     * @return bytes of off-heap memory held by archived blocks
+     */
+    public static long getOffHeapBytes() {
+        return OFF_HEAP_BYTES.get();
+    }
+
     public long[] getCompressorOutput() {
         if (closed) {
-            return backingArray;
+            long[] output = new long[archived.readableBytes() / Long.BYTES];
+            for (int x = 0; x < output.length; x++) {
+                output[x] = archived.getLong(x * Long.BYTES);
+            }
+            return output;
         } else {
             return compressorOutput.getLongArray();
         }
     }
 
+    /**
+     * Callers must hold a lock that keeps {@link #free()} from running
+     * concurrently.
+     */
+    public WrappedGorillaDecompressor getDecompressor() {
+        if (closed) {
+            // use -1 length since this compressor is closed
+            archived.retain();
+            return new WrappedGorillaDecompressor(new GorillaDecompressor(new ByteBufInput(archived)), -1, archived,
+                    oldestTimestamp, summary);
+        } else {
+            return new WrappedGorillaDecompressor(
+                    new GorillaDecompressor(new LongArrayInput(compressorOutput.getLongArray())), numEntries, null,
+                    oldestTimestamp, null);
+        }
+    }
+
     public long getOldestTimestamp() {
         return oldestTimestamp;
     }
@@ -60,6 +201,7 @@ public class WrappedGorillaCompressor implements Serializable {
         if (closed) {
             throw new IllegalStateException("Compressor is closed");
         }
+        updateSummary(numEntries, newestTimestamp, timestamp, value);
         numEntries++;
         newestTimestamp = timestamp;
         compressor.addValue(timestamp, value);
@@ -67,9 +209,46 @@ public class WrappedGorillaCompressor implements Serializable {
 
     public void close() {
         compressor.close();
-        backingArray = compressorOutput.getLongArray();
+        archived = toOffHeap(compressorOutput.getLongArray());
         compressorOutput = null;
+        compressor = null;
         closed = true;
+        summary = createSummary();
+    }
+
+    /**
+     * @return summary of the points of a closed block, null while the block is open
+     *         or if it has points with the same timestamp
+     */
+    BlockSummary getSummary() {
+        return summary;
+    }
+
+    /**
+     * Releases the off-heap memory of a closed block, once any decompressors still
+     * reading it are done
+     */
+    public void free() {
+        if (closed && null != archived) {
+            release(archived);
+            archived = null;
+        }
+    }
+
+    static void release(ByteBuf buf) {
+        int capacity = buf.capacity();
+        if (buf.release()) {
+            OFF_HEAP_BYTES.addAndGet(-capacity);
+        }
+    }
+
+    private static ByteBuf toOffHeap(long[] longs) {
+        ByteBuf buf = OFF_HEAP_ALLOCATOR.directBuffer(longs.length * Long.BYTES, longs.length * Long.BYTES);
+        for (long l : longs) {
+            buf.writeLong(l);
+        }
+        OFF_HEAP_BYTES.addAndGet(buf.capacity());
+        return buf;
     }
 
     private void writeObject(ObjectOutputStream out) throws IOException {
@@ -79,6 +258,7 @@ public class WrappedGorillaCompressor implements Serializable {
         out.writeLong(numEntries);
         out.writeLong(oldestTimestamp);
         out.writeLong(newestTimestamp);
+        long[] backingArray = getCompressorOutput();
         int length = backingArray.length;
         out.writeInt(length);
         for (int x = 0; x < length; x++) {
@@ -92,9 +272,30 @@ public class WrappedGorillaCompressor implements Serializable {
         oldestTimestamp = in.readLong();
         newestTimestamp = in.readLong();
         int length = in.readInt();
-        backingArray = new long[length];
+        long[] backingArray = new long[length];
         for (int x = 0; x < length; x++) {
             backingArray[x] = in.readLong();
         }
+        archived = toOffHeap(backingArray);
+        summarize();
+    }
+
+    /**
+     * Keeps track of the size of the array, which doubles when full
+     */
+    private static final class SizedLongArrayOutput extends LongArrayOutput {
+
+        private int capacity;
+
+        private SizedLongArrayOutput(int capacity) {
+            super(capacity);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected void expandAllocation() {
+            super.expandAllocation();
+            capacity *= 2;
+        }
     }
 }
@@ -2,25 +2,69 @@ package timely.store.cache;
 
 import fi.iki.yak.ts.compression.gorilla.GorillaDecompressor;
 import fi.iki.yak.ts.compression.gorilla.Pair;
+import io.netty.buffer.ByteBuf;
 
-public class WrappedGorillaDecompressor {
+public class WrappedGorillaDecompressor implements AutoCloseable {
 
     private GorillaDecompressor decompressor;
     private long length;
     private long numRead = 0;
+    // off-heap block being read, released at the end
+    private ByteBuf block;
+    private boolean closed = false;
+    private final long oldestTimestamp;
+    private final BlockSummary summary;
 
     public WrappedGorillaDecompressor(GorillaDecompressor decompressor, long length) {
+        this(decompressor, length, null, Long.MIN_VALUE, null);
+    }
 
+    WrappedGorillaDecompressor(GorillaDecompressor decompressor, long length, ByteBuf block, long oldestTimestamp,
+            BlockSummary summary) {
         this.decompressor = decompressor;
         this.length = length;
+        this.block = block;
+        this.oldestTimestamp = oldestTimestamp;
+        this.summary = summary;
+    }
+
+    /**
+     * @return timestamp of the first point of the block, Long.MIN_VALUE if unknown
+     */
+    long getOldestTimestamp() {
+        return oldestTimestamp;
+    }
+
+    /**
+     * @return summary of the points of the block, null if the block is open or has
+     *         no summary
+     */
+    BlockSummary getSummary() {
+        return summary;
     }
 
     public Pair readPair() {
-        if (length == -1 || numRead < length) {
+        if (!closed && (length == -1 || numRead < length)) {
             numRead++;
-            return decompressor.readPair();
+            Pair pair = decompressor.readPair();
+            if (pair == null) {
+                close();
+            }
+            return pair;
         } else {
+            close();
             return null;
         }
     }
+
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            if (null != block) {
+                WrappedGorillaCompressor.release(block);
+                block = null;
+            }
+        }
+    }
 }
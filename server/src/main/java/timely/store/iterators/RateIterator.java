@@ -62,13 +62,22 @@ public class RateIterator extends TimeSeriesGroupingIterator {
         Double secondVal = second.getSecond();
         LOG.trace("second ts:{}, value:{}", secondTs, secondVal);
 
+        double result = rate(firstTs, firstVal, secondTs, secondVal, isCounter, maxCounter, resetValue);
+        LOG.trace("compute - result: {}", result);
+        return result;
+    }
+
+    /**
+     * Rate of change per millisecond between two points of a series, with the
+     * counter options applied
+     */
+    public static double rate(long firstTs, double firstVal, long secondTs, double secondVal, boolean isCounter,
+            long maxCounter, long resetValue) {
         if (isCounter && (secondVal < firstVal)) {
             if (maxCounter > 0) {
                 secondVal += maxCounter;
-                LOG.trace("second counter reset based on max:{} to ts:{}, value:{}", maxCounter, secondTs, secondVal);
             } else {
                 secondVal += firstVal;
-                LOG.trace("second counter reset based on first:{} to ts:{}, value:{}", firstVal, secondTs, secondVal);
             }
         }
 
@@ -76,12 +85,9 @@ public class RateIterator extends TimeSeriesGroupingIterator {
         if (timeDiff == 0) {
             return 0.0D;
         }
-        Double result = ((secondVal - firstVal) / timeDiff);
-        LOG.trace("compute - result: {}", result);
-
+        double result = ((secondVal - firstVal) / timeDiff);
         if (isCounter && resetValue > 0 && result > resetValue) {
             result = 0.0D;
-            LOG.trace("compute - reset result base on {} to {}", resetValue, result);
         }
 
         return result;
@@ -1,2 +1,3 @@
 cd src/main/generated-java
 flatc --java ../resources/fb/metric.fbs
+flatc --java ../resources/fb/query.fbs
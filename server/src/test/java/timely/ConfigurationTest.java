@@ -36,7 +36,9 @@ public class ConfigurationTest {
                 "timely.accumulo.password:secret",
                 "timely.http.host:localhost",
                 "timely.security.ssl.use-generated-keypair:true",
-                "timely.metric-age-off-days[default]:7");
+                "timely.metric-age-off-days[default]:7",
+                "timely.accumulo.scan.max-threads:32",
+                "timely.query.threads:8");
         // @formatter:on
         context.refresh();
         Configuration config = this.context.getBean(Configuration.class);
@@ -54,6 +56,9 @@ public class ConfigurationTest {
         assertEquals(1, config.getMetricAgeOffDays().size());
         assertTrue(config.getMetricAgeOffDays().containsKey("default"));
         assertTrue(7 == config.getMetricAgeOffDays().get("default"));
+        assertEquals(32, config.getAccumulo().getScan().getMaxThreads());
+        assertEquals(8, config.getQuery().getThreads());
+        assertEquals(1000, config.getQuery().getMaxQueued());
     }
 
     @Test(expected = BeanCreationException.class)
@@ -0,0 +1,29 @@
+package timely.adapter.accumulo;
+
+import java.util.Random;
+
+import timely.model.Metric;
+import timely.test.MicroBenchmark;
+
+/**
+ * Metrics per second through toMutation for 5, 10 and 20 tags, compared to the
+ * previous tag-by-tag encoding.
+ */
+public class MetricAdapterBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        MicroBenchmark benchmark = new MicroBenchmark();
+        for (int numTags : new int[] { 5, 10, 20 }) {
+            Random r = new Random(42);
+            Metric[] metrics = new Metric[1024];
+            for (int i = 0; i < metrics.length; i++) {
+                metrics[i] = MetricMutationEncoderTest.createMetric(r, numTags);
+            }
+            int[] next = new int[1];
+            benchmark.run("legacy toMutation, " + numTags + " tags",
+                    () -> MetricMutationEncoderTest.legacyToMutation(metrics[next[0]++ & 1023]));
+            benchmark.run("toMutation, " + numTags + " tags",
+                    () -> MetricAdapter.toMutation(metrics[next[0]++ & 1023]));
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package timely.adapter.accumulo;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import org.apache.accumulo.core.data.Mutation;
+import org.apache.accumulo.core.data.Value;
+import org.apache.hadoop.io.Text;
+import org.junit.Assert;
+import org.junit.Test;
+import timely.model.Metric;
+import timely.model.Tag;
+
+public class MetricMutationEncoderTest {
+
+    /**
+     * The tag-by-tag encoding that MetricMutationEncoder replaced, the keys written
+     * must not change
+     */
+    static Mutation legacyToMutation(Metric metric) {
+        final Mutation mutation = new Mutation(MetricAdapter.encodeRowKey(metric));
+        List<Tag> tags = new ArrayList<>();
+        metric.getTags().forEach(t -> tags.add(new Tag(t)));
+        Collections.sort(tags);
+
+        for (final Tag entry : tags) {
+            if (entry.getKey().equals(MetricAdapter.VISIBILITY_TAG))
+                continue;
+
+            final String cf = entry.join();
+            // @formatter:off
+            String cq = tags.stream().filter(inner -> !inner.equals(entry))
+                    .filter(inner -> !inner.getKey().equals(MetricAdapter.VISIBILITY_TAG))
+                    .map(Tag::join)
+                    .collect(Collectors.joining(","));
+            // @formatter:on
+            byte[] cqBytes = MetricAdapter.encodeColQual(metric.getValue().getTimestamp(), cq);
+            mutation.put(new Text(cf.getBytes(Charset.forName("UTF-8"))), new Text(cqBytes),
+                    MetricAdapter.extractVisibility(tags), metric.getValue().getTimestamp(),
+                    new Value(MetricAdapter.encodeValue(metric.getValue().getMeasure())));
+        }
+        return mutation;
+    }
+
+    static Metric createMetric(Random r, int numTags) {
+        Metric m = new Metric("sys.cpu.user" + r.nextInt(3), Math.abs(r.nextLong() % 2000000000000L), r.nextDouble());
+        for (int i = 0; i < numTags; i++) {
+            m.addTag(new Tag("tag" + r.nextInt(numTags * 2), "value" + r.nextInt(1000)));
+        }
+        return m;
+    }
+
+    @Test
+    public void testMatchesLegacyEncoding() throws Exception {
+        Random r = new Random(42);
+        MetricMutationEncoder encoder = new MetricMutationEncoder();
+        for (int i = 0; i < 5000; i++) {
+            Metric m = createMetric(r, r.nextInt(25));
+            if (r.nextBoolean()) {
+                m.addTag(new Tag(MetricAdapter.VISIBILITY_TAG, r.nextBoolean() ? "a&b" : "(a|b)&c"));
+            }
+            Assert.assertEquals(m.toString(), legacyToMutation(m), encoder.encode(m));
+        }
+    }
+
+    @Test
+    public void testMatchesLegacyEncodingSpecialCharacters() throws Exception {
+        MetricMutationEncoder encoder = new MetricMutationEncoder();
+        Metric m = new Metric("sys.cpu.é", 0L, -1.5D);
+        m.addTag(new Tag("host", "r01n01"));
+        m.addTag(new Tag("host", "r01n01"));
+        m.addTag(new Tag("naïve", "café"));
+        m.addTag(new Tag("ctrl", "a\u0000b\u0001c"));
+        m.addTag(new Tag("list", "a,b=c"));
+        m.addTag(new Tag(MetricAdapter.VISIBILITY_TAG, "b"));
+        m.addTag(new Tag(MetricAdapter.VISIBILITY_TAG, "a"));
+        Assert.assertEquals(legacyToMutation(m), encoder.encode(m));
+        Assert.assertEquals(legacyToMutation(m), encoder.encode(m));
+    }
+
+    @Test
+    public void testNoTags() throws Exception {
+        Metric m = new Metric("sys.cpu.user", 1000L, 1.0D);
+        Mutation mutation = MetricAdapter.toMutation(m);
+        Assert.assertEquals(legacyToMutation(m), mutation);
+        Assert.assertEquals(0, mutation.size());
+    }
+}
@@ -1,7 +1,9 @@
 package timely.api.model;
 
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 
 import org.apache.accumulo.core.client.lexicoder.LongLexicoder;
@@ -30,6 +32,26 @@ public class MetricAdapterTest {
         VisibilityCache.init(new Configuration());
     }
 
+    @Test
+    public void testParseTags() throws Exception {
+        List<Tag> tags = new ArrayList<>();
+        tags.add(new Tag("tag1", "value1"));
+        tags.add(new Tag("tag2", "value2"));
+        tags.add(new Tag("tag3", "value3"));
+        tags.add(new Tag("viz", "A"));
+        Metric m = Metric.newBuilder().name("sys.cpu.user").value(1000L, 2.0D).tags(tags).build();
+        for (ColumnUpdate up : MetricAdapter.toMutation(m).getUpdates()) {
+            Key k = new Key(MetricAdapter.toMutation(m).getRow(), up.getColumnFamily(), up.getColumnQualifier(),
+                    up.getColumnVisibility(), up.getTimestamp());
+            Assert.assertEquals(MetricAdapter.parse(k, new Value(up.getValue())).getTags(), MetricAdapter.parseTags(k));
+            Assert.assertEquals(new HashSet<>(tags.subList(0, 3)), new HashSet<>(MetricAdapter.parseTags(k)));
+            byte[] cq = up.getColumnQualifier();
+            int offset = MetricAdapter.getColQualTagsOffset(k.getColumnQualifierData());
+            Assert.assertEquals(MetricAdapter.decodeColQual(cq).getSecond(),
+                    new String(cq, offset, cq.length - offset, StandardCharsets.UTF_8));
+        }
+    }
+
     @Test
     public void testToMutation() throws Exception {
         long ts = System.currentTimeMillis();
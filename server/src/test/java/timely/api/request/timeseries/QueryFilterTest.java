@@ -0,0 +1,131 @@
+package timely.api.request.timeseries;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.junit.Assert;
+import org.junit.Test;
+import timely.api.request.timeseries.QueryRequest.Filter;
+import timely.api.request.timeseries.QueryRequest.SubQuery;
+
+public class QueryFilterTest {
+
+    private static Filter createFilter(String type, String tagk, String filter, boolean groupBy) {
+        Filter f = new Filter();
+        f.setType(type);
+        f.setTagk(tagk);
+        f.setFilter(filter);
+        f.setGroupBy(groupBy);
+        return f;
+    }
+
+    private static boolean matches(String regex, String value) {
+        return Pattern.compile(regex).matcher(value).matches();
+    }
+
+    /**
+     * Matches the value in a column qualifier the way the tag filters of a query
+     * scanner do
+     */
+    private static boolean matchesTags(String regex, String tags) {
+        return Pattern.compile("(^.*\\x00|.*,)host=(?:" + regex + ")(,.*|$)").matcher(tags).matches();
+    }
+
+    @Test
+    public void testLiteralOr() throws Exception {
+        String regex = createFilter("literal_or", "host", "web01|web.02", false).getRegex();
+        Assert.assertTrue(matches(regex, "web01"));
+        Assert.assertTrue(matches(regex, "web.02"));
+        Assert.assertFalse(matches(regex, "webx02"));
+        Assert.assertFalse(matches(regex, "web011"));
+        // a single literal is not a regular expression
+        Assert.assertEquals("web01", createFilter("literal_or", "host", "web01", false).getRegex());
+        Assert.assertEquals("web01", createFilter("LITERAL_OR", "host", "web01", false).getRegex());
+    }
+
+    @Test
+    public void testNotLiteralOr() throws Exception {
+        String regex = createFilter("not_literal_or", "host", "web01|web02", false).getRegex();
+        Assert.assertFalse(matches(regex, "web01"));
+        Assert.assertFalse(matches(regex, "web02"));
+        Assert.assertTrue(matches(regex, "web03"));
+        Assert.assertTrue(matches(regex, "web011"));
+        Assert.assertFalse(matchesTags(regex, "\0host=web01,rack=r1"));
+        Assert.assertTrue(matchesTags(regex, "\0host=web011,rack=r1"));
+        Assert.assertTrue(matchesTags(regex, "\0host=web03"));
+    }
+
+    @Test
+    public void testWildcard() throws Exception {
+        String regex = createFilter("wildcard", "host", "web*.example.*", false).getRegex();
+        Assert.assertTrue(matches(regex, "web01.example.com"));
+        Assert.assertFalse(matches(regex, "web01-example.com"));
+        Assert.assertFalse(matches(regex, "db01.example.com"));
+        // does not match across tags
+        Assert.assertFalse(
+                matchesTags(createFilter("wildcard", "host", "web*", false).getRegex(), "\0host=db01,rack=web1"));
+        Assert.assertTrue(matches(createFilter("wildcard", "host", "*", false).getRegex(), "anything"));
+    }
+
+    @Test
+    public void testRegexp() throws Exception {
+        String regex = createFilter("regexp", "host", "web0[1-3]", false).getRegex();
+        Assert.assertTrue(matches(regex, "web02"));
+        Assert.assertFalse(matches(regex, "web04"));
+    }
+
+    @Test
+    public void testUntyped() throws Exception {
+        // as parsed from the m parameter of a GET request
+        Assert.assertEquals(".*", createFilter(null, "host", "*", true).getRegex());
+        Assert.assertEquals("web0[1-3]", createFilter(null, "host", "web0[1-3]", true).getRegex());
+        Assert.assertEquals("(?:web01|web02)", createFilter(null, "host", "literal_or(web01|web02)", true).getRegex());
+        Assert.assertEquals("unknown(web01)", createFilter(null, "host", "unknown(web01)", true).getRegex());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownType() throws Exception {
+        createFilter("iliteral_or", "host", "web01", false).getRegex();
+    }
+
+    @Test
+    public void testMatchingTags() throws Exception {
+        SubQuery query = new SubQuery();
+        query.setMetric("sys.cpu.user");
+        query.addTag("rack", "r1");
+        query.addTag("host", "web.*");
+        query.addFilter(createFilter("not_literal_or", "host", "web02", false));
+        query.addFilter(createFilter("wildcard", "dc", "dc*", true));
+        Map<String, String> tags = query.getMatchingTags();
+        Assert.assertEquals(Arrays.asList("rack", "host", "dc"), Arrays.asList(tags.keySet().toArray()));
+        Assert.assertEquals("r1", tags.get("rack"));
+        Assert.assertTrue(matches(tags.get("host"), "web01"));
+        Assert.assertFalse(matches(tags.get("host"), "web02"));
+        Assert.assertFalse(matches(tags.get("host"), "db01"));
+        Assert.assertTrue(matchesTags(tags.get("host"), "\0host=web01,rack=r1"));
+        Assert.assertFalse(matchesTags(tags.get("host"), "\0host=web02,rack=r1"));
+        Assert.assertFalse(matchesTags(tags.get("host"), "\0host=db01,rack=web1"));
+        Assert.assertEquals(Collections.singleton("dc"), query.getGroupByKeys());
+        Assert.assertEquals(new LinkedHashSet<>(Arrays.asList("rack", "host", "dc")), query.getSeriesKeys());
+    }
+
+    @Test
+    public void testValidate() throws Exception {
+        SubQuery query = new SubQuery();
+        query.setMetric("sys.cpu.user");
+        query.addFilter(createFilter("regexp", "host", "web.*", false));
+        QueryRequest request = new QueryRequest();
+        request.setSessionId("1");
+        request.addQuery(query);
+        request.validate();
+        query.addFilter(createFilter("regexp", "host", "web[", false));
+        try {
+            request.validate();
+            Assert.fail("expected an invalid filter");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package timely.api.response.timeseries;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import com.google.flatbuffers.FlatBufferBuilder;
+import org.junit.Assert;
+import org.junit.Test;
+import timely.util.JsonUtil;
+
+public class QueryResponseFlatBufferTest {
+
+    private static QueryResponse createResponse(String host, int numPoints) {
+        QueryResponse r = new QueryResponse();
+        r.setMetric("sys.cpu.user");
+        r.putTag("host", host);
+        r.putTag("rack", "r1");
+        r.addAggregatedTag("instance");
+        long[] timestamps = new long[numPoints];
+        double[] values = new double[numPoints];
+        for (int i = 0; i < numPoints; i++) {
+            timestamps[i] = 1500000000000L + i * 60000;
+            values[i] = i * 1.5;
+        }
+        r.setDps(null);
+        r.setTimestamps(timestamps);
+        r.setValues(values);
+        return r;
+    }
+
+    private static void assertSame(QueryResponse expected, QueryResponse actual) {
+        Assert.assertEquals(expected.getMetric(), actual.getMetric());
+        Assert.assertEquals(expected.getTags(), actual.getTags());
+        Assert.assertEquals(expected.getAggregatedTags(), actual.getAggregatedTags());
+        Assert.assertArrayEquals(expected.getTimestamps(), actual.getTimestamps());
+        Assert.assertArrayEquals(expected.getValues(), actual.getValues(), 0.0);
+        Assert.assertEquals(expected.getFractionFromCache(), actual.getFractionFromCache());
+        Assert.assertEquals(expected.getError(), actual.getError());
+        Assert.assertNull(actual.getDps());
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        QueryResponse first = createResponse("h1", 100);
+        QueryResponse second = createResponse("h2", 0);
+        second.setFractionFromCache(0.25);
+        second.setError("No matching tags");
+        FlatBufferBuilder builder = new FlatBufferBuilder(16);
+        ByteBuffer firstBuf = QueryResponseFlatBuffer.write(builder, first);
+        ByteBuffer out = ByteBuffer.allocate(64 * 1024);
+        out.put(firstBuf);
+        out.put(QueryResponseFlatBuffer.write(builder, second));
+        out.flip();
+
+        List<QueryResponse> responses = QueryResponseFlatBuffer.read(out);
+        Assert.assertEquals(2, responses.size());
+        assertSame(first, responses.get(0));
+        assertSame(second, responses.get(1));
+    }
+
+    @Test
+    public void testSmallerThanJson() throws Exception {
+        QueryResponse r = createResponse("h1", 1000);
+        int size = QueryResponseFlatBuffer.write(new FlatBufferBuilder(), r).remaining();
+        Assert.assertTrue(size < JsonUtil.getObjectMapper().writeValueAsBytes(r).length);
+    }
+}
@@ -27,4 +27,17 @@ public class QueryResponseTest {
         String expected = "[{\"metric\":\"sys.cpu.user\",\"tags\":{\"rack\":\"r1\",\"host\":\"localhost\"},\"aggregatedTags\":[],\"dps\":{\"1234567890\":4.5,\"1234567900\":3.5,\"1234567910\":2.5}}]";
         Assert.assertEquals(expected, result);
     }
+
+    @Test
+    public void testColumnarResponse() throws Exception {
+        QueryResponse r = new QueryResponse();
+        r.setMetric("sys.cpu.user");
+        r.putTag("host", "localhost");
+        r.setDps(null);
+        r.setTimestamps(new long[] { 1234567890, 1234567900 });
+        r.setValues(new double[] { 4.5, 3.5 });
+        String result = JsonUtil.getObjectMapper().writeValueAsString(Collections.singletonList(r));
+        String expected = "[{\"metric\":\"sys.cpu.user\",\"tags\":{\"host\":\"localhost\"},\"aggregatedTags\":[],\"timestamps\":[1234567890,1234567900],\"values\":[4.5,3.5]}]";
+        Assert.assertEquals(expected, result);
+    }
 }
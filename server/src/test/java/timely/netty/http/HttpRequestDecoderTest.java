@@ -838,6 +838,30 @@ public class HttpRequestDecoderTest {
         Assert.assertEquals(false, firstRateOption.isCounter());
     }
 
+    @Test
+    public void testQueryFormat() throws Exception {
+        decoder = new TestHttpQueryDecoder(config);
+        DefaultFullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET,
+                "/api/query?start=1356998400&m=sum:sys.cpu.user{host=*}&format=columnar");
+        addCookie(request);
+        decoder.decode(null, request, results);
+        Assert.assertEquals(1, results.size());
+        QueryRequest query = (QueryRequest) results.iterator().next();
+        Assert.assertEquals(QueryRequest.Format.COLUMNAR, query.getFormat());
+        Assert.assertTrue(query.isColumnar());
+
+        results.clear();
+        String content = "{\"start\":1447767369171,\"format\":\"FlatBuffer\",\"queries\":[{\"metric\":\"sys.cpu.user\",\"aggregator\":\"sum\"}]}";
+        request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, "/api/query");
+        request.content().writeBytes(content.getBytes());
+        addCookie(request);
+        decoder.decode(null, request, results);
+        Assert.assertEquals(1, results.size());
+        query = (QueryRequest) results.iterator().next();
+        Assert.assertEquals(QueryRequest.Format.FLATBUFFER, query.getFormat());
+        Assert.assertTrue(query.isColumnar());
+    }
+
     @Test
     public void testVersionGet() throws Exception {
         decoder = new TestHttpQueryDecoder(config);
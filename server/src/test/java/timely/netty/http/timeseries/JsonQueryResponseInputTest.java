@@ -0,0 +1,111 @@
+package timely.netty.http.timeseries;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.stream.ChunkedWriteHandler;
+import org.junit.Assert;
+import org.junit.Test;
+import timely.api.response.timeseries.QueryResponse;
+import timely.api.response.timeseries.QueryResponseFlatBuffer;
+import timely.util.JsonUtil;
+
+public class JsonQueryResponseInputTest {
+
+    private static List<QueryResponse> createResponses(int numSeries, int numPoints) {
+        List<QueryResponse> responses = new ArrayList<>();
+        for (int i = 0; i < numSeries; i++) {
+            QueryResponse response = new QueryResponse();
+            response.setMetric("sys.cpu.user");
+            response.putTag("host", "h" + i);
+            for (int p = 0; p < numPoints; p++) {
+                response.putDps(Long.toString(1500000000L + p * 60), (double) (i + p));
+            }
+            if (i % 2 == 0) {
+                response.setFractionFromCache(0.5);
+            }
+            responses.add(response);
+        }
+        return responses;
+    }
+
+    private static List<ByteBuf> write(QueryResponseInput input) {
+        EmbeddedChannel channel = new EmbeddedChannel(new ChunkedWriteHandler());
+        channel.writeAndFlush(input);
+        List<ByteBuf> chunks = new ArrayList<>();
+        ByteBuf buf;
+        while ((buf = (ByteBuf) channel.readOutbound()) != null) {
+            chunks.add(buf);
+        }
+        channel.finish();
+        return chunks;
+    }
+
+    private static List<String> write(List<QueryResponse> responses) {
+        List<String> chunks = new ArrayList<>();
+        for (ByteBuf buf : write(new JsonQueryResponseInput(responses.iterator()))) {
+            chunks.add(buf.toString(UTF_8));
+            buf.release();
+        }
+        return chunks;
+    }
+
+    @Test
+    public void testSameAsWholeResponse() throws Exception {
+        List<QueryResponse> responses = createResponses(200, 500);
+        List<String> chunks = write(responses);
+        Assert.assertTrue(chunks.size() > 1);
+        for (int i = 0; i < chunks.size() - 1; i++) {
+            Assert.assertTrue(chunks.get(i).length() >= QueryResponseInput.CHUNK_SIZE);
+        }
+        Assert.assertEquals(JsonUtil.getObjectMapper().writeValueAsString(responses), String.join("", chunks));
+    }
+
+    @Test
+    public void testFewSeries() throws Exception {
+        List<QueryResponse> responses = createResponses(3, 2);
+        Assert.assertEquals(Collections.singletonList(JsonUtil.getObjectMapper().writeValueAsString(responses)),
+                write(responses));
+    }
+
+    @Test
+    public void testNoSeries() throws Exception {
+        Assert.assertEquals(Collections.singletonList("[]"), write(Collections.emptyList()));
+    }
+
+    @Test
+    public void testFlatBuffers() throws Exception {
+        List<QueryResponse> responses = createResponses(200, 500);
+        for (QueryResponse response : responses) {
+            long[] timestamps = new long[response.getDps().size()];
+            double[] values = new double[timestamps.length];
+            int i = 0;
+            for (Map.Entry<String, Object> dp : response.getDps().entrySet()) {
+                timestamps[i] = Long.parseLong(dp.getKey());
+                values[i++] = (Double) dp.getValue();
+            }
+            response.setDps(null);
+            response.setTimestamps(timestamps);
+            response.setValues(values);
+        }
+        List<ByteBuf> chunks = write(new FlatBufferQueryResponseInput(responses.iterator()));
+        Assert.assertTrue(chunks.size() > 1);
+        ByteBuf all = Unpooled.wrappedBuffer(chunks.toArray(new ByteBuf[0]));
+        List<QueryResponse> read = QueryResponseFlatBuffer.read(all.nioBuffer());
+        all.release();
+        Assert.assertEquals(responses.size(), read.size());
+        for (int i = 0; i < responses.size(); i++) {
+            Assert.assertEquals(responses.get(i).getTags(), read.get(i).getTags());
+            Assert.assertArrayEquals(responses.get(i).getTimestamps(), read.get(i).getTimestamps());
+            Assert.assertArrayEquals(responses.get(i).getValues(), read.get(i).getValues(), 0.0);
+            Assert.assertEquals(responses.get(i).getFractionFromCache(), read.get(i).getFractionFromCache());
+        }
+    }
+}
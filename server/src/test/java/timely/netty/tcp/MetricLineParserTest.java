@@ -0,0 +1,91 @@
+package timely.netty.tcp;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.util.Random;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.Assert;
+import org.junit.Test;
+import timely.model.Metric;
+import timely.model.parse.MetricParser;
+
+public class MetricLineParserTest {
+
+    private static ByteBuf buffer(String s) {
+        return Unpooled.copiedBuffer(s, UTF_8);
+    }
+
+    private static double parseDouble(String s) {
+        ByteBuf buf = buffer(s);
+        return MetricLineParser.parseDouble(buf, 0, buf.writerIndex());
+    }
+
+    private static long parseLong(String s) {
+        ByteBuf buf = buffer(s);
+        return MetricLineParser.parseLong(buf, 0, buf.writerIndex());
+    }
+
+    @Test
+    public void testParseDouble() throws Exception {
+        String[] values = { "0", "-0", "1", "1.0", "+2.5", "-2.5", ".5", "5.", "0.1", "0.3", "123456.789", "1e10",
+                "1E-5", "-3.14159e+2", "123456789012345", "1234567890123456789", "0.000000000000000000001", "1e300",
+                "4.9e-324", "NaN", "-Infinity", "0x1p3", "1d", "2.5f", "00012.50000" };
+        for (String v : values) {
+            Assert.assertEquals(v, Double.doubleToLongBits(Double.parseDouble(v)),
+                    Double.doubleToLongBits(parseDouble(v)));
+        }
+        Random r = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            String v = Double.toString(r.nextDouble() * Math.pow(10, r.nextInt(20) - 10));
+            Assert.assertEquals(v, Double.parseDouble(v), parseDouble(v), 0.0D);
+            v = Long.toString(r.nextInt()) + "." + Integer.toString(r.nextInt(100000));
+            Assert.assertEquals(v, Double.parseDouble(v), parseDouble(v), 0.0D);
+        }
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void testParseDoubleInvalid() throws Exception {
+        parseDouble("1.0.0");
+    }
+
+    @Test
+    public void testParseLong() throws Exception {
+        String[] values = { "0", "-1", "+1", "1476803520000", "9223372036854775807", "-9223372036854775808" };
+        for (String v : values) {
+            Assert.assertEquals(v, Long.parseLong(v), parseLong(v));
+        }
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void testParseLongInvalid() throws Exception {
+        parseLong("12a");
+    }
+
+    @Test
+    public void testParseMatchesMetricParser() throws Exception {
+        MetricLineParser parser = new MetricLineParser();
+        MetricParser metricParser = new MetricParser();
+        String[] lines = { "put sys.cpu.user 1476803520000 1.0", "put sys.cpu.user 1476803520000 1.0 a=b c=d",
+                "put sys.cpu.user 1476803520000 1.0 a=b=c d=", "put  sys.cpu.user\t 1476803520000 1.0  a=b ",
+                "put sys.cpu.user 1476803520000 1.0 host=r01n01 rack=r01 viz=(a|b)&c" };
+        for (String line : lines) {
+            ByteBuf buf = buffer(line);
+            Metric m = parser.parse(buf, 0, buf.writerIndex());
+            Assert.assertEquals(line, metricParser.parse(line), m);
+        }
+    }
+
+    @Test
+    public void testStringsReused() throws Exception {
+        MetricLineParser parser = new MetricLineParser();
+        ByteBuf buf = buffer("put sys.cpu.user 1476803520000 1.0 host=r01n01");
+        Metric m1 = parser.parse(buf, 0, buf.writerIndex());
+        Metric m2 = parser.parse(buf, 0, buf.writerIndex());
+        Assert.assertSame(m1.getName(), m2.getName());
+        Assert.assertSame(m1.getTags().get(0).getKey(), m2.getTags().get(0).getKey());
+        Assert.assertSame(m1.getTags().get(0).getValue(), m2.getTags().get(0).getValue());
+    }
+
+}
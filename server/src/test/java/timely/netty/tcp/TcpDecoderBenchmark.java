@@ -0,0 +1,52 @@
+package timely.netty.tcp;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import timely.api.annotation.AnnotationResolver;
+import timely.api.request.TcpRequest;
+import timely.test.MicroBenchmark;
+
+/**
+ * Compares the in place put decoding against the previous approach of copying
+ * each frame, building a String and splitting it.
+ */
+public class TcpDecoderBenchmark {
+
+    private static final String LINE = "put sys.cpu.user 1476803520000 42.5 host=r01n01 rack=r01 instance=0 "
+            + "region=us-east-1 viz=public\n";
+
+    public static void main(String[] args) throws Exception {
+        ByteBuf buf = PooledByteBufAllocator.DEFAULT.directBuffer();
+        buf.writeBytes(LINE.getBytes(UTF_8));
+        List<Object> out = new ArrayList<>();
+        MicroBenchmark benchmark = new MicroBenchmark();
+
+        benchmark.run("split and parse", () -> {
+            buf.readerIndex(0);
+            ByteBuf frame = buf.readBytes(buf.readableBytes() - 1);
+            try {
+                String input = frame.toString(UTF_8);
+                String[] parts = input.split(" ");
+                TcpRequest tcp = AnnotationResolver.getClassForTcpOperation(parts[0]);
+                tcp.parse(input);
+                return tcp;
+            } finally {
+                frame.release();
+            }
+        });
+
+        TcpDecoder decoder = new TcpDecoder();
+        benchmark.run("in place", () -> {
+            buf.readerIndex(0);
+            out.clear();
+            decoder.decode(null, buf, out);
+            return out.get(0);
+        });
+        buf.release();
+    }
+}
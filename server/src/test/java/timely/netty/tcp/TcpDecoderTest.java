@@ -1,6 +1,7 @@
 package timely.netty.tcp;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import io.netty.buffer.ByteBuf;
@@ -29,7 +30,7 @@ public class TcpDecoderTest {
     public void testPutNoViz() throws Exception {
         TcpDecoder decoder = new TcpDecoder();
         List<Object> results = new ArrayList<>();
-        String put = "put sys.cpu.user " + TEST_TIME + " 1.0 tag1=value1 tag2=value2";
+        String put = "put sys.cpu.user " + TEST_TIME + " 1.0 tag1=value1 tag2=value2\n";
         ByteBuf buf = Unpooled.wrappedBuffer(put.getBytes());
         decoder.decode(null, buf, results);
         Assert.assertEquals(1, results.size());
@@ -53,7 +54,7 @@ public class TcpDecoderTest {
     public void testPutWithViz() throws Exception {
         TcpDecoder decoder = new TcpDecoder();
         List<Object> results = new ArrayList<>();
-        String put = "put sys.cpu.user " + TEST_TIME + " 1.0 tag1=value1 viz=a&b tag2=value2";
+        String put = "put sys.cpu.user " + TEST_TIME + " 1.0 tag1=value1 viz=a&b tag2=value2\n";
         ByteBuf buf = Unpooled.wrappedBuffer(put.getBytes());
         decoder.decode(null, buf, results);
         Assert.assertEquals(1, results.size());
@@ -77,7 +78,7 @@ public class TcpDecoderTest {
     public void testVersion() throws Exception {
         TcpDecoder decoder = new TcpDecoder();
         List<Object> results = new ArrayList<>();
-        String put = "version";
+        String put = "version\n";
         ByteBuf buf = Unpooled.wrappedBuffer(put.getBytes());
         decoder.decode(null, buf, results);
         Assert.assertEquals(1, results.size());
@@ -88,10 +89,96 @@ public class TcpDecoderTest {
     public void testUnknownOperation() throws Exception {
         TcpDecoder decoder = new TcpDecoder();
         List<Object> results = new ArrayList<>();
-        String put = "foo";
+        String put = "foo\n";
         ByteBuf buf = Unpooled.wrappedBuffer(put.getBytes());
         decoder.decode(null, buf, results);
         Assert.assertEquals(0, results.size());
     }
 
+    @Test
+    public void testMultipleLines() throws Exception {
+        TcpDecoder decoder = new TcpDecoder();
+        List<Object> results = new ArrayList<>();
+        String put = "put sys.cpu.user " + TEST_TIME + " 1.0 tag1=value1\r\n\nversion\nput sys.cpu.idle " + TEST_TIME
+                + " 2.5 tag1=value1\n";
+        ByteBuf buf = Unpooled.wrappedBuffer(put.getBytes());
+        decoder.decode(null, buf, results);
+        Assert.assertEquals(3, results.size());
+        Assert.assertEquals(
+                new Metric("sys.cpu.user", TEST_TIME, 1.0D, Collections.singletonList(new Tag("tag1", "value1"))),
+                ((MetricRequest) results.get(0)).getMetric());
+        Assert.assertEquals(VersionRequest.class, results.get(1).getClass());
+        Assert.assertEquals(
+                new Metric("sys.cpu.idle", TEST_TIME, 2.5D, Collections.singletonList(new Tag("tag1", "value1"))),
+                ((MetricRequest) results.get(2)).getMetric());
+        Assert.assertFalse(buf.isReadable());
+    }
+
+    @Test
+    public void testPartialLine() throws Exception {
+        TcpDecoder decoder = new TcpDecoder();
+        List<Object> results = new ArrayList<>();
+        ByteBuf buf = Unpooled.buffer();
+        buf.writeBytes(("put sys.cpu.user " + TEST_TIME + " 1.0 ta").getBytes());
+        decoder.decode(null, buf, results);
+        Assert.assertEquals(0, results.size());
+        buf.writeBytes("g1=value1\n".getBytes());
+        decoder.decode(null, buf, results);
+        Assert.assertEquals(1, results.size());
+        Assert.assertEquals(
+                new Metric("sys.cpu.user", TEST_TIME, 1.0D, Collections.singletonList(new Tag("tag1", "value1"))),
+                ((MetricRequest) results.get(0)).getMetric());
+    }
+
+    @Test
+    public void testExtraWhitespace() throws Exception {
+        TcpDecoder decoder = new TcpDecoder();
+        List<Object> results = new ArrayList<>();
+        String put = "put  sys.cpu.user   " + TEST_TIME + "  -1.5e2 tag1=value1\t  tag2=value2 \n";
+        decoder.decode(null, Unpooled.wrappedBuffer(put.getBytes()), results);
+        Assert.assertEquals(1, results.size());
+        Metric expected = Metric.newBuilder().name("sys.cpu.user").value(TEST_TIME, -150D)
+                .tag(new Tag("tag1", "value1")).tag(new Tag("tag2", "value2")).build();
+        Assert.assertEquals(expected, ((MetricRequest) results.get(0)).getMetric());
+    }
+
+    @Test
+    public void testInvalidPutSkipped() throws Exception {
+        TcpDecoder decoder = new TcpDecoder();
+        List<Object> results = new ArrayList<>();
+        String put = "put sys.cpu.user " + TEST_TIME
+                + " 1.0 tag1\nput sys.cpu.user abc 1.0\nput sys.cpu.user\nput sys.cpu.user " + TEST_TIME
+                + " 1.0 tag1=value1\n";
+        decoder.decode(null, Unpooled.wrappedBuffer(put.getBytes()), results);
+        Assert.assertEquals(1, results.size());
+        Assert.assertEquals(
+                new Metric("sys.cpu.user", TEST_TIME, 1.0D, Collections.singletonList(new Tag("tag1", "value1"))),
+                ((MetricRequest) results.get(0)).getMetric());
+    }
+
+    @Test
+    public void testLineTooLong() throws Exception {
+        TcpDecoder decoder = new TcpDecoder(32);
+        List<Object> results = new ArrayList<>();
+        ByteBuf buf = Unpooled.buffer();
+        buf.writeBytes("put sys.cpu.user 1 1.0 tag1=value1 tag2=value2 tag3=value3".getBytes());
+        decoder.decode(null, buf, results);
+        Assert.assertEquals(0, results.size());
+        Assert.assertFalse(buf.isReadable());
+        buf.writeBytes(" tag4=value4\nput sys.cpu.user 1 1.0\n".getBytes());
+        decoder.decode(null, buf, results);
+        Assert.assertEquals(1, results.size());
+        Assert.assertEquals(new Metric("sys.cpu.user", 1L, 1.0D), ((MetricRequest) results.get(0)).getMetric());
+    }
+
+    @Test
+    public void testLineAvailableForRelay() throws Exception {
+        TcpDecoder decoder = new TcpDecoder();
+        List<Object> results = new ArrayList<>();
+        String put = "put sys.cpu.user " + TEST_TIME + " 1.0 tag1=value1 tag2=value2";
+        decoder.decode(null, Unpooled.wrappedBuffer((put + "\n").getBytes()), results);
+        Assert.assertEquals(1, results.size());
+        Assert.assertEquals(put, ((MetricRequest) results.get(0)).getLine());
+    }
+
 }
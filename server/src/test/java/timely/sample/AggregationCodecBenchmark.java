@@ -0,0 +1,68 @@
+package timely.sample;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import timely.model.Tag;
+import timely.sample.aggregators.Avg;
+import timely.test.MicroBenchmark;
+
+/**
+ * Time and size of encoding and decoding the iterator value of a wide query,
+ * 100 series with 1440 one minute buckets, with Java serialization and with
+ * AggregationCodec
+ */
+public class AggregationCodecBenchmark {
+
+    private static final int NUM_SERIES = 100;
+    private static final int NUM_BUCKETS = 1440;
+
+    public static void main(String[] args) throws Exception {
+        long start = 1500000000000L;
+        long period = 60000;
+        Map<Set<Tag>, Downsample> series = new HashMap<>();
+        for (int i = 0; i < NUM_SERIES; i++) {
+            Set<Tag> tags = new HashSet<>();
+            tags.add(new Tag("host", "h" + i));
+            tags.add(new Tag("rack", "r" + (i % 20)));
+            tags.add(new Tag("instance", "i" + (i % 4)));
+            Downsample ds = new Downsample(start, start + NUM_BUCKETS * period, period, new Avg());
+            for (int b = 0; b < NUM_BUCKETS; b++) {
+                for (int p = 0; p < 6; p++) {
+                    ds.add(start + b * period + p * 10000, (i * 31 + b * 7 + p) % 1000 / 10.0);
+                }
+            }
+            series.put(tags, ds);
+        }
+
+        byte[] serialized = serialize(series);
+        byte[] encoded = AggregationCodec.encode(series);
+        System.out.println(
+                String.format("java serialization %d bytes, codec %d bytes", serialized.length, encoded.length));
+
+        MicroBenchmark benchmark = new MicroBenchmark(2, 3, 1, TimeUnit.SECONDS);
+        benchmark.run("encode java serialization", () -> serialize(series).length);
+        benchmark.run("encode codec", () -> AggregationCodec.encode(series).length);
+        benchmark.run("decode java serialization", () -> {
+            try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialized))) {
+                return in.readObject();
+            }
+        });
+        benchmark.run("decode codec", () -> AggregationCodec.decode(encoded).size());
+    }
+
+    private static byte[] serialize(Object o) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(o);
+        }
+        return bytes.toByteArray();
+    }
+}
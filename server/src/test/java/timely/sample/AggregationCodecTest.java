@@ -0,0 +1,134 @@
+package timely.sample;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+import timely.model.Tag;
+import timely.sample.aggregators.Avg;
+import timely.sample.aggregators.Dev;
+import timely.sample.aggregators.Max;
+import timely.sample.aggregators.Sum;
+
+public class AggregationCodecTest {
+
+    private static Set<Tag> tags(String... keyValues) {
+        Set<Tag> tags = new HashSet<>();
+        for (int i = 0; i < keyValues.length; i += 2) {
+            tags.add(new Tag(keyValues[i], keyValues[i + 1]));
+        }
+        return tags;
+    }
+
+    private static Map<Set<Tag>, Aggregation> createSeries() {
+        Map<Set<Tag>, Aggregation> series = new HashMap<>();
+        Random r = new Random(5);
+        long start = 1500000000000L;
+        Downsample avg = new Downsample(start, start + 3600000, 60000, new Avg());
+        Downsample dev = new Downsample(start, start + 3600000, 60000, new Dev());
+        for (long ts = start + 1234; ts < start + 3600000; ts += 10000) {
+            if (r.nextInt(10) > 0) {
+                avg.add(ts, r.nextDouble() * 100);
+                dev.add(ts, -r.nextInt(1000));
+            }
+        }
+        series.put(tags("host", "r01n01", "rack", "r01"), avg);
+        series.put(tags("host", "r01n02", "rack", "r01"), dev);
+        series.put(tags("host", "ünicode", "rack", "r01"), new Downsample(start, start + 1, 1, new Max()));
+
+        // buckets that are not on the downsample period
+        Downsample unaligned = new Downsample(start, start + 3600000, 60000, new Sum());
+        unaligned.add(start + 60000, 3);
+        unaligned.buckets.put(start + 90001, new Aggregation.AggregatedValue());
+        series.put(tags("host", "r02n01", "rack", "r02"), unaligned);
+
+        Aggregation aggregation = new Aggregation(new Sum());
+        aggregation.add(start - 5000, Double.NaN);
+        aggregation.add(start, Double.NEGATIVE_INFINITY);
+        aggregation.add(start + 17, 42);
+        aggregation.add(start + 17, 1);
+        series.put(tags(), aggregation);
+        return series;
+    }
+
+    private static void assertSeriesEquals(Map<Set<Tag>, Aggregation> expected, Map<Set<Tag>, Aggregation> actual) {
+        assertEquals(expected.keySet(), actual.keySet());
+        for (Map.Entry<Set<Tag>, Aggregation> e : expected.entrySet()) {
+            Aggregation a = actual.get(e.getKey());
+            assertEquals(e.getValue().getClass(), a.getClass());
+            assertEquals(e.getValue().aggregatorClassname, a.aggregatorClassname);
+            assertEquals(e.getValue().buckets.keySet(), a.buckets.keySet());
+            for (Map.Entry<Long, Aggregation.AggregatedValue> bucket : e.getValue().buckets.entrySet()) {
+                Aggregation.AggregatedValue value = a.buckets.get(bucket.getKey());
+                assertEquals(bucket.getValue().getCount(), value.getCount());
+                assertEquals(Double.doubleToRawLongBits(bucket.getValue().getValue()),
+                        Double.doubleToRawLongBits(value.getValue()));
+            }
+            if (a instanceof Downsample) {
+                assertEquals(((Downsample) e.getValue()).start, ((Downsample) a).start);
+                assertEquals(((Downsample) e.getValue()).period, ((Downsample) a).period);
+            }
+        }
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        Map<Set<Tag>, Aggregation> series = createSeries();
+        byte[] encoded = AggregationCodec.encode(series);
+        assertEquals(AggregationCodec.VERSION, encoded[0]);
+        Map<Set<Tag>, Aggregation> decoded = AggregationCodec.decode(encoded);
+        assertSeriesEquals(series, decoded);
+
+        // decoded downsamples still aggregate
+        Downsample ds = (Downsample) decoded.get(tags("host", "r01n01", "rack", "r01"));
+        ds.add(1500000000000L + 3540000, 1);
+        assertArrayEquals(encoded, AggregationCodec.encode(series));
+
+        assertTrue(AggregationCodec.decode(AggregationCodec.encode(new HashMap<>())).isEmpty());
+    }
+
+    @Test
+    public void testSmallerThanJavaSerialization() throws Exception {
+        Map<Set<Tag>, Aggregation> series = createSeries();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(series);
+        }
+        byte[] encoded = AggregationCodec.encode(series);
+        assertTrue(encoded.length + " " + bytes.size(), encoded.length * 3 < bytes.size());
+    }
+
+    @Test
+    public void testDecodeJavaSerialization() throws Exception {
+        Map<Set<Tag>, Aggregation> series = createSeries();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(series);
+        }
+        assertSeriesEquals(series, AggregationCodec.decode(bytes.toByteArray()));
+    }
+
+    @Test(expected = IOException.class)
+    public void testUnknownVersion() throws Exception {
+        byte[] encoded = AggregationCodec.encode(createSeries());
+        encoded[0] = AggregationCodec.VERSION + 1;
+        AggregationCodec.decode(encoded);
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncated() throws Exception {
+        byte[] encoded = AggregationCodec.encode(createSeries());
+        AggregationCodec.decode(Arrays.copyOf(encoded, encoded.length - 3));
+    }
+}
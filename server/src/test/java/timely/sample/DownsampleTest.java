@@ -111,4 +111,18 @@ public class DownsampleTest {
 
     }
 
+    @Test
+    public void testNumPoints() throws Exception {
+        Downsample dsample = new Downsample(0, 100, 10, new Avg());
+        for (int i = 0; i < 100; i++) {
+            dsample.add(i, i);
+        }
+        assertEquals(10, dsample.getNumBuckets());
+        assertEquals(100, dsample.getNumPoints());
+        Downsample other = new Downsample(0, 100, 10, new Avg());
+        other.add(5, 1);
+        dsample.merge(other);
+        assertEquals(101, dsample.getNumPoints());
+    }
+
 }
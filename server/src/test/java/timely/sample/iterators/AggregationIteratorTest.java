@@ -141,10 +141,40 @@ public class AggregationIteratorTest {
         }
     }
 
+    @Test
+    public void groupByAggregatedSample() throws Exception {
+        AggregationIterator iter = new AggregationIterator();
+        IteratorSetting is = new IteratorSetting(100, AggregationIterator.class);
+        AggregationIterator.setAggregationOptions(is, Collections.singletonMap("host", ".*"),
+                Collections.singleton("host"), Avg.class.getName());
+        Map<Set<Tag>, Aggregation> samples = runQuery(iter, testData2, is);
+        assertEquals(2, samples.size());
+        for (Entry<Set<Tag>, Aggregation> entry : samples.entrySet()) {
+            Set<Tag> tags = entry.getKey();
+            assertEquals(1, tags.size());
+            boolean host1 = tags.contains(new Tag("host", "host1"));
+            assertTrue(host1 || tags.contains(new Tag("host", "host2")));
+            long ts = host1 ? 0 : 100;
+            int count = 0;
+            for (Sample sample : entry.getValue()) {
+                assertEquals(ts, sample.timestamp);
+                ts += 100;
+                assertEquals(host1 ? 0.2 : 0.5, sample.value, 0.0001);
+                count++;
+            }
+            assertEquals(10, count);
+        }
+    }
+
     private Map<Set<Tag>, Aggregation> runQuery(SortedKeyValueIterator<Key, Value> iter, SortedMap<Key, Value> testData,
             long period) throws Exception {
         IteratorSetting is = new IteratorSetting(100, AggregationIterator.class);
         AggregationIterator.setAggregationOptions(is, Collections.singletonMap("host", ".*"), Avg.class.getName());
+        return runQuery(iter, testData, is);
+    }
+
+    private Map<Set<Tag>, Aggregation> runQuery(SortedKeyValueIterator<Key, Value> iter, SortedMap<Key, Value> testData,
+            IteratorSetting is) throws Exception {
         SortedKeyValueIterator<Key, Value> source = new SortedMapIterator(testData);
         iter.init(source, is.getOptions(), null);
         iter.seek(new Range(), Collections.emptyList(), true);
@@ -0,0 +1,85 @@
+package timely.sample.iterators;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.accumulo.core.client.IteratorSetting;
+import org.apache.accumulo.core.data.ColumnUpdate;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Mutation;
+import org.apache.accumulo.core.data.Range;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.iterators.SortedMapIterator;
+import timely.Configuration;
+import timely.adapter.accumulo.MetricAdapter;
+import timely.auth.VisibilityCache;
+import timely.model.Metric;
+import timely.model.Tag;
+import timely.sample.Downsample;
+import timely.sample.DownsampleFactory;
+import timely.sample.aggregators.Avg;
+import timely.test.MicroBenchmark;
+
+/**
+ * Keys per second through the DownsampleIterator for 100 series of 1000 points
+ * each, against parsing every key into a Metric as the iterator used to
+ */
+public class DownsampleIteratorBenchmark {
+
+    private static final int NUM_SERIES = 100;
+    private static final int NUM_POINTS = 1000;
+
+    public static void main(String[] args) throws Exception {
+        VisibilityCache.init(new Configuration());
+        SortedMap<Key, Value> data = new TreeMap<>();
+        for (int i = 0; i < NUM_SERIES; i++) {
+            for (long ts = 0; ts < NUM_POINTS * 1000L; ts += 1000) {
+                Metric m = new Metric("sys.cpu.user", ts, ts % 100,
+                        Arrays.asList(new Tag("host", "h" + i), new Tag("rack", "r" + (i % 10))));
+                Mutation mutation = MetricAdapter.toMutation(m);
+                // one column of each metric, as a query on the host tag reads
+                ColumnUpdate cu = mutation.getUpdates().get(0);
+                data.put(new Key(mutation.getRow(), cu.getColumnFamily(), cu.getColumnQualifier(),
+                        cu.getColumnVisibility(), cu.getTimestamp()), new Value(cu.getValue()));
+            }
+        }
+        long end = NUM_POINTS * 1000L;
+        long period = 60000;
+
+        MicroBenchmark benchmark = new MicroBenchmark(2, 3, 1, TimeUnit.SECONDS);
+        benchmark.run("parse every key (" + data.size() + " keys)", () -> {
+            DownsampleFactory factory = new DownsampleFactory(0, end, period, Avg.class);
+            Map<Set<Tag>, Downsample> value = new HashMap<>();
+            for (Map.Entry<Key, Value> e : data.entrySet()) {
+                Metric metric = MetricAdapter.parse(e.getKey(), e.getValue());
+                Set<Tag> tags = new HashSet<>(metric.getTags());
+                Downsample ds = value.get(tags);
+                if (ds == null) {
+                    value.put(tags, ds = factory.create());
+                }
+                ds.add(metric.getValue().getTimestamp(), metric.getValue().getMeasure());
+            }
+            return value.size();
+        });
+        benchmark.run("DownsampleIterator (" + data.size() + " keys)", () -> {
+            IteratorSetting is = new IteratorSetting(100, DownsampleIterator.class);
+            DownsampleIterator.setDownsampleOptions(is, 0, end, period, -1, Avg.class.getName());
+            DownsampleIterator iter = new DownsampleIterator();
+            iter.init(new SortedMapIterator(data), is.getOptions(), null);
+            iter.seek(new Range(), Collections.emptyList(), true);
+            int n = 0;
+            while (iter.hasTop()) {
+                n += iter.getTopValue().getSize();
+                iter.next();
+            }
+            return n;
+        });
+    }
+}
@@ -1,6 +1,7 @@
 package timely.sample.iterators;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
@@ -251,6 +252,42 @@ public class DownsampleIteratorTest {
         assertEquals((elapsedTime / sampleInterval) * numTagVariations, totalBuckets);
     }
 
+    @Test
+    public void testSeriesOfRawKeys() throws Exception {
+        // every metric is written once per tag, and the same tags under
+        // different visibilities are one series
+        SortedMap<Key, Value> testData = new TreeMap<>();
+        String[] hosts = new String[] { "h1", "h2", "h3" };
+        for (long i = 0; i < 1000; i += 10) {
+            for (int h = 0; h < hosts.length; h++) {
+                List<Tag> tags = new ArrayList<>();
+                tags.add(new Tag("host", hosts[h]));
+                tags.add(new Tag("rack", "r" + (h % 2)));
+                tags.add(new Tag("instance", "i" + h));
+                tags.add(new Tag("viz", i % 20 == 0 ? "A" : "B"));
+                put(testData, new Metric("sys.loadAvg", i, i * (h + 1), tags));
+            }
+        }
+        Map<Set<Tag>, Downsample> expected = new HashMap<>();
+        for (Entry<Key, Value> e : testData.entrySet()) {
+            Metric m = MetricAdapter.parse(e.getKey(), e.getValue());
+            expected.computeIfAbsent(new HashSet<>(m.getTags()), k -> new Downsample(0, 1000, 100, new Avg()))
+                    .add(m.getValue().getTimestamp(), m.getValue().getMeasure());
+        }
+
+        Map<Set<Tag>, Downsample> samples = runQuery(new DownsampleIterator(), testData, 100, -1);
+        assertEquals(expected.keySet(), samples.keySet());
+        for (Entry<Set<Tag>, Downsample> e : expected.entrySet()) {
+            Iterator<Sample> actual = samples.get(e.getKey()).iterator();
+            for (Sample sample : e.getValue()) {
+                Sample other = actual.next();
+                assertEquals(sample.timestamp, other.timestamp);
+                assertEquals(sample.value, other.value, 0.0D);
+            }
+            assertFalse(actual.hasNext());
+        }
+    }
+
     private Map<Set<Tag>, Downsample> runQuery(SortedKeyValueIterator<Key, Value> iter, SortedMap<Key, Value> testData,
             long period, long maxDownsampleMemory) throws Exception {
         IteratorSetting is = new IteratorSetting(100, DownsampleIterator.class);
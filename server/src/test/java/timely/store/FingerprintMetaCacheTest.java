@@ -0,0 +1,136 @@
+package timely.store;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Assert;
+import org.junit.Test;
+import timely.Configuration;
+import timely.api.model.Meta;
+
+public class FingerprintMetaCacheTest {
+
+    private static FingerprintMetaCache createCache(Configuration conf, AtomicLong time) {
+        FingerprintMetaCache cache = new FingerprintMetaCache(time::get);
+        cache.init(conf);
+        return cache;
+    }
+
+    @Test
+    public void testContains() {
+        FingerprintMetaCache cache = createCache(new Configuration(), new AtomicLong(0));
+        Assert.assertFalse(cache.contains("sys.cpu.user", "host", "r01n01"));
+        cache.add(new Meta("sys.cpu.user", "host", "r01n01"));
+        Assert.assertTrue(cache.contains("sys.cpu.user", "host", "r01n01"));
+        Assert.assertTrue(cache.contains(new Meta("sys.cpu.user", "host", "r01n01")));
+        Assert.assertFalse(cache.contains("sys.cpu.user", "host", "r01n02"));
+        Assert.assertFalse(cache.contains("sys.cpu.user", "hos", "tr01n01"));
+        Assert.assertFalse(cache.contains("sys.cpu.user", "host", null));
+        cache.add(new Meta("sys.cpu.user", "host", null));
+        Assert.assertTrue(cache.contains("sys.cpu.user", "host", null));
+        Assert.assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void testManyEntries() {
+        Configuration conf = new Configuration();
+        conf.getMetaCache().setMaxFingerprints(1000000);
+        FingerprintMetaCache cache = createCache(conf, new AtomicLong(0));
+        List<Meta> metas = new ArrayList<>();
+        for (int i = 0; i < 100000; i++) {
+            metas.add(new Meta("sys.cpu.user", "host", "r" + i));
+        }
+        cache.addAll(metas);
+        Assert.assertEquals(100000, cache.size());
+        for (int i = 0; i < 100000; i++) {
+            Assert.assertTrue(cache.contains("sys.cpu.user", "host", "r" + i));
+            Assert.assertFalse(cache.contains("sys.cpu.idle", "host", "r" + i));
+        }
+    }
+
+    @Test
+    public void testIterator() {
+        FingerprintMetaCache cache = createCache(new Configuration(), new AtomicLong(0));
+        Set<Meta> expected = new HashSet<>();
+        expected.add(new Meta("sys.cpu.user", "host", "r01n01"));
+        expected.add(new Meta("sys.cpu.user", "rack", "r01"));
+        expected.add(new Meta("sys.cpu.idle", "host", "r01n01"));
+        cache.addAll(expected);
+        Set<Meta> actual = new HashSet<>();
+        cache.forEach(actual::add);
+        Assert.assertEquals(expected, actual);
+    }
+
+    @Test
+    public void testExpiration() {
+        Configuration conf = new Configuration();
+        conf.getMetaCache().setExpirationMinutes(10);
+        AtomicLong time = new AtomicLong(0);
+        FingerprintMetaCache cache = createCache(conf, time);
+        cache.add(new Meta("sys.cpu.user", "host", "r01n01"));
+        // every stripe rotates within half of the expiration
+        time.set(TimeUnit.MINUTES.toMillis(5));
+        Assert.assertFalse(cache.contains("sys.cpu.user", "host", "r01n01"));
+        cache.add(new Meta("sys.cpu.user", "host", "r01n01"));
+        Assert.assertTrue(cache.contains("sys.cpu.user", "host", "r01n01"));
+    }
+
+    @Test
+    public void testMaxFingerprints() {
+        Configuration conf = new Configuration();
+        conf.getMetaCache().setMaxFingerprints(64 * 100);
+        FingerprintMetaCache cache = createCache(conf, new AtomicLong(0));
+        for (int i = 0; i < 100000; i++) {
+            cache.add(new Meta("sys.cpu.user", "host", "r" + i));
+        }
+        Assert.assertTrue(cache.size() <= 64 * 100);
+        Assert.assertTrue(cache.contains("sys.cpu.user", "host", "r99999"));
+    }
+
+    @Test
+    public void testConcurrentAccess() throws Exception {
+        Configuration conf = new Configuration();
+        conf.getMetaCache().setMaxFingerprints(1000000);
+        FingerprintMetaCache cache = createCache(conf, new AtomicLong(0));
+        int threads = 8;
+        int perThread = 20000;
+        List<Thread> workers = new ArrayList<>();
+        AtomicLong missing = new AtomicLong(0);
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            workers.add(new Thread(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    String value = thread + "-" + i;
+                    cache.add(new Meta("sys.cpu.user", "host", value));
+                    if (!cache.contains("sys.cpu.user", "host", value)) {
+                        missing.incrementAndGet();
+                    }
+                }
+            }));
+        }
+        workers.forEach(Thread::start);
+        for (Thread t : workers) {
+            t.join();
+        }
+        Assert.assertEquals(0, missing.get());
+        Assert.assertEquals(threads * perThread, cache.size());
+    }
+
+    @Test
+    public void testFactory() {
+        Configuration conf = new Configuration();
+        try {
+            MetaCacheFactory.close();
+            Assert.assertTrue(MetaCacheFactory.getCache(conf) instanceof FingerprintMetaCache);
+            MetaCacheFactory.close();
+            conf.getMetaCache().setFingerprint(false);
+            Assert.assertTrue(MetaCacheFactory.getCache(conf) instanceof MetaCacheImpl);
+        } finally {
+            MetaCacheFactory.close();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package timely.store;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+import timely.Configuration;
+import timely.model.Metric;
+
+public class IngestPipelineTest {
+
+    private static double getMetric(List<Metric> metrics, String name) {
+        return metrics.stream().filter(m -> m.getName().equals(name)).findFirst().get().getValue().getMeasure();
+    }
+
+    @Test
+    public void testAllMetricsDrainedInBatches() throws Exception {
+        Configuration conf = new Configuration();
+        conf.getIngest().setThreads(2).getIngest().setQueueSize(1000).getIngest().setBatchSize(50);
+        InternalMetrics internalMetrics = new InternalMetrics(conf);
+        List<Metric> stored = Collections.synchronizedList(new ArrayList<>());
+        List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+        IngestPipeline pipeline = new IngestPipeline(conf.getIngest(), batch -> {
+            batchSizes.add(batch.size());
+            stored.addAll(batch);
+        }, internalMetrics);
+
+        int producers = 4;
+        int perProducer = 5000;
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            Thread t = new Thread(() -> {
+                for (int i = 0; i < perProducer; i++) {
+                    pipeline.put(new Metric("sys.cpu.user", i, producer));
+                }
+            });
+            threads.add(t);
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        pipeline.close();
+
+        Assert.assertEquals(producers * perProducer, stored.size());
+        Assert.assertTrue(batchSizes.stream().allMatch(s -> s > 0 && s <= 50));
+        Assert.assertEquals(0, pipeline.getQueueDepth());
+        List<Metric> metrics = internalMetrics.getMetricsAndReset();
+        Assert.assertEquals((double) stored.size() / batchSizes.size(), getMetric(metrics, "timely.ingest.batch.size"),
+                0.0001);
+    }
+
+    @Test
+    public void testPausedWhenQueueFull() throws Exception {
+        Configuration conf = new Configuration();
+        conf.getIngest().setThreads(1).getIngest().setQueueSize(4).getIngest().setBatchSize(1);
+        InternalMetrics internalMetrics = new InternalMetrics(conf);
+        CountDownLatch release = new CountDownLatch(1);
+        List<Metric> stored = Collections.synchronizedList(new ArrayList<>());
+        IngestPipeline pipeline = new IngestPipeline(conf.getIngest(), batch -> {
+            release.await();
+            stored.addAll(batch);
+        }, internalMetrics);
+
+        // the writer takes at most one, puts never block
+        int numPut = 0;
+        while (pipeline.put(new Metric("sys.cpu.user", numPut, 1))) {
+            numPut++;
+            Assert.assertTrue(numPut < 10);
+        }
+        numPut++;
+        // more than the queue size may be queued while producers pause
+        pipeline.put(new Metric("sys.cpu.user", numPut++, 1));
+        CountDownLatch resumed = new CountDownLatch(1);
+        pipeline.resumeWhenDrained(resumed::countDown);
+        Assert.assertFalse(resumed.await(200, TimeUnit.MILLISECONDS));
+        release.countDown();
+        Assert.assertTrue(resumed.await(5, TimeUnit.SECONDS));
+        pipeline.close();
+
+        Assert.assertEquals(numPut, stored.size());
+        List<Metric> metrics = internalMetrics.getMetricsAndReset();
+        Assert.assertTrue(getMetric(metrics, "timely.ingest.stall.time") >= 200);
+    }
+
+    @Test
+    public void testResumedOnClose() throws Exception {
+        Configuration conf = new Configuration();
+        conf.getIngest().setThreads(1).getIngest().setQueueSize(1).getIngest().setBatchSize(1);
+        IngestPipeline pipeline = new IngestPipeline(conf.getIngest(), batch -> {
+        }, new InternalMetrics(conf));
+        pipeline.close();
+        CountDownLatch resumed = new CountDownLatch(1);
+        pipeline.resumeWhenDrained(resumed::countDown);
+        Assert.assertEquals(0, resumed.getCount());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testPutAfterClose() throws Exception {
+        Configuration conf = new Configuration();
+        IngestPipeline pipeline = new IngestPipeline(conf.getIngest(), batch -> {
+        }, new InternalMetrics(conf));
+        pipeline.close();
+        pipeline.put(new Metric("sys.cpu.user", 1, 1));
+    }
+}
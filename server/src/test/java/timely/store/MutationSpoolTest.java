@@ -0,0 +1,133 @@
+package timely.store;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.accumulo.core.data.Mutation;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import timely.Configuration;
+
+public class MutationSpoolTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Configuration createConfiguration() throws Exception {
+        Configuration conf = new Configuration();
+        conf.getAccumulo().getWrite().getSpool().setEnabled(true).getAccumulo().getWrite().getSpool()
+                .setDirectory(folder.newFolder().getAbsolutePath()).getAccumulo().getWrite().getSpool()
+                .setSegmentSize("64K").getAccumulo().getWrite().getSpool().setReplayInterval("100ms");
+        return conf;
+    }
+
+    private static List<Mutation> createMutations(int num) {
+        List<Mutation> mutations = new ArrayList<>();
+        for (int i = 0; i < num; i++) {
+            Mutation m = new Mutation("row" + i);
+            m.put("cf", "cq" + i, i, "value" + i);
+            mutations.add(m);
+        }
+        return mutations;
+    }
+
+    private static void waitFor(AtomicBoolean condition) throws InterruptedException {
+        long end = System.currentTimeMillis() + 10000;
+        while (!condition.get() && System.currentTimeMillis() < end) {
+            Thread.sleep(20);
+        }
+    }
+
+    @Test
+    public void testReplay() throws Exception {
+        Configuration conf = createConfiguration();
+        List<Mutation> replayed = Collections.synchronizedList(new ArrayList<>());
+        AtomicBoolean done = new AtomicBoolean(false);
+        List<Mutation> mutations = createMutations(5000);
+        try (MutationSpool spool = new MutationSpool(conf.getAccumulo().getWrite().getSpool(), (table, m) -> {
+            Assert.assertEquals("metrics", table);
+            replayed.addAll(m);
+            done.set(replayed.size() == mutations.size());
+        }, new InternalMetrics(conf))) {
+            Assert.assertEquals(0, spool.append("metrics", mutations));
+            Assert.assertTrue(spool.getSize() > 0);
+            waitFor(done);
+            Assert.assertEquals(mutations, replayed);
+            Assert.assertFalse(spool.isBacklogged());
+        }
+    }
+
+    @Test
+    public void testFailedReplayIsRetried() throws Exception {
+        Configuration conf = createConfiguration();
+        AtomicBoolean available = new AtomicBoolean(false);
+        AtomicBoolean done = new AtomicBoolean(false);
+        List<Mutation> replayed = Collections.synchronizedList(new ArrayList<>());
+        List<Mutation> mutations = createMutations(100);
+        try (MutationSpool spool = new MutationSpool(conf.getAccumulo().getWrite().getSpool(), (table, m) -> {
+            if (!available.get()) {
+                throw new IllegalStateException("Accumulo unavailable");
+            }
+            replayed.addAll(m);
+            done.set(true);
+        }, new InternalMetrics(conf))) {
+            spool.append("metrics", mutations);
+            long end = System.currentTimeMillis() + 10000;
+            while (!spool.isBacklogged() && System.currentTimeMillis() < end) {
+                Thread.sleep(20);
+            }
+            Assert.assertTrue(spool.isBacklogged());
+            Assert.assertTrue(spool.getReplayLag() > 0);
+            available.set(true);
+            waitFor(done);
+            Assert.assertEquals(mutations, replayed);
+            // the replay thread clears the backlog after handing off the batch
+            end = System.currentTimeMillis() + 10000;
+            while (spool.isBacklogged() && System.currentTimeMillis() < end) {
+                Thread.sleep(20);
+            }
+            Assert.assertFalse(spool.isBacklogged());
+            Assert.assertEquals(0, spool.getSize());
+        }
+    }
+
+    @Test
+    public void testRecoveredOnRestart() throws Exception {
+        Configuration conf = createConfiguration();
+        List<Mutation> mutations = createMutations(1000);
+        try (MutationSpool spool = new MutationSpool(conf.getAccumulo().getWrite().getSpool(), (table, m) -> {
+            throw new IllegalStateException("Accumulo unavailable");
+        }, new InternalMetrics(conf))) {
+            spool.append("meta", mutations);
+        }
+
+        List<Mutation> replayed = Collections.synchronizedList(new ArrayList<>());
+        AtomicBoolean done = new AtomicBoolean(false);
+        try (MutationSpool spool = new MutationSpool(conf.getAccumulo().getWrite().getSpool(), (table, m) -> {
+            Assert.assertEquals("meta", table);
+            replayed.addAll(m);
+            done.set(replayed.size() == mutations.size());
+        }, new InternalMetrics(conf))) {
+            Assert.assertTrue(spool.getSize() > 0);
+            waitFor(done);
+            Assert.assertEquals(mutations, replayed);
+        }
+    }
+
+    @Test
+    public void testMaxSize() throws Exception {
+        Configuration conf = createConfiguration();
+        conf.getAccumulo().getWrite().getSpool().setMaxSize("128K");
+        try (MutationSpool spool = new MutationSpool(conf.getAccumulo().getWrite().getSpool(), (table, m) -> {
+            throw new IllegalStateException("Accumulo unavailable");
+        }, new InternalMetrics(conf))) {
+            int dropped = spool.append("metrics", createMutations(10000));
+            Assert.assertTrue(dropped > 0);
+            Assert.assertTrue(spool.getSize() <= 128 * 1024);
+        }
+    }
+}
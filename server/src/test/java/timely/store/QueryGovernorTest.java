@@ -0,0 +1,176 @@
+package timely.store;
+
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.netty.handler.codec.http.HttpResponseStatus;
+import org.apache.accumulo.core.client.BatchScanner;
+import org.junit.Assert;
+import org.junit.Test;
+import timely.Configuration;
+import timely.api.request.timeseries.QueryRequest;
+import timely.api.response.TimelyException;
+import timely.model.Metric;
+
+public class QueryGovernorTest {
+
+    private final InternalMetrics metrics = new InternalMetrics(new Configuration());
+
+    private static BatchScanner createScanner(AtomicInteger closed) {
+        return (BatchScanner) Proxy.newProxyInstance(QueryGovernorTest.class.getClassLoader(),
+                new Class<?>[] { BatchScanner.class }, (proxy, method, args) -> {
+                    if (method.getName().equals("close")) {
+                        closed.incrementAndGet();
+                    }
+                    return null;
+                });
+    }
+
+    private double getMetric(String name) {
+        List<Metric> all = metrics.getMetricsAndReset();
+        for (Metric m : all) {
+            if (m.getName().equals(name)) {
+                return m.getValue().getMeasure();
+            }
+        }
+        throw new IllegalArgumentException(name);
+    }
+
+    private static void assertAborted(QueryGovernor.Ticket ticket, HttpResponseStatus status) {
+        try {
+            ticket.check();
+            Assert.fail("expected the query to be aborted");
+        } catch (TimelyException e) {
+            Assert.assertEquals(status.code(), e.getCode());
+        }
+    }
+
+    @Test
+    public void testMaxCost() throws Exception {
+        QueryGovernor governor = new QueryGovernor(10, 0, 0, 0, 0, metrics);
+        try (QueryGovernor.Ticket ticket = governor.start(new QueryRequest())) {
+            ticket.admit(6);
+            try {
+                // the cost of the scans of a query adds up
+                ticket.admit(6);
+                Assert.fail("expected the query to be rejected");
+            } catch (TimelyException e) {
+                Assert.assertEquals(HttpResponseStatus.BAD_REQUEST.code(), e.getCode());
+            }
+            ticket.release(6);
+        }
+        Assert.assertEquals(0, governor.getRunningCost());
+        Assert.assertEquals(1.0, getMetric("timely.query.governor.rejected"), 0.0);
+    }
+
+    @Test
+    public void testRunningCost() throws Exception {
+        QueryGovernor governor = new QueryGovernor(0, 10, 50, 0, 0, metrics);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (QueryGovernor.Ticket first = governor.start(new QueryRequest());
+                QueryGovernor.Ticket second = governor.start(new QueryRequest())) {
+            first.admit(8);
+            // does not fit before the maximum wait
+            try {
+                second.admit(5);
+                Assert.fail("expected the scan to time out waiting");
+            } catch (TimelyException e) {
+                Assert.assertEquals(HttpResponseStatus.SERVICE_UNAVAILABLE.code(), e.getCode());
+            }
+            Assert.assertEquals(8, governor.getRunningCost());
+
+            Future<?> waiting = executor.submit(() -> {
+                second.admit(5);
+                return null;
+            });
+            Thread.sleep(10);
+            first.release(8);
+            waiting.get(5, TimeUnit.SECONDS);
+            Assert.assertEquals(5, governor.getRunningCost());
+
+            // a scan over the running cost limit runs alone
+            second.release(5);
+            first.admit(20);
+            Assert.assertEquals(20, governor.getRunningCost());
+            first.release(20);
+        } finally {
+            executor.shutdownNow();
+        }
+        Assert.assertEquals(2.0, getMetric("timely.query.governor.queued"), 0.0);
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        QueryGovernor governor = new QueryGovernor(0, 0, 0, 1000, 0, metrics);
+        AtomicInteger closed = new AtomicInteger();
+        try (QueryGovernor.Ticket ticket = governor.start(new QueryRequest())) {
+            BatchScanner scanner = createScanner(closed);
+            ticket.admit(1);
+            ticket.register(scanner, 1);
+            long start = System.currentTimeMillis();
+            while (closed.get() == 0 && System.currentTimeMillis() - start < 5000) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(1, closed.get());
+            assertAborted(ticket, HttpResponseStatus.SERVICE_UNAVAILABLE);
+            ticket.unregister(scanner);
+        } finally {
+            governor.shutdown();
+        }
+        Assert.assertEquals(0, governor.getRunningCost());
+        Assert.assertEquals(1.0, getMetric("timely.query.governor.timed.out"), 0.0);
+    }
+
+    @Test
+    public void testMaxPoints() throws Exception {
+        QueryGovernor governor = new QueryGovernor(0, 0, 0, 0, 100, metrics);
+        AtomicInteger closed = new AtomicInteger();
+        try (QueryGovernor.Ticket ticket = governor.start(new QueryRequest())) {
+            ticket.admit(1);
+            ticket.register(createScanner(closed), 1);
+            ticket.addPoints(60);
+            try {
+                ticket.addPoints(60);
+                Assert.fail("expected the query to be over the maximum points");
+            } catch (TimelyException e) {
+                Assert.assertEquals(HttpResponseStatus.BAD_REQUEST.code(), e.getCode());
+            }
+            Assert.assertEquals(1, closed.get());
+        }
+        Assert.assertEquals(1.0, getMetric("timely.query.governor.over.points"), 0.0);
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        QueryGovernor governor = new QueryGovernor(0, 0, 0, 0, 0, metrics);
+        AtomicInteger closed = new AtomicInteger();
+        QueryRequest request = new QueryRequest();
+        try (QueryGovernor.Ticket ticket = governor.start(request)) {
+            ticket.admit(1);
+            BatchScanner scanner = createScanner(closed);
+            ticket.register(scanner, 1);
+            request.cancel();
+            Assert.assertEquals(1, closed.get());
+            assertAborted(ticket, HttpResponseStatus.SERVICE_UNAVAILABLE);
+            // scanners started later are closed by their owner
+            try {
+                ticket.register(createScanner(closed), 1);
+                Assert.fail("expected the query to be cancelled");
+            } catch (TimelyException e) {
+                Assert.assertEquals(HttpResponseStatus.SERVICE_UNAVAILABLE.code(), e.getCode());
+            }
+        }
+        // a finished query is not cancelled
+        QueryRequest finished = new QueryRequest();
+        try (QueryGovernor.Ticket ticket = governor.start(finished)) {
+            ticket.check();
+        }
+        finished.cancel();
+        Assert.assertEquals(1.0, getMetric("timely.query.governor.cancelled"), 0.0);
+    }
+}
@@ -0,0 +1,146 @@
+package timely.store;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+import org.apache.accumulo.core.security.Authorizations;
+import org.junit.Assert;
+import org.junit.Test;
+import timely.api.request.timeseries.QueryRequest;
+import timely.api.request.timeseries.QueryRequest.SubQuery;
+import timely.model.Tag;
+import timely.sample.Aggregation;
+import timely.sample.Downsample;
+import timely.sample.aggregators.Avg;
+
+public class QueryResultCacheTest {
+
+    private static final long PERIOD = 60000;
+    private static final long START = 1500000000000L - (1500000000000L % PERIOD);
+
+    private static Map<Set<Tag>, List<Aggregation>> createSeries(int numBuckets) {
+        Map<Set<Tag>, List<Aggregation>> series = new HashMap<>();
+        for (int i = 0; i < 2; i++) {
+            Set<Tag> tags = new HashSet<>();
+            tags.add(new Tag("host", "h" + i));
+            Downsample ds = new Downsample(START, START + numBuckets * PERIOD, PERIOD, new Avg());
+            for (int b = 0; b < numBuckets; b++) {
+                ds.add(START + b * PERIOD, b + i);
+                ds.add(START + b * PERIOD + 1000, b + i + 2);
+            }
+            List<Aggregation> aggregations = new ArrayList<>();
+            aggregations.add(ds);
+            series.put(tags, aggregations);
+        }
+        return series;
+    }
+
+    private static SubQuery createSubQuery(String... tags) {
+        SubQuery query = new SubQuery();
+        query.setMetric("sys.cpu.user");
+        query.setDownsample(Optional.of("1m-avg"));
+        query.setAggregator("sum");
+        for (int i = 0; i < tags.length; i += 2) {
+            query.addTag(tags[i], tags[i + 1]);
+        }
+        return query;
+    }
+
+    @Test
+    public void testCompletedBuckets() throws Exception {
+        QueryResultCache cache = new QueryResultCache(1024 * 1024, 2 * PERIOD);
+        // buckets from 8 periods on end within the settle time
+        long now = START + 10 * PERIOD + 500;
+        cache.put("key", START, START + 10 * PERIOD, PERIOD, createSeries(10), now);
+        Assert.assertTrue(cache.getSize() > 0);
+
+        QueryResultCache.Entry entry = cache.get("key", START + 2 * PERIOD, START + 20 * PERIOD);
+        Assert.assertNotNull(entry);
+        Assert.assertEquals(START + 2 * PERIOD, entry.getStart());
+        Assert.assertEquals(START + 8 * PERIOD, entry.getEnd());
+        Assert.assertEquals(2, entry.getSeries().size());
+        for (List<Aggregation> aggregations : entry.getSeries().values()) {
+            Assert.assertEquals(1, aggregations.size());
+            Assert.assertEquals(6, aggregations.get(0).getNumBuckets());
+            Assert.assertEquals(START + 2 * PERIOD, aggregations.get(0).iterator().next().timestamp);
+            // merging into the copy does not change the cache
+            aggregations.get(0).clear();
+        }
+        entry = cache.get("key", START + 2 * PERIOD, START + 5 * PERIOD);
+        Assert.assertEquals(START + 5 * PERIOD, entry.getEnd());
+        for (List<Aggregation> aggregations : entry.getSeries().values()) {
+            Assert.assertEquals(3, aggregations.get(0).getNumBuckets());
+        }
+
+        // nothing cached at or before the start
+        Assert.assertNull(cache.get("key", START - PERIOD, START + 10 * PERIOD));
+        Assert.assertNull(cache.get("key", START + 8 * PERIOD, START + 10 * PERIOD));
+        Assert.assertNull(cache.get("other", START, START + 10 * PERIOD));
+
+        // no completed buckets
+        cache.put("key", START, START + 10 * PERIOD, PERIOD, createSeries(10), START + PERIOD);
+        Assert.assertNull(cache.get("key", START, START + 10 * PERIOD));
+        Assert.assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        QueryResultCache cache = new QueryResultCache(4000, 0);
+        long now = START + 10 * PERIOD;
+        cache.put("first", START, now, PERIOD, createSeries(10), now);
+        cache.put("second", START, now, PERIOD, createSeries(10), now);
+        Assert.assertNull(cache.get("first", START, now));
+        Assert.assertNotNull(cache.get("second", START, now));
+        Assert.assertTrue(cache.getSize() <= 4000);
+
+        // larger than the cache
+        cache.put("third", START, START + 100 * PERIOD, PERIOD, createSeries(100), START + 100 * PERIOD);
+        Assert.assertNull(cache.get("third", START, now));
+        Assert.assertNotNull(cache.get("second", START, now));
+    }
+
+    @Test
+    public void testRateOverlap() throws Exception {
+        QueryResultCache cache = new QueryResultCache(1024, 150000);
+        Assert.assertEquals(3 * PERIOD, cache.getRateOverlap(PERIOD));
+        Assert.assertEquals(150000, cache.getRateOverlap(1));
+        Assert.assertEquals(3600000, cache.getRateOverlap(3600000));
+    }
+
+    @Test
+    public void testKey() throws Exception {
+        Authorizations auths = new Authorizations("A", "B");
+        String key = QueryResultCache.key(createSubQuery("host", "h1", "rack", "r1"), auths);
+        Assert.assertEquals(key,
+                QueryResultCache.key(createSubQuery("rack", "r1", "host", "h1"), new Authorizations("B", "A")));
+        Assert.assertNotEquals(key,
+                QueryResultCache.key(createSubQuery("host", "h1", "rack", "r1"), new Authorizations("A")));
+        Assert.assertNotEquals(key, QueryResultCache.key(createSubQuery("host", "h1"), auths));
+
+        SubQuery rate = createSubQuery("host", "h1", "rack", "r1");
+        rate.setRate(true);
+        Assert.assertNotEquals(key, QueryResultCache.key(rate, auths));
+        SubQuery downsample = createSubQuery("host", "h1", "rack", "r1");
+        downsample.setDownsample(Optional.of("5m-avg"));
+        Assert.assertNotEquals(key, QueryResultCache.key(downsample, auths));
+        SubQuery aggregator = createSubQuery("host", "h1", "rack", "r1");
+        aggregator.setAggregator("max");
+        Assert.assertNotEquals(key, QueryResultCache.key(aggregator, auths));
+
+        QueryRequest.Filter filter = new QueryRequest.Filter();
+        filter.setType(QueryRequest.Filter.LITERAL_OR);
+        filter.setTagk("dc");
+        filter.setFilter("dc1");
+        SubQuery filtered = createSubQuery("host", "h1", "rack", "r1");
+        filtered.addFilter(filter);
+        String filteredKey = QueryResultCache.key(filtered, auths);
+        Assert.assertNotEquals(key, filteredKey);
+        filter.setGroupBy(true);
+        Assert.assertNotEquals(filteredKey, QueryResultCache.key(filtered, auths));
+    }
+}
@@ -0,0 +1,51 @@
+package timely.store.cache;
+
+import static timely.test.TestMetrics.createMetric;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import timely.Configuration;
+import timely.model.Metric;
+import timely.test.MicroBenchmark;
+
+/**
+ * Ingest throughput of DataStoreCache.store with 1 to N threads writing to a
+ * shared set of series. Half of the stores go to a larger set of series that
+ * are created as they are first seen. The maximum number of threads defaults to
+ * the number of processors and can be given as the first argument.
+ */
+public class DataStoreCacheBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        Configuration conf = new Configuration();
+        conf.getSecurity().setAllowAnonymousAccess(true);
+        conf.getCache().setDefaultAgeOffHours(24);
+        conf.getCache().setFlushInterval(100);
+        MicroBenchmark benchmark = new MicroBenchmark(2, 3, 1, TimeUnit.SECONDS);
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            DataStoreCache cache = new DataStoreCache(conf);
+            List<Metric> existing = new ArrayList<>();
+            for (int i = 0; i < 10000; i++) {
+                existing.add(createSeries(i));
+            }
+            existing.forEach(cache::store);
+            Metric[] metrics = existing.toArray(new Metric[0]);
+            benchmark.runConcurrent("store", threads, () -> {
+                ThreadLocalRandom r = ThreadLocalRandom.current();
+                Metric m = r.nextBoolean() ? metrics[r.nextInt(metrics.length)] : createSeries(r.nextInt(200000));
+                cache.store(m);
+                return m;
+            });
+        }
+        System.exit(0);
+    }
+
+    private static Metric createSeries(int series) {
+        return createMetric("sys.cpu.user" + (series & 0x7), System.currentTimeMillis(), 1.0,
+                "host=r" + (series & 0xffff), "instance=" + (series >>> 16), "rack=r" + (series & 0xff));
+    }
+}
@@ -0,0 +1,73 @@
+package timely.store.cache;
+
+import java.util.Collections;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.iterators.SortedKeyValueIterator;
+import org.apache.accumulo.core.security.Authorizations;
+import timely.Configuration;
+import timely.api.request.timeseries.QueryRequest;
+import timely.model.Metric;
+import timely.test.MicroBenchmark;
+
+/**
+ * Time and garbage of a cache subquery over 10 series of 6 hours at 10 second
+ * resolution, answered by the iterator stack and by DataStoreCache.subquery,
+ * with and without a rate.
+ */
+public class DataStoreCacheQueryBenchmark {
+
+    private static final int NUM_SERIES = 10;
+    private static final long HOURS = 6;
+
+    public static void main(String[] args) throws Exception {
+        Configuration conf = new Configuration();
+        conf.getSecurity().setAllowAnonymousAccess(true);
+        conf.getCache().setDefaultAgeOffHours(24);
+        DataStoreCache cache = new DataStoreCache(conf);
+        long end = System.currentTimeMillis();
+        long start = end - TimeUnit.HOURS.toMillis(HOURS);
+        for (long ts = start; ts <= end; ts += 10000) {
+            for (int i = 0; i < NUM_SERIES; i++) {
+                cache.store(Metric.newBuilder().name("sys.cpu.user").value(ts, (ts / 10000 + i) % 1000)
+                        .tag("host", "h" + i).tag("rack", "r" + (i % 10)).build());
+            }
+            if ((ts - start) % TimeUnit.HOURS.toMillis(1) < 10000) {
+                cache.flushCaches(-1);
+                cache.getGorillaStores("sys.cpu.user").values().forEach(GorillaStore::archiveCurrentCompressor);
+            }
+        }
+        cache.flushCaches(-1);
+
+        MicroBenchmark benchmark = new MicroBenchmark(2, 3, 1, TimeUnit.SECONDS);
+        for (boolean rate : new boolean[] { false, true }) {
+            QueryRequest query = new QueryRequest();
+            query.setStart(start);
+            query.setEnd(end);
+            QueryRequest.SubQuery subQuery = new QueryRequest.SubQuery();
+            subQuery.setMetric("sys.cpu.user");
+            subQuery.setDownsample(Optional.of("1m-avg"));
+            subQuery.setAggregator("sum");
+            subQuery.addTag("host", ".*");
+            subQuery.setRate(rate);
+            query.setQueries(Collections.singleton(subQuery));
+            String name = rate ? " rate" : "";
+            benchmark.run("iterators" + name, () -> {
+                SortedKeyValueIterator<Key, Value> itr = cache.setupIterator(query, subQuery, Authorizations.EMPTY,
+                        cache.getAgeOffForMetric(subQuery.getMetric()));
+                int n = 0;
+                while (itr.hasTop()) {
+                    n += itr.getTopValue().getSize();
+                    itr.next();
+                }
+                return n;
+            });
+            benchmark.run("subquery" + name, () -> cache.subquery(query, subQuery));
+        }
+        cache.close();
+        System.exit(0);
+    }
+}
@@ -0,0 +1,49 @@
+package timely.store.cache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import timely.model.Tag;
+import timely.test.MicroBenchmark;
+
+/**
+ * Time to find the matching series of a metric with 50,000 series by scanning
+ * every series and through the tag index
+ */
+public class TagIndexBenchmark {
+
+    private static final int NUM_SERIES = 50000;
+
+    public static void main(String[] args) throws Exception {
+        List<TaggedMetric> series = new ArrayList<>();
+        TagIndex index = new TagIndex();
+        for (int i = 0; i < NUM_SERIES; i++) {
+            TaggedMetric tm = new TaggedMetric("sys.cpu.user", Arrays.asList(new Tag("host", "h" + i),
+                    new Tag("rack", "r" + (i % 100)), new Tag("instance", "i" + (i % 4))));
+            series.add(tm);
+            index.add(tm);
+        }
+
+        MicroBenchmark benchmark = new MicroBenchmark();
+        for (String[] query : new String[][] { { "host", "h123" }, { "rack", "r42" }, { "host", "h12.*" },
+                { "rack", "r4.*", "instance", "i1" } }) {
+            Map<String, String> tags = new HashMap<>();
+            for (int i = 0; i < query.length; i += 2) {
+                tags.put(query[i], query[i + 1]);
+            }
+            benchmark.run("scan " + tags, () -> {
+                int n = 0;
+                for (TaggedMetric tm : series) {
+                    if (tm.matches(tags)) {
+                        n++;
+                    }
+                }
+                return n;
+            });
+            benchmark.run("index " + tags, () -> index.lookup(tags).size());
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package timely.store.cache;
+
+import static timely.test.TestMetrics.createMetric;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import fi.iki.yak.ts.compression.gorilla.Pair;
+import org.apache.accumulo.core.client.BatchWriter;
+import org.apache.accumulo.core.client.BatchWriterConfig;
+import org.apache.accumulo.core.client.Connector;
+import org.apache.accumulo.core.client.mock.MockInstance;
+import org.apache.accumulo.core.client.security.tokens.PasswordToken;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Mutation;
+import org.apache.accumulo.core.data.Value;
+import org.junit.Assert;
+import org.junit.Test;
+import timely.Configuration;
+import timely.adapter.accumulo.MetricAdapter;
+import timely.api.model.Meta;
+
+public class TestCacheBackfill {
+
+    private static final String METRICS = "metrics";
+    private static final String META = "meta";
+
+    @Test
+    public void testBackfill() throws Exception {
+        Connector connector = new MockInstance("testBackfill").getConnector("root", new PasswordToken(""));
+        connector.tableOperations().create(METRICS);
+        connector.tableOperations().create(META);
+
+        long now = System.currentTimeMillis();
+        long start = now - 4 * 3600 * 1000;
+        BatchWriter metrics = connector.createBatchWriter(METRICS, new BatchWriterConfig());
+        BatchWriter meta = connector.createBatchWriter(META, new BatchWriterConfig());
+        for (String name : new String[] { "sys.cpu.user", "sys.cpu.idle" }) {
+            for (String host : new String[] { "r01n01", "r01n02" }) {
+                // one point a minute for the last four hours
+                for (long ts = start; ts < now - 60000; ts += 60000) {
+                    metrics.addMutation(MetricAdapter.toMutation(createMetric(name, ts, ts % 100, "host=" + host)));
+                }
+                for (Key k : new Meta(name, "host", host).toKeys()) {
+                    Mutation m = new Mutation(k.getRow());
+                    m.put(k.getColumnFamily(), k.getColumnQualifier(), new Value(new byte[0]));
+                    meta.addMutation(m);
+                }
+            }
+        }
+        metrics.close();
+        meta.close();
+
+        Configuration conf = new Configuration();
+        conf.getCache().setDefaultAgeOffHours(24);
+        conf.getCache().getNonCachedMetrics().add("sys.cpu.idle");
+        conf.getCache().getBackfill().setMaxRate(0);
+        DataStoreCache cache = new DataStoreCache(conf);
+        try {
+            // live ingest of the most recent point
+            cache.store(createMetric("sys.cpu.user", now, 42, "host=r01n01"));
+            cache.flushCaches(-1);
+
+            CacheBackfill backfill = new CacheBackfill(connector, METRICS, META, 2, cache,
+                    conf.getCache().getBackfill());
+            cache.setBackfill(backfill);
+            Assert.assertTrue(cache.startBackfill(2));
+            long end = System.currentTimeMillis() + 30000;
+            while ((backfill.isRunning() || backfill.getMetricsDone() < 1) && System.currentTimeMillis() < end) {
+                Thread.sleep(20);
+            }
+            Assert.assertFalse(backfill.isRunning());
+            Assert.assertEquals(1, backfill.getMetricsTotal());
+            Assert.assertTrue(cache.isWarm("sys.cpu.user"));
+            Assert.assertFalse(cache.isWarm("sys.cpu.idle"));
+            Assert.assertTrue(cache.getGorillaStores("sys.cpu.idle").isEmpty());
+
+            Map<TaggedMetric, GorillaStore> stores = cache.getGorillaStores("sys.cpu.user");
+            Assert.assertEquals(2, stores.size());
+            long backfillStart = now - 2 * 3600 * 1000;
+            for (Map.Entry<TaggedMetric, GorillaStore> e : stores.entrySet()) {
+                List<Pair> pairs = new ArrayList<>();
+                for (WrappedGorillaDecompressor d : e.getValue().getDecompressors(0, Long.MAX_VALUE)) {
+                    Pair p;
+                    while ((p = d.readPair()) != null) {
+                        pairs.add(p);
+                    }
+                }
+                Assert.assertTrue(pairs.get(0).getTimestamp() >= backfillStart);
+                Assert.assertTrue(pairs.get(0).getTimestamp() <= backfillStart + 60000);
+                for (int i = 1; i < pairs.size(); i++) {
+                    Assert.assertTrue(pairs.get(i).getTimestamp() > pairs.get(i - 1).getTimestamp());
+                }
+                Pair last = pairs.get(pairs.size() - 1);
+                if (e.getKey().getTags().get("host").equals("r01n01")) {
+                    Assert.assertEquals(now, last.getTimestamp());
+                    Assert.assertEquals(42, last.getDoubleValue(), 0.0);
+                } else {
+                    Assert.assertTrue(last.getTimestamp() < now - 60000);
+                }
+            }
+            Assert.assertEquals(backfill.getPointsLoaded(), cache.getCacheStatus().getBackfillPoints().longValue());
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void testFailedBackfillDropped() throws Exception {
+        Connector connector = new MockInstance("testFailedBackfillDropped").getConnector("root", new PasswordToken(""));
+        connector.tableOperations().create(METRICS);
+        connector.tableOperations().create(META);
+
+        long now = System.currentTimeMillis();
+        long start = now - 2 * 3600 * 1000;
+        BatchWriter metrics = connector.createBatchWriter(METRICS, new BatchWriterConfig());
+        BatchWriter meta = connector.createBatchWriter(META, new BatchWriterConfig());
+        for (String host : new String[] { "r01n01", "r01n02" }) {
+            for (long ts = start; ts < now - 60000; ts += 60000) {
+                metrics.addMutation(MetricAdapter.toMutation(createMetric("sys.cpu.user", ts, 1, "host=" + host)));
+            }
+            for (Key k : new Meta("sys.cpu.user", "host", host).toKeys()) {
+                Mutation m = new Mutation(k.getRow());
+                m.put(k.getColumnFamily(), k.getColumnQualifier(), new Value(new byte[0]));
+                meta.addMutation(m);
+            }
+        }
+        metrics.close();
+        meta.close();
+
+        Configuration conf = new Configuration();
+        conf.getCache().setDefaultAgeOffHours(24);
+        conf.getCache().getBackfill().setMaxRate(0);
+        DataStoreCache cache = new DataStoreCache(conf);
+        try {
+            cache.store(createMetric("sys.cpu.user", now, 42, "host=r01n01"));
+            cache.store(createMetric("sys.cpu.user", now, 43, "host=r01n02"));
+            cache.flushCaches(-1);
+            long live = cache.getSplitTime("sys.cpu.user", 1000);
+
+            // history of one series loaded before the scan of the other fails
+            cache.beginBackfill("sys.cpu.user");
+            GorillaStore partial = cache.getGorillaStores("sys.cpu.user").values().iterator().next();
+            partial.backfill(new long[] { start, start + 60000 }, new double[] { 1, 1 }, 2);
+
+            // the scan of a missing table throws
+            CacheBackfill failed = new CacheBackfill(connector, "missing", META, 2, cache,
+                    conf.getCache().getBackfill());
+            cache.setBackfill(failed);
+            Assert.assertTrue(cache.startBackfill(2));
+            waitForBackfill(failed);
+            Assert.assertFalse(cache.isWarm("sys.cpu.user"));
+            Assert.assertEquals(now, partial.getOldestTimestamp());
+            Assert.assertEquals(1, partial.getNumEntries());
+            Assert.assertEquals(live, cache.getSplitTime("sys.cpu.user", 1000));
+
+            // a later backfill is not hidden behind the failed one
+            CacheBackfill backfill = new CacheBackfill(connector, METRICS, META, 2, cache,
+                    conf.getCache().getBackfill());
+            cache.setBackfill(backfill);
+            Assert.assertTrue(cache.startBackfill(2));
+            waitForBackfill(backfill);
+            Assert.assertTrue(cache.isWarm("sys.cpu.user"));
+            Assert.assertTrue(cache.getOldestTimestamp("sys.cpu.user") <= start + 60000);
+        } finally {
+            cache.close();
+        }
+    }
+
+    private static void waitForBackfill(CacheBackfill backfill) throws InterruptedException {
+        long end = System.currentTimeMillis() + 30000;
+        while ((backfill.isRunning() || backfill.getMetricsDone() < 1) && System.currentTimeMillis() < end) {
+            Thread.sleep(20);
+        }
+        Assert.assertFalse(backfill.isRunning());
+    }
+
+    @Test
+    public void testPartialBackfillNotQueried() throws Exception {
+        Configuration conf = new Configuration();
+        conf.getCache().setDefaultAgeOffHours(24);
+        DataStoreCache cache = new DataStoreCache(conf);
+        try {
+            long now = System.currentTimeMillis();
+            cache.store(createMetric("sys.cpu.user", now, 42, "host=r01n01"));
+            cache.store(createMetric("sys.cpu.user", now, 43, "host=r01n02"));
+            cache.flushCaches(-1);
+            long live = cache.getSplitTime("sys.cpu.user", 1000);
+
+            cache.beginBackfill("sys.cpu.user");
+            long[] timestamps = new long[100];
+            double[] values = new double[100];
+            long start = (now / 1000) * 1000 - 2 * 3600 * 1000;
+            for (int i = 0; i < timestamps.length; i++) {
+                timestamps[i] = start + i * 60000;
+                values[i] = i;
+            }
+            int loaded = 0;
+            for (Map.Entry<TaggedMetric, GorillaStore> e : cache.getGorillaStores("sys.cpu.user").entrySet()) {
+                e.getValue().backfill(timestamps, values, timestamps.length);
+                // the other series have no history yet
+                Assert.assertEquals(live, cache.getSplitTime("sys.cpu.user", 1000));
+                loaded++;
+            }
+            Assert.assertEquals(2, loaded);
+            cache.setWarm("sys.cpu.user");
+            Assert.assertEquals(start, cache.getSplitTime("sys.cpu.user", 1000));
+        } finally {
+            cache.close();
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package timely.store.cache;
+
+import static timely.test.TestMetrics.createMetric;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import fi.iki.yak.ts.compression.gorilla.Pair;
+import org.apache.accumulo.core.client.BatchWriter;
+import org.apache.accumulo.core.client.BatchWriterConfig;
+import org.apache.accumulo.core.client.Connector;
+import org.apache.accumulo.core.client.mock.MockInstance;
+import org.apache.accumulo.core.client.security.tokens.PasswordToken;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import timely.Configuration;
+import timely.adapter.accumulo.MetricAdapter;
+import timely.api.request.timeseries.QueryRequest;
+import timely.sample.Aggregation;
+import timely.sample.Sample;
+
+public class TestCacheSnapshot {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Configuration createConfiguration(File directory) {
+        Configuration conf = new Configuration();
+        conf.getSecurity().setAllowAnonymousAccess(true);
+        conf.getCache().setDefaultAgeOffHours(24);
+        conf.getCache().getSnapshot().setEnabled(true).getCache().getSnapshot()
+                .setDirectory(directory.getAbsolutePath()).getCache().getSnapshot().setInterval("0s");
+        return conf;
+    }
+
+    private static List<Pair> readAll(GorillaStore store) {
+        List<Pair> pairs = new ArrayList<>();
+        for (WrappedGorillaDecompressor d : store.getDecompressors(0, Long.MAX_VALUE)) {
+            Pair p;
+            while ((p = d.readPair()) != null) {
+                pairs.add(p);
+            }
+        }
+        return pairs;
+    }
+
+    @Test
+    public void testSnapshotAndReload() throws Exception {
+        File directory = folder.newFolder();
+        Configuration conf = createConfiguration(directory);
+        long now = System.currentTimeMillis() - 3600000;
+
+        DataStoreCache cache = new DataStoreCache(conf);
+        for (int i = 0; i < 1000; i++) {
+            cache.store(createMetric("sys.cpu.user", now + i * 1000, i, "host=r01n01"));
+            cache.store(createMetric("sys.cpu.user", now + i * 1000, i * 2, "host=r01n02", "viz=A"));
+            cache.store(createMetric("sys.mem.used", now + i * 1000, i * 0.5, "host=r01n01"));
+            if (i == 500) {
+                // half of the points in archived blocks
+                cache.flushCaches(-1);
+                cache.getGorillaStores("sys.cpu.user").values().forEach(GorillaStore::archiveCurrentCompressor);
+            }
+        }
+        cache.close();
+        Assert.assertTrue(new File(directory, CacheSnapshot.FILE_NAME).isFile());
+
+        DataStoreCache reloaded = new DataStoreCache(conf);
+        try {
+            Assert.assertEquals(cache.getCacheStatus().getMetrics().size(),
+                    reloaded.getCacheStatus().getMetrics().size());
+            for (String metric : Arrays.asList("sys.cpu.user", "sys.mem.used")) {
+                Map<TaggedMetric, GorillaStore> expected = cache.getGorillaStores(metric);
+                Map<TaggedMetric, GorillaStore> actual = reloaded.getGorillaStores(metric);
+                Assert.assertEquals(expected.keySet(), actual.keySet());
+                for (Map.Entry<TaggedMetric, GorillaStore> e : expected.entrySet()) {
+                    GorillaStore store = actual.get(e.getKey());
+                    Assert.assertEquals(e.getValue().getOldestTimestamp(), store.getOldestTimestamp());
+                    Assert.assertEquals(e.getValue().getNewestTimestamp(), store.getNewestTimestamp());
+                    Assert.assertEquals(e.getValue().getNumEntries(), store.getNumEntries());
+                    List<Pair> expectedPairs = readAll(e.getValue());
+                    List<Pair> actualPairs = readAll(store);
+                    Assert.assertEquals(1000, actualPairs.size());
+                    for (int i = 0; i < expectedPairs.size(); i++) {
+                        Assert.assertEquals(expectedPairs.get(i).getTimestamp(), actualPairs.get(i).getTimestamp());
+                        Assert.assertEquals(expectedPairs.get(i).getDoubleValue(), actualPairs.get(i).getDoubleValue(),
+                                0.0);
+                    }
+                }
+            }
+
+            // the current block is rebuilt and can be appended to
+            reloaded.store(createMetric("sys.mem.used", now + 1000 * 1000, 42, "host=r01n01"));
+            reloaded.flushCaches(-1);
+            GorillaStore store = reloaded.getGorillaStores("sys.mem.used").values().iterator().next();
+            List<Pair> pairs = readAll(store);
+            Assert.assertEquals(1001, pairs.size());
+            Assert.assertEquals(42, pairs.get(1000).getDoubleValue(), 0.0);
+        } finally {
+            reloaded.close();
+        }
+    }
+
+    private static long count(DataStoreCache cache, long start, long end) throws Exception {
+        QueryRequest query = new QueryRequest();
+        query.setStart(start);
+        query.setEnd(end);
+        query.setMsResolution(true);
+        QueryRequest.SubQuery subQuery = new QueryRequest.SubQuery();
+        subQuery.setMetric("sys.cpu.user");
+        subQuery.setDownsample(Optional.of("1s-count"));
+        subQuery.addTag("host", ".*");
+        query.setQueries(Collections.singleton(subQuery));
+        long count = 0;
+        for (List<Aggregation> aggregations : cache.subquery(query, subQuery).values()) {
+            for (Sample sample : Aggregation.combineAggregation(aggregations, null)) {
+                count += sample.value;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void testSnapshotGap() throws Exception {
+        File directory = folder.newFolder();
+        Configuration conf = createConfiguration(directory);
+        long first = System.currentTimeMillis() - 600000;
+        first -= first % 1000;
+        DataStoreCache cache = new DataStoreCache(conf);
+        for (long ts = first; ts < first + 300000; ts += 1000) {
+            cache.store(createMetric("sys.cpu.user", ts, 1, "host=r01n01"));
+        }
+        cache.close();
+
+        // written to Accumulo after the snapshot, by this server before it
+        // stopped or by others while it was down
+        long written = System.currentTimeMillis();
+        Connector connector = new MockInstance("testSnapshotGap").getConnector("root", new PasswordToken(""));
+        connector.tableOperations().create("metrics");
+        connector.tableOperations().create("meta");
+        BatchWriter writer = connector.createBatchWriter("metrics", new BatchWriterConfig());
+        for (long ts = written + 100; ts <= written + 1000; ts += 100) {
+            writer.addMutation(MetricAdapter.toMutation(createMetric("sys.cpu.user", ts, 1, "host=r01n01")));
+            writer.addMutation(MetricAdapter.toMutation(createMetric("sys.cpu.user", ts, 1, "host=r01n02")));
+        }
+        writer.close();
+        while (System.currentTimeMillis() <= written + 1000) {
+            Thread.sleep(50);
+        }
+
+        long restart = System.currentTimeMillis();
+        DataStoreCache reloaded = new DataStoreCache(conf);
+        try {
+            // the gap is left to Accumulo
+            Assert.assertTrue(reloaded.getSplitTime("sys.cpu.user", 1000) >= restart);
+            Assert.assertEquals(0, count(reloaded, first, System.currentTimeMillis()));
+
+            reloaded.setBackfill(
+                    new CacheBackfill(connector, "metrics", "meta", 2, reloaded, conf.getCache().getBackfill()));
+            reloaded.fillSnapshotGaps();
+            Assert.assertEquals(first, reloaded.getSplitTime("sys.cpu.user", 1000));
+            Assert.assertEquals(300 + 20, count(reloaded, first, System.currentTimeMillis()));
+        } finally {
+            reloaded.close();
+        }
+    }
+
+    @Test
+    public void testCorruptSnapshotIgnored() throws Exception {
+        File directory = folder.newFolder();
+        Configuration conf = createConfiguration(directory);
+        Files.write(new File(directory, CacheSnapshot.FILE_NAME).toPath(), new byte[100]);
+        DataStoreCache cache = new DataStoreCache(conf);
+        try {
+            Assert.assertTrue(cache.getCacheStatus().getMetrics().isEmpty());
+        } finally {
+            conf.getCache().getSnapshot().setEnabled(false);
+            cache.close();
+        }
+    }
+}
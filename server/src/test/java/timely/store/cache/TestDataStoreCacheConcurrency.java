@@ -0,0 +1,90 @@
+package timely.store.cache;
+
+import static timely.test.TestMetrics.createMetric;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Assert;
+import org.junit.Test;
+import timely.Configuration;
+
+public class TestDataStoreCacheConcurrency {
+
+    private static final int THREADS = 8;
+    private static final int METRICS = 4;
+    private static final int SERIES_PER_THREAD = 250;
+    private static final int POINTS_PER_SERIES = 20;
+
+    @Test
+    public void testConcurrentStoreAndMaintenance() throws Exception {
+        Configuration conf = new Configuration();
+        conf.getSecurity().setAllowAnonymousAccess(true);
+        conf.getCache().setDefaultAgeOffHours(24);
+        DataStoreCache cache = new DataStoreCache(conf);
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS + 1);
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicBoolean done = new AtomicBoolean(false);
+        long baseTimestamp = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1);
+        try {
+            // flushes and status requests walk the index while it is being
+            // built
+            Future<?> maintenance = executor.submit(() -> {
+                start.await();
+                while (!done.get()) {
+                    cache.flushCaches(-1);
+                    cache.getCacheStatus();
+                }
+                return null;
+            });
+            List<Future<?>> writers = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                final int thread = t;
+                writers.add(executor.submit(() -> {
+                    start.await();
+                    for (int p = 0; p < POINTS_PER_SERIES; p++) {
+                        for (int s = 0; s < SERIES_PER_THREAD; s++) {
+                            // every thread writes the first point of a series
+                            // that another thread is also creating
+                            int series = p == 0 ? s : thread * SERIES_PER_THREAD + s;
+                            cache.store(
+                                    createMetric("test.metric" + (series % METRICS), baseTimestamp + p * 1000 + thread,
+                                            series, "host=host" + series, "rack=rack" + (series % 10)));
+                        }
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> f : writers) {
+                f.get(60, TimeUnit.SECONDS);
+            }
+            done.set(true);
+            maintenance.get(60, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+        cache.flushCaches(-1);
+
+        int numSeries = 0;
+        long numEntries = 0;
+        for (int m = 0; m < METRICS; m++) {
+            for (GorillaStore store : cache.getGorillaStores("test.metric" + m).values()) {
+                numSeries++;
+                numEntries += store.getNumEntries();
+            }
+        }
+        Assert.assertEquals(THREADS * SERIES_PER_THREAD, numSeries);
+        Assert.assertEquals(METRICS, cache.getCacheStatus().getMetrics().size());
+        // each thread owns its series after the first point, which all of
+        // them write, so only out of order first points can be dropped
+        Assert.assertTrue(numEntries >= THREADS * SERIES_PER_THREAD * (POINTS_PER_SERIES - 1));
+    }
+}
@@ -0,0 +1,80 @@
+package timely.store.cache;
+
+import static timely.test.TestMetrics.createMetric;
+
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+import timely.Configuration;
+import timely.api.response.CacheResponse;
+
+public class TestDataStoreCacheMemoryBudget {
+
+    private static long usedBytes(DataStoreCache cache, String... metrics) {
+        long used = 0;
+        for (String metric : metrics) {
+            for (GorillaStore store : cache.getGorillaStores(metric).values()) {
+                used += store.getSizeInBytes();
+            }
+        }
+        return used;
+    }
+
+    @Test
+    public void testParseMaxMemory() {
+        Assert.assertEquals(0, DataStoreCache.parseMaxMemory("0"));
+        Assert.assertEquals(0, DataStoreCache.parseMaxMemory(""));
+        Assert.assertEquals(4L * 1024 * 1024 * 1024, DataStoreCache.parseMaxMemory("4G"));
+        Assert.assertEquals(Runtime.getRuntime().maxMemory() / 2, DataStoreCache.parseMaxMemory("50%"), 1);
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        Configuration conf = new Configuration();
+        conf.getCache().setDefaultAgeOffHours(24);
+        conf.getCache().setMaxMemory("512K");
+        DataStoreCache cache = new DataStoreCache(conf);
+        try {
+            long now = System.currentTimeMillis();
+            long start = now - 6 * 3600 * 1000;
+            for (int hour = 0; hour < 6; hour++) {
+                for (long ts = start + hour * 3600000L; ts < start + (hour + 1) * 3600000L; ts += 10000) {
+                    for (int h = 0; h < 20; h++) {
+                        cache.store(createMetric("sys.cpu.user", ts, Math.random(), "host=host" + h));
+                        cache.store(createMetric("sys.cpu.idle", ts, Math.random(), "host=host" + h));
+                    }
+                }
+                cache.flushCaches(-1);
+                cache.getGorillaStores("sys.cpu.user").values().forEach(GorillaStore::archiveCurrentCompressor);
+                cache.getGorillaStores("sys.cpu.idle").values().forEach(GorillaStore::archiveCurrentCompressor);
+            }
+            long before = usedBytes(cache, "sys.cpu.user", "sys.cpu.idle");
+            Assert.assertTrue(before > 512 * 1024);
+            Assert.assertEquals(start, cache.getOldestTimestamp("sys.cpu.idle"));
+
+            // queries keep sys.cpu.user hot
+            Thread.sleep(5);
+            cache.getGorillaStores("sys.cpu.user").values().forEach(s -> s.getDecompressors(start, now));
+
+            cache.enforceMemoryBudget();
+            long after = usedBytes(cache, "sys.cpu.user", "sys.cpu.idle");
+            Assert.assertTrue(after <= 512 * 1024 * 0.9);
+
+            // the cold metric lost its history, the hot one kept it
+            Assert.assertEquals(start, cache.getOldestTimestamp("sys.cpu.user"));
+            Assert.assertTrue(cache.getOldestTimestamp("sys.cpu.idle") > start);
+            for (Map.Entry<TaggedMetric, GorillaStore> e : cache.getGorillaStores("sys.cpu.user").entrySet()) {
+                Assert.assertEquals(start, e.getValue().getOldestTimestamp());
+            }
+
+            CacheResponse status = cache.getCacheStatus();
+            Assert.assertEquals(512 * 1024, status.getMaxMemoryBytes().longValue());
+            Assert.assertEquals(after, status.getUsedMemoryBytes().longValue());
+            Assert.assertEquals(before - after, status.getEvictedBytes().longValue());
+            Assert.assertTrue(status.getTrimmedSeries() > 0);
+        } finally {
+            cache.close();
+        }
+    }
+}
@@ -0,0 +1,321 @@
+package timely.store.cache;
+
+import static timely.test.TestMetrics.createMetric;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.iterators.SortedKeyValueIterator;
+import org.apache.accumulo.core.security.Authorizations;
+import org.junit.Assert;
+import org.junit.Test;
+import timely.Configuration;
+import timely.api.request.timeseries.QueryRequest;
+import timely.model.Tag;
+import timely.sample.Aggregation;
+import timely.sample.Sample;
+import timely.sample.iterators.AggregationIterator;
+
+/**
+ * Compares the results of DataStoreCache.subquery with those of the iterator
+ * stack it replaces
+ */
+public class TestDataStoreCacheQuery {
+
+    private static final long MINUTE = 60 * 1000;
+
+    private static Map<Set<Tag>, List<Sample>> iteratorSubquery(DataStoreCache cache, QueryRequest query,
+            QueryRequest.SubQuery subQuery) throws Exception {
+        SortedKeyValueIterator<Key, Value> itr = cache.setupIterator(query, subQuery, Authorizations.EMPTY,
+                cache.getAgeOffForMetric(subQuery.getMetric()));
+        Map<Set<Tag>, List<Aggregation>> aggregations = new HashMap<>();
+        while (itr.hasTop()) {
+            for (Map.Entry<Set<Tag>, Aggregation> e : AggregationIterator.decodeValue(itr.getTopValue()).entrySet()) {
+                Set<Tag> tags = new HashSet<>();
+                for (Tag tag : e.getKey()) {
+                    if (subQuery.getSeriesKeys().contains(tag.getKey())) {
+                        tags.add(tag);
+                    }
+                }
+                aggregations.computeIfAbsent(tags, k -> new ArrayList<>()).add(e.getValue());
+            }
+            itr.next();
+        }
+        return combine(aggregations);
+    }
+
+    private static Map<Set<Tag>, List<Sample>> combine(Map<Set<Tag>, List<Aggregation>> aggregations) {
+        Map<Set<Tag>, List<Sample>> samples = new HashMap<>();
+        aggregations.forEach((tags, values) -> {
+            List<Sample> list = new ArrayList<>();
+            Aggregation.combineAggregation(values, null).forEach(list::add);
+            samples.put(tags, list);
+        });
+        return samples;
+    }
+
+    @Test
+    public void testSubqueryMatchesIterators() throws Exception {
+        Configuration conf = new Configuration();
+        conf.getSecurity().setAllowAnonymousAccess(true);
+        conf.getCache().setDefaultAgeOffHours(24);
+        // one series per partition so that queries run on the query threads
+        conf.getCache().getQuery().setThreads(3);
+        conf.getCache().getQuery().setMinSeriesPerPartition(1);
+        DataStoreCache cache = new DataStoreCache(conf);
+        try {
+            long base = System.currentTimeMillis() - 3 * 60 * MINUTE;
+            base -= base % MINUTE;
+            Random r = new Random(7);
+            double[] counters = new double[3];
+            String[] hosts = new String[] { "r01n01", "r01n02", "r02n01" };
+            for (long ts = base; ts <= base + 2 * 60 * MINUTE; ts += 15000) {
+                for (int h = 0; h < hosts.length; h++) {
+                    // a counter that wraps around now and then
+                    counters[h] = (counters[h] + r.nextInt(1000)) % 50000;
+                    cache.store(createMetric("sys.net.bytes", ts, counters[h], "host=" + hosts[h],
+                            "rack=" + hosts[h].substring(0, 3)));
+                }
+                if (ts % (60 * MINUTE) == 0) {
+                    cache.flushCaches(-1);
+                    cache.getGorillaStores("sys.net.bytes").values().forEach(GorillaStore::archiveCurrentCompressor);
+                }
+            }
+            cache.flushCaches(-1);
+
+            QueryRequest.RateOption counter = new QueryRequest.RateOption();
+            counter.setCounter(true);
+            counter.setCounterMax(50000);
+            List<Optional<String>> downsamples = Arrays.asList(Optional.of("1m-avg"), Optional.of("5m-dev"),
+                    Optional.of("30s-max"), Optional.of("1m-none"), Optional.empty());
+            for (Optional<String> downsample : downsamples) {
+                for (String aggregator : Arrays.asList("avg", "none")) {
+                    for (QueryRequest.RateOption rate : Arrays.asList(null, new QueryRequest.RateOption(), counter)) {
+                        for (Map<String, String> tags : Arrays.asList(Collections.singletonMap("host", ".*"),
+                                Collections.singletonMap("rack", "r01"))) {
+                            QueryRequest query = new QueryRequest();
+                            query.setStart(base + 17 * MINUTE + 2500);
+                            query.setEnd(base + 65 * MINUTE);
+                            query.setMsResolution(true);
+                            QueryRequest.SubQuery subQuery = new QueryRequest.SubQuery();
+                            subQuery.setMetric("sys.net.bytes");
+                            subQuery.setDownsample(downsample);
+                            subQuery.setAggregator(aggregator);
+                            if (rate != null) {
+                                subQuery.setRate(true);
+                                subQuery.setRateOptions(rate);
+                            }
+                            tags.forEach(subQuery::addTag);
+                            query.setQueries(Collections.singleton(subQuery));
+                            String name = downsample + " " + aggregator + " " + rate + " " + tags;
+
+                            Map<Set<Tag>, List<Sample>> expected = iteratorSubquery(cache, query, subQuery);
+                            Map<Set<Tag>, List<Sample>> actual = combine(cache.subquery(query, subQuery));
+                            Assert.assertFalse(name, expected.isEmpty());
+                            Assert.assertEquals(name, expected.keySet(), actual.keySet());
+                            for (Map.Entry<Set<Tag>, List<Sample>> e : expected.entrySet()) {
+                                List<Sample> samples = actual.get(e.getKey());
+                                Assert.assertEquals(name, e.getValue().size(), samples.size());
+                                for (int i = 0; i < samples.size(); i++) {
+                                    Assert.assertEquals(name, e.getValue().get(i).timestamp, samples.get(i).timestamp);
+                                    Assert.assertEquals(name, e.getValue().get(i).value, samples.get(i).value, 1e-6);
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        } finally {
+            cache.close();
+        }
+    }
+
+    private static QueryRequest.Filter createFilter(String type, String tagk, String filter, boolean groupBy) {
+        QueryRequest.Filter f = new QueryRequest.Filter();
+        f.setType(type);
+        f.setTagk(tagk);
+        f.setFilter(filter);
+        f.setGroupBy(groupBy);
+        return f;
+    }
+
+    @Test
+    public void testSubqueryWithFilters() throws Exception {
+        Configuration conf = new Configuration();
+        conf.getSecurity().setAllowAnonymousAccess(true);
+        conf.getCache().setDefaultAgeOffHours(24);
+        DataStoreCache cache = new DataStoreCache(conf);
+        try {
+            long base = System.currentTimeMillis() - 2 * 60 * MINUTE;
+            base -= base % MINUTE;
+            String[] hosts = new String[] { "r01n01", "r01n02", "r02n01", "r02n02" };
+            for (long ts = base; ts <= base + 60 * MINUTE; ts += 15000) {
+                for (int h = 0; h < hosts.length; h++) {
+                    cache.store(createMetric("sys.net.bytes", ts, h + 1, "host=" + hosts[h],
+                            "rack=" + hosts[h].substring(0, 3)));
+                }
+            }
+            cache.flushCaches(-1);
+
+            for (String aggregator : Arrays.asList("sum", "none")) {
+                QueryRequest query = new QueryRequest();
+                query.setStart(base);
+                query.setEnd(base + 30 * MINUTE);
+                query.setMsResolution(true);
+                QueryRequest.SubQuery subQuery = new QueryRequest.SubQuery();
+                subQuery.setMetric("sys.net.bytes");
+                subQuery.setDownsample(Optional.of("1m-avg"));
+                subQuery.setAggregator(aggregator);
+                subQuery.addFilter(createFilter(QueryRequest.Filter.LITERAL_OR, "rack", "r01|r02", true));
+                subQuery.addFilter(createFilter(QueryRequest.Filter.NOT_LITERAL_OR, "host", "r01n02", false));
+                query.setQueries(Collections.singleton(subQuery));
+
+                Map<Set<Tag>, List<Sample>> expected = iteratorSubquery(cache, query, subQuery);
+                Map<Set<Tag>, List<Sample>> actual = combine(cache.subquery(query, subQuery));
+                // grouped by rack without r01n02
+                Set<Set<Tag>> racks = new HashSet<>();
+                racks.add(Collections.singleton(new Tag("rack", "r01")));
+                racks.add(Collections.singleton(new Tag("rack", "r02")));
+                Assert.assertEquals(aggregator, racks, expected.keySet());
+                Assert.assertEquals(aggregator, racks, actual.keySet());
+                for (Map.Entry<Set<Tag>, List<Sample>> e : expected.entrySet()) {
+                    List<Sample> samples = actual.get(e.getKey());
+                    Assert.assertEquals(aggregator, e.getValue().size(), samples.size());
+                    double value = e.getKey().contains(new Tag("rack", "r01")) ? 1 : 3 + 4;
+                    if (aggregator.equals("none")) {
+                        // the series of a group are merged with the
+                        // downsample aggregator
+                        value = e.getKey().contains(new Tag("rack", "r01")) ? 1 : (3 + 4) / 2.0;
+                    }
+                    for (int i = 0; i < samples.size(); i++) {
+                        Assert.assertEquals(aggregator, e.getValue().get(i).timestamp, samples.get(i).timestamp);
+                        Assert.assertEquals(aggregator, e.getValue().get(i).value, samples.get(i).value, 1e-6);
+                        Assert.assertEquals(aggregator, value, samples.get(i).value, 1e-6);
+                    }
+                }
+            }
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void testSubqueryFromBlockSummaries() throws Exception {
+        Configuration conf = new Configuration();
+        conf.getSecurity().setAllowAnonymousAccess(true);
+        conf.getCache().setDefaultAgeOffHours(24);
+        DataStoreCache cache = new DataStoreCache(conf);
+        try {
+            long base = System.currentTimeMillis() - 4 * 60 * MINUTE;
+            base -= base % (60 * MINUTE);
+            Random r = new Random(11);
+            String[] hosts = new String[] { "r01n01", "r01n02", "r02n01" };
+            for (long ts = base + 2500; ts <= base + 3 * 60 * MINUTE; ts += 15000) {
+                for (String host : hosts) {
+                    cache.store(createMetric("sys.net.bytes", ts, r.nextInt(1000) - 200, "host=" + host,
+                            "rack=" + host.substring(0, 3)));
+                }
+                // blocks of about 10 minutes, most within one hour
+                if (ts % (10 * MINUTE) == 2500 + 45000) {
+                    cache.flushCaches(-1);
+                    cache.getGorillaStores("sys.net.bytes").values().forEach(GorillaStore::archiveCurrentCompressor);
+                }
+            }
+            cache.flushCaches(-1);
+
+            for (String downsample : Arrays.asList("1h-sum", "1h-avg", "1h-max", "1h-min", "1h-count", "30m-avg")) {
+                for (String aggregator : Arrays.asList("avg", "none")) {
+                    for (Map<String, String> tags : Arrays.asList(Collections.singletonMap("host", ".*"),
+                            Collections.singletonMap("rack", "r01"))) {
+                        QueryRequest query = new QueryRequest();
+                        query.setStart(base + 5 * MINUTE);
+                        query.setEnd(base + 170 * MINUTE);
+                        query.setMsResolution(true);
+                        QueryRequest.SubQuery subQuery = new QueryRequest.SubQuery();
+                        subQuery.setMetric("sys.net.bytes");
+                        subQuery.setDownsample(Optional.of(downsample));
+                        subQuery.setAggregator(aggregator);
+                        tags.forEach(subQuery::addTag);
+                        query.setQueries(Collections.singleton(subQuery));
+                        String name = downsample + " " + aggregator + " " + tags;
+
+                        Map<Set<Tag>, List<Sample>> expected = iteratorSubquery(cache, query, subQuery);
+                        Map<Set<Tag>, List<Sample>> actual = combine(cache.subquery(query, subQuery));
+                        Assert.assertFalse(name, expected.isEmpty());
+                        Assert.assertEquals(name, expected.keySet(), actual.keySet());
+                        for (Map.Entry<Set<Tag>, List<Sample>> e : expected.entrySet()) {
+                            List<Sample> samples = actual.get(e.getKey());
+                            Assert.assertEquals(name, e.getValue().size(), samples.size());
+                            for (int i = 0; i < samples.size(); i++) {
+                                Assert.assertEquals(name, e.getValue().get(i).timestamp, samples.get(i).timestamp);
+                                Assert.assertEquals(name, e.getValue().get(i).value, samples.get(i).value, 1e-6);
+                            }
+                        }
+                    }
+                }
+            }
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void testSubqueryFromSplitTime() throws Exception {
+        Configuration conf = new Configuration();
+        conf.getSecurity().setAllowAnonymousAccess(true);
+        conf.getCache().setDefaultAgeOffHours(24);
+        DataStoreCache cache = new DataStoreCache(conf);
+        try {
+            long base = System.currentTimeMillis() - 3 * 60 * MINUTE;
+            base -= base % (60 * MINUTE);
+            long oldest = base + 7 * MINUTE + 2500;
+            for (long ts = oldest; ts <= base + 2 * 60 * MINUTE; ts += 15000) {
+                cache.store(createMetric("sys.net.bytes", ts, ts % 1000, "host=r01n01", "rack=r01"));
+                cache.store(createMetric("sys.net.bytes", ts, ts % 777, "host=r01n02", "rack=r01"));
+            }
+            cache.flushCaches(-1);
+            Assert.assertEquals(Long.MAX_VALUE, cache.getSplitTime("sys.cpu.idle", 5 * MINUTE));
+            long splitTime = cache.getSplitTime("sys.net.bytes", 5 * MINUTE);
+            Assert.assertEquals(base + 10 * MINUTE, splitTime);
+
+            QueryRequest query = new QueryRequest();
+            query.setStart(base);
+            query.setEnd(base + 90 * MINUTE);
+            query.setMsResolution(true);
+            QueryRequest.SubQuery subQuery = new QueryRequest.SubQuery();
+            subQuery.setMetric("sys.net.bytes");
+            subQuery.setDownsample(Optional.of("5m-avg"));
+            subQuery.setAggregator("sum");
+            subQuery.addTag("host", ".*");
+            query.setQueries(Collections.singleton(subQuery));
+
+            List<Sample> all = combine(cache.subquery(query, subQuery)).values().iterator().next();
+            List<Sample> fromSplit = combine(cache.subquery(query, subQuery, splitTime)).values().iterator().next();
+            // the buckets before the split time are left to Accumulo
+            List<Sample> expected = new ArrayList<>();
+            for (Sample sample : all) {
+                if (sample.timestamp >= splitTime) {
+                    expected.add(sample);
+                }
+            }
+            Assert.assertEquals(expected.size() + 1, all.size());
+            Assert.assertEquals(expected.size(), fromSplit.size());
+            for (int i = 0; i < expected.size(); i++) {
+                Assert.assertEquals(expected.get(i).timestamp, fromSplit.get(i).timestamp);
+                Assert.assertEquals(expected.get(i).value, fromSplit.get(i).value, 1e-9);
+            }
+        } finally {
+            cache.close();
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package timely.store.cache;
+
+import static timely.test.TestMetrics.createMetric;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+import timely.Configuration;
+import timely.api.request.timeseries.QueryRequest;
+import timely.api.response.timeseries.QueryResponse;
+import timely.sample.Downsample;
+import timely.sample.aggregators.Max;
+import timely.sample.aggregators.Sum;
+
+public class TestDataStoreCacheRollups {
+
+    private static final long MINUTE = 60 * 1000;
+    private static final long HOUR = 60 * MINUTE;
+
+    private static DataStoreCache createCache(String... rollupResolutions) {
+        Configuration conf = new Configuration();
+        conf.getSecurity().setAllowAnonymousAccess(true);
+        conf.getCache().setDefaultAgeOffHours(24);
+        conf.getCache().setRollupResolutions(Arrays.asList(rollupResolutions));
+        return new DataStoreCache(conf);
+    }
+
+    private static Map<Map<String, String>, Map<String, Object>> query(DataStoreCache cache, long start, long end,
+            String downsample, String aggregator, Map<String, String> tags) throws Exception {
+        QueryRequest query = new QueryRequest();
+        query.setStart(start);
+        query.setEnd(end);
+        query.setMsResolution(true);
+        QueryRequest.SubQuery subQuery = new QueryRequest.SubQuery();
+        subQuery.setMetric("sys.cpu.user");
+        subQuery.setDownsample(Optional.of(downsample));
+        subQuery.setAggregator(aggregator);
+        tags.forEach(subQuery::addTag);
+        query.setQueries(Collections.singleton(subQuery));
+        Map<Map<String, String>, Map<String, Object>> results = new HashMap<>();
+        for (QueryResponse response : cache.query(query)) {
+            results.put(response.getTags(), response.getDps());
+        }
+        return results;
+    }
+
+    @Test
+    public void testRollupQueryMatchesRawQuery() throws Exception {
+        DataStoreCache rollups = createCache("1m", "5m", "1h");
+        DataStoreCache raw = createCache();
+        try {
+            long base = System.currentTimeMillis() - 4 * HOUR;
+            base -= base % HOUR;
+            Random r = new Random(42);
+            for (long ts = base; ts <= base + 3 * HOUR; ts += 10000) {
+                for (String host : new String[] { "r01n01", "r01n02", "r02n01" }) {
+                    double value = r.nextInt(1000) / 10.0;
+                    rollups.store(
+                            createMetric("sys.cpu.user", ts, value, "host=" + host, "rack=" + host.substring(0, 3)));
+                    raw.store(createMetric("sys.cpu.user", ts, value, "host=" + host, "rack=" + host.substring(0, 3)));
+                }
+                if (ts % HOUR == 0) {
+                    rollups.flushCaches(-1);
+                    raw.flushCaches(-1);
+                    rollups.getGorillaStores("sys.cpu.user").values().forEach(GorillaStore::archiveCurrentCompressor);
+                    raw.getGorillaStores("sys.cpu.user").values().forEach(GorillaStore::archiveCurrentCompressor);
+                }
+            }
+            rollups.flushCaches(-1);
+            raw.flushCaches(-1);
+
+            Map<String, String> byHost = Collections.singletonMap("host", ".*");
+            Map<String, String> byRack = Collections.singletonMap("rack", "r01");
+            List<String> downsamples = Arrays.asList("1m-avg", "5m-max", "10m-sum", "5m-min", "1m-count", "2h-avg",
+                    "1m-dev");
+            for (String downsample : downsamples) {
+                for (String aggregator : Arrays.asList("avg", "sum", "max")) {
+                    for (Map<String, String> tags : Arrays.asList(byHost, byRack)) {
+                        // unaligned start, end on a period boundary so points at the end are included
+                        long start = base + 90 * MINUTE + 1234;
+                        long end = base + 3 * HOUR;
+                        Map<Map<String, String>, Map<String, Object>> expected = query(raw, start, end, downsample,
+                                aggregator, tags);
+                        Map<Map<String, String>, Map<String, Object>> actual = query(rollups, start, end, downsample,
+                                aggregator, tags);
+                        Assert.assertFalse(expected.isEmpty());
+                        Assert.assertEquals(downsample + " " + aggregator, expected.keySet(), actual.keySet());
+                        for (Map.Entry<Map<String, String>, Map<String, Object>> e : expected.entrySet()) {
+                            Map<String, Object> dps = actual.get(e.getKey());
+                            Assert.assertEquals(downsample + " " + aggregator, e.getValue().keySet(), dps.keySet());
+                            for (Map.Entry<String, Object> dp : e.getValue().entrySet()) {
+                                Assert.assertEquals(downsample + " " + aggregator + " " + dp.getKey(),
+                                        (Double) dp.getValue(), (Double) dps.get(dp.getKey()), 1e-6);
+                            }
+                        }
+                    }
+                }
+            }
+        } finally {
+            rollups.close();
+            raw.close();
+        }
+    }
+
+    @Test
+    public void testRollupCompleteness() {
+        long base = 1000 * HOUR;
+        GorillaStore store = new GorillaStore(new long[] { MINUTE, 5 * MINUTE });
+        for (long ts = base + HOUR; ts < base + 2 * HOUR; ts += 10000) {
+            store.addValue(ts, 1);
+        }
+        store.archiveCurrentCompressor();
+        for (long ts = base + 2 * HOUR; ts < base + 3 * HOUR; ts += 10000) {
+            store.addValue(ts, 2);
+        }
+
+        Downsample ds = new Downsample(base + HOUR, base + 3 * HOUR, 10 * MINUTE, new Sum());
+        Assert.assertTrue(store.addRollup(5 * MINUTE, base + HOUR, base + 3 * HOUR, ds, Sum.class));
+        Assert.assertEquals(12, ds.getNumBuckets());
+        // not a tier of the store
+        Assert.assertFalse(store.addRollup(10 * MINUTE, base + HOUR, base + 3 * HOUR,
+                new Downsample(base + HOUR, base + 3 * HOUR, 10 * MINUTE, new Sum()), Sum.class));
+
+        // removing the archived block leaves the tiers complete after its points
+        Assert.assertEquals(base + 2 * HOUR - 10000, store.freeArchivedCompressors());
+        Assert.assertFalse(store.addRollup(MINUTE, base + HOUR, base + 3 * HOUR,
+                new Downsample(base + HOUR, base + 3 * HOUR, MINUTE, new Max()), Max.class));
+        ds = new Downsample(base + 2 * HOUR, base + 3 * HOUR, MINUTE, new Max());
+        Assert.assertTrue(store.addRollup(MINUTE, base + 2 * HOUR, base + 3 * HOUR, ds, Max.class));
+        Assert.assertEquals(60, ds.getNumBuckets());
+
+        // a backfill restores the history
+        long[] timestamps = new long[360];
+        double[] values = new double[360];
+        for (int i = 0; i < timestamps.length; i++) {
+            timestamps[i] = base + HOUR + i * 10000L;
+            values[i] = 3;
+        }
+        Assert.assertEquals(360, store.backfill(timestamps, values, timestamps.length));
+        ds = new Downsample(base + HOUR, base + 3 * HOUR, HOUR, new Sum());
+        Assert.assertTrue(store.addRollup(5 * MINUTE, base + HOUR, base + 3 * HOUR, ds, Sum.class));
+        Assert.assertEquals(2, ds.getNumBuckets());
+        double total = 0;
+        for (timely.sample.Sample s : ds) {
+            total += s.value;
+        }
+        Assert.assertEquals(360 * 3 + 360 * 2, total, 1e-9);
+        store.freeArchivedCompressors();
+    }
+}
@@ -115,4 +115,44 @@ public class TestGorillaStore {
 
     }
 
+    @Test
+    public void testBackfill() {
+
+        GorillaStore gStore = new GorillaStore();
+        long now = System.currentTimeMillis();
+        // live ingest has already cached the last few minutes
+        for (int i = 0; i < 10; i++) {
+            gStore.addValue(now + i * 1000, i);
+        }
+
+        // three hours of history, overlapping the live points
+        int length = 3 * 3600 + 5;
+        long[] timestamps = new long[length];
+        double[] values = new double[length];
+        long start = now - 3 * 3600 * 1000;
+        for (int i = 0; i < length; i++) {
+            timestamps[i] = start + i * 1000L;
+            values[i] = -i;
+        }
+        Assert.assertEquals(3 * 3600, gStore.backfill(timestamps, values, length));
+        Assert.assertEquals(start, gStore.getOldestTimestamp());
+        Assert.assertEquals(now + 9000, gStore.getNewestTimestamp());
+        Assert.assertEquals(3 * 3600 + 10, gStore.getNumEntries());
+
+        List<WrappedGorillaDecompressor> decompressorList = gStore.getDecompressors(0, Long.MAX_VALUE);
+        // one block per hour ahead of the current block
+        Assert.assertEquals(4, decompressorList.size());
+        long previous = Long.MIN_VALUE;
+        long total = 0;
+        Pair pair;
+        for (WrappedGorillaDecompressor w : decompressorList) {
+            while ((pair = w.readPair()) != null) {
+                Assert.assertTrue(pair.getTimestamp() > previous);
+                previous = pair.getTimestamp();
+                total++;
+            }
+        }
+        Assert.assertEquals(3 * 3600 + 10, total);
+        Assert.assertEquals(now + 9000, previous);
+    }
 }
@@ -0,0 +1,91 @@
+package timely.store.cache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestStagingBuffer {
+
+    @Test
+    public void testDrainInOrder() {
+        StagingBuffer buffer = new StagingBuffer();
+        Assert.assertTrue(buffer.isEmpty());
+        Assert.assertEquals(0, buffer.drain((ts, v) -> Assert.fail()));
+        // spans several chunks
+        for (int i = 0; i < 5000; i++) {
+            buffer.add(i, i * 1.5);
+        }
+        Assert.assertFalse(buffer.isEmpty());
+        List<Long> timestamps = new ArrayList<>();
+        int drained = buffer.drain((ts, v) -> {
+            Assert.assertEquals(ts * 1.5, v, 0.0);
+            timestamps.add(ts);
+        });
+        Assert.assertEquals(5000, drained);
+        for (int i = 0; i < 5000; i++) {
+            Assert.assertEquals(i, timestamps.get(i).longValue());
+        }
+        Assert.assertTrue(buffer.isEmpty());
+        buffer.add(5000, Double.NaN);
+        buffer.drain((ts, v) -> {
+            Assert.assertEquals(5000, ts);
+            Assert.assertTrue(Double.isNaN(v));
+        });
+    }
+
+    @Test
+    public void testConcurrentWritersAndDrain() throws Exception {
+        StagingBuffer buffer = new StagingBuffer();
+        int writers = 8;
+        int perWriter = 200000;
+        // timestamp encodes the writer and sequence number
+        long[] lastSeen = new long[writers];
+        long[] count = new long[writers];
+        Arrays.fill(lastSeen, -1);
+        StagingBuffer.PointConsumer consumer = (ts, v) -> {
+            int writer = (int) (ts / perWriter);
+            long seq = ts % perWriter;
+            Assert.assertEquals(writer, (int) v);
+            Assert.assertTrue(seq > lastSeen[writer]);
+            lastSeen[writer] = seq;
+            count[writer]++;
+        };
+        AtomicBoolean done = new AtomicBoolean(false);
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread drainer = new Thread(() -> {
+            try {
+                while (!done.get()) {
+                    buffer.drain(consumer);
+                }
+            } catch (Throwable t) {
+                error.set(t);
+            }
+        });
+        List<Thread> threads = new ArrayList<>();
+        for (int w = 0; w < writers; w++) {
+            final int writer = w;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < perWriter; i++) {
+                    buffer.add((long) writer * perWriter + i, writer);
+                }
+            }));
+        }
+        drainer.start();
+        threads.forEach(Thread::start);
+        for (Thread t : threads) {
+            t.join();
+        }
+        done.set(true);
+        drainer.join();
+        Assert.assertNull(error.get());
+        buffer.drain(consumer);
+        for (int w = 0; w < writers; w++) {
+            Assert.assertEquals(perWriter, count[w]);
+        }
+    }
+}
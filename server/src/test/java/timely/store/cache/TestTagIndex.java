@@ -0,0 +1,95 @@
+package timely.store.cache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+import timely.model.Tag;
+
+public class TestTagIndex {
+
+    private static TaggedMetric createTaggedMetric(int host) {
+        List<Tag> tags = new ArrayList<>();
+        tags.add(new Tag("host", "h" + host));
+        tags.add(new Tag("rack", "r" + (host % 7)));
+        if (host % 3 == 0) {
+            tags.add(new Tag("instance", "i" + (host % 2)));
+        }
+        if (host % 5 == 0) {
+            tags.add(new Tag("viz", "A"));
+        }
+        return new TaggedMetric("sys.cpu.user", tags);
+    }
+
+    private static Map<String, String> tags(String... keyValues) {
+        Map<String, String> tags = new HashMap<>();
+        for (int i = 0; i < keyValues.length; i += 2) {
+            tags.put(keyValues[i], keyValues[i + 1]);
+        }
+        return tags;
+    }
+
+    private static void assertLookup(TagIndex index, Set<TaggedMetric> series, Map<String, String> tags) {
+        Set<TaggedMetric> expected = new HashSet<>();
+        for (TaggedMetric tm : series) {
+            if (tm.matches(tags)) {
+                expected.add(tm);
+            }
+        }
+        List<TaggedMetric> actual = index.lookup(tags);
+        Assert.assertEquals(tags.toString(), expected.size(), actual.size());
+        Assert.assertEquals(tags.toString(), expected, new HashSet<>(actual));
+    }
+
+    @Test
+    public void testLookupMatchesScan() {
+        List<Map<String, String>> queries = Arrays.asList(Collections.emptyMap(), tags("host", "h12"),
+                tags("host", ".*"), tags("host", "h1.*"), tags("rack", "r3"), tags("rack", "r3", "instance", "i0"),
+                tags("rack", "r[0-2]", "host", "h.*5"), tags("instance", ".*"), tags("host", "h12", "rack", "r1"),
+                tags("host", "nohost"), tags("nokey", ".*"), tags("viz", "A", "rack", "r2"));
+        TagIndex index = new TagIndex();
+        Set<TaggedMetric> series = new HashSet<>();
+        for (int i = 0; i < 500; i++) {
+            TaggedMetric tm = createTaggedMetric(i);
+            index.add(tm);
+            index.add(tm);
+            series.add(tm);
+        }
+        Assert.assertEquals(500, index.size());
+        for (Map<String, String> query : queries) {
+            assertLookup(index, series, query);
+        }
+
+        // removed ids are reused by new series
+        Random r = new Random(3);
+        for (int i = 0; i < 2000; i++) {
+            TaggedMetric tm = createTaggedMetric(r.nextInt(1000));
+            if (r.nextBoolean()) {
+                index.add(tm);
+                series.add(tm);
+            } else {
+                index.remove(tm);
+                series.remove(tm);
+            }
+        }
+        Assert.assertEquals(series.size(), index.size());
+        for (Map<String, String> query : queries) {
+            assertLookup(index, series, query);
+        }
+
+        for (TaggedMetric tm : series) {
+            index.remove(tm);
+        }
+        Assert.assertEquals(0, index.size());
+        Assert.assertTrue(index.lookup(Collections.emptyMap()).isEmpty());
+        Assert.assertTrue(index.lookup(tags("host", ".*")).isEmpty());
+    }
+}
@@ -2,21 +2,19 @@ package timely.store.cache;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
-import java.net.URI;
+import java.nio.ByteBuffer;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Random;
 
 import fi.iki.yak.ts.compression.gorilla.GorillaDecompressor;
 import fi.iki.yak.ts.compression.gorilla.LongArrayInput;
 import fi.iki.yak.ts.compression.gorilla.Pair;
-import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.fs.FileSystem;
-import org.apache.hadoop.fs.Path;
 import org.junit.Assert;
-import org.junit.Ignore;
 import org.junit.Test;
 
 public class TestWrappedGorillaCompressor {
@@ -55,40 +53,118 @@ public class TestWrappedGorillaCompressor {
         Assert.assertEquals(start + 9000, q.peekLast().getTimestamp());
     }
 
-    @Ignore
     @Test
-    public void testHDFSWrite() throws Exception {
-
-        try {
-            Configuration configuration = new Configuration();
-            FileSystem fs = FileSystem.get(new URI("hdfs://localhost:8020"), configuration);
-            GorillaStore store = new GorillaStore(fs, "mymetric", new timely.Configuration());
-
-            long start = System.currentTimeMillis();
-            WrappedGorillaCompressor originalCompressor = new WrappedGorillaCompressor(start);
-            long t = start;
-
-            for (int x = 1; x <= 10; x++) {
-                originalCompressor.addValue(t, 10);
-                t = t + 1000;
-            }
-            originalCompressor.close();
-
-            store.writeCompressor("mymetric", originalCompressor);
-
-            List<WrappedGorillaCompressor> archived = store.readCompressors(fs, new Path("/timely/cache/mymetric"));
-
-            for (WrappedGorillaCompressor c : archived) {
-
-                GorillaDecompressor d = new GorillaDecompressor(new LongArrayInput(c.getCompressorOutput()));
-                LinkedList<Pair> q = new LinkedList<>();
-                Pair p = null;
-                while ((p = d.readPair()) != null) {
-                    q.add(p);
-                }
-            }
-        } catch (Exception e) {
-            System.out.println(e.getMessage());
+    public void testOffHeapDecompressor() {
+
+        Random r = new Random(42);
+        long start = System.currentTimeMillis();
+        WrappedGorillaCompressor compressor = new WrappedGorillaCompressor(start);
+        List<Pair> expected = new LinkedList<>();
+        long t = start;
+        for (int x = 0; x < 5000; x++) {
+            double value = x % 3 == 0 ? r.nextDouble() * 1000 : Math.floor(r.nextDouble() * 100);
+            compressor.addValue(t, value);
+            expected.add(new Pair(t, Double.doubleToRawLongBits(value)));
+            t = t + 1 + r.nextInt(60000);
+        }
+        List<Pair> onHeap = readAll(compressor.getDecompressor());
+        compressor.close();
+        List<Pair> offHeap = readAll(compressor.getDecompressor());
+
+        Assert.assertEquals(expected.size(), onHeap.size());
+        Assert.assertEquals(expected.size(), offHeap.size());
+        for (int x = 0; x < expected.size(); x++) {
+            Assert.assertEquals(expected.get(x).getTimestamp(), offHeap.get(x).getTimestamp());
+            Assert.assertEquals(expected.get(x).getDoubleValue(), offHeap.get(x).getDoubleValue(), 0.0);
+            Assert.assertEquals(onHeap.get(x).getTimestamp(), offHeap.get(x).getTimestamp());
+        }
+        compressor.free();
+    }
+
+    @Test
+    public void testFree() {
+
+        long before = WrappedGorillaCompressor.getOffHeapBytes();
+        long start = System.currentTimeMillis();
+        WrappedGorillaCompressor compressor = new WrappedGorillaCompressor(start);
+        for (int x = 0; x < 100; x++) {
+            compressor.addValue(start + x * 1000, x);
+        }
+        Assert.assertEquals(before, WrappedGorillaCompressor.getOffHeapBytes());
+        compressor.close();
+        Assert.assertTrue(WrappedGorillaCompressor.getOffHeapBytes() > before);
+
+        // an open decompressor keeps the block until it is closed
+        WrappedGorillaDecompressor d = compressor.getDecompressor();
+        Assert.assertNotNull(d.readPair());
+        compressor.free();
+        Assert.assertTrue(WrappedGorillaCompressor.getOffHeapBytes() > before);
+        Assert.assertNotNull(d.readPair());
+        d.close();
+        Assert.assertNull(d.readPair());
+        Assert.assertEquals(before, WrappedGorillaCompressor.getOffHeapBytes());
+        compressor.free();
+        Assert.assertEquals(before, WrappedGorillaCompressor.getOffHeapBytes());
+    }
+
+    @Test
+    public void testSummary() throws IOException {
+
+        long start = System.currentTimeMillis();
+        WrappedGorillaCompressor compressor = new WrappedGorillaCompressor(start);
+        for (int x = 0; x < 100; x++) {
+            compressor.addValue(start + x * 1000, (x * 37) % 101 - 20);
+        }
+        Assert.assertNull(compressor.getSummary());
+        compressor.close();
+        assertSummary(compressor.getSummary(), start);
+
+        // rebuilt from the archived bytes, as when loaded from a snapshot
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        compressor.writeArchived(new DataOutputStream(bytes));
+        ByteBuffer in = ByteBuffer.wrap(bytes.toByteArray());
+        long numEntries = in.getLong();
+        long oldest = in.getLong();
+        long newest = in.getLong();
+        in.getInt();
+        WrappedGorillaCompressor archived = WrappedGorillaCompressor.archived(numEntries, oldest, newest, in.slice());
+        assertSummary(archived.getSummary(), start);
+        Assert.assertSame(archived.getSummary(), archived.getDecompressor().getSummary());
+        compressor.free();
+        archived.free();
+
+        // a block with points at the same timestamp has no summary
+        WrappedGorillaCompressor duplicates = new WrappedGorillaCompressor(start);
+        duplicates.addValue(start, 1);
+        duplicates.addValue(start + 1000, 2);
+        duplicates.addValue(start + 1000, 3);
+        duplicates.close();
+        Assert.assertNull(duplicates.getSummary());
+        duplicates.free();
+    }
+
+    private static void assertSummary(BlockSummary summary, long start) {
+        Assert.assertNotNull(summary);
+        Assert.assertEquals(100, summary.getCount());
+        Assert.assertEquals(start, summary.getOldestTimestamp());
+        Assert.assertEquals(start + 99000, summary.getNewestTimestamp());
+        double sum = 0;
+        for (int x = 0; x < 100; x++) {
+            sum += (x * 37) % 101 - 20;
+        }
+        Assert.assertEquals(sum, summary.getSum(), 0.0);
+        Assert.assertEquals(-20, summary.getMin(), 0.0);
+        Assert.assertEquals(80, summary.getMax(), 0.0);
+        Assert.assertEquals(-20, summary.getFirst(), 0.0);
+        Assert.assertEquals((99 * 37) % 101 - 20, summary.getLast(), 0.0);
+    }
+
+    private static List<Pair> readAll(WrappedGorillaDecompressor d) {
+        List<Pair> pairs = new LinkedList<>();
+        Pair p;
+        while ((p = d.readPair()) != null) {
+            pairs.add(p);
         }
+        return pairs;
     }
 }
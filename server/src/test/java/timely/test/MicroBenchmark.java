@@ -0,0 +1,127 @@
+package timely.test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.config.Configurator;
+
+/**
+ * Small harness for the main method benchmarks that live next to the tests.
+ * Each benchmark runs a number of warmup iterations, then reports throughput
+ * and, when the JVM supports it, bytes allocated per operation on the calling
+ * thread. The test logging configuration is at TRACE, so benchmarks quiet it
+ * down to WARN.
+ */
+public class MicroBenchmark {
+
+    @FunctionalInterface
+    public interface Operation {
+
+        Object run() throws Exception;
+    }
+
+    private static volatile int sink;
+
+    private final int warmupIterations;
+    private final int measurementIterations;
+    private final long iterationNanos;
+
+    public MicroBenchmark() {
+        this(5, 5, 1, TimeUnit.SECONDS);
+    }
+
+    public MicroBenchmark(int warmupIterations, int measurementIterations, long iterationTime, TimeUnit unit) {
+        this.warmupIterations = warmupIterations;
+        this.measurementIterations = measurementIterations;
+        this.iterationNanos = unit.toNanos(iterationTime);
+        Configurator.setRootLevel(Level.WARN);
+    }
+
+    /**
+     * @return average nanoseconds per operation
+     */
+    public double run(String name, Operation op) throws Exception {
+        for (int i = 0; i < warmupIterations; i++) {
+            iteration(op);
+        }
+        long ops = 0;
+        long nanos = 0;
+        long bytes = 0;
+        for (int i = 0; i < measurementIterations; i++) {
+            long allocatedBefore = allocatedBytes();
+            long start = System.nanoTime();
+            ops += iteration(op);
+            nanos += System.nanoTime() - start;
+            bytes += allocatedBytes() - allocatedBefore;
+        }
+        double nanosPerOp = (double) nanos / ops;
+        System.out.println(String.format("%-50s %12.1f ops/s %10.1f ns/op %10.1f B/op", name,
+                ops / (nanos / 1_000_000_000.0), nanosPerOp, (double) bytes / ops));
+        return nanosPerOp;
+    }
+
+    /**
+     * Runs the operation on the given number of threads at once
+     *
+     * @return total operations per second across all threads
+     */
+    public double runConcurrent(String name, int threads, Operation op) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Callable<Long>> tasks = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                tasks.add(() -> iteration(op));
+            }
+            for (int i = 0; i < warmupIterations; i++) {
+                for (Future<Long> f : executor.invokeAll(tasks)) {
+                    f.get();
+                }
+            }
+            long ops = 0;
+            long nanos = 0;
+            for (int i = 0; i < measurementIterations; i++) {
+                long start = System.nanoTime();
+                for (Future<Long> f : executor.invokeAll(tasks)) {
+                    ops += f.get();
+                }
+                nanos += System.nanoTime() - start;
+            }
+            double opsPerSecond = ops / (nanos / 1_000_000_000.0);
+            System.out.println(String.format("%-50s %12.1f ops/s %4d threads", name, opsPerSecond, threads));
+            return opsPerSecond;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private long iteration(Operation op) throws Exception {
+        long ops = 0;
+        int hash = 0;
+        long end = System.nanoTime() + iterationNanos;
+        do {
+            for (int i = 0; i < 100; i++) {
+                Object result = op.run();
+                hash += (result == null ? 0 : System.identityHashCode(result));
+            }
+            ops += 100;
+        } while (System.nanoTime() < end);
+        sink += hash;
+        return ops;
+    }
+
+    private static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+}
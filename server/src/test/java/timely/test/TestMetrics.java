@@ -0,0 +1,21 @@
+package timely.test;
+
+import timely.model.Metric;
+
+public class TestMetrics {
+
+    private TestMetrics() {
+    }
+
+    /**
+     * @param tags
+     *            key=value pairs, as in a put
+     */
+    public static Metric createMetric(String name, long timestamp, double value, String... tags) {
+        Metric.Builder builder = Metric.newBuilder().name(name).value(timestamp, value);
+        for (String tag : tags) {
+            builder.tag(tag);
+        }
+        return builder.build();
+    }
+}
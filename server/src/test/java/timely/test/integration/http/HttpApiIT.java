@@ -4,11 +4,14 @@ import static com.google.common.util.concurrent.Uninterruptibles.sleepUninterrup
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.io.OutputStream;
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -20,6 +23,7 @@ import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.net.ssl.HttpsURLConnection;
 
+import org.apache.commons.io.IOUtils;
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
 import org.jsoup.select.Elements;
@@ -29,10 +33,13 @@ import org.junit.experimental.categories.Category;
 import timely.Server;
 import timely.api.request.VersionRequest;
 import timely.api.request.timeseries.QueryRequest;
+import timely.api.request.timeseries.QueryRequest.Filter;
 import timely.api.request.timeseries.QueryRequest.SubQuery;
 import timely.api.response.timeseries.QueryResponse;
+import timely.api.response.timeseries.QueryResponseFlatBuffer;
 import timely.model.Metric;
 import timely.model.Tag;
+import timely.netty.Constants;
 import timely.model.Value;
 import timely.test.IntegrationTest;
 import timely.test.TestConfiguration;
@@ -338,6 +345,199 @@ public class HttpApiIT extends OneWaySSLBase {
         }
     }
 
+    @Test
+    public void testQueryWithMultipleSubqueries() throws Exception {
+        final Server s = new Server(conf);
+        s.run();
+        try {
+            put("sys.cpu.user " + TEST_TIME + " 1.0 host=h1", "sys.cpu.user " + TEST_TIME + " 2.0 host=h2",
+                    "sys.cpu.idle " + TEST_TIME + " 3.0 host=h1", "sys.cpu.idle " + TEST_TIME + " 4.0 host=h2");
+            // Latency in TestConfiguration is 2s, wait for it
+            sleepUninterruptibly(TestConfiguration.WAIT_SECONDS, TimeUnit.SECONDS);
+            QueryRequest request = new QueryRequest();
+            request.setStart(TEST_TIME);
+            request.setEnd(TEST_TIME + 4000);
+            String[][] queries = new String[][] { { "sys.cpu.idle", "h2" }, { "sys.cpu.user", "h1" },
+                    { "sys.cpu.user", "h2" }, { "sys.cpu.idle", "h1" } };
+            for (String[] q : queries) {
+                SubQuery subQuery = new SubQuery();
+                subQuery.setMetric(q[0]);
+                subQuery.addTag("host", q[1]);
+                subQuery.setDownsample(Optional.of("1s-max"));
+                request.addQuery(subQuery);
+            }
+            // the responses are in the order of the subqueries
+            List<QueryResponse> response = query("https://127.0.0.1:54322/api/query", request);
+            assertEquals(4, response.size());
+            double[] values = new double[] { 4.0, 1.0, 2.0, 3.0 };
+            for (int i = 0; i < queries.length; i++) {
+                assertEquals(queries[i][0], response.get(i).getMetric());
+                assertEquals(queries[i][1], response.get(i).getTags().get("host"));
+                assertEquals(values[i], response.get(i).getDps().get(Long.toString(TEST_TIME / 1000)));
+            }
+        } finally {
+            s.shutdown();
+        }
+    }
+
+    @Test
+    public void testQueryWithFailedSubquery() throws Exception {
+        final Server s = new Server(conf);
+        s.run();
+        try {
+            put("sys.cpu.user " + TEST_TIME + " 1.0 host=h1", "sys.cpu.idle " + TEST_TIME + " 3.0 host=h1");
+            // Latency in TestConfiguration is 2s, wait for it
+            sleepUninterruptibly(TestConfiguration.WAIT_SECONDS, TimeUnit.SECONDS);
+            QueryRequest request = new QueryRequest();
+            request.setStart(TEST_TIME);
+            request.setEnd(TEST_TIME + 4000);
+            // the second subquery fails, it has no matching tags
+            String[][] queries = new String[][] { { "sys.cpu.user", "h1" }, { "sys.cpu.user", "h2" },
+                    { "sys.cpu.idle", "h1" } };
+            for (String[] q : queries) {
+                SubQuery subQuery = new SubQuery();
+                subQuery.setMetric(q[0]);
+                subQuery.addTag("host", q[1]);
+                subQuery.setDownsample(Optional.of("1s-max"));
+                request.addQuery(subQuery);
+            }
+            List<QueryResponse> response = query("https://127.0.0.1:54322/api/query", request);
+            assertEquals(3, response.size());
+            assertEquals("sys.cpu.user", response.get(0).getMetric());
+            assertNull(response.get(0).getError());
+            assertEquals(1.0, response.get(0).getDps().get(Long.toString(TEST_TIME / 1000)));
+            assertEquals("sys.cpu.user", response.get(1).getMetric());
+            assertEquals("No matching tags", response.get(1).getError());
+            assertTrue(response.get(1).getDps().isEmpty());
+            assertEquals("sys.cpu.idle", response.get(2).getMetric());
+            assertNull(response.get(2).getError());
+            assertEquals(3.0, response.get(2).getDps().get(Long.toString(TEST_TIME / 1000)));
+        } finally {
+            s.shutdown();
+        }
+    }
+
+    @Test
+    public void testQueryFromResultCache() throws Exception {
+        conf.getQuery().getResultCache().setEnabled(true).getQuery().getResultCache().setSettleTime("0s");
+        final Server s = new Server(conf);
+        s.run();
+        try {
+            put("sys.cpu.user " + TEST_TIME + " 1.0 host=h1", "sys.cpu.user " + (TEST_TIME + 1000) + " 2.0 host=h1",
+                    "sys.cpu.user " + (TEST_TIME + 2000) + " 3.0 host=h1");
+            // Latency in TestConfiguration is 2s, wait for it
+            sleepUninterruptibly(TestConfiguration.WAIT_SECONDS, TimeUnit.SECONDS);
+            QueryRequest request = new QueryRequest();
+            request.setStart(TEST_TIME);
+            request.setEnd(TEST_TIME + 3000);
+            SubQuery subQuery = new SubQuery();
+            subQuery.setMetric("sys.cpu.user");
+            subQuery.addTag("host", "h1");
+            subQuery.setDownsample(Optional.of("1s-max"));
+            request.addQuery(subQuery);
+            List<QueryResponse> response = query("https://127.0.0.1:54322/api/query", request);
+            assertEquals(1, response.size());
+            assertEquals(3, response.get(0).getDps().size());
+
+            // the window moves forward, the new point is read after the
+            // cached buckets
+            put("sys.cpu.user " + (TEST_TIME + 5000) + " 4.0 host=h1");
+            sleepUninterruptibly(TestConfiguration.WAIT_SECONDS, TimeUnit.SECONDS);
+            request.setStart(TEST_TIME + 1000);
+            request.setEnd(TEST_TIME + 6000);
+            response = query("https://127.0.0.1:54322/api/query", request);
+            assertEquals(1, response.size());
+            Map<String, Object> dps = response.get(0).getDps();
+            assertEquals(3, dps.size());
+            assertEquals(2.0, dps.get(Long.toString((TEST_TIME + 1000) / 1000)));
+            assertEquals(3.0, dps.get(Long.toString((TEST_TIME + 2000) / 1000)));
+            assertEquals(4.0, dps.get(Long.toString((TEST_TIME + 5000) / 1000)));
+        } finally {
+            s.shutdown();
+            conf.getQuery().getResultCache().setEnabled(false);
+        }
+    }
+
+    @Test
+    public void testQueryColumnarFormats() throws Exception {
+        final Server s = new Server(conf);
+        s.run();
+        try {
+            put("sys.cpu.user " + TEST_TIME + " 1.0 host=h1", "sys.cpu.user " + (TEST_TIME + 1000) + " 2.0 host=h1",
+                    "sys.cpu.user " + (TEST_TIME + 2000) + " 3.0 host=h1");
+            // Latency in TestConfiguration is 2s, wait for it
+            sleepUninterruptibly(TestConfiguration.WAIT_SECONDS, TimeUnit.SECONDS);
+            QueryRequest request = new QueryRequest();
+            request.setStart(TEST_TIME);
+            request.setEnd(TEST_TIME + 3000);
+            request.setMsResolution(true);
+            SubQuery subQuery = new SubQuery();
+            subQuery.setMetric("sys.cpu.user");
+            subQuery.addTag("host", "h1");
+            subQuery.setDownsample(Optional.of("1s-max"));
+            request.addQuery(subQuery);
+            request.setFormat(QueryRequest.Format.COLUMNAR);
+            // the 1s buckets start on the second
+            long first = TEST_TIME - (TEST_TIME % 1000);
+            long[] timestamps = new long[] { first, first + 1000, first + 2000 };
+            List<QueryResponse> response = query("https://127.0.0.1:54322/api/query", request);
+            assertEquals(1, response.size());
+            assertTrue(response.get(0).getDps().isEmpty());
+            Assert.assertArrayEquals(timestamps, response.get(0).getTimestamps());
+            Assert.assertArrayEquals(new double[] { 1.0, 2.0, 3.0 }, response.get(0).getValues(), 0.0);
+
+            // chosen by the Accept header
+            request.setFormat(null);
+            URL url = new URL("https://127.0.0.1:54322/api/query");
+            HttpsURLConnection con = getUrlConnection(url);
+            con.setRequestMethod("POST");
+            con.setDoOutput(true);
+            con.setRequestProperty("Content-Type", "application/json");
+            con.setRequestProperty("Accept", Constants.FLATBUFFER_TYPE);
+            String requestJSON = JsonUtil.getObjectMapper().writeValueAsString(request);
+            con.setRequestProperty("Content-Length", String.valueOf(requestJSON.length()));
+            OutputStream wr = con.getOutputStream();
+            wr.write(requestJSON.getBytes(UTF_8));
+            assertEquals(200, con.getResponseCode());
+            assertEquals(Constants.FLATBUFFER_TYPE, con.getContentType());
+            response = QueryResponseFlatBuffer.read(ByteBuffer.wrap(IOUtils.toByteArray(con.getInputStream())));
+            assertEquals(1, response.size());
+            assertEquals("h1", response.get(0).getTags().get("host"));
+            Assert.assertArrayEquals(timestamps, response.get(0).getTimestamps());
+            Assert.assertArrayEquals(new double[] { 1.0, 2.0, 3.0 }, response.get(0).getValues(), 0.0);
+        } finally {
+            s.shutdown();
+        }
+    }
+
+    @Test(expected = NotSuccessfulException.class)
+    public void testQueryOverMaxCost() throws Exception {
+        conf.getQuery().getGovernor().setMaxCost(2);
+        final Server s = new Server(conf);
+        s.run();
+        try {
+            put("sys.cpu.user " + TEST_TIME + " 1.0 host=h1", "sys.cpu.user " + TEST_TIME + " 2.0 host=h2");
+            // Latency in TestConfiguration is 2s, wait for it
+            sleepUninterruptibly(TestConfiguration.WAIT_SECONDS, TimeUnit.SECONDS);
+            QueryRequest request = new QueryRequest();
+            request.setStart(TEST_TIME);
+            request.setEnd(TEST_TIME + 3000);
+            SubQuery subQuery = new SubQuery();
+            subQuery.setMetric("sys.cpu.user");
+            subQuery.addTag("host", "h1");
+            request.addQuery(subQuery);
+            // one column family for an hour
+            assertEquals(1, query("https://127.0.0.1:54322/api/query", request).size());
+            // two column families for two hours
+            request.setStart(TEST_TIME - 3600000);
+            subQuery.addTag("host", ".*");
+            query("https://127.0.0.1:54322/api/query", request, 400);
+        } finally {
+            s.shutdown();
+            conf.getQuery().getGovernor().setMaxCost(0);
+        }
+    }
+
     @Test(expected = NotSuccessfulException.class)
     public void testQueryWithNoMatchingTags() throws Exception {
         final Server s = new Server(conf);
@@ -571,6 +771,53 @@ public class HttpApiIT extends OneWaySSLBase {
         }
     }
 
+    @Test
+    public void testQueryWithFilters() throws Exception {
+        final Server s = new Server(conf);
+        s.run();
+        try {
+            put("sys.cpu.idle " + TEST_TIME + " 1.0 host=h1 rack=r1",
+                    "sys.cpu.idle " + TEST_TIME + " 2.0 host=h2 rack=r1",
+                    "sys.cpu.idle " + TEST_TIME + " 4.0 host=h3 rack=r2",
+                    "sys.cpu.idle " + TEST_TIME + " 8.0 host=h4 rack=r3");
+            // Latency in TestConfiguration is 2s, wait for it
+            sleepUninterruptibly(TestConfiguration.WAIT_SECONDS, TimeUnit.SECONDS);
+            QueryRequest request = new QueryRequest();
+            request.setStart(TEST_TIME);
+            request.setEnd(TEST_TIME + 6000);
+            SubQuery subQuery = new SubQuery();
+            subQuery.setMetric("sys.cpu.idle");
+            subQuery.setDownsample(Optional.of("1s-max"));
+            subQuery.setAggregator("sum");
+            Filter racks = new Filter();
+            racks.setType(Filter.LITERAL_OR);
+            racks.setTagk("rack");
+            racks.setFilter("r1|r2");
+            racks.setGroupBy(true);
+            subQuery.addFilter(racks);
+            Filter hosts = new Filter();
+            hosts.setType(Filter.NOT_LITERAL_OR);
+            hosts.setTagk("host");
+            hosts.setFilter("h2");
+            subQuery.addFilter(hosts);
+            request.addQuery(subQuery);
+            List<QueryResponse> responses = query("https://127.0.0.1:54322/api/query", request);
+
+            // summed for each rack, without h2
+            assertEquals(2, responses.size());
+            Map<String, Double> values = new HashMap<>();
+            for (QueryResponse response : responses) {
+                assertEquals(Collections.singleton("rack"), response.getTags().keySet());
+                assertEquals(1, response.getDps().size());
+                values.put(response.getTags().get("rack"), (Double) response.getDps().values().iterator().next());
+            }
+            assertEquals(1.0, values.get("r1"), 0.0);
+            assertEquals(4.0, values.get("r2"), 0.0);
+        } finally {
+            s.shutdown();
+        }
+    }
+
     @Test
     public void testQueryWithTagRegex() throws Exception {
         final Server s = new Server(conf);